@@ -0,0 +1,156 @@
+package javavulkantutorial;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two JMH csv result files, usage: baseline.csv current.csv [tolerance percent, default 10]
+ * [max error percent, default 20]
+ *
+ * A benchmark regressed when it got slower by more than the tolerance and by more than both error margins together,
+ * so noise alone doesn't fail the build. A benchmark whose error margin is above max error percent of its score, in
+ * either file, is too noisy to say anything at that tolerance and is only listed. Exits with 1 if anything regressed.
+ *
+ * The scores are absolute timings, so the baseline only means something on the machine that produced it. Regenerate
+ * it on the machine that runs the comparison, the CI runner included, by copying target/jmh-result.csv over it.
+ */
+public class BenchmarkCompare {
+
+    private static final class Result {
+        String mode;
+        double score;
+        double error;
+        String unit;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("usage: BenchmarkCompare baseline.csv current.csv [tolerance percent] [max error percent]");
+            System.exit(2);
+        }
+
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> current = read(args[1]);
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.1;
+        double maxError = args.length > 3 ? Double.parseDouble(args[3]) / 100 : 0.2;
+
+        int regressions = 0;
+        int noisy = 0;
+
+        for(Map.Entry<String, Result> entry : current.entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+
+            if(before == null || !before.unit.equals(now.unit)) {
+                System.out.printf("  new       %-70s %12.3f %s%n", entry.getKey(), now.score, now.unit);
+                continue;
+            }
+
+            // throughput wants a higher score, every other mode measures time
+            double slowdown = now.mode.equals("thrpt") ? before.score / now.score - 1 : now.score / before.score - 1;
+
+            if(before.error > maxError * before.score || now.error > maxError * now.score) {
+                noisy++;
+                System.out.printf("  noisy     %-70s %12.3f -> %12.3f %s (%+.1f%%, error %.0f%% -> %.0f%%)%n",
+                        entry.getKey(), before.score, now.score, now.unit, slowdown * 100,
+                        before.error / before.score * 100, now.error / now.score * 100);
+                continue;
+            }
+
+            boolean significant = Math.abs(now.score - before.score) > before.error + now.error;
+            boolean regressed = slowdown > tolerance && significant;
+
+            if(regressed) regressions++;
+
+            System.out.printf("  %-9s %-70s %12.3f -> %12.3f %s (%+.1f%%)%n",
+                    regressed ? "REGRESSED" : slowdown < -tolerance && significant ? "faster" : "ok",
+                    entry.getKey(), before.score, now.score, now.unit, slowdown * 100);
+        }
+
+        for(String name : baseline.keySet()) {
+            if(!current.containsKey(name)) System.out.printf("  missing   %s%n", name);
+        }
+
+        if(noisy > 0) {
+            System.out.printf("%d benchmarks not compared, their error is above %.0f%% of the score%n", noisy, maxError * 100);
+        }
+
+        if(regressions > 0) {
+            System.out.printf("%d benchmarks regressed by more than %.0f%%%n", regressions, tolerance * 100);
+            System.exit(1);
+        }
+        System.out.println("No regressions");
+    }
+
+    // keyed by benchmark name plus its parameters
+    private static Map<String, Result> read(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+        Map<String, Result> results = new LinkedHashMap<>();
+        if(lines.isEmpty()) return results;
+
+        List<String> header = split(lines.get(0));
+        int benchmark = header.indexOf("Benchmark");
+        int mode = header.indexOf("Mode");
+        int score = header.indexOf("Score");
+        int error = header.indexOf("Score Error (99.9%)");
+        int unit = header.indexOf("Unit");
+
+        for(String line : lines.subList(1, lines.size())) {
+            if(line.trim().isEmpty()) continue;
+            List<String> fields = split(line);
+
+            StringBuilder key = new StringBuilder(fields.get(benchmark));
+            for(int i = 0;i < header.size();i++) {
+                if(header.get(i).startsWith("Param: ") && !fields.get(i).isEmpty()) {
+                    key.append(' ').append(header.get(i).substring(7)).append('=').append(fields.get(i));
+                }
+            }
+
+            Result result = new Result();
+            result.mode = fields.get(mode);
+            result.score = parse(fields.get(score));
+            result.error = parse(fields.get(error));
+            result.unit = fields.get(unit);
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+
+    // JMH writes NaN for the error of single shot runs
+    private static double parse(String number) {
+        double value = Double.parseDouble(number);
+        return Double.isNaN(value) ? 0 : value;
+    }
+
+    // JMH quotes every text field, numbers stay bare
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for(int i = 0;i < line.length();i++) {
+            char c = line.charAt(i);
+            if(c == '"') {
+                if(quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if(c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
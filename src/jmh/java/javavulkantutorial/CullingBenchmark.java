@@ -0,0 +1,74 @@
+package javavulkantutorial;
+
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What cullEntities does on the CPU each frame: small sprites spread over a world ten screens wide and high, the
+ * camera looking at one screen of it. Plain host memory stands in for the visible buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CullingBenchmark {
+
+    @Param({"10000", "100000"})
+    int entities;
+
+    @Param({"1", "4"})
+    int threads;
+
+    private Engine.EntityStore store;
+    private ExecutorService executor;
+    private SpriteCuller culler;
+    private long visible;
+    private Random random;
+
+    @Setup
+    public void setup() throws Exception {
+        store = new Engine.EntityStore(entities);
+        executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        culler = new SpriteCuller(0.5f, 4096, executor, threads);
+        visible = MemoryUtil.nmemAlloc((long) entities * SpriteCuller.ENTRY_BYTES);
+        random = new Random(42);
+
+        for(int id = 0;id < entities;id++) {
+            place(id);
+        }
+        culler.cull(store, entities, -1f, -1f, 1f, 1f, visible, null, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if(executor != null) executor.shutdown();
+        store.free();
+        MemoryUtil.nmemFree(visible);
+    }
+
+    // nothing moved since the last frame, only the query
+    @Benchmark
+    public int cullStatic() throws Exception {
+        return culler.cull(store, entities, -1f, -1f, 1f, 1f, visible, null, null);
+    }
+
+    // every tenth entity moved, their bounds are recomputed and rehashed first
+    @Benchmark
+    public int cullMoving() throws Exception {
+        for(int i = 0;i < entities / 10;i++) {
+            place(random.nextInt(entities));
+        }
+        return culler.cull(store, entities, -1f, -1f, 1f, 1f, visible, null, null);
+    }
+
+    private void place(int id) {
+        store.setTransform(id, random.nextFloat() * 20f - 10f, random.nextFloat() * 20f - 10f, random.nextFloat() * 6f, 0.05f, 0.05f, 0);
+        culler.moved(id);
+    }
+}
@@ -0,0 +1,74 @@
+package javavulkantutorial;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation and free through the block allocator against a backing that only counts, so this is the cost of the
+ * bookkeeping alone. The mix of sizes and alignments is roughly what textures, instance buffers and staging need.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DeviceMemoryAllocatorBenchmark {
+
+    private static final long BLOCK_SIZE = 64L << 20;
+
+    // allocations alive at any time, more of them means longer free lists to search
+    @Param({"64", "1024"})
+    int live;
+
+    private DeviceMemoryAllocator allocator;
+    private DeviceMemoryAllocator.Allocation[] allocations;
+    private final Random random = new Random(42);
+
+    @Setup
+    public void setup() {
+        allocator = new DeviceMemoryAllocator(new DeviceMemoryAllocator.Backing() {
+            private long next = 1;
+
+            @Override
+            public long allocate(int memoryType, long size) {
+                return next++;
+            }
+
+            @Override
+            public void free(long memory) {
+            }
+
+            @Override
+            public long map(int memoryType, long memory, long size) {
+                return 0;
+            }
+        }, 2, BLOCK_SIZE, 1024, 4096);
+
+        allocations = new DeviceMemoryAllocator.Allocation[live];
+        for(int i = 0;i < live;i++) {
+            allocations[i] = allocate();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        allocator.destroy();
+    }
+
+    // frees a random allocation and takes a new one in its place
+    @Benchmark
+    public DeviceMemoryAllocator.Allocation replace() {
+        int i = random.nextInt(live);
+        allocator.free(allocations[i]);
+        return allocations[i] = allocate();
+    }
+
+    private DeviceMemoryAllocator.Allocation allocate() {
+        boolean linear = random.nextBoolean();
+        long size = 256L << random.nextInt(12); // 256 bytes to 512 KB
+        long alignment = linear ? 256 : 4096;
+        return allocator.allocate(random.nextInt(2), size, alignment, linear);
+    }
+}
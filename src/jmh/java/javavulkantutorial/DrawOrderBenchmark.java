@@ -0,0 +1,64 @@
+package javavulkantutorial;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per frame cost of DrawOrder.sort(): one entity changed its key since the last frame, so the whole draw list is
+ * sorted again. "layers" only uses the layer bits, "mixed" gives every entity a random layer, depth and texture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DrawOrderBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int entities;
+
+    @Param({"layers", "mixed"})
+    String keys;
+
+    private DrawOrder drawOrder;
+    private Random random;
+
+    @Setup
+    public void setup() {
+        drawOrder = new DrawOrder();
+        random = new Random(42);
+
+        for(int id = 0;id < entities;id++) {
+            change(id);
+        }
+        drawOrder.sort(entities);
+    }
+
+    @Benchmark
+    public boolean sortChanged() {
+        int id = random.nextInt(entities);
+        if(keys.equals("mixed")) {
+            drawOrder.setDepth(id, random.nextFloat() * 2f - 1f);
+        } else {
+            // the next layer, a random one could be the same and skip the sort
+            drawOrder.setLayer(id, (int) (drawOrder.key(id) >>> 48) + 1 & 7);
+        }
+        return drawOrder.sort(entities);
+    }
+
+    // what most frames cost, nothing changed
+    @Benchmark
+    public boolean sortUnchanged() {
+        return drawOrder.sort(entities);
+    }
+
+    private void change(int id) {
+        drawOrder.setLayer(id, random.nextInt(8));
+        if(keys.equals("mixed")) {
+            drawOrder.setDepth(id, random.nextFloat() * 2f - 1f);
+            drawOrder.setTexture(id, random.nextInt(64), random.nextBoolean());
+        }
+    }
+}
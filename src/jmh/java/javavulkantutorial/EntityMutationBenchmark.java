@@ -0,0 +1,63 @@
+package javavulkantutorial;
+
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A frame of game logic touching every entity through the public API. The engine is never started, so there are no
+ * instance buffers and markEntityDirty returns right away; this measures the writes into the entity store.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EntityMutationBenchmark {
+
+    @Param({"1000", "100000"})
+    int entities;
+
+    private final Matrix4f model = new Matrix4f();
+    private float angle;
+
+    @Setup
+    public void setup() {
+        Engine.entities.ensureCapacity(entities);
+    }
+
+    @Benchmark
+    public void setEntityModel() {
+        angle += 0.01f;
+        for(int id = 0;id < entities;id++) {
+            Engine.setEntityModel(id, model.identity().translate(id * 0.001f, 0f, 0f).rotateZ(angle));
+        }
+    }
+
+    // the read, modify, write variant Main uses
+    @Benchmark
+    public void setEntityModelModifier() {
+        angle += 0.01f;
+        for(int id = 0;id < entities;id++) {
+            Engine.setEntityModel(id, m -> m.rotateZ(angle));
+        }
+    }
+
+    // the compact 2D transform, no matrix math on the CPU
+    @Benchmark
+    public void setEntityTransform() {
+        angle += 0.01f;
+        for(int id = 0;id < entities;id++) {
+            Engine.setEntityTransform(id, id * 0.001f, 0f, angle, 1f, 1f, 0);
+        }
+    }
+
+    @Benchmark
+    public void setEntityUserData() {
+        angle += 0.01f;
+        for(int id = 0;id < entities;id++) {
+            Engine.setEntityUserData(id, angle, id, 0f);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package javavulkantutorial;
+
+import javavulkantutorial.Engine.ShaderSPIRVUtils;
+import javavulkantutorial.Engine.ShaderSPIRVUtils.SPIRV;
+import javavulkantutorial.Engine.ShaderSPIRVUtils.ShaderKind;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.ClassLoader.getSystemClassLoader;
+
+/**
+ * shaderc on the engine's shaders, and the same through the SPIR-V cache once it is warm. The cache lives under
+ * target so benchmarking never touches the one the engine uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(jvmArgsAppend = "-Dengine.cacheDir=target/jmh-cache")
+public class ShaderCompileBenchmark {
+
+    @Param({"shader.vert", "shader.frag"})
+    String shader;
+
+    private String source;
+    private ShaderKind kind;
+
+    @Setup
+    public void setup() throws Exception {
+        String file = getSystemClassLoader().getResource("shaders/" + shader).toExternalForm();
+        source = new String(Files.readAllBytes(Paths.get(new URI(file))));
+        kind = shader.endsWith(".vert") ? ShaderKind.VERTEX_SHADER : ShaderKind.FRAGMENT_SHADER;
+
+        // warms the cache for compileShaderCached
+        ShaderSPIRVUtils.compileShader(shader, source, kind).free();
+    }
+
+    @Benchmark
+    public int compileShaderUncached() {
+        try(SPIRV spirv = ShaderSPIRVUtils.compileShaderUncached(shader, source, kind)) {
+            return spirv.bytecode().remaining();
+        }
+    }
+
+    @Benchmark
+    public int compileShaderCached() {
+        try(SPIRV spirv = ShaderSPIRVUtils.compileShader(shader, source, kind)) {
+            return spirv.bytecode().remaining();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package javavulkantutorial;
+
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.ClassLoader.getSystemClassLoader;
+
+/**
+ * A burst of sprites created and destroyed within a frame, the way bullets or particles come and go. Goes through
+ * createRenderEntity and destroyRenderEntity with the bundled textures in an atlas but without a device, so this is
+ * the entity store, culler and draw order bookkeeping, nothing gets uploaded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SpawnBurstBenchmark {
+
+    @Param({"1000", "100000"})
+    int entities;
+
+    // empty: the burst grows the instance range from nothing and shrinks it back,
+    // holes: every other one of entities live sprites is gone, the burst refills the free ids
+    @Param({"empty", "holes"})
+    String scene;
+
+    private int live[];
+    private int burst[];
+
+    @Setup
+    public void setup() throws Exception {
+        File files[] = new File(getSystemClassLoader().getResource("textures").toURI()).listFiles();
+        Engine.TextureAtlas atlas = Engine.loadAndNormalizeTextures(files, 1, 4096);
+
+        // only releases the decoded images, the pixels aren't needed
+        long pixels = MemoryUtil.nmemAlloc(atlas.sizeInBytes());
+        atlas.compose(pixels);
+        MemoryUtil.nmemFree(pixels);
+        Engine.useTextureAtlas(atlas);
+
+        if(scene.equals("empty")) {
+            live = new int[0];
+            burst = new int[entities];
+        } else {
+            int all[] = new int[entities];
+            for(int i = 0;i < entities;i++) all[i] = Engine.createRenderEntity("IEEE.png");
+
+            live = new int[entities / 2];
+            burst = new int[entities - live.length];
+            for(int i = 0;i < entities;i++) {
+                if(i % 2 == 0) live[i / 2] = all[i];
+                else Engine.destroyRenderEntity(all[i]);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for(int id : live) Engine.destroyRenderEntity(id);
+    }
+
+    @Benchmark
+    public int spawnAndDestroy() {
+        for(int i = 0;i < burst.length;i++) {
+            burst[i] = Engine.createRenderEntity(i % 2 == 0 ? "IEEE.png" : "vulkan.png");
+        }
+        for(int id : burst) {
+            Engine.destroyRenderEntity(id);
+        }
+        return burst[burst.length - 1];
+    }
+}
@@ -0,0 +1,124 @@
+package javavulkantutorial;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.ClassLoader.getSystemClassLoader;
+import static org.lwjgl.stb.STBImage.stbi_image_free;
+import static org.lwjgl.stb.STBImage.stbi_load;
+
+/**
+ * A coverage calculation on the CPU, not a GPU measurement: which pixels of one sprite of a bundled texture, 256
+ * pixels wide, a rasterizer would cover with the whole quad or with its SpriteOutline, and the bilinear filter and
+ * alpha test of shader.frag done in Java for each of them. The time only goes with the covered pixel count, it says
+ * nothing about what a GPU spends. The fragment invocations on a device come from the statistics query, compare
+ * HeadlessMain with and without -Dengine.spriteMeshes=0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SpriteCoverageBenchmark {
+
+    private static final int SPRITE_SIZE = 256;
+
+    @Param({"IEEE.png", "minerva.png", "vulkan.png"})
+    String texture;
+
+    @Param({"quad", "outline"})
+    String mesh;
+
+    private ByteBuffer pixels;
+    private int width;
+    private int height;
+    private float outline[];
+
+    @Setup
+    public void setup() throws Exception {
+        File file = new File(getSystemClassLoader().getResource("textures/" + texture).toURI());
+
+        try(MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer pWidth = stack.mallocInt(1);
+            IntBuffer pHeight = stack.mallocInt(1);
+            IntBuffer pChannels = stack.mallocInt(1);
+            pixels = stbi_load(file.getAbsolutePath(), pWidth, pHeight, pChannels, 4);
+            if(pixels == null) throw new RuntimeException("Failed to load texture image " + file);
+            width = pWidth.get(0);
+            height = pHeight.get(0);
+        }
+
+        outline = mesh.equals("quad") ? SpriteOutline.quad() : SpriteOutline.outline(MemoryUtil.memAddress(pixels), width, height);
+    }
+
+    @TearDown
+    public void tearDown() {
+        stbi_image_free(pixels);
+    }
+
+    @Benchmark
+    public float filterCoveredPixels() {
+        long address = MemoryUtil.memAddress(pixels);
+        float red = 0f;
+
+        for(int y = 0;y < SPRITE_SIZE;y++) {
+            float ty = Math.max(0f, (y + 0.5f) * height / SPRITE_SIZE - 0.5f);
+            int y0 = Math.min((int) ty, height - 1), y1 = Math.min(y0 + 1, height - 1);
+            float fy = ty - y0;
+            long row0 = address + (long) y0 * width * 4, row1 = address + (long) y1 * width * 4;
+
+            for(int x = spanStart(y), end = spanEnd(y);x < end;x++) {
+                // bilinear like the sampler, then the alpha test of shader.frag
+                float tx = Math.max(0f, (x + 0.5f) * width / SPRITE_SIZE - 0.5f);
+                int x0 = Math.min((int) tx, width - 1), x1 = Math.min(x0 + 1, width - 1);
+                float fx = tx - x0;
+
+                int t00 = MemoryUtil.memGetInt(row0 + x0 * 4L), t10 = MemoryUtil.memGetInt(row0 + x1 * 4L);
+                int t01 = MemoryUtil.memGetInt(row1 + x0 * 4L), t11 = MemoryUtil.memGetInt(row1 + x1 * 4L);
+                float alpha = filter(t00 >>> 24, t10 >>> 24, t01 >>> 24, t11 >>> 24, fx, fy);
+                if(alpha < 255f) continue; // discard
+                red += filter(t00 & 0xFF, t10 & 0xFF, t01 & 0xFF, t11 & 0xFF, fx, fy);
+            }
+        }
+        return red;
+    }
+
+    private static float filter(int c00, int c10, int c01, int c11, float fx, float fy) {
+        float top = c00 + (c10 - c00) * fx;
+        float bottom = c01 + (c11 - c01) * fx;
+        return top + (bottom - top) * fy;
+    }
+
+    // the first pixel of row y whose center is inside the outline
+    private int spanStart(int y) {
+        return (int) Math.ceil(span(y, true) * SPRITE_SIZE - 0.5);
+    }
+
+    // one past the last
+    private int spanEnd(int y) {
+        return (int) Math.ceil(span(y, false) * SPRITE_SIZE - 0.5);
+    }
+
+    // where the row's center line enters or leaves the convex outline, in u
+    private float span(int y, boolean start) {
+        float v = (y + 0.5f) / SPRITE_SIZE;
+        float u = start ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY;
+
+        for(int i = 0;i < SpriteOutline.VERTICES;i++) {
+            int next = (i + 1) % SpriteOutline.VERTICES;
+            float u0 = outline[2 * i], v0 = outline[2 * i + 1];
+            float u1 = outline[2 * next], v1 = outline[2 * next + 1];
+            if(v0 == v1 || v < Math.min(v0, v1) || v >= Math.max(v0, v1)) continue;
+
+            float crossing = u0 + (v - v0) * (u1 - u0) / (v1 - v0);
+            u = start ? Math.min(u, crossing) : Math.max(u, crossing);
+        }
+        return u;
+    }
+}
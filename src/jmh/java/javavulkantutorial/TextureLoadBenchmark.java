@@ -0,0 +1,48 @@
+package javavulkantutorial;
+
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.ClassLoader.getSystemClassLoader;
+
+/**
+ * Decoding, resizing and packing the bundled textures into the atlas, everything createTextureImage does before it
+ * stages the pixels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TextureLoadBenchmark {
+
+    @Param({"1", "4"})
+    int threads;
+
+    // small enough that the bigger textures have to be scaled down
+    @Param({"1024", "8192"})
+    int maxLayerSize;
+
+    private File[] files;
+
+    @Setup
+    public void setup() throws Exception {
+        files = new File(getSystemClassLoader().getResource("textures").toURI()).listFiles();
+    }
+
+    @Benchmark
+    public long loadAndNormalizeTextures() throws Exception {
+        Engine.TextureAtlas atlas = Engine.loadAndNormalizeTextures(files, threads, maxLayerSize);
+
+        long pixels = MemoryUtil.nmemAlloc(atlas.sizeInBytes());
+        try {
+            atlas.compose(pixels);
+        } finally {
+            MemoryUtil.nmemFree(pixels);
+        }
+        return atlas.sizeInBytes();
+    }
+}
@@ -0,0 +1,172 @@
+package javavulkantutorial;
+
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkBufferCopy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What updateUniformBuffer and updateInstanceBuffer do on the CPU each frame: the camera goes to the mapped uniform
+ * buffer, the dirty entities into staging memory. Plain host memory stands in for both. packObjectArrays is the
+ * packing from before the entity store, one Matrix4f and one Vector4f per entity, to hold against the models rows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UploadPackingBenchmark {
+
+    @State(Scope.Thread)
+    public static class Uniforms {
+
+        Engine.UniformBufferObject ubo;
+        long address;
+
+        @Setup
+        public void setup() {
+            ubo = new Engine.UniformBufferObject();
+            address = MemoryUtil.nmemAlloc(Engine.UniformBufferObject.SIZEOF);
+        }
+
+        @TearDown
+        public void tearDown() {
+            MemoryUtil.nmemFree(address);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Instances {
+
+        @Param({"128", "10000", "100000"})
+        int entities;
+
+        // all: every stream of every entity, models: every model matrix and instance data, what the object arrays
+        // packed, transforms: every entity moved through setEntityTransform,
+        // scattered: every stream of every tenth one at random, the worst case for run merging,
+        // scatteredTransforms: every tenth one moved
+        @Param({"all", "models", "transforms", "scattered", "scatteredTransforms"})
+        String dirtiness;
+
+        Engine.EntityStore store;
+        final BitSet template[] = new BitSet[Engine.EntityStore.STREAM_COUNT];
+        final BitSet dirty[] = new BitSet[Engine.EntityStore.STREAM_COUNT];
+        long staging;
+        VkBufferCopy.Buffer regions;
+
+        @Setup
+        public void setup() {
+            store = new Engine.EntityStore(entities);
+            staging = MemoryUtil.nmemAlloc((long) entities * Engine.EntityStore.ENTITY_BYTES);
+            regions = VkBufferCopy.calloc(entities * Engine.EntityStore.STREAM_COUNT);
+
+            for(int stream = 0;stream < Engine.EntityStore.STREAM_COUNT;stream++) {
+                template[stream] = new BitSet();
+                dirty[stream] = new BitSet();
+            }
+
+            if(dirtiness.equals("all")) {
+                for(BitSet streamTemplate : template) streamTemplate.set(0, entities);
+            } else if(dirtiness.equals("models")) {
+                template[Engine.EntityStore.MODELS].set(0, entities);
+                template[Engine.EntityStore.INSTANCE_DATA].set(0, entities);
+            } else if(dirtiness.equals("transforms")) {
+                template[Engine.EntityStore.TRANSFORMS].set(0, entities);
+            } else {
+                Random random = new Random(42);
+                for(int i = 0;i < entities / 10;i++) {
+                    int id = random.nextInt(entities);
+                    if(dirtiness.equals("scattered")) {
+                        for(BitSet streamTemplate : template) streamTemplate.set(id);
+                    } else {
+                        template[Engine.EntityStore.TRANSFORMS].set(id);
+                    }
+                }
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            store.free();
+            MemoryUtil.nmemFree(staging);
+            regions.free();
+        }
+    }
+
+    // the UniformBufferObject arrays the store replaced, every entity dirty
+    @State(Scope.Thread)
+    public static class ObjectArrays {
+
+        private static final int MODEL_SIZE = 16 * Float.BYTES;
+        private static final int INSTANCE_DATA_SIZE = 4 * Float.BYTES;
+
+        @Param({"128", "10000", "100000"})
+        int entities;
+
+        Matrix4f modelMatrices[];
+        Vector4f userData[];
+        final BitSet dirty = new BitSet();
+        long staging;
+
+        @Setup
+        public void setup() {
+            modelMatrices = new Matrix4f[entities];
+            userData = new Vector4f[entities];
+            for(int i = 0;i < entities;i++) {
+                modelMatrices[i] = new Matrix4f().translate(i * 0.001f, 0f, 0f);
+                userData[i] = new Vector4f(0f, 0f, 0f, i % 4);
+            }
+            staging = MemoryUtil.nmemAlloc((long) entities * (MODEL_SIZE + INSTANCE_DATA_SIZE));
+        }
+
+        @TearDown
+        public void tearDown() {
+            MemoryUtil.nmemFree(staging);
+        }
+    }
+
+    @Benchmark
+    public long packUniformBuffer(Uniforms uniforms) {
+        Engine.packUniformBuffer(uniforms.ubo, 1.5f, uniforms.address);
+        return uniforms.address;
+    }
+
+    @Benchmark
+    public long packInstanceData(Instances instances) {
+        for(int stream = 0;stream < Engine.EntityStore.STREAM_COUNT;stream++) {
+            instances.dirty[stream].or(instances.template[stream]);
+        }
+        long uploaded = Engine.packInstanceData(instances.store, instances.dirty, Long.MAX_VALUE, 0, instances.staging,
+                instances.store.capacity(), instances.regions);
+        instances.regions.clear();
+        return uploaded;
+    }
+
+    @Benchmark
+    public long packObjectArrays(ObjectArrays arrays) {
+        arrays.dirty.set(0, arrays.entities);
+
+        long modelsOffset = 0;
+        long instanceDataOffset = (long) arrays.entities * ObjectArrays.MODEL_SIZE;
+        long uploaded = 0;
+
+        // run by run like packInstanceData, but every entity is two objects to write out
+        for(int first = arrays.dirty.nextSetBit(0);first >= 0;first = arrays.dirty.nextSetBit(first)) {
+            int last = arrays.dirty.nextClearBit(first);
+
+            for(int i = first;i < last;i++) {
+                arrays.modelMatrices[i].getToAddress(arrays.staging + modelsOffset + (long) i * ObjectArrays.MODEL_SIZE);
+                arrays.userData[i].getToAddress(arrays.staging + instanceDataOffset + (long) i * ObjectArrays.INSTANCE_DATA_SIZE);
+            }
+
+            uploaded += (long) (last - first) * (ObjectArrays.MODEL_SIZE + ObjectArrays.INSTANCE_DATA_SIZE);
+            first = last;
+        }
+        arrays.dirty.clear();
+        return uploaded;
+    }
+}
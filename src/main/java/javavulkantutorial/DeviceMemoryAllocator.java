@@ -0,0 +1,392 @@
+package javavulkantutorial;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out ranges of a few large memory blocks per memory type instead of one vkAllocateMemory per resource.
+ *
+ * Every block keeps its ranges, free and used, in one list sorted by offset. Allocation is best fit over the free
+ * ranges, freeing merges a range with its free neighbours. Linear resources (buffers) and optimal images never share
+ * a bufferImageGranularity page. Blocks of host visible types are mapped once for their whole lifetime, so mapped
+ * allocations get an address instead of mapping memory themselves.
+ *
+ * Nothing in here talks to Vulkan, the blocks come from a {@link Backing}.
+ */
+class DeviceMemoryAllocator {
+
+    // where the blocks come from, the device in the engine and plain counters without a GPU
+    interface Backing {
+
+        // returns the new memory object, or 0 when the heap has no room for it
+        long allocate(int memoryType, long size);
+
+        void free(long memory);
+
+        // the host address of the whole block for as long as it lives, 0 if the type is not host visible
+        long map(int memoryType, long memory, long size);
+    }
+
+    static final class Allocation {
+
+        private final Block block;
+        private final Range range;
+
+        private Allocation(Block block, Range range) {
+            this.block = block;
+            this.range = range;
+        }
+
+        long memory() {
+            return block.memory;
+        }
+
+        long offset() {
+            return range.offset;
+        }
+
+        long size() {
+            return range.size;
+        }
+
+        // host address of the allocation, 0 if its memory is not host visible
+        long mapped() {
+            return block.mapped == 0 ? 0 : block.mapped + range.offset;
+        }
+    }
+
+    static final class Stats {
+
+        int memoryType;
+        int blocks;
+        int allocations;
+        int freeRanges;
+        long reservedBytes; // what the backing handed out
+        long usedBytes;
+        long peakUsedBytes;
+        long largestFreeRange;
+
+        // 0 when all free space is in one range, close to 1 when it is scattered in small pieces
+        double fragmentation() {
+            long free = reservedBytes - usedBytes;
+            return free == 0 ? 0 : 1 - (double) largestFreeRange / free;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("type %d: %d blocks, %.1f of %.1f MB used (peak %.1f MB), %d allocations, %d free ranges, %.0f%% fragmented",
+                    memoryType, blocks, usedBytes / (1024.0 * 1024.0), reservedBytes / (1024.0 * 1024.0),
+                    peakUsedBytes / (1024.0 * 1024.0), allocations, freeRanges, fragmentation() * 100);
+        }
+    }
+
+    private static final class Range {
+        long offset;
+        long size;
+        boolean free;
+        boolean linear;
+        Range prev;
+        Range next;
+
+        long end() {
+            return offset + size;
+        }
+    }
+
+    private static final class Block {
+        final int memoryType;
+        final long memory;
+        final long size;
+        final long mapped;
+        final boolean dedicated;
+        Range first;
+        long used;
+        int allocations;
+
+        Block(int memoryType, long memory, long size, long mapped, boolean dedicated) {
+            this.memoryType = memoryType;
+            this.memory = memory;
+            this.size = size;
+            this.mapped = mapped;
+            this.dedicated = dedicated;
+
+            first = new Range();
+            first.size = size;
+            first.free = true;
+        }
+    }
+
+    private final Backing backing;
+    private final long blockSize;
+    private final long granularity;
+    private final long maxBlocks;
+    private final List<List<Block>> blocks = new ArrayList<>();
+    private final long[] peakUsed;
+    private int blockCount;
+
+    // set by fit() next to the range it returns
+    private long fitOffset;
+
+    /**
+     * @param memoryTypeCount     VkPhysicalDeviceMemoryProperties.memoryTypeCount
+     * @param blockSize           size of the shared blocks, allocations over half of it get a block of their own
+     * @param granularity         VkPhysicalDeviceLimits.bufferImageGranularity, a power of two
+     * @param maxBlocks           VkPhysicalDeviceLimits.maxMemoryAllocationCount
+     */
+    DeviceMemoryAllocator(Backing backing, int memoryTypeCount, long blockSize, long granularity, long maxBlocks) {
+        this.backing = backing;
+        this.blockSize = blockSize;
+        this.granularity = Math.max(1, granularity);
+        this.maxBlocks = maxBlocks;
+        this.peakUsed = new long[memoryTypeCount];
+
+        for(int i = 0;i < memoryTypeCount;i++) {
+            blocks.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * @param alignment a power of two, VkMemoryRequirements.alignment
+     * @param linear    true for buffers and linear images, false for optimal images
+     */
+    synchronized Allocation allocate(int memoryType, long size, long alignment, boolean linear) {
+
+        if(size > blockSize / 2) {
+            // big enough to get a block of its own, nothing else would fit next to it anyway
+            Block block = newBlock(memoryType, size, size, true);
+            return take(block, block.first, 0, size, linear);
+        }
+
+        Block bestBlock = null;
+        Range best = null;
+        long bestOffset = 0;
+
+        for(Block block : blocks.get(memoryType)) {
+            if(block.dedicated || block.size - block.used < size) continue;
+
+            Range range = fit(block, size, alignment, linear);
+            if(range != null && (best == null || range.size < best.size)) {
+                bestBlock = block;
+                best = range;
+                bestOffset = fitOffset;
+            }
+        }
+
+        if(best == null) {
+            bestBlock = newBlock(memoryType, blockSize, size, false);
+            best = bestBlock.first;
+            bestOffset = 0;
+        }
+
+        return take(bestBlock, best, bestOffset, size, linear);
+    }
+
+    synchronized void free(Allocation allocation) {
+
+        Block block = allocation.block;
+        Range range = allocation.range;
+
+        range.free = true;
+        block.used -= range.size;
+        block.allocations--;
+
+        if(range.next != null && range.next.free) {
+            range.size += range.next.size;
+            unlink(range.next);
+        }
+        if(range.prev != null && range.prev.free) {
+            range.prev.size += range.size;
+            unlink(range);
+        }
+
+        if(block.allocations == 0) {
+            // keep one empty shared block around, so a resource that is freed and created again every few frames
+            // doesn't go to the driver each time
+            List<Block> typeBlocks = blocks.get(block.memoryType);
+            boolean otherEmpty = typeBlocks.stream().anyMatch(other -> other != block && !other.dedicated && other.allocations == 0);
+
+            if(block.dedicated || otherEmpty) {
+                typeBlocks.remove(block);
+                backing.free(block.memory);
+                blockCount--;
+            }
+        }
+    }
+
+    synchronized Stats stats(int memoryType) {
+
+        Stats stats = new Stats();
+        stats.memoryType = memoryType;
+        stats.peakUsedBytes = peakUsed[memoryType];
+
+        for(Block block : blocks.get(memoryType)) {
+            stats.blocks++;
+            stats.allocations += block.allocations;
+            stats.reservedBytes += block.size;
+            stats.usedBytes += block.used;
+
+            for(Range range = block.first;range != null;range = range.next) {
+                if(range.free) {
+                    stats.freeRanges++;
+                    stats.largestFreeRange = Math.max(stats.largestFreeRange, range.size);
+                }
+            }
+        }
+
+        return stats;
+    }
+
+    // one entry per memory type that has ever been used
+    synchronized List<Stats> stats() {
+        List<Stats> all = new ArrayList<>();
+        for(int type = 0;type < blocks.size();type++) {
+            if(peakUsed[type] > 0) all.add(stats(type));
+        }
+        return all;
+    }
+
+    // how many memory objects the backing holds, what counts against maxMemoryAllocationCount
+    synchronized int blockCount() {
+        return blockCount;
+    }
+
+    // gives every block back, whatever is still allocated from them is gone too
+    synchronized void destroy() {
+        for(List<Block> typeBlocks : blocks) {
+            typeBlocks.forEach(block -> backing.free(block.memory));
+            typeBlocks.clear();
+        }
+        blockCount = 0;
+    }
+
+    private Block newBlock(int memoryType, long size, long minSize, boolean dedicated) {
+
+        if(blockCount >= maxBlocks) {
+            throw new RuntimeException("Failed to allocate device memory, " + blockCount + " blocks reach maxMemoryAllocationCount");
+        }
+
+        long memory = backing.allocate(memoryType, size);
+
+        // a smaller shared block may still fit into what is left of the heap
+        long smaller = size;
+        while(memory == 0 && smaller / 2 >= Math.max(minSize, blockSize / 8)) {
+            smaller /= 2;
+            memory = backing.allocate(memoryType, smaller);
+        }
+
+        if(memory == 0) {
+            throw new RuntimeException("Failed to allocate " + size + " bytes of device memory of type " + memoryType);
+        }
+
+        Block block = new Block(memoryType, memory, smaller, backing.map(memoryType, memory, smaller), dedicated);
+        blocks.get(memoryType).add(block);
+        blockCount++;
+        return block;
+    }
+
+    // the smallest free range of the block that can hold the allocation, its aligned offset goes to fitOffset
+    private Range fit(Block block, long size, long alignment, boolean linear) {
+
+        Range best = null;
+
+        for(Range range = block.first;range != null;range = range.next) {
+            if(!range.free || range.size < size) continue;
+            if(best != null && range.size >= best.size) continue;
+
+            long offset = alignUp(range.offset, alignment);
+
+            // a different kind of resource on the page we start in pushes us to the next page
+            if(conflictsBefore(range.prev, offset, linear)) {
+                offset = alignUp(offset, granularity);
+            }
+
+            long end = offset + size;
+            if(end > range.end() || conflictsAfter(range.next, end, linear)) continue;
+
+            best = range;
+            fitOffset = offset;
+        }
+
+        return best;
+    }
+
+    private boolean conflictsBefore(Range range, long offset, boolean linear) {
+        for(;range != null && samePage(range.end() - 1, offset);range = range.prev) {
+            if(!range.free && range.linear != linear) return true;
+        }
+        return false;
+    }
+
+    private boolean conflictsAfter(Range range, long end, boolean linear) {
+        for(;range != null && samePage(end - 1, range.offset);range = range.next) {
+            if(!range.free && range.linear != linear) return true;
+        }
+        return false;
+    }
+
+    private boolean samePage(long a, long b) {
+        return (a & -granularity) == (b & -granularity);
+    }
+
+    // splits the free range into [padding][allocation][rest] and marks the middle one used
+    private Allocation take(Block block, Range range, long offset, long size, boolean linear) {
+
+        if(offset > range.offset) {
+            Range padding = new Range();
+            padding.offset = range.offset;
+            padding.size = offset - range.offset;
+            padding.free = true;
+            linkBefore(range, padding, block);
+
+            range.offset = offset;
+            range.size -= padding.size;
+        }
+
+        if(range.size > size) {
+            Range rest = new Range();
+            rest.offset = offset + size;
+            rest.size = range.size - size;
+            rest.free = true;
+            linkAfter(range, rest);
+
+            range.size = size;
+        }
+
+        range.free = false;
+        range.linear = linear;
+        block.used += size;
+        block.allocations++;
+
+        long used = 0;
+        for(Block other : blocks.get(block.memoryType)) {
+            used += other.used;
+        }
+        peakUsed[block.memoryType] = Math.max(peakUsed[block.memoryType], used);
+
+        return new Allocation(block, range);
+    }
+
+    private static void linkBefore(Range range, Range inserted, Block block) {
+        inserted.prev = range.prev;
+        inserted.next = range;
+        if(range.prev != null) range.prev.next = inserted; else block.first = inserted;
+        range.prev = inserted;
+    }
+
+    private static void linkAfter(Range range, Range inserted) {
+        inserted.prev = range;
+        inserted.next = range.next;
+        if(range.next != null) range.next.prev = inserted;
+        range.next = inserted;
+    }
+
+    // only ever called for ranges that have a predecessor, the first range of a block stays put
+    private static void unlink(Range range) {
+        range.prev.next = range.next;
+        if(range.next != null) range.next.prev = range.prev;
+    }
+
+    private static long alignUp(long value, long alignment) {
+        return (value + alignment - 1) & -alignment;
+    }
+}
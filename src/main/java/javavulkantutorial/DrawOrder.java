@@ -0,0 +1,184 @@
+package javavulkantutorial;
+
+import java.util.Arrays;
+
+/**
+ * The order entities are drawn in, later ones on top. Every entity has a 64 bit sort key, compared unsigned:
+ *
+ *   63..48  layer, set by Engine.setEntityLayer or the layer of setEntityTransform
+ *   47..16  depth inside the layer, as float bits flipped so they compare like the floats
+ *   15      set for textures without a transparent texel, see drawList()
+ *   14..0   texture page and array layer, so sprites of the same layer and depth sample the same texture in a row
+ *
+ * Equal keys keep their id order. sort() runs an LSD radix sort over (key, id) pairs, a byte per pass, and skips
+ * every pass in which all keys share the byte, so a scene with fewer than 256 layers and nothing else set pays for
+ * one pass. Nothing is allocated once the arrays have grown to the entity count, and nothing is sorted while no
+ * key changed.
+ */
+class DrawOrder {
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int PASSES = Long.SIZE / RADIX_BITS;
+
+    private static final int LAYER_SHIFT = 48;
+    private static final int DEPTH_SHIFT = 16;
+    private static final long TEXTURE_MASK = 0xffffL;
+    private static final long OPAQUE_KEY = 0x8000L;
+    // on the entries of drawList(), the ids stay below it
+    static final int OPAQUE_ENTRY = 0x80000000;
+    private static final long DEPTH_MASK = 0xffffffffL << DEPTH_SHIFT;
+    private static final long DEFAULT_KEY = sortableBits(0f) << DEPTH_SHIFT; // layer 0, depth 0, texture 0
+
+    private long keys[] = new long[0];
+
+    // sorted positions to entity ids and back, valid below sortedCount
+    private int order[] = new int[0];
+    private int rank[] = new int[0];
+    private int drawList[] = new int[0];
+    private int sortedCount;
+
+    // the two halves the passes scatter between
+    private long sortKeys[] = new long[0];
+    private int sortIds[] = new int[0];
+    private long scatterKeys[] = new long[0];
+    private int scatterIds[] = new int[0];
+    private final int histogram[] = new int[RADIX];
+
+    private boolean changed;
+    private int version; // goes up with every sort that changed something, for copies of the order
+
+    void ensureCapacity(int minCapacity) {
+        if(minCapacity <= keys.length) return;
+
+        int oldCapacity = keys.length;
+        int capacity = Math.max(minCapacity, oldCapacity * 2);
+        keys = Arrays.copyOf(keys, capacity);
+        Arrays.fill(keys, oldCapacity, capacity, DEFAULT_KEY);
+        order = Arrays.copyOf(order, capacity);
+        rank = Arrays.copyOf(rank, capacity);
+        drawList = Arrays.copyOf(drawList, capacity);
+        sortKeys = new long[capacity];
+        sortIds = new int[capacity];
+        scatterKeys = new long[capacity];
+        scatterIds = new int[capacity];
+    }
+
+    long key(int id) {
+        return id < keys.length ? keys[id] : DEFAULT_KEY;
+    }
+
+    // the layer has to fit 16 bits, Engine checks it against EntityStore.MAX_LAYER
+    void setLayer(int id, int layer) {
+        setKey(id, key(id) & ~(-1L << LAYER_SHIFT) | (long) layer << LAYER_SHIFT);
+    }
+
+    void setDepth(int id, float depth) {
+        setKey(id, key(id) & ~DEPTH_MASK | sortableBits(depth) << DEPTH_SHIFT);
+    }
+
+    // textureBits is what the vertex shader gets as page * TEXTURE_PAGE_STRIDE + layer, 15 bits at most
+    void setTexture(int id, int textureBits, boolean opaque) {
+        setKey(id, key(id) & ~TEXTURE_MASK | textureBits & TEXTURE_MASK & ~OPAQUE_KEY | (opaque ? OPAQUE_KEY : 0L));
+    }
+
+    // layer 0, depth 0, the texture stays
+    void resetLayer(int id) {
+        setKey(id, key(id) & TEXTURE_MASK | DEFAULT_KEY);
+    }
+
+    void setKey(int id, long key) {
+        ensureCapacity(id + 1);
+        if(keys[id] == key) return;
+        keys[id] = key;
+        changed = true;
+    }
+
+    /**
+     * Brings order() and rank() up to date for the first count entities, returns false when nothing had to be done.
+     */
+    boolean sort(int count) {
+        if(!changed && count == sortedCount) return false;
+        ensureCapacity(count);
+
+        // one read of the keys finds the bytes that differ between them, only those get a pass
+        long allOnes = -1L, anyOnes = 0L;
+        for(int id = 0;id < count;id++) {
+            long key = keys[id];
+            sortKeys[id] = key;
+            sortIds[id] = id;
+            allOnes &= key;
+            anyOnes |= key;
+        }
+        long differing = allOnes ^ anyOnes;
+
+        long fromKeys[] = sortKeys, toKeys[] = scatterKeys;
+        int fromIds[] = sortIds, toIds[] = scatterIds;
+
+        for(int pass = 0;pass < PASSES;pass++) {
+            int shift = pass * RADIX_BITS;
+            if((differing >>> shift & RADIX - 1) == 0) continue;
+
+            Arrays.fill(histogram, 0);
+            for(int i = 0;i < count;i++) {
+                histogram[(int) (fromKeys[i] >>> shift) & RADIX - 1]++;
+            }
+
+            // counts into start offsets
+            int offset = 0;
+            for(int digit = 0;digit < RADIX;digit++) {
+                int digitCount = histogram[digit];
+                histogram[digit] = offset;
+                offset += digitCount;
+            }
+
+            for(int i = 0;i < count;i++) {
+                long key = fromKeys[i];
+                int slot = histogram[(int) (key >>> shift) & RADIX - 1]++;
+                toKeys[slot] = key;
+                toIds[slot] = fromIds[i];
+            }
+
+            long swapKeys[] = fromKeys; fromKeys = toKeys; toKeys = swapKeys;
+            int swapIds[] = fromIds; fromIds = toIds; toIds = swapIds;
+        }
+
+        for(int i = 0;i < count;i++) {
+            int id = fromIds[i];
+            order[i] = id;
+            drawList[i] = (fromKeys[i] & OPAQUE_KEY) != 0 ? id | OPAQUE_ENTRY : id;
+            rank[id] = i;
+        }
+
+        sortedCount = count;
+        changed = false;
+        version++;
+        return true;
+    }
+
+    // entity ids in drawing order, valid up to the count of the last sort
+    int[] order() {
+        return order;
+    }
+
+    // position of every entity in order()
+    int[] rank() {
+        return rank;
+    }
+
+    // order() with OPAQUE_ENTRY set on the entities whose texture is opaque, the culler sorts them into their pass by it
+    int[] drawList() {
+        return drawList;
+    }
+
+    int version() {
+        return version;
+    }
+
+    // negative floats have every bit but the sign flipped, positive ones only the sign, then the bits compare
+    // unsigned like the floats do
+    private static long sortableBits(float value) {
+        int bits = Float.floatToIntBits(value == 0f ? 0f : value); // -0 sorts like 0
+        return (bits < 0 ? ~bits : bits | 0x80000000) & 0xffffffffL;
+    }
+}
@@ -1,7 +1,8 @@
 package javavulkantutorial;
 
 import org.joml.Matrix4f;
-import org.joml.Vector4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.glfw.GLFWKeyCallbackI;
@@ -17,14 +18,30 @@ import java.lang.reflect.Field;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntPredicate;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static java.lang.ClassLoader.getSystemClassLoader;
 import static java.util.stream.Collectors.toSet;
+import static javavulkantutorial.Engine.ShaderSPIRVUtils.ShaderKind.COMPUTE_SHADER;
 import static javavulkantutorial.Engine.ShaderSPIRVUtils.ShaderKind.FRAGMENT_SHADER;
 import static javavulkantutorial.Engine.ShaderSPIRVUtils.ShaderKind.VERTEX_SHADER;
 import static org.lwjgl.glfw.GLFW.*;
@@ -32,6 +49,7 @@ import static org.lwjgl.glfw.GLFWVulkan.glfwCreateWindowSurface;
 import static org.lwjgl.glfw.GLFWVulkan.glfwGetRequiredInstanceExtensions;
 import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.stb.STBImageResize.*;
+import static org.lwjgl.stb.STBImageWrite.stbi_write_png;
 import static org.lwjgl.system.Configuration.DEBUG;
 import static org.lwjgl.system.MemoryStack.stackGet;
 import static org.lwjgl.system.MemoryStack.stackPush;
@@ -62,6 +80,13 @@ public class Engine {
         }
     }
 
+    // everything we persist between runs (SPIR-V, pipeline cache, ...) lives under this directory
+    private static final Path CACHE_DIR = Paths.get(System.getProperty("engine.cacheDir", ".cache"));
+
+    // -Dengine.stats=true prints what the engine measures (cache hits, timings, memory, ...) to stdout, the getters
+    // further down return the same numbers without it
+    static final boolean STATS = Boolean.getBoolean("engine.stats");
+
     private static final Set<String> DEVICE_EXTENSIONS = Stream.of(VK_KHR_SWAPCHAIN_EXTENSION_NAME)
             .collect(toSet());
 
@@ -102,13 +127,15 @@ public class Engine {
         // We use Integer to use null as the empty value
         private Integer graphicsFamily;
         private Integer presentFamily;
+        private Integer transferFamily; // never null once complete, falls back to graphicsFamily
+        private boolean graphicsCompute; // the graphics family runs compute shaders too
 
         private boolean isComplete() {
             return graphicsFamily != null && presentFamily != null;
         }
 
         public int[] unique() {
-            return IntStream.of(graphicsFamily, presentFamily).distinct().toArray();
+            return IntStream.of(graphicsFamily, presentFamily, transferFamily).distinct().toArray();
         }
     }
 
@@ -124,6 +151,14 @@ public class Engine {
 
     public static long window;
 
+    // no window, surface or swapchain, frames go into OFFSCREEN_IMAGES images of our own, see startHeadless
+    private static boolean headless;
+    private static final int OFFSCREEN_IMAGES = 2;
+    private static List<DeviceMemoryAllocator.Allocation> offscreenImagesMemory;
+    private static int offscreenWidth;
+    private static int offscreenHeight;
+    private static int lastRenderedImage = -1;
+
     private static VkInstance instance;
     private static long debugMessenger;
     private static long surface;
@@ -133,6 +168,9 @@ public class Engine {
 
     private static VkQueue graphicsQueue;
     private static VkQueue presentQueue;
+    private static VkQueue transferQueue; // a dedicated transfer queue if the device has a usable one, graphicsQueue otherwise
+    private static int graphicsQueueFamily;
+    private static int transferQueueFamily;
 
     private static long swapChain;
     private static List<Long> swapChainImages;
@@ -147,22 +185,120 @@ public class Engine {
     private static long descriptorSetLayout;
     private static List<Long> descriptorSets;
     private static long pipelineLayout;
-    private static long graphicsPipeline;
+    private static long[] graphicsPipelines; // one per draw pass
+    private static long pipelineCache;
+    private static boolean pipelineCacheWarm;
 
     private static long commandPool;
+    private static long transferCommandPool;
+
+    // every buffer and image takes its memory from here, see DeviceMemoryAllocator
+    private static final long MEMORY_BLOCK_SIZE = Long.getLong("engine.memoryBlockSize", 64L << 20);
+    private static DeviceMemoryAllocator memoryAllocator;
 
     private static long textureImage;
-    private static long textureImageMemory;
+    private static DeviceMemoryAllocator.Allocation textureImageMemory;
     private static long textureImageView;
+    private static int textureMipLevels;
     private static long textureSampler;
 
     private static long vertexBuffer;
-    private static long vertexBufferMemory;
+    private static DeviceMemoryAllocator.Allocation vertexBufferMemory;
+
+    // Every texture is drawn with its SpriteOutline instead of the whole quad. One host visible buffer holds the
+    // indices all sprites share, a fan over SpriteOutline.VERTICES corners, and after them the corners of every mesh,
+    // which shader.vert pulls with the mesh index of the entity. Mesh 0 is the quad, -Dengine.spriteMeshes=0 draws
+    // every texture with it
+    private static final boolean SPRITE_MESHES = Integer.getInteger("engine.spriteMeshes", 1) != 0;
+    private static final int RUNTIME_SPRITE_MESHES = Integer.getInteger("engine.runtimeSpriteMeshes", 1024); // later ones get the quad
+    static final int MESH_INDICES = 3 * (SpriteOutline.VERTICES - 2); // must match MESH_INDICES in cull.comp
+    private static final int MESH_BYTES = 2 * Float.BYTES * SpriteOutline.VERTICES;
+    private static final long MESH_CORNERS_OFFSET = 256; // the spec caps minStorageBufferOffsetAlignment at 256
+    private static final int SPRITE_MESH_BINDING = 2;
+    private static long meshBuffer;
+    private static DeviceMemoryAllocator.Allocation meshBufferMemory;
+    private static int meshCapacity;
+    private static int meshCount;
+    private static int textureMeshes[] = new int[0];
+    private static float textureOutlines[][]; // from loadAndNormalizeTextures until createSpriteMeshBuffer
 
     private static List<Long> uniformBuffers;
-    private static List<Long> uniformBuffersMemory;
-
-    private static List<VkCommandBuffer> commandBuffers;
+    private static List<DeviceMemoryAllocator.Allocation> uniformBuffersMemory;
+    private static List<Long> uniformBuffersMapped; // host addresses, the memory stays mapped as long as the buffer lives
+    private static long uploadedBytesLastFrame;
+    private static VkBufferCopy.Buffer instanceCopyRegions;
+
+    // per swapchain image storage buffers holding the per-instance data, they grow on their own
+    private static List<InstanceBuffer> instanceBuffers;
+
+    // VkDrawIndexedIndirectCommands per swapchain image, the instance counts live here instead of in the command buffers
+    private static List<Long> indirectBuffers;
+    private static List<DeviceMemoryAllocator.Allocation> indirectBuffersMemory;
+    private static List<Long> indirectBuffersMapped;
+
+    // The instance range is split into drawBatches indirect draws and every pass draws each of them from a secondary
+    // command buffer of its own. They are recorded in parallel on up to RECORDING_THREADS threads, every secondary
+    // comes from pool secondary % RECORDING_THREADS and a pool is only ever touched by one thread at a time, since
+    // pools are externally synchronized. -Dengine.recordingThreads=1 records everything on the render thread
+    private static final int RECORDING_THREADS = Math.max(1, Integer.getInteger("engine.recordingThreads",
+            Math.min(4, Runtime.getRuntime().availableProcessors())));
+    private static final int DRAW_BATCHES = Math.max(1, Integer.getInteger("engine.drawBatches", RECORDING_THREADS));
+    private static int drawBatches; // 1 if the device can't start indirect draws at a firstInstance
+    private static long[] recordingPools;
+    private static ExecutorService recordingExecutor;
+    private static List<VkCommandBuffer[]> secondaryCommandBuffers; // [image][pass * drawBatches + batch]
+    private static long lastRecordingNanos;
+
+    // The opaque pass draws first, then the alpha tested one. The visible list holds the opaque entries first and
+    // the others after them, each pass splits its own range into drawBatches draws, so the depth buffer rejects what
+    // is hidden behind opaque sprites before it is shaded. -Dengine.opaquePass=0 sends every texture through the
+    // alpha tested pass, for comparing fragment invocations
+    private static final int OPAQUE_PASS = 0;
+    private static final int ALPHA_PASS = 1;
+    private static final int DRAW_PASSES = 2;
+    private static final boolean OPAQUE_TEXTURES = Integer.getInteger("engine.opaquePass", 1) != 0;
+    private static int depthFormat;
+    private static long depthImage;
+    private static DeviceMemoryAllocator.Allocation depthImageMemory;
+    private static long depthImageView;
+
+    // Culling, -Dengine.culling=cpu|gpu|off. The vertex shader draws the instances listed in each image's visible
+    // buffer. On the CPU, see SpriteCuller, large culls are split over CULLING_THREADS threads. On the GPU the three
+    // passes of cull.comp run in front of the render pass and write the indirect draws themselves. With culling off
+    // the list is simply every entity. true and false still work, they were the values before gpu and mean cpu and off
+    private static final String CULLING = cullingMode(System.getProperty("engine.culling", "cpu"));
+    static final int CULL_GROUP_SIZE = 256; // local_size_x of cull.comp
+    private static final int CULL_PASSES = 3;
+    private static boolean gpuCulling;
+    private static boolean cpuCulling;
+    private static long[] cullPipelines;
+    private static final float CULL_CELL_SIZE = Float.parseFloat(System.getProperty("engine.cullCellSize", "0.5"));
+    private static final int CULL_BUCKETS = 4096;
+    private static final int CULLING_THREADS = Math.max(1, Integer.getInteger("engine.cullingThreads",
+            Math.min(4, Runtime.getRuntime().availableProcessors())));
+    private static ExecutorService cullingExecutor;
+    private static final SpriteCuller culler = new SpriteCuller(CULL_CELL_SIZE, CULL_BUCKETS,
+            CULLING_THREADS > 1 ? cullingExecutor() : null, CULLING_THREADS);
+    private static final Matrix4f cullMatrix = new Matrix4f();
+    private static final Vector3f cullMin = new Vector3f();
+    private static final Vector3f cullMax = new Vector3f();
+    private static int visibleEntitiesLastFrame;
+    private static int culledEntitiesLastFrame;
+
+    // GPU timestamps, see the GPU TIMING section
+    private static final int GPU_TIME_SAMPLES = 256;
+    private static final int MAX_TIMESTAMPS = 16;
+    private static boolean gpuTimestamps;
+    private static long timestampMask;
+    private static double timestampPeriod; // nanoseconds per tick
+    private static final double[] gpuFrameTimes = new double[GPU_TIME_SAMPLES]; // milliseconds, a ring
+    private static int gpuFrameTimeCount;
+    private static boolean fragmentStatistics; // pipeline statistics queries that the secondaries inherit
+    private static long fragmentInvocationsLastFrame = -1;
+    private static long vertexInvocationsLastFrame = -1;
+    // in the order the query writes them, then its availability
+    private static final int PIPELINE_STATISTICS = VK_QUERY_PIPELINE_STATISTIC_VERTEX_SHADER_INVOCATIONS_BIT
+            | VK_QUERY_PIPELINE_STATISTIC_FRAGMENT_SHADER_INVOCATIONS_BIT;
 
     private static List<Frame> inFlightFrames;
     private static Map<Integer, Frame> imagesInFlight;
@@ -170,8 +306,13 @@ public class Engine {
 
     static boolean framebufferResize;
 
-    private static int nextRenderEntityId = 0;
+    private static int nextRenderEntityId = 0; // one past the highest live entity, the culler picks what to draw below it
+    private static final BitSet freeRenderEntityIds = new BitSet();
+    private static int lowestFreeRenderEntityId = 0; // no free id below this one, the search starts here
     public static UniformBufferObject ubo = new UniformBufferObject();
+    public static final EntityStore entities = new EntityStore(InstanceBuffer.MIN_CAPACITY);
+    private static final DrawOrder drawOrder = new DrawOrder();
+    private static final Matrix4f modelScratch = new Matrix4f(); // only for the MatrixModifierI overload
     public static int numTextures;
 
     // ========= API ========= //
@@ -194,56 +335,273 @@ public class Engine {
         glfwSetFramebufferSizeCallback(window, Engine::framebufferResizeCallback);
         glfwSetKeyCallback(window, keyCallback);
 
-        // create the vulkan
+        createVulkan();
+    }
+
+    /**
+     * Starts without GLFW. Frames are rendered into offscreen images of the given size instead of a swapchain,
+     * nothing is presented. Read them back with {@link #readFrame(ByteBuffer)} or {@link #saveFrame(String)}.
+     * Works with software drivers like lavapipe.
+     */
+    public static void startHeadless(int width, int height) {
+        headless = true;
+        offscreenWidth = width;
+        offscreenHeight = height;
+
+        createVulkan();
+    }
+
+    private static void createVulkan() {
+
+        long startTime = System.nanoTime();
+
         createInstance();
         setupDebugMessenger();
-        createSurface();
+        if(!headless) createSurface();
         pickPhysicalDevice();
         createLogicalDevice();
+        createMemoryAllocator();
+        setupGpuTiming();
+        createPipelineCache();
 
         createCommandPool();
+        createRecordingPools();
+        createTransferCommandPool();
+        createStagingRing();
+
+        // everything the first frame needs goes into one batch, the GPU copies it while the pipeline is built
+        UploadBatch uploads = new UploadBatch();
 
-        createTextureImage();
+        createTextureImage(uploads);
+        createRuntimeTexturePage(uploads);
         createTextureImageView();
         createTextureSampler();
 
-        createVertexBuffer();
+        createVertexBuffer(uploads);
+        createSpriteMeshBuffer();
+
+        uploads.submit();
 
         createDescriptorSetLayout();
 
         createSwapChainObjects();
         createSyncObjects();
+
+        uploads.await();
+
+        if(STATS) {
+            System.out.printf("Startup uploads: %.1f MB in %d submits, %.1f ms until the GPU was done%n",
+                    uploads.stagedBytes / (1024.0 * 1024.0), uploads.submits, uploads.elapsedNanos() / 1e6);
+            System.out.printf("Startup took %.1f ms (%s pipeline cache)%n",
+                    (System.nanoTime() - startTime) / 1e6, pipelineCacheWarm ? "warm" : "cold");
+        }
     }
     public static int createRenderEntity(String assetName) {
-        int id = nextRenderEntityId++;
-        if (id >= UniformBufferObject.MAX_INSTANCES) throw new RuntimeException("TOO MANY ENTITIES");
-
         Integer texId = textureCatalogue.get(assetName);
         if (texId == null) throw new RuntimeException("Could not find texture " + assetName);
 
-        ubo.userData[id].w = (float) texId;
+        // reuse the lowest free slot so the instance range stays as tight as possible
+        // searching from 0 would walk every word already refilled, a burst into a scene with holes went quadratic
+        int id = freeRenderEntityIds.nextSetBit(lowestFreeRenderEntityId);
+        if (id >= 0) {
+            freeRenderEntityIds.clear(id);
+        } else {
+            id = nextRenderEntityId++;
+            entities.ensureCapacity(nextRenderEntityId);
+        }
+        lowestFreeRenderEntityId = id + 1;
+
+        entities.setModelIdentity(id);
+        entities.clearTransform(id);
+        entities.setUserData(id, 0f, 0f, 0f);
+        drawOrder.resetLayer(id);
+        applyTexture(id, texId);
+        markEntityDirty(id);
 
-        recreateSwapChain();
+        // nothing else to do, the next drawFrame culls it along with everything else
         return id;
     }
+    public static void destroyRenderEntity(int entityId) {
+        if (entityId < 0 || entityId >= nextRenderEntityId || freeRenderEntityIds.get(entityId)) {
+            throw new RuntimeException("entity " + entityId + " does not exist");
+        }
+
+        // a zero matrix collapses the quad to a point, so a dead slot inside the instance range costs no fragments
+        entities.setModelZero(entityId);
+        entities.clearTransform(entityId);
+        entities.setInstanceData(entityId, 0f, 0f, 0f, -1f);
+        markEntityDirty(entityId);
+        freeRenderEntityIds.set(entityId);
+        lowestFreeRenderEntityId = Math.min(lowestFreeRenderEntityId, entityId);
+
+        while (nextRenderEntityId > 0 && freeRenderEntityIds.get(nextRenderEntityId - 1)) {
+            freeRenderEntityIds.clear(--nextRenderEntityId);
+        }
+    }
     interface MatrixModifierI {  void modify(Matrix4f m); }
-    public static void setEntityModel(int entityId, MatrixModifierI m) { m.modify(ubo.modelMatrices[entityId]); }
+    // the modifier sees the last matrix set, not what setEntityTransform placed
+    public static void setEntityModel(int entityId, MatrixModifierI m) {
+        entities.getModel(entityId, modelScratch);
+        m.modify(modelScratch);
+        setEntityModel(entityId, modelScratch);
+    }
+    public static void setEntityModel(int entityId, Matrix4fc model) {
+        entities.setModel(entityId, model);
+        markStreamDirty(entityId, EntityStore.MODELS);
+
+        // the matrix takes over again from a compact transform
+        if(entities.hasTransform(entityId)) {
+            entities.clearTransform(entityId);
+            markStreamDirty(entityId, EntityStore.TRANSFORMS);
+        }
+    }
+
+    /**
+     * Places a sprite with 16 bytes instead of a whole matrix, the vertex shader builds the transform. The quad is
+     * scaled first, then rotated by rotation radians around z, then moved to x, y. Higher layers end up in front,
+     * layers go from 0 to EntityStore.MAX_LAYER. Rotation is kept to about 0.0001 radians and the scales as half
+     * floats. Takes over from any model matrix until the next setEntityModel.
+     */
+    public static void setEntityTransform(int entityId, float x, float y, float rotation, float scaleX, float scaleY, int layer) {
+        if(layer < 0 || layer > EntityStore.MAX_LAYER) {
+            throw new IllegalArgumentException("layer " + layer + " is outside 0.." + EntityStore.MAX_LAYER);
+        }
+        entities.setTransform(entityId, x, y, rotation, scaleX, scaleY, layer);
+        drawOrder.setLayer(entityId, layer);
+        markStreamDirty(entityId, EntityStore.TRANSFORMS);
+    }
+
+    /**
+     * Entities are drawn by layer, then by depth inside the layer, both ascending, so later ones end up on top. Ties
+     * go to the lower entity id. New entities start at layer 0 and depth 0, setEntityTransform sets the layer too.
+     * Nothing is re-sorted until a layer or depth actually changes.
+     */
+    public static void setEntityLayer(int entityId, int layer, float depth) {
+        if(layer < 0 || layer > EntityStore.MAX_LAYER) {
+            throw new IllegalArgumentException("layer " + layer + " is outside 0.." + EntityStore.MAX_LAYER);
+        }
+        drawOrder.setLayer(entityId, layer);
+        drawOrder.setDepth(entityId, depth);
+    }
+
     public static void setEntityTexture(int entityId, String assetName) {
         Integer texId = textureCatalogue.get(assetName);
         if (texId == null) throw new RuntimeException("texture `" + assetName + "` does not exist");
         setEntityTexture(entityId, texId);
     }
     public static void setEntityTexture(int entityId, int texId) {
-        ubo.userData[entityId].w = (float) texId;
+        applyTexture(entityId, texId);
+        markStreamDirty(entityId, EntityStore.INSTANCE_DATA);
+        markStreamDirty(entityId, EntityStore.UV_RECTS);
+        markStreamDirty(entityId, EntityStore.MESHES);
+    }
+
+    // Decodes the file on a loader thread and copies it into the runtime texture page over the transfer queue.
+    // The future completes with the texture id once the texture is resident, always on the thread calling
+    // drawFrame, so a callback may pass the id straight to setEntityTexture. Nothing waits for the upload. Runtime
+    // textures are catalogued by canonical path, loading a file that is resident already or on its way there gets
+    // that texture's id without decoding it again. Call from the thread calling drawFrame, after start
+    public static CompletableFuture<Integer> loadTexture(String path) {
+        if (runtimeTextureLoader == null) throw new IllegalStateException("loadTexture needs a running engine, call start or startHeadless first");
+
+        File file = new File(path);
+        String key;
+        try {
+            key = file.getCanonicalPath();
+        } catch (IOException e) {
+            CompletableFuture<Integer> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        Integer existing = textureCatalogue.get(key);
+        if (existing != null) return CompletableFuture.completedFuture(existing);
+
+        // every caller gets its own stage, one of them cancelling doesn't cancel the load for the others
+        CompletableFuture<Integer> loading = loadingTextures.get(key);
+        if (loading != null) return loading.thenApply(texId -> texId);
+
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        loadingTextures.put(key, result);
+        RuntimeTexturePage page = runtimeTextures;
+
+        runtimeTextureLoader.execute(() -> {
+            try {
+                decodedTextureUploads.add(TextureUpload.decode(file, key, result, page));
+            } catch (Throwable t) {
+                // handed to the render thread like a decoded texture, the future completes there
+                decodedTextureUploads.add(TextureUpload.failed(key, result, t));
+            }
+        });
+        return result.thenApply(texId -> texId);
+    }
+
+    // the shader only knows pages, array layers and uv rectangles, this is where a texture id turns into them
+    private static void applyTexture(int entityId, int texId) {
+        int page = texturePages[texId];
+        if (page == 0) {
+            entities.setTextureLayer(entityId, 0, textureAtlas.layer(texId));
+            entities.setUvRect(entityId, textureAtlas.u0(texId), textureAtlas.v0(texId), textureAtlas.u1(texId), textureAtlas.v1(texId));
+        } else if (page == RUNTIME_TEXTURE_PAGE) {
+            int slot = texturePageLayers[texId];
+            entities.setTextureLayer(entityId, page, runtimeTextures.layer(slot));
+            entities.setUvRect(entityId, runtimeTextures.u0(slot), runtimeTextures.v0(slot), runtimeTextures.u1(slot), runtimeTextures.v1(slot));
+        } else {
+            // compressed textures fill their whole layer
+            entities.setTextureLayer(entityId, page, texturePageLayers[texId]);
+            entities.setUvRect(entityId, 0f, 0f, 1f, 1f);
+        }
+
+        entities.setMesh(entityId, textureMeshes[texId]);
+
+        // same layer and depth, same texture next to each other
+        drawOrder.setTexture(entityId, (int) entities.textureLayer(entityId), OPAQUE_TEXTURES && textureOpaque[texId]);
     }
 
     public static void setEntityUserData(int entityId, float x, float y, float z) {
-        ubo.userData[entityId].x = x;
-        ubo.userData[entityId].y = y;
-        ubo.userData[entityId].z = z;
+        entities.setUserData(entityId, x, y, z);
+        markStreamDirty(entityId, EntityStore.INSTANCE_DATA);
+    }
+
+    // bytes written into the uniform buffer by the last drawFrame, handy to see what the dirty tracking saves
+    public static long getUploadedBytesLastFrame() {
+        return uploadedBytesLastFrame;
+    }
+
+    // instances the last drawFrame actually drew. With GPU culling the counts are read back from the indirect buffer
+    // once the GPU is done, so they are as old as the last frame that used the same swapchain image
+    public static int getVisibleEntitiesLastFrame() {
+        return visibleEntitiesLastFrame;
+    }
+
+    // instances of the last drawFrame left out because they were off screen, free slots included
+    public static int getCulledEntitiesLastFrame() {
+        return culledEntitiesLastFrame;
+    }
+
+    public static long getCullingNanosLastFrame() {
+        return cpuCulling ? culler.lastNanos() : 0;
+    }
+
+    private static void markEntityDirty(int entityId) {
+        for(int stream = 0;stream < EntityStore.STREAM_COUNT;stream++) {
+            markStreamDirty(entityId, stream);
+        }
+    }
+
+    // only the streams that changed are uploaded, a moving sprite costs 16 bytes instead of all its data
+    private static void markStreamDirty(int entityId, int stream) {
+        if(stream == EntityStore.MODELS || stream == EntityStore.TRANSFORMS) culler.moved(entityId);
+
+        // every swapchain image has its own copy, each one needs the change exactly once
+        if(instanceBuffers == null) return;
+        for(InstanceBuffer instanceBuffer : instanceBuffers) {
+            instanceBuffer.dirty[stream].set(entityId);
+        }
     }
 
     public static boolean processInput() {
+        if(headless) return true;
         glfwPollEvents();
         return !glfwWindowShouldClose(window);
     }
@@ -256,22 +614,73 @@ public class Engine {
     private static void createDescriptorSetLayout() {
         try(MemoryStack stack = stackPush()) {
 
-            VkDescriptorSetLayoutBinding.Buffer bindings = VkDescriptorSetLayoutBinding.callocStack(2, stack);
+            // cull.comp shares the set, it reads the camera and the entities and writes the visible list
+            int instanceStages = VK_SHADER_STAGE_VERTEX_BIT | (gpuCulling ? VK_SHADER_STAGE_COMPUTE_BIT : 0);
+
+            VkDescriptorSetLayoutBinding.Buffer bindings = VkDescriptorSetLayoutBinding.callocStack(
+                    4 + EntityStore.STREAM_COUNT + (gpuCulling ? 3 : 0), stack);
 
             VkDescriptorSetLayoutBinding uboLayoutBinding = bindings.get(0);
             uboLayoutBinding.binding(0);
             uboLayoutBinding.descriptorCount(1);
             uboLayoutBinding.descriptorType(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER);
             uboLayoutBinding.pImmutableSamplers(null);
-            uboLayoutBinding.stageFlags(VK_SHADER_STAGE_VERTEX_BIT);
+            uboLayoutBinding.stageFlags(instanceStages);
 
             VkDescriptorSetLayoutBinding samplerLayoutBinding = bindings.get(1);
             samplerLayoutBinding.binding(1);
-            samplerLayoutBinding.descriptorCount(1);
+            samplerLayoutBinding.descriptorCount(TEXTURE_PAGES);
             samplerLayoutBinding.descriptorType(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER);
             samplerLayoutBinding.pImmutableSamplers(null);
             samplerLayoutBinding.stageFlags(VK_SHADER_STAGE_FRAGMENT_BIT);
 
+            VkDescriptorSetLayoutBinding meshLayoutBinding = bindings.get(2);
+            meshLayoutBinding.binding(SPRITE_MESH_BINDING);
+            meshLayoutBinding.descriptorCount(1);
+            meshLayoutBinding.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER);
+            meshLayoutBinding.pImmutableSamplers(null);
+            meshLayoutBinding.stageFlags(VK_SHADER_STAGE_VERTEX_BIT);
+
+            // one storage buffer binding per entity stream, see EntityStore
+            for(int stream = 0;stream < EntityStore.STREAM_COUNT;stream++) {
+                VkDescriptorSetLayoutBinding streamLayoutBinding = bindings.get(3 + stream);
+                streamLayoutBinding.binding(InstanceBuffer.FIRST_BINDING + stream);
+                streamLayoutBinding.descriptorCount(1);
+                streamLayoutBinding.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER);
+                streamLayoutBinding.pImmutableSamplers(null);
+                streamLayoutBinding.stageFlags(instanceStages);
+            }
+
+            VkDescriptorSetLayoutBinding visibleLayoutBinding = bindings.get(3 + EntityStore.STREAM_COUNT);
+            visibleLayoutBinding.binding(InstanceBuffer.VISIBLE_BINDING);
+            visibleLayoutBinding.descriptorCount(1);
+            visibleLayoutBinding.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER);
+            visibleLayoutBinding.pImmutableSamplers(null);
+            visibleLayoutBinding.stageFlags(instanceStages);
+
+            if(gpuCulling) {
+                VkDescriptorSetLayoutBinding scratchLayoutBinding = bindings.get(4 + EntityStore.STREAM_COUNT);
+                scratchLayoutBinding.binding(InstanceBuffer.CULL_SCRATCH_BINDING);
+                scratchLayoutBinding.descriptorCount(1);
+                scratchLayoutBinding.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER);
+                scratchLayoutBinding.pImmutableSamplers(null);
+                scratchLayoutBinding.stageFlags(VK_SHADER_STAGE_COMPUTE_BIT);
+
+                VkDescriptorSetLayoutBinding indirectLayoutBinding = bindings.get(5 + EntityStore.STREAM_COUNT);
+                indirectLayoutBinding.binding(InstanceBuffer.INDIRECT_BINDING);
+                indirectLayoutBinding.descriptorCount(1);
+                indirectLayoutBinding.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER);
+                indirectLayoutBinding.pImmutableSamplers(null);
+                indirectLayoutBinding.stageFlags(VK_SHADER_STAGE_COMPUTE_BIT);
+
+                VkDescriptorSetLayoutBinding orderLayoutBinding = bindings.get(6 + EntityStore.STREAM_COUNT);
+                orderLayoutBinding.binding(InstanceBuffer.ORDER_BINDING);
+                orderLayoutBinding.descriptorCount(1);
+                orderLayoutBinding.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER);
+                orderLayoutBinding.pImmutableSamplers(null);
+                orderLayoutBinding.stageFlags(VK_SHADER_STAGE_COMPUTE_BIT);
+            }
+
             VkDescriptorSetLayoutCreateInfo layoutInfo = VkDescriptorSetLayoutCreateInfo.callocStack(stack);
             layoutInfo.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_LAYOUT_CREATE_INFO);
             layoutInfo.pBindings(bindings);
@@ -285,7 +694,7 @@ public class Engine {
         }
     }
 
-    private static void createBuffer(long size, int usage, int properties, LongBuffer pBuffer, LongBuffer pBufferMemory) {
+    private static DeviceMemoryAllocator.Allocation createBuffer(long size, int usage, int properties, LongBuffer pBuffer) {
 
         try(MemoryStack stack = stackPush()) {
 
@@ -302,87 +711,101 @@ public class Engine {
             VkMemoryRequirements memRequirements = VkMemoryRequirements.mallocStack(stack);
             vkGetBufferMemoryRequirements(device, pBuffer.get(0), memRequirements);
 
-            VkMemoryAllocateInfo allocInfo = VkMemoryAllocateInfo.callocStack(stack);
-            allocInfo.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO);
-            allocInfo.allocationSize(memRequirements.size());
-            allocInfo.memoryTypeIndex(findMemoryType(memRequirements.memoryTypeBits(), properties));
+            DeviceMemoryAllocator.Allocation memory = memoryAllocator.allocate(
+                    findMemoryType(memRequirements.memoryTypeBits(), properties),
+                    memRequirements.size(),
+                    memRequirements.alignment(),
+                    true);
 
-            if(vkAllocateMemory(device, allocInfo, null, pBufferMemory) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to allocate vertex buffer memory");
-            }
+            vkBindBufferMemory(device, pBuffer.get(0), memory.memory(), memory.offset());
 
-            vkBindBufferMemory(device, pBuffer.get(0), pBufferMemory.get(0), 0);
+            return memory;
         }
     }
 
-    private static VkCommandBuffer beginSingleTimeCommands() {
+    // optimal tiling images only, they never share a bufferImageGranularity page with buffers
+    private static DeviceMemoryAllocator.Allocation allocateImageMemory(long image, int properties) {
 
         try(MemoryStack stack = stackPush()) {
 
-            VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.callocStack(stack);
-            allocInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
-            allocInfo.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY);
-            allocInfo.commandPool(commandPool);
-            allocInfo.commandBufferCount(1);
-
-            PointerBuffer pCommandBuffer = stack.mallocPointer(1);
-            vkAllocateCommandBuffers(device, allocInfo, pCommandBuffer);
-            VkCommandBuffer commandBuffer = new VkCommandBuffer(pCommandBuffer.get(0), device);
+            VkMemoryRequirements memRequirements = VkMemoryRequirements.mallocStack(stack);
+            vkGetImageMemoryRequirements(device, image, memRequirements);
 
-            VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
-            beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
-            beginInfo.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+            DeviceMemoryAllocator.Allocation memory = memoryAllocator.allocate(
+                    findMemoryType(memRequirements.memoryTypeBits(), properties),
+                    memRequirements.size(),
+                    memRequirements.alignment(),
+                    false);
 
-            vkBeginCommandBuffer(commandBuffer, beginInfo);
+            vkBindImageMemory(device, image, memory.memory(), memory.offset());
 
-            return commandBuffer;
+            return memory;
         }
     }
 
-    private static void endSingleTimeCommands(VkCommandBuffer commandBuffer) {
-
+    private static void createUniformBuffers() {
         try(MemoryStack stack = stackPush()) {
 
-            vkEndCommandBuffer(commandBuffer);
+            uniformBuffers = new ArrayList<>(swapChainImages.size());
+            uniformBuffersMemory = new ArrayList<>(swapChainImages.size());
+            uniformBuffersMapped = new ArrayList<>(swapChainImages.size());
+            instanceBuffers = new ArrayList<>(swapChainImages.size());
 
-            VkSubmitInfo.Buffer submitInfo = VkSubmitInfo.callocStack(1, stack);
-            submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
-            submitInfo.pCommandBuffers(stack.pointers(commandBuffer));
+            LongBuffer pBuffer = stack.mallocLong(1);
 
-            vkQueueSubmit(graphicsQueue, submitInfo, VK_NULL_HANDLE);
-            vkQueueWaitIdle(graphicsQueue);
+            for(int i = 0;i < swapChainImages.size();i++) {
+                DeviceMemoryAllocator.Allocation memory = createBuffer(UniformBufferObject.SIZEOF,
+                        VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT,
+                        VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                        pBuffer);
+
+                uniformBuffers.add(pBuffer.get(0));
+                uniformBuffersMemory.add(memory);
+                uniformBuffersMapped.add(memory.mapped());
+
+                InstanceBuffer instanceBuffer = new InstanceBuffer();
+                instanceBuffer.allocate(Math.max(nextRenderEntityId, InstanceBuffer.MIN_CAPACITY));
+                instanceBuffers.add(instanceBuffer);
+            }
 
-            vkFreeCommandBuffers(device, commandPool, commandBuffer);
         }
     }
 
-    private static void createUniformBuffers() {
+    private static void createIndirectBuffers() {
         try(MemoryStack stack = stackPush()) {
 
-            uniformBuffers = new ArrayList<>(swapChainImages.size());
-            uniformBuffersMemory = new ArrayList<>(swapChainImages.size());
+            indirectBuffers = new ArrayList<>(swapChainImages.size());
+            indirectBuffersMemory = new ArrayList<>(swapChainImages.size());
+            indirectBuffersMapped = new ArrayList<>(swapChainImages.size());
 
             LongBuffer pBuffer = stack.mallocLong(1);
-            LongBuffer pBufferMemory = stack.mallocLong(1);
 
             for(int i = 0;i < swapChainImages.size();i++) {
-                createBuffer(UniformBufferObject.SIZEOF,
-                        VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT,
+                // a draw per pass and batch. cull.comp writes them with GPU culling, the CPU still reads them back for the counts
+                DeviceMemoryAllocator.Allocation memory = createBuffer((long) DRAW_PASSES * drawBatches * VkDrawIndexedIndirectCommand.SIZEOF,
+                        VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT | (gpuCulling ? VK_BUFFER_USAGE_STORAGE_BUFFER_BIT : 0),
                         VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
-                        pBuffer,
-                        pBufferMemory);
-
-                uniformBuffers.add(pBuffer.get(0));
-                uniformBuffersMemory.add(pBufferMemory.get(0));
+                        pBuffer);
+
+                indirectBuffers.add(pBuffer.get(0));
+                indirectBuffersMemory.add(memory);
+                indirectBuffersMapped.add(memory.mapped());
+
+                for(VkDrawIndexedIndirectCommand command : VkDrawIndexedIndirectCommand.create(memory.mapped(), DRAW_PASSES * drawBatches)) {
+                    command.indexCount(MESH_INDICES)
+                            .instanceCount(0)
+                            .firstIndex(0)
+                            .vertexOffset(0)
+                            .firstInstance(0);
+                }
             }
-
         }
     }
 
     private static void createDescriptorPool() {
 
         try(MemoryStack stack = stackPush()) {
-            VkDescriptorPoolSize.Buffer poolSizes = VkDescriptorPoolSize.callocStack(2, stack);
+            VkDescriptorPoolSize.Buffer poolSizes = VkDescriptorPoolSize.callocStack(3, stack);
 
             VkDescriptorPoolSize uniformBufferPoolSize = poolSizes.get(0);
             uniformBufferPoolSize.type(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER);
@@ -390,7 +813,11 @@ public class Engine {
 
             VkDescriptorPoolSize textureSamplerPoolSize = poolSizes.get(1);
             textureSamplerPoolSize.type(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER);
-            textureSamplerPoolSize.descriptorCount(swapChainImages.size());
+            textureSamplerPoolSize.descriptorCount(TEXTURE_PAGES * swapChainImages.size());
+
+            VkDescriptorPoolSize storageBufferPoolSize = poolSizes.get(2);
+            storageBufferPoolSize.type(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER);
+            storageBufferPoolSize.descriptorCount((1 + EntityStore.STREAM_COUNT + (gpuCulling ? 4 : 1)) * swapChainImages.size());
 
             VkDescriptorPoolCreateInfo poolInfo = VkDescriptorPoolCreateInfo.callocStack(stack);
             poolInfo.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO);
@@ -433,14 +860,23 @@ public class Engine {
             bufferInfo.offset(0);
             bufferInfo.range(UniformBufferObject.SIZEOF);
 
-            // make this an array instead
-            VkDescriptorImageInfo.Buffer imageInfo = VkDescriptorImageInfo.callocStack(1, stack);
-            imageInfo.sampler(textureSampler);
-            imageInfo.imageView(textureImageView);
-            imageInfo.imageLayout(VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+            // every page slot needs a valid image, the ones without a compressed page just repeat the atlas
+            VkDescriptorImageInfo.Buffer imageInfo = VkDescriptorImageInfo.callocStack(TEXTURE_PAGES, stack);
+            for(int page = 0;page < TEXTURE_PAGES;page++) {
+                imageInfo.get(page).sampler(textureSampler);
+                imageInfo.get(page).imageView(page > 0 && page <= compressedPages.size() ? compressedPages.get(page - 1).view : textureImageView);
+                imageInfo.get(page).imageLayout(VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+            }
+            imageInfo.get(RUNTIME_TEXTURE_PAGE).imageView(runtimeTextures.view);
+            imageInfo.get(RUNTIME_TEXTURE_PAGE).imageLayout(VK_IMAGE_LAYOUT_GENERAL);
+
 
+            VkDescriptorBufferInfo.Buffer meshInfo = VkDescriptorBufferInfo.callocStack(1, stack);
+            meshInfo.buffer(meshBuffer);
+            meshInfo.offset(MESH_CORNERS_OFFSET);
+            meshInfo.range(VK_WHOLE_SIZE);
 
-            VkWriteDescriptorSet.Buffer descriptorWrites = VkWriteDescriptorSet.callocStack(2, stack);
+            VkWriteDescriptorSet.Buffer descriptorWrites = VkWriteDescriptorSet.callocStack(3, stack);
 
             VkWriteDescriptorSet uboDescriptorWrite = descriptorWrites.get(0);
             uboDescriptorWrite.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET);
@@ -455,9 +891,17 @@ public class Engine {
             samplerDescriptorWrite.dstBinding(1);
             samplerDescriptorWrite.dstArrayElement(0);
             samplerDescriptorWrite.descriptorType(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER);
-            samplerDescriptorWrite.descriptorCount(1);
+            samplerDescriptorWrite.descriptorCount(TEXTURE_PAGES);
             samplerDescriptorWrite.pImageInfo(imageInfo);
 
+            VkWriteDescriptorSet meshDescriptorWrite = descriptorWrites.get(2);
+            meshDescriptorWrite.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET);
+            meshDescriptorWrite.dstBinding(SPRITE_MESH_BINDING);
+            meshDescriptorWrite.dstArrayElement(0);
+            meshDescriptorWrite.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER);
+            meshDescriptorWrite.descriptorCount(1);
+            meshDescriptorWrite.pBufferInfo(meshInfo);
+
             for(int i = 0;i < pDescriptorSets.capacity();i++) {
 
                 long descriptorSet = pDescriptorSets.get(i);
@@ -466,70 +910,146 @@ public class Engine {
 
                 uboDescriptorWrite.dstSet(descriptorSet);
                 samplerDescriptorWrite.dstSet(descriptorSet);
+                meshDescriptorWrite.dstSet(descriptorSet);
 
                 vkUpdateDescriptorSets(device, descriptorWrites, null);
 
                 descriptorSets.add(descriptorSet);
+
+                writeInstanceDescriptors(i);
+            }
+        }
+    }
+
+    // binds every stream of this image's instance buffer and its visible list to their bindings, with GPU culling
+    // also the scratch memory of cull.comp, the indirect buffer and the drawing order
+    private static void writeInstanceDescriptors(int imageIndex) {
+
+        try(MemoryStack stack = stackPush()) {
+
+            InstanceBuffer instanceBuffer = instanceBuffers.get(imageIndex);
+
+            // the bindings follow each other from FIRST_BINDING on, streams first
+            int writes = EntityStore.STREAM_COUNT + (gpuCulling ? 4 : 1);
+            VkDescriptorBufferInfo.Buffer bufferInfos = VkDescriptorBufferInfo.callocStack(writes, stack);
+            VkWriteDescriptorSet.Buffer descriptorWrites = VkWriteDescriptorSet.callocStack(writes, stack);
+
+            for(int i = 0;i < writes;i++) {
+                int binding = InstanceBuffer.FIRST_BINDING + i;
+                VkDescriptorBufferInfo bufferInfo = bufferInfos.get(i);
+                bufferInfo.offset(0);
+                bufferInfo.range(VK_WHOLE_SIZE);
+
+                if(i < EntityStore.STREAM_COUNT) {
+                    bufferInfo.buffer(instanceBuffer.buffer);
+                    bufferInfo.offset(instanceBuffer.streamOffset(i));
+                    bufferInfo.range(instanceBuffer.streamSize(i));
+                } else if(binding == InstanceBuffer.VISIBLE_BINDING) {
+                    bufferInfo.buffer(instanceBuffer.visibleBuffer);
+                } else if(binding == InstanceBuffer.CULL_SCRATCH_BINDING) {
+                    bufferInfo.buffer(instanceBuffer.cullScratchBuffer);
+                } else if(binding == InstanceBuffer.INDIRECT_BINDING) {
+                    bufferInfo.buffer(indirectBuffers.get(imageIndex));
+                } else {
+                    bufferInfo.buffer(instanceBuffer.orderBuffer);
+                }
+
+                VkWriteDescriptorSet descriptorWrite = descriptorWrites.get(i);
+                descriptorWrite.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET);
+                descriptorWrite.dstSet(descriptorSets.get(imageIndex));
+                descriptorWrite.dstBinding(binding);
+                descriptorWrite.dstArrayElement(0);
+                descriptorWrite.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER);
+                descriptorWrite.descriptorCount(1);
+                descriptorWrite.pBufferInfo(VkDescriptorBufferInfo.create(bufferInfo.address(), 1));
             }
+
+            vkUpdateDescriptorSets(device, descriptorWrites, null);
         }
     }
 
-    private static void createVertexBuffer() {
+    private static void createVertexBuffer(UploadBatch uploads) {
+        // a colour per mesh corner, the quad gets the ones its two triangles had before
         float[][] test_vertices = {
                 { 1.0f,  0.0f, 0.0f, 1.0f},
                 { 0.0f,  1.0f, 0.0f, 1.0f},
                 { 0.0f,  0.0f, 1.0f, 1.0f},
+                { 1.0f,  1.0f, 1.0f, 1.0f},
                 { 1.0f,  0.0f, 0.0f, 1.0f},
+                { 0.0f,  1.0f, 0.0f, 1.0f},
                 { 0.0f,  0.0f, 1.0f, 1.0f},
                 { 1.0f,  1.0f, 1.0f, 1.0f},
         };
 
         try (MemoryStack stack = stackPush()) {
-            VkBufferCreateInfo bufferInfo = VkBufferCreateInfo.calloc()
-                    .sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
-                    .size(Float.BYTES * test_vertices.length * test_vertices[0].length)
-                    .usage(VK_BUFFER_USAGE_VERTEX_BUFFER_BIT)
-                    .sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+            long size = Float.BYTES * test_vertices.length * test_vertices[0].length;
 
             LongBuffer pVertexBuffer = stack.mallocLong(1);
+            vertexBufferMemory = createBuffer(size,
+                    VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+                    VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT,
+                    pVertexBuffer);
 
-            if(vkCreateBuffer(device, bufferInfo, null, pVertexBuffer) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to create vertex buffer");
-            }
             vertexBuffer = pVertexBuffer.get(0);
 
-            VkMemoryRequirements memRequirements = VkMemoryRequirements.callocStack(stack);
-            vkGetBufferMemoryRequirements(device, vertexBuffer, memRequirements);
+            FloatBuffer vertices = stack.mallocFloat((int) (size / Float.BYTES));
+            for(float[] vertex : test_vertices) {
+                vertices.put(vertex);
+            }
+            vertices.flip();
 
-            VkMemoryAllocateInfo allocInfo = VkMemoryAllocateInfo.callocStack(stack);
-            allocInfo.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO);
-            allocInfo.allocationSize(memRequirements.size());
-            allocInfo.memoryTypeIndex(findMemoryType(memRequirements.memoryTypeBits(),
-                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT));
+            uploads.copyToBuffer(MemoryUtil.memAddress(vertices), size, vertexBuffer, 0);
+        }
+    }
 
-            LongBuffer pVertexBufferMemory = stack.mallocLong(1);
+    // the shared index list, then the quad and the outline of every texture loaded so far
+    private static void createSpriteMeshBuffer() {
+        try(MemoryStack stack = stackPush()) {
+            meshCapacity = 1 + numTextures + RUNTIME_SPRITE_MESHES;
 
-            if(vkAllocateMemory(device, allocInfo, null, pVertexBufferMemory) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to allocate vertex buffer memory");
-            }
-            vertexBufferMemory = pVertexBufferMemory.get(0);
+            LongBuffer pBuffer = stack.mallocLong(1);
+            meshBufferMemory = createBuffer(MESH_CORNERS_OFFSET + (long) meshCapacity * MESH_BYTES,
+                    VK_BUFFER_USAGE_INDEX_BUFFER_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
+                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                    pBuffer);
+            meshBuffer = pBuffer.get(0);
+        }
+
+        // a fan around corner 0, the padding corners of shorter outlines only add empty triangles
+        long indices = meshBufferMemory.mapped();
+        for(int triangle = 0;triangle < SpriteOutline.VERTICES - 2;triangle++) {
+            MemoryUtil.memPutShort(indices + (3L * triangle) * Short.BYTES,     (short) 0);
+            MemoryUtil.memPutShort(indices + (3L * triangle + 1) * Short.BYTES, (short) (triangle + 1));
+            MemoryUtil.memPutShort(indices + (3L * triangle + 2) * Short.BYTES, (short) (triangle + 2));
+        }
+
+        meshCount = 0;
+        addSpriteMesh(SpriteOutline.quad());
 
-            vkBindBufferMemory(device, vertexBuffer, vertexBufferMemory, 0);
+        textureMeshes = new int[numTextures];
+        float covered = 0f;
+        for(int texId = 0;texId < numTextures;texId++) {
+            textureMeshes[texId] = addSpriteMesh(textureOutlines[texId]);
+            covered += SpriteOutline.area(textureOutlines[texId]);
+        }
+        textureOutlines = null;
 
-            PointerBuffer data = stack.mallocPointer(1);
+        if(STATS) {
+            System.out.printf("Sprite meshes: %d outlines of up to %d corners cover %.1f%% of their quads on average%s%n",
+                    numTextures, SpriteOutline.VERTICES, numTextures == 0 ? 100f : covered * 100f / numTextures,
+                    SPRITE_MESHES ? "" : ", drawn as quads");
+        }
+    }
 
-            vkMapMemory(device, vertexBufferMemory, 0, bufferInfo.size(), 0, data);
-            data.getFloatBuffer(0, (int) bufferInfo.size())
-                    .put(test_vertices[0])
-                    .put(test_vertices[1])
-                    .put(test_vertices[2])
-                    .put(test_vertices[3])
-                    .put(test_vertices[4])
-                    .put(test_vertices[5])
-                    .flip();
-            vkUnmapMemory(device, vertexBufferMemory);
+    // returns the mesh index, the quad once the buffer is full. Frames in flight never read a mesh before it is added
+    private static int addSpriteMesh(float outline[]) {
+        if(meshCount > 0 && (!SPRITE_MESHES || meshCount == meshCapacity)) return 0;
 
+        long corners = meshBufferMemory.mapped() + MESH_CORNERS_OFFSET + (long) meshCount * MESH_BYTES;
+        for(int i = 0;i < outline.length;i++) {
+            MemoryUtil.memPutFloat(corners + (long) i * Float.BYTES, outline[i]);
         }
+        return meshCount++;
     }
 
     private static int findMemoryType(int typeFilter, int properties) {
@@ -547,16 +1067,30 @@ public class Engine {
 
     private static void cleanupSwapChain() {
 
+        // the blocks stay mapped, only the ranges go back to the allocator
         uniformBuffers.forEach(ubo -> vkDestroyBuffer(device, ubo, null));
-        uniformBuffersMemory.forEach(uboMemory -> vkFreeMemory(device, uboMemory, null));
+        uniformBuffersMemory.forEach(memoryAllocator::free);
+
+        indirectBuffers.forEach(buffer -> vkDestroyBuffer(device, buffer, null));
+        indirectBuffersMemory.forEach(memoryAllocator::free);
+
+        instanceBuffers.forEach(InstanceBuffer::free);
 
         vkDestroyDescriptorPool(device, descriptorPool, null);
 
         swapChainFramebuffers.forEach(framebuffer -> vkDestroyFramebuffer(device, framebuffer, null));
 
-        vkFreeCommandBuffers(device, commandPool, asPointerBuffer(commandBuffers));
+        for(VkCommandBuffer[] secondaries : secondaryCommandBuffers) {
+            for(int secondary = 0;secondary < secondaries.length;secondary++) {
+                vkFreeCommandBuffers(device, recordingPools[secondary % RECORDING_THREADS], secondaries[secondary]);
+            }
+        }
 
-        vkDestroyPipeline(device, graphicsPipeline, null);
+        for(long graphicsPipeline : graphicsPipelines) vkDestroyPipeline(device, graphicsPipeline, null);
+        if(cullPipelines != null) {
+            for(long cullPipeline : cullPipelines) vkDestroyPipeline(device, cullPipeline, null);
+            cullPipelines = null;
+        }
 
         vkDestroyPipelineLayout(device, pipelineLayout, null);
 
@@ -564,35 +1098,88 @@ public class Engine {
 
         swapChainImageViews.forEach(imageView -> vkDestroyImageView(device, imageView, null));
 
-        vkDestroySwapchainKHR(device, swapChain, null);
+        vkDestroyImageView(device, depthImageView, null);
+        vkDestroyImage(device, depthImage, null);
+        memoryAllocator.free(depthImageMemory);
+
+        if(headless) {
+            swapChainImages.forEach(image -> vkDestroyImage(device, image, null));
+            offscreenImagesMemory.forEach(memoryAllocator::free);
+            vkDestroyBuffer(device, readbackBuffer, null);
+            memoryAllocator.free(readbackBufferMemory);
+        } else {
+            vkDestroySwapchainKHR(device, swapChain, null);
+        }
     }
 
     public static void end() {
         // Wait for the device to complete all operations before release resources
         vkDeviceWaitIdle(device);
 
+        if(STATS && gpuTimestamps) {
+            System.out.printf("GPU frame time: p50 %.2f ms, p95 %.2f ms, p99 %.2f ms%n",
+                    getGpuFrameTimePercentile(50), getGpuFrameTimePercentile(95), getGpuFrameTimePercentile(99));
+        }
+        if(STATS) {
+            System.out.printf("Culling: %d drawn, %d culled in the last frame%n", visibleEntitiesLastFrame, culledEntitiesLastFrame);
+        }
+        if(STATS && fragmentStatistics) {
+            System.out.printf("Shader invocations: %d vertex, %d fragment in the last frame, opaque pass %s%n",
+                    vertexInvocationsLastFrame, fragmentInvocationsLastFrame, OPAQUE_TEXTURES ? "on" : "off");
+        }
+        if(STATS) {
+            System.out.printf("Device memory: %d blocks%n", memoryAllocator.blockCount());
+            memoryAllocator.stats().forEach(stats -> System.out.println("  " + stats));
+        }
+
         cleanupSwapChain();
 
         vkDestroySampler(device, textureSampler, null);
         vkDestroyImageView(device, textureImageView, null);
 
         vkDestroyImage(device, textureImage, null);
-        vkFreeMemory(device, textureImageMemory, null);
+        memoryAllocator.free(textureImageMemory);
+
+        compressedPages.forEach(CompressedPage::free);
+        destroyRuntimeTextures();
+
+        if(STATS) {
+            System.out.printf("Staging ring: high water mark %.1f MB of %.1f MB, %d stalls, %d deferred uploads%n",
+                    stagingRing.highWaterMark / (1024.0 * 1024.0), stagingRing.capacity / (1024.0 * 1024.0),
+                    stagingRing.stalls, stagingRing.deferrals);
+        }
+        stagingRing.free();
+        if(instanceCopyRegions != null) instanceCopyRegions.free();
 
         vkDestroyDescriptorSetLayout(device, descriptorSetLayout, null);
 
         vkDestroyBuffer(device, vertexBuffer, null);
-        vkFreeMemory(device, vertexBufferMemory, null);
+        memoryAllocator.free(vertexBufferMemory);
+        vkDestroyBuffer(device, meshBuffer, null);
+        memoryAllocator.free(meshBufferMemory);
 
         inFlightFrames.forEach(frame -> {
 
             vkDestroySemaphore(device, frame.renderFinishedSemaphore(), null);
             vkDestroySemaphore(device, frame.imageAvailableSemaphore(), null);
             vkDestroyFence(device, frame.fence(), null);
+            if(frame.queryPool != VK_NULL_HANDLE) vkDestroyQueryPool(device, frame.queryPool, null);
+            if(frame.statisticsPool != VK_NULL_HANDLE) vkDestroyQueryPool(device, frame.statisticsPool, null);
+            frame.uploadSemaphores.forEach(semaphore -> vkDestroySemaphore(device, semaphore, null));
         });
         inFlightFrames.clear();
 
         vkDestroyCommandPool(device, commandPool, null);
+        for(long pool : recordingPools) {
+            vkDestroyCommandPool(device, pool, null);
+        }
+        if(recordingExecutor != null) recordingExecutor.shutdownNow();
+
+        // nothing is allocated from it anymore, this only gives back the spare empty blocks
+        memoryAllocator.destroy();
+
+        savePipelineCache();
+        vkDestroyPipelineCache(device, pipelineCache, null);
 
         vkDestroyDevice(device, null);
 
@@ -600,10 +1187,12 @@ public class Engine {
             destroyDebugUtilsMessengerEXT(instance, debugMessenger, null);
         }
 
-        vkDestroySurfaceKHR(instance, surface, null);
+        if(!headless) vkDestroySurfaceKHR(instance, surface, null);
 
         vkDestroyInstance(instance, null);
 
+        if(headless) return;
+
         glfwDestroyWindow(window);
 
         glfwTerminate();
@@ -632,12 +1221,21 @@ public class Engine {
     }
 
     private static void createSwapChainObjects() {
-        createSwapChain();
+        if(headless) {
+            createOffscreenImages();
+        } else {
+            createSwapChain();
+        }
         createImageViews();
+        createDepthResources();
         createRenderPass();
         createGraphicsPipeline();
+        if(gpuCulling) {
+            createCullPipelines();
+        }
         createFramebuffers();
         createUniformBuffers();
+        createIndirectBuffers();
         createDescriptorPool();
         createDescriptorSets();
         createCommandBuffers();
@@ -780,8 +1378,33 @@ public class Engine {
                 queueCreateInfo.pQueuePriorities(stack.floats(1.0f));
             }
 
+            VkPhysicalDeviceFeatures supportedFeatures = VkPhysicalDeviceFeatures.callocStack(stack);
+            vkGetPhysicalDeviceFeatures(physicalDevice, supportedFeatures);
+
             VkPhysicalDeviceFeatures deviceFeatures = VkPhysicalDeviceFeatures.callocStack(stack);
             deviceFeatures.samplerAnisotropy(true);
+            // optional, without them compressed textures are decoded on the CPU
+            deviceFeatures.textureCompressionBC(supportedFeatures.textureCompressionBC());
+            deviceFeatures.textureCompressionETC2(supportedFeatures.textureCompressionETC2());
+            textureCompressionBC   = supportedFeatures.textureCompressionBC();
+            textureCompressionETC2 = supportedFeatures.textureCompressionETC2();
+            // the draw batches start at their first instance, without it everything is one draw
+            deviceFeatures.drawIndirectFirstInstance(supportedFeatures.drawIndirectFirstInstance());
+            drawBatches = supportedFeatures.drawIndirectFirstInstance() ? DRAW_BATCHES : 1;
+            // fragment shader invocations per frame, the draws are in secondaries so the query has to be inherited
+            fragmentStatistics = supportedFeatures.pipelineStatisticsQuery() && supportedFeatures.inheritedQueries();
+            deviceFeatures.pipelineStatisticsQuery(fragmentStatistics);
+            deviceFeatures.inheritedQueries(fragmentStatistics);
+
+            // the culling passes run on the graphics queue, right in front of the draws
+            if(!Arrays.asList("cpu", "gpu", "off").contains(CULLING)) {
+                throw new IllegalArgumentException("engine.culling is " + CULLING + ", expected cpu, gpu or off");
+            }
+            gpuCulling = CULLING.equals("gpu") && indices.graphicsCompute;
+            if(CULLING.equals("gpu") && !gpuCulling) {
+                System.out.println("The graphics queue can't run compute shaders, culling on the CPU instead");
+            }
+            cpuCulling = !gpuCulling && !CULLING.equals("off");
 
             VkDeviceCreateInfo createInfo = VkDeviceCreateInfo.callocStack(stack);
 
@@ -791,7 +1414,7 @@ public class Engine {
 
             createInfo.pEnabledFeatures(deviceFeatures);
 
-            createInfo.ppEnabledExtensionNames(asPointerBuffer(DEVICE_EXTENSIONS));
+            createInfo.ppEnabledExtensionNames(asPointerBuffer(deviceExtensions()));
 
             if(ENABLE_VALIDATION_LAYERS) {
                 createInfo.ppEnabledLayerNames(asPointerBuffer(VALIDATION_LAYERS));
@@ -812,1074 +1435,4632 @@ public class Engine {
 
             vkGetDeviceQueue(device, indices.presentFamily, 0, pQueue);
             presentQueue = new VkQueue(pQueue.get(0), device);
+
+            vkGetDeviceQueue(device, indices.transferFamily, 0, pQueue);
+            transferQueue = new VkQueue(pQueue.get(0), device);
+
+            graphicsQueueFamily = indices.graphicsFamily;
+            transferQueueFamily = indices.transferFamily;
         }
     }
 
-    private static void createSwapChain() {
+    // ===> DEVICE MEMORY <===
 
-        try(MemoryStack stack = stackPush()) {
+    private static void createMemoryAllocator() {
 
-            SwapChainSupportDetails swapChainSupport = querySwapChainSupport(physicalDevice, stack);
+        try(MemoryStack stack = stackPush()) {
 
-            VkSurfaceFormatKHR surfaceFormat = chooseSwapSurfaceFormat(swapChainSupport.formats);
-            int presentMode = chooseSwapPresentMode(swapChainSupport.presentModes);
-            VkExtent2D extent = chooseSwapExtent(swapChainSupport.capabilities);
+            VkPhysicalDeviceProperties properties = VkPhysicalDeviceProperties.callocStack(stack);
+            vkGetPhysicalDeviceProperties(physicalDevice, properties);
 
-            IntBuffer imageCount = stack.ints(swapChainSupport.capabilities.minImageCount() + 1);
+            VkPhysicalDeviceMemoryProperties memProperties = VkPhysicalDeviceMemoryProperties.callocStack(stack);
+            vkGetPhysicalDeviceMemoryProperties(physicalDevice, memProperties);
 
-            if(swapChainSupport.capabilities.maxImageCount() > 0 && imageCount.get(0) > swapChainSupport.capabilities.maxImageCount()) {
-                imageCount.put(0, swapChainSupport.capabilities.maxImageCount());
+            int[] propertyFlags = new int[memProperties.memoryTypeCount()];
+            for(int i = 0;i < propertyFlags.length;i++) {
+                propertyFlags[i] = memProperties.memoryTypes(i).propertyFlags();
             }
 
-            VkSwapchainCreateInfoKHR createInfo = VkSwapchainCreateInfoKHR.callocStack(stack);
+            memoryAllocator = new DeviceMemoryAllocator(new DeviceMemoryBacking(propertyFlags),
+                    propertyFlags.length,
+                    MEMORY_BLOCK_SIZE,
+                    properties.limits().bufferImageGranularity(),
+                    Integer.toUnsignedLong(properties.limits().maxMemoryAllocationCount()));
+        }
+    }
 
-            createInfo.sType(VK_STRUCTURE_TYPE_SWAPCHAIN_CREATE_INFO_KHR);
-            createInfo.surface(surface);
+    public static List<DeviceMemoryAllocator.Stats> getMemoryStats() {
+        return memoryAllocator.stats();
+    }
 
-            // Image settings
-            createInfo.minImageCount(imageCount.get(0));
-            createInfo.imageFormat(surfaceFormat.format());
-            createInfo.imageColorSpace(surfaceFormat.colorSpace());
-            createInfo.imageExtent(extent);
-            createInfo.imageArrayLayers(1);
-            createInfo.imageUsage(VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT);
+    // the blocks of host visible types are mapped right away and stay mapped until they are freed
+    private static class DeviceMemoryBacking implements DeviceMemoryAllocator.Backing {
 
-            QueueFamilyIndices indices = findQueueFamilies(physicalDevice);
+        private final int[] propertyFlags;
 
-            if(!indices.graphicsFamily.equals(indices.presentFamily)) {
-                createInfo.imageSharingMode(VK_SHARING_MODE_CONCURRENT);
-                createInfo.pQueueFamilyIndices(stack.ints(indices.graphicsFamily, indices.presentFamily));
-            } else {
-                createInfo.imageSharingMode(VK_SHARING_MODE_EXCLUSIVE);
-            }
+        DeviceMemoryBacking(int[] propertyFlags) {
+            this.propertyFlags = propertyFlags;
+        }
 
-            createInfo.preTransform(swapChainSupport.capabilities.currentTransform());
-            createInfo.compositeAlpha(VK_COMPOSITE_ALPHA_OPAQUE_BIT_KHR);
-            createInfo.presentMode(presentMode);
-            createInfo.clipped(true);
+        @Override
+        public long allocate(int memoryType, long size) {
 
-            createInfo.oldSwapchain(VK_NULL_HANDLE);
+            try(MemoryStack stack = stackPush()) {
 
-            LongBuffer pSwapChain = stack.longs(VK_NULL_HANDLE);
+                VkMemoryAllocateInfo allocInfo = VkMemoryAllocateInfo.callocStack(stack);
+                allocInfo.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO);
+                allocInfo.allocationSize(size);
+                allocInfo.memoryTypeIndex(memoryType);
 
-            if(vkCreateSwapchainKHR(device, createInfo, null, pSwapChain) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to create swap chain");
-            }
+                LongBuffer pMemory = stack.mallocLong(1);
 
-            swapChain = pSwapChain.get(0);
+                int result = vkAllocateMemory(device, allocInfo, null, pMemory);
+                if(result == VK_ERROR_OUT_OF_DEVICE_MEMORY || result == VK_ERROR_OUT_OF_HOST_MEMORY) {
+                    return VK_NULL_HANDLE;
+                }
+                if(result != VK_SUCCESS) {
+                    throw new RuntimeException("Failed to allocate device memory: " + result);
+                }
 
-            vkGetSwapchainImagesKHR(device, swapChain, imageCount, null);
+                return pMemory.get(0);
+            }
+        }
 
-            LongBuffer pSwapchainImages = stack.mallocLong(imageCount.get(0));
+        @Override
+        public void free(long memory) {
+            // freeing the memory implicitly unmaps it
+            vkFreeMemory(device, memory, null);
+        }
 
-            vkGetSwapchainImagesKHR(device, swapChain, imageCount, pSwapchainImages);
+        @Override
+        public long map(int memoryType, long memory, long size) {
 
-            swapChainImages = new ArrayList<>(imageCount.get(0));
+            if((propertyFlags[memoryType] & VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT) == 0) return NULL;
 
-            for(int i = 0;i < pSwapchainImages.capacity();i++) {
-                swapChainImages.add(pSwapchainImages.get(i));
-            }
+            try(MemoryStack stack = stackPush()) {
 
-            swapChainImageFormat = surfaceFormat.format();
-            swapChainExtent = VkExtent2D.create().set(extent);
-            aspectRatio = ((float) swapChainExtent.width()) / ((float) swapChainExtent.height());
+                PointerBuffer data = stack.mallocPointer(1);
+                if(vkMapMemory(device, memory, 0, VK_WHOLE_SIZE, 0, data) != VK_SUCCESS) {
+                    throw new RuntimeException("Failed to map device memory");
+                }
+                return data.get(0);
+            }
         }
     }
 
-    private static void createImageViews() {
+    // ===> GPU TIMING <===
+    // Every frame in flight has a small timestamp query pool. Its command buffer resets the pool and writes
+    // timestamps around each pass, and the results are read once the frame's fence has signalled, the next time the
+    // frame comes around. Availability is checked, the CPU never waits for a query. Queue families whose
+    // timestampValidBits is 0 can't write timestamps at all, then there are no pools and no samples
 
-        swapChainImageViews = new ArrayList<>(swapChainImages.size());
+    private static void setupGpuTiming() {
 
-        for(long swapChainImage : swapChainImages) {
-            swapChainImageViews.add(createImageView(swapChainImage, swapChainImageFormat, VK_IMAGE_VIEW_TYPE_2D));//VK_FORMAT_R8G8B8A8_SRGB));
+        try(MemoryStack stack = stackPush()) {
+
+            IntBuffer queueFamilyCount = stack.ints(0);
+            vkGetPhysicalDeviceQueueFamilyProperties(physicalDevice, queueFamilyCount, null);
+
+            VkQueueFamilyProperties.Buffer queueFamilies = VkQueueFamilyProperties.callocStack(queueFamilyCount.get(0), stack);
+            vkGetPhysicalDeviceQueueFamilyProperties(physicalDevice, queueFamilyCount, queueFamilies);
+
+            VkPhysicalDeviceProperties properties = VkPhysicalDeviceProperties.callocStack(stack);
+            vkGetPhysicalDeviceProperties(physicalDevice, properties);
+
+            int validBits = queueFamilies.get(graphicsQueueFamily).timestampValidBits();
+
+            gpuTimestamps = validBits > 0;
+            timestampMask = validBits >= 64 ? -1L : (1L << validBits) - 1;
+            timestampPeriod = properties.limits().timestampPeriod();
+
+            if(!gpuTimestamps) {
+                System.out.println("GPU timing: the graphics queue has no timestamp support");
+            }
         }
     }
 
-    private static void createRenderPass() {
+    private static long createTimestampQueryPool() {
+
+        if(!gpuTimestamps) return VK_NULL_HANDLE;
 
         try(MemoryStack stack = stackPush()) {
 
-            VkAttachmentDescription.Buffer colorAttachment = VkAttachmentDescription.callocStack(1, stack);
-            colorAttachment.format(swapChainImageFormat);
-            colorAttachment.samples(VK_SAMPLE_COUNT_1_BIT);
-            colorAttachment.loadOp(VK_ATTACHMENT_LOAD_OP_CLEAR);
-            colorAttachment.storeOp(VK_ATTACHMENT_STORE_OP_STORE);
-            colorAttachment.stencilLoadOp(VK_ATTACHMENT_LOAD_OP_DONT_CARE);
-            colorAttachment.stencilStoreOp(VK_ATTACHMENT_STORE_OP_DONT_CARE);
-            colorAttachment.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
-            colorAttachment.finalLayout(VK_IMAGE_LAYOUT_PRESENT_SRC_KHR);
+            VkQueryPoolCreateInfo poolInfo = VkQueryPoolCreateInfo.callocStack(stack);
+            poolInfo.sType(VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO);
+            poolInfo.queryType(VK_QUERY_TYPE_TIMESTAMP);
+            poolInfo.queryCount(MAX_TIMESTAMPS);
 
-            VkAttachmentReference.Buffer colorAttachmentRef = VkAttachmentReference.callocStack(1, stack);
-            colorAttachmentRef.attachment(0);
-            colorAttachmentRef.layout(VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL);
+            LongBuffer pQueryPool = stack.mallocLong(1);
+            if(vkCreateQueryPool(device, poolInfo, null, pQueryPool) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create timestamp query pool");
+            }
+            return pQueryPool.get(0);
+        }
+    }
 
-            VkSubpassDescription.Buffer subpass = VkSubpassDescription.callocStack(1, stack);
-            subpass.pipelineBindPoint(VK_PIPELINE_BIND_POINT_GRAPHICS);
-            subpass.colorAttachmentCount(1);
-            subpass.pColorAttachments(colorAttachmentRef);
+    private static void beginGpuTiming(Frame frame) {
+        frame.timestampCount = 0;
+        if(frame.queryPool != VK_NULL_HANDLE) {
+            vkCmdResetQueryPool(frame.commandBuffer, frame.queryPool, 0, MAX_TIMESTAMPS);
+        }
+    }
 
-            VkSubpassDependency.Buffer dependency = VkSubpassDependency.callocStack(1, stack);
-            dependency.srcSubpass(VK_SUBPASS_EXTERNAL);
-            dependency.dstSubpass(0);
-            dependency.srcStageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT);
-            dependency.srcAccessMask(0);
-            dependency.dstStageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT);
-            dependency.dstAccessMask(VK_ACCESS_COLOR_ATTACHMENT_READ_BIT | VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT);
+    // the first and the last timestamp of a frame make its GPU time, passes added later go in between
+    private static void writeTimestamp(Frame frame, int stage) {
+        if(frame.queryPool == VK_NULL_HANDLE || frame.timestampCount == MAX_TIMESTAMPS) return;
+        vkCmdWriteTimestamp(frame.commandBuffer, stage, frame.queryPool, frame.timestampCount++);
+    }
 
-            VkRenderPassCreateInfo renderPassInfo = VkRenderPassCreateInfo.callocStack(stack);
-            renderPassInfo.sType(VK_STRUCTURE_TYPE_RENDER_PASS_CREATE_INFO);
-            renderPassInfo.pAttachments(colorAttachment);
-            renderPassInfo.pSubpasses(subpass);
-            renderPassInfo.pDependencies(dependency);
+    private static void readGpuTiming(Frame frame) {
+        if(frame.queryPool == VK_NULL_HANDLE || frame.timestampCount < 2) return;
 
-            LongBuffer pRenderPass = stack.mallocLong(1);
+        try(MemoryStack stack = stackPush()) {
 
-            if(vkCreateRenderPass(device, renderPassInfo, null, pRenderPass) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to create render pass");
-            }
+            // value and availability of the first and the last timestamp, no WAIT_BIT
+            LongBuffer first = stack.mallocLong(2);
+            LongBuffer last = stack.mallocLong(2);
+            int flags = VK_QUERY_RESULT_64_BIT | VK_QUERY_RESULT_WITH_AVAILABILITY_BIT;
 
-            renderPass = pRenderPass.get(0);
+            vkGetQueryPoolResults(device, frame.queryPool, 0, 1, first, 2 * Long.BYTES, flags);
+            vkGetQueryPoolResults(device, frame.queryPool, frame.timestampCount - 1, 1, last, 2 * Long.BYTES, flags);
+
+            frame.timestampCount = 0;
+            if(first.get(1) == 0 || last.get(1) == 0) return;
+
+            // masking keeps a counter that wrapped around between the two right
+            long ticks = (last.get(0) - first.get(0)) & timestampMask;
+            gpuFrameTimes[gpuFrameTimeCount++ % GPU_TIME_SAMPLES] = ticks * timestampPeriod / 1e6;
         }
     }
 
-    private static void createGraphicsPipeline() {
+    // A pipeline statistics query around the render pass counts the vertex and fragment shader invocations of a frame, read like
+    // the timestamps. Needs pipelineStatisticsQuery, and inheritedQueries since the draws are in secondaries
 
-        try(MemoryStack stack = stackPush()) {
+    private static long createStatisticsQueryPool() {
 
-            // Let's compile the GLSL shaders into SPIR-V at runtime using the shaderc library
-            // Check ShaderSPIRVUtils class to see how it can be done
-            ShaderSPIRVUtils.SPIRV vertShaderSPIRV = ShaderSPIRVUtils.compileShaderFile("shaders/shader.vert", VERTEX_SHADER);
-            ShaderSPIRVUtils.SPIRV fragShaderSPIRV = ShaderSPIRVUtils.compileShaderFile("shaders/shader.frag", FRAGMENT_SHADER);
+        if(!fragmentStatistics) return VK_NULL_HANDLE;
 
-            long vertShaderModule = createShaderModule(vertShaderSPIRV.bytecode());
-            long fragShaderModule = createShaderModule(fragShaderSPIRV.bytecode());
+        try(MemoryStack stack = stackPush()) {
 
-            ByteBuffer entryPoint = stack.UTF8("main");
+            VkQueryPoolCreateInfo poolInfo = VkQueryPoolCreateInfo.callocStack(stack);
+            poolInfo.sType(VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO);
+            poolInfo.queryType(VK_QUERY_TYPE_PIPELINE_STATISTICS);
+            poolInfo.queryCount(1);
+            poolInfo.pipelineStatistics(PIPELINE_STATISTICS);
 
-            VkPipelineShaderStageCreateInfo.Buffer shaderStages = VkPipelineShaderStageCreateInfo.callocStack(2, stack);
+            LongBuffer pQueryPool = stack.mallocLong(1);
+            if(vkCreateQueryPool(device, poolInfo, null, pQueryPool) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create pipeline statistics query pool");
+            }
+            return pQueryPool.get(0);
+        }
+    }
 
-            VkPipelineShaderStageCreateInfo vertShaderStageInfo = shaderStages.get(0);
+    // outside the render pass, a query can't begin inside it and end outside
+    private static void beginFragmentStatistics(Frame frame) {
+        if(frame.statisticsPool == VK_NULL_HANDLE) return;
+        vkCmdResetQueryPool(frame.commandBuffer, frame.statisticsPool, 0, 1);
+        vkCmdBeginQuery(frame.commandBuffer, frame.statisticsPool, 0, 0);
+    }
 
-            vertShaderStageInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO);
-            vertShaderStageInfo.stage(VK_SHADER_STAGE_VERTEX_BIT);
-            vertShaderStageInfo.module(vertShaderModule);
-            vertShaderStageInfo.pName(entryPoint);
+    private static void endFragmentStatistics(Frame frame) {
+        if(frame.statisticsPool == VK_NULL_HANDLE) return;
+        vkCmdEndQuery(frame.commandBuffer, frame.statisticsPool, 0);
+        frame.statisticsPending = true;
+    }
 
-            VkPipelineShaderStageCreateInfo fragShaderStageInfo = shaderStages.get(1);
+    private static void readFragmentStatistics(Frame frame) {
+        if(!frame.statisticsPending) return;
 
-            fragShaderStageInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO);
-            fragShaderStageInfo.stage(VK_SHADER_STAGE_FRAGMENT_BIT);
-            fragShaderStageInfo.module(fragShaderModule);
-            fragShaderStageInfo.pName(entryPoint);
+        try(MemoryStack stack = stackPush()) {
 
-            // ===> VERTEX STAGE <===
+            // the vertex and fragment invocation counts and their availability
+            LongBuffer result = stack.mallocLong(3);
+            vkGetQueryPoolResults(device, frame.statisticsPool, 0, 1, result, 3 * Long.BYTES,
+                    VK_QUERY_RESULT_64_BIT | VK_QUERY_RESULT_WITH_AVAILABILITY_BIT);
 
-            VkPipelineVertexInputStateCreateInfo vertexInputInfo = VkPipelineVertexInputStateCreateInfo.callocStack(stack);
-            vertexInputInfo.pVertexBindingDescriptions(VkVertexInputBindingDescription.callocStack(1)
-                            .binding(0)
-                            .stride(Float.BYTES * 4)
-                            .inputRate(VK_VERTEX_INPUT_RATE_VERTEX)
-            );
-            vertexInputInfo.pVertexAttributeDescriptions(VkVertexInputAttributeDescription.callocStack(1)
-                    .binding(0)
-                    .location(0)
-                    .format(VK_FORMAT_R32G32B32A32_SFLOAT)
-                    .offset(0)
+            frame.statisticsPending = false;
+            if(result.get(2) != 0) {
+                vertexInvocationsLastFrame = result.get(0);
+                fragmentInvocationsLastFrame = result.get(1);
+            }
+        }
+    }
 
-            );
-            vertexInputInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO);
+    /**
+     * Fragment shader invocations of the last frame whose statistics came back, -1 without pipeline statistics
+     * support. Compare runs with -Dengine.opaquePass=0 to see what the opaque pass saves.
+     */
+    public static long getFragmentInvocationsLastFrame() {
+        return fragmentInvocationsLastFrame;
+    }
 
-            // ===> ASSEMBLY STAGE <===
+    // vertex shader invocations of the same frame, every visible sprite should be shaded by one pass only
+    public static long getVertexInvocationsLastFrame() {
+        return vertexInvocationsLastFrame;
+    }
 
-            VkPipelineInputAssemblyStateCreateInfo inputAssembly = VkPipelineInputAssemblyStateCreateInfo.callocStack(stack);
-            inputAssembly.sType(VK_STRUCTURE_TYPE_PIPELINE_INPUT_ASSEMBLY_STATE_CREATE_INFO);
-            inputAssembly.topology(VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST);
-            inputAssembly.primitiveRestartEnable(false);
+    public static boolean isGpuTimingSupported() {
+        return gpuTimestamps;
+    }
 
-            // ===> VIEWPORT & SCISSOR
+    /**
+     * GPU time of the render work of the last (up to) 256 frames, in milliseconds.
+     *
+     * @param percentile between 0 and 100, 50 is the median
+     * @return NaN while there are no samples, always without timestamp support
+     */
+    public static double getGpuFrameTimePercentile(double percentile) {
+        int count = Math.min(gpuFrameTimeCount, GPU_TIME_SAMPLES);
+        if(count == 0) return Double.NaN;
+
+        double[] sorted = Arrays.copyOf(gpuFrameTimes, count);
+        Arrays.sort(sorted);
+
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
 
-            VkViewport.Buffer viewport = VkViewport.callocStack(1, stack);
-            viewport.x(0.0f);
-            viewport.y(0.0f);
-            viewport.width(swapChainExtent.width());
-            viewport.height(swapChainExtent.height());
-            viewport.minDepth(0.0f);
-            viewport.maxDepth(1.0f);
+    // ===> STAGED UPLOADS <===
+    // Every upload into device local memory goes through the staging ring. The ones at startup are recorded into an
+    // UploadBatch, which is submitted once and waited for (or polled) by its owner. Per frame and runtime texture
+    // uploads never wait, see updateInstanceBuffer and pollTextureUploads. The camera uniforms and the indirect
+    // draws are the exception, they live in host visible memory the shaders read directly, staging them would add a
+    // copy and a barrier per frame to write a few hundred bytes that are written in place today
 
-            VkRect2D.Buffer scissor = VkRect2D.callocStack(1, stack);
-            scissor.offset(VkOffset2D.callocStack(stack).set(0, 0));
-            scissor.extent(swapChainExtent);
+    private static void createStagingRing() {
 
-            VkPipelineViewportStateCreateInfo viewportState = VkPipelineViewportStateCreateInfo.callocStack(stack);
-            viewportState.sType(VK_STRUCTURE_TYPE_PIPELINE_VIEWPORT_STATE_CREATE_INFO);
-            viewportState.pViewports(viewport);
-            viewportState.pScissors(scissor);
+        try(MemoryStack stack = stackPush()) {
 
-            // ===> RASTERIZATION STAGE <===
+            VkPhysicalDeviceProperties properties = VkPhysicalDeviceProperties.callocStack(stack);
+            vkGetPhysicalDeviceProperties(physicalDevice, properties);
 
-            VkPipelineRasterizationStateCreateInfo rasterizer = VkPipelineRasterizationStateCreateInfo.callocStack(stack);
-            rasterizer.sType(VK_STRUCTURE_TYPE_PIPELINE_RASTERIZATION_STATE_CREATE_INFO);
-            rasterizer.depthClampEnable(false);
-            rasterizer.rasterizerDiscardEnable(false);
-            rasterizer.polygonMode(VK_POLYGON_MODE_FILL);
-            rasterizer.lineWidth(1.0f);
-            rasterizer.cullMode(VK_CULL_MODE_BACK_BIT);
-            rasterizer.frontFace(VK_FRONT_FACE_CLOCKWISE);
-            rasterizer.depthBiasEnable(false);
+            // 16 keeps every offset valid for the compressed formats too
+            stagingRing = new StagingRing(STAGING_RING_SIZE, Math.max(16, properties.limits().optimalBufferCopyOffsetAlignment()));
+        }
+    }
 
-            // ===> MULTISAMPLING <===
+    // Records the transitions and copies of any number of resources into one command buffer, submitted once with a
+    // fence. Layout transitions are collected and go out as a single vkCmdPipelineBarrier right before the next
+    // command that depends on them. The staging ranges are given back once the fence has signalled. If the ring
+    // runs full while recording, what is recorded so far is submitted and waited for and recording goes on
+    private static class UploadBatch {
 
-            VkPipelineMultisampleStateCreateInfo multisampling = VkPipelineMultisampleStateCreateInfo.callocStack(stack);
-            multisampling.sType(VK_STRUCTURE_TYPE_PIPELINE_MULTISAMPLE_STATE_CREATE_INFO);
-            multisampling.sampleShadingEnable(false);
-            multisampling.rasterizationSamples(VK_SAMPLE_COUNT_1_BIT);
+        private final VkCommandBuffer commandBuffer;
+        private final long fence;
+        private final List<Long> stagingOffsets = new ArrayList<>();
+        private final List<long[]> pendingTransitions = new ArrayList<>(); // image, old layout, new layout, first level, levels, layers
+        private boolean buffersWritten;
+        private boolean submitted;
+        private boolean done;
+        private final long startTime = System.nanoTime();
+        private long endTime;
 
-            // ===> COLOR BLENDING <===
+        long stagedBytes;
+        int submits;
+        int barriers; // vkCmdPipelineBarrier calls for the collected transitions
 
-            VkPipelineColorBlendAttachmentState.Buffer colorBlendAttachment = VkPipelineColorBlendAttachmentState.callocStack(1, stack);
-            colorBlendAttachment.colorWriteMask(VK_COLOR_COMPONENT_R_BIT | VK_COLOR_COMPONENT_G_BIT | VK_COLOR_COMPONENT_B_BIT | VK_COLOR_COMPONENT_A_BIT);
-            colorBlendAttachment.blendEnable(true);
-            colorBlendAttachment.srcColorBlendFactor(VK_BLEND_FACTOR_SRC_ALPHA);
-            colorBlendAttachment.dstColorBlendFactor(VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA);
-            colorBlendAttachment.colorBlendOp(VK_BLEND_OP_ADD);
-            colorBlendAttachment.srcAlphaBlendFactor(VK_BLEND_FACTOR_SRC_ALPHA);
-            colorBlendAttachment.dstAlphaBlendFactor(VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA);
-            colorBlendAttachment.alphaBlendOp(VK_BLEND_OP_SUBTRACT);
+        UploadBatch() {
 
-            VkPipelineColorBlendStateCreateInfo colorBlending = VkPipelineColorBlendStateCreateInfo.callocStack(stack);
-            colorBlending.sType(VK_STRUCTURE_TYPE_PIPELINE_COLOR_BLEND_STATE_CREATE_INFO);
-            colorBlending.logicOpEnable(false);
-            colorBlending.logicOp(VK_LOGIC_OP_COPY);
-            VkPipelineColorBlendStateCreateInfo.nattachmentCount(colorBlending.address(), 1); // this is very silly, but they forgot to write the wrapper!
-            colorBlending.pAttachments(colorBlendAttachment);
-            colorBlending.blendConstants(stack.floats(0.0f, 0.0f, 0.0f, 0.0f));
+            try(MemoryStack stack = stackPush()) {
 
-            // ===> PIPELINE LAYOUT CREATION <===
+                VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.callocStack(stack);
+                allocInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
+                allocInfo.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY);
+                allocInfo.commandPool(commandPool);
+                allocInfo.commandBufferCount(1);
 
-            VkPipelineLayoutCreateInfo pipelineLayoutInfo = VkPipelineLayoutCreateInfo.callocStack(stack);
-            pipelineLayoutInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO);
-            pipelineLayoutInfo.pSetLayouts(stack.longs(descriptorSetLayout));
+                PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+                if(vkAllocateCommandBuffers(device, allocInfo, pCommandBuffer) != VK_SUCCESS) {
+                    throw new RuntimeException("Failed to allocate upload command buffer");
+                }
+                commandBuffer = new VkCommandBuffer(pCommandBuffer.get(0), device);
 
-            LongBuffer pPipelineLayout = stack.longs(VK_NULL_HANDLE);
+                VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.callocStack(stack);
+                fenceInfo.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
 
-            if(vkCreatePipelineLayout(device, pipelineLayoutInfo, null, pPipelineLayout) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to create pipeline layout");
+                LongBuffer pFence = stack.mallocLong(1);
+                if(vkCreateFence(device, fenceInfo, null, pFence) != VK_SUCCESS) {
+                    throw new RuntimeException("Failed to create upload fence");
+                }
+                fence = pFence.get(0);
             }
 
-            pipelineLayout = pPipelineLayout.get(0);
+            begin();
+        }
+
+        private void begin() {
 
-            VkGraphicsPipelineCreateInfo.Buffer pipelineInfo = VkGraphicsPipelineCreateInfo.callocStack(1, stack);
-            pipelineInfo.sType(VK_STRUCTURE_TYPE_GRAPHICS_PIPELINE_CREATE_INFO);
-            pipelineInfo.pStages(shaderStages);
-            pipelineInfo.pVertexInputState(vertexInputInfo);
-            pipelineInfo.pInputAssemblyState(inputAssembly);
-            pipelineInfo.pViewportState(viewportState);
-            pipelineInfo.pRasterizationState(rasterizer);
-            pipelineInfo.pMultisampleState(multisampling);
-            pipelineInfo.pColorBlendState(colorBlending);
-            pipelineInfo.layout(pipelineLayout);
-            pipelineInfo.renderPass(renderPass);
-            pipelineInfo.subpass(0);
-            pipelineInfo.basePipelineHandle(VK_NULL_HANDLE);
-            pipelineInfo.basePipelineIndex(-1);
+            try(MemoryStack stack = stackPush()) {
 
-            LongBuffer pGraphicsPipeline = stack.mallocLong(1);
+                VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
+                beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+                beginInfo.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
 
-            if(vkCreateGraphicsPipelines(device, VK_NULL_HANDLE, pipelineInfo, null, pGraphicsPipeline) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to create graphics pipeline");
+                vkBeginCommandBuffer(commandBuffer, beginInfo);
             }
+        }
 
-            graphicsPipeline = pGraphicsPipeline.get(0);
+        // Supported: UNDEFINED -> TRANSFER_DST_OPTIMAL, UNDEFINED -> GENERAL, TRANSFER_DST_OPTIMAL -> SHADER_READ_ONLY_OPTIMAL
+        void transition(long image, int oldLayout, int newLayout, int mipLevels, int layerCount) {
+            transitionMasks(oldLayout, newLayout); // fail here rather than at the flush
+            pendingTransitions.add(new long[] { image, oldLayout, newLayout, 0, mipLevels, layerCount });
+        }
 
-            // ===> RELEASE RESOURCES <===
+        void copyToBuffer(long src, long size, long buffer, long dstOffset) {
 
-            vkDestroyShaderModule(device, vertShaderModule, null);
-            vkDestroyShaderModule(device, fragShaderModule, null);
+            try(MemoryStack stack = stackPush()) {
 
-            vertShaderSPIRV.free();
-            fragShaderSPIRV.free();
-        }
-    }
+                VkBufferCopy.Buffer region = VkBufferCopy.callocStack(1, stack);
 
-    private static void createFramebuffers() {
+                // pieces of at most half the ring, a flush always makes room for the next one
+                long pieceSize = stagingRing.capacity / 2;
+                for(long done = 0; done < size; done += pieceSize) {
+                    long bytes = Math.min(pieceSize, size - done);
+                    long offset = stage(src + done, bytes);
 
-        swapChainFramebuffers = new ArrayList<>(swapChainImageViews.size());
+                    region.srcOffset(offset);
+                    region.dstOffset(dstOffset + done);
+                    region.size(bytes);
+                    vkCmdCopyBuffer(commandBuffer, stagingRing.buffer, buffer, region);
+                }
+            }
+            buffersWritten = true;
+        }
 
-        try(MemoryStack stack = stackPush()) {
+        // One mip level of one layer, tightly packed at src, into an image in TRANSFER_DST_OPTIMAL. blockSize is 1 for
+        // plain formats and 4 for block-compressed ones, levels too big for the ring go in bands of block rows
+        void copyToImage(long src, long image, int level, int layer, int width, int height, int blockSize, int blockBytes) {
 
-            LongBuffer attachments = stack.mallocLong(1);
-            LongBuffer pFramebuffer = stack.mallocLong(1);
+            try(MemoryStack stack = stackPush()) {
 
-            // Let's allocate the create info struct once and just update the pAttachments field each iteration
-            VkFramebufferCreateInfo framebufferInfo = VkFramebufferCreateInfo.callocStack(stack);
-            framebufferInfo.sType(VK_STRUCTURE_TYPE_FRAMEBUFFER_CREATE_INFO);
-            framebufferInfo.renderPass(renderPass);
-            framebufferInfo.width(swapChainExtent.width());
-            framebufferInfo.height(swapChainExtent.height());
-            framebufferInfo.layers(1);
+                long rowBytes = (long) ((width + blockSize - 1) / blockSize) * blockBytes;
+                int blockRows = (height + blockSize - 1) / blockSize;
+                int bandRows = (int) Math.max(1, Math.min(blockRows, stagingRing.capacity / 2 / rowBytes));
 
-            for(long imageView : swapChainImageViews) {
+                VkBufferImageCopy.Buffer region = VkBufferImageCopy.callocStack(1, stack);
+                region.bufferRowLength(0);   // Tightly packed
+                region.bufferImageHeight(0);  // Tightly packed
+                region.imageSubresource().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
+                region.imageSubresource().mipLevel(level);
+                region.imageSubresource().baseArrayLayer(layer);
+                region.imageSubresource().layerCount(1);
 
-                attachments.put(0, imageView);
+                for(int row = 0; row < blockRows; row += bandRows) {
+                    int rows = Math.min(bandRows, blockRows - row);
 
-                framebufferInfo.pAttachments(attachments);
+                    region.bufferOffset(stage(src + row * rowBytes, rows * rowBytes));
+                    region.imageOffset().set(0, row * blockSize, 0);
+                    region.imageExtent().set(width, Math.min(rows * blockSize, height - row * blockSize), 1);
 
-                if(vkCreateFramebuffer(device, framebufferInfo, null, pFramebuffer) != VK_SUCCESS) {
-                    throw new RuntimeException("Failed to create framebuffer");
+                    vkCmdCopyBufferToImage(commandBuffer, stagingRing.buffer, image, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, region);
                 }
-
-                swapChainFramebuffers.add(pFramebuffer.get(0));
             }
         }
-    }
-
-    private static void createCommandPool() {
 
-        try(MemoryStack stack = stackPush()) {
+        /**
+         * Fills levels 1..mipLevels-1 of every layer by blitting each level from the one above it.
+         * Expects all levels in TRANSFER_DST_OPTIMAL with level 0 uploaded, leaves all of them in SHADER_READ_ONLY_OPTIMAL.
+         */
+        void generateMipmaps(long image, int size, int layers, int mipLevels) {
 
-            QueueFamilyIndices queueFamilyIndices = findQueueFamilies(physicalDevice);
+            flushTransitions();
 
-            VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.callocStack(stack);
-            poolInfo.sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO);
-            poolInfo.queueFamilyIndex(queueFamilyIndices.graphicsFamily);
+            try(MemoryStack stack = stackPush()) {
 
-            LongBuffer pCommandPool = stack.mallocLong(1);
+                VkImageMemoryBarrier.Buffer barrier = VkImageMemoryBarrier.callocStack(1, stack);
+                barrier.sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER);
+                barrier.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+                barrier.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+                barrier.image(image);
+                barrier.subresourceRange().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
+                barrier.subresourceRange().levelCount(1);
+                barrier.subresourceRange().baseArrayLayer(0);
+                barrier.subresourceRange().layerCount(layers);
+
+                VkImageBlit.Buffer blit = VkImageBlit.callocStack(1, stack);
+                blit.srcSubresource().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
+                blit.srcSubresource().baseArrayLayer(0);
+                blit.srcSubresource().layerCount(layers);
+                blit.dstSubresource().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
+                blit.dstSubresource().baseArrayLayer(0);
+                blit.dstSubresource().layerCount(layers);
+
+                int levelSize = size;
+
+                for(int level = 1; level < mipLevels; level++) {
+
+                    // the previous level has been written, it becomes the blit source
+                    barrier.subresourceRange().baseMipLevel(level - 1);
+                    barrier.oldLayout(VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL);
+                    barrier.newLayout(VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL);
+                    barrier.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT);
+                    barrier.dstAccessMask(VK_ACCESS_TRANSFER_READ_BIT);
+
+                    vkCmdPipelineBarrier(commandBuffer,
+                            VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT,
+                            0,
+                            null,
+                            null,
+                            barrier);
+
+                    int nextSize = Math.max(1, levelSize / 2);
+
+                    blit.srcOffsets(0).set(0, 0, 0);
+                    blit.srcOffsets(1).set(levelSize, levelSize, 1);
+                    blit.srcSubresource().mipLevel(level - 1);
+                    blit.dstOffsets(0).set(0, 0, 0);
+                    blit.dstOffsets(1).set(nextSize, nextSize, 1);
+                    blit.dstSubresource().mipLevel(level);
+
+                    vkCmdBlitImage(commandBuffer,
+                            image, VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL,
+                            image, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
+                            blit,
+                            VK_FILTER_LINEAR);
+
+                    // and is done once it has been read
+                    barrier.oldLayout(VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL);
+                    barrier.newLayout(VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+                    barrier.srcAccessMask(VK_ACCESS_TRANSFER_READ_BIT);
+                    barrier.dstAccessMask(VK_ACCESS_SHADER_READ_BIT);
+
+                    vkCmdPipelineBarrier(commandBuffer,
+                            VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT,
+                            0,
+                            null,
+                            null,
+                            barrier);
+
+                    levelSize = nextSize;
+                }
 
-            if (vkCreateCommandPool(device, poolInfo, null, pCommandPool) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to create command pool");
+                // the last level is never a blit source, it goes out with the next batch of transitions
+                pendingTransitions.add(new long[] { image, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL, mipLevels - 1, 1, layers });
             }
+        }
 
-            commandPool = pCommandPool.get(0);
+        void submit() {
+            submitRecorded();
+            submitted = true;
         }
-    }
 
-    private static int textureWidth;
-    private static int textureHeight;
-    private static ByteBuffer[] pixelData;
-    private static HashMap<String, Integer> textureCatalogue = new HashMap();
-    private static ByteBuffer[] loadAndNormalizeTextures() throws Exception {
-        try(MemoryStack stack = stackPush()) {
-            File files[] = new File(getSystemClassLoader().getResource("textures").toExternalForm().substring(6)).listFiles();
-            numTextures = files.length;
-            ByteBuffer rawPixelData[] = new ByteBuffer[numTextures];
-            int widths [] = new int[numTextures];
-            int heights[] = new int[numTextures];
-
-            int biggestWidth  = 0;
-            int biggestHeight = 0;
-            for (int i = 0; i < numTextures; ++i) {
-                IntBuffer pWidth    = stack.mallocInt(1);
-                IntBuffer pHeight   = stack.mallocInt(1);
-                IntBuffer pChannels = stack.mallocInt(1);
+        // true once the GPU has finished everything in the batch, never blocks
+        boolean isDone() {
+            if(!done && submitted && vkGetFenceStatus(device, fence) == VK_SUCCESS) finish();
+            return done;
+        }
 
-                String filename = files[i].getAbsolutePath();
-                rawPixelData[i] = stbi_load(filename, pWidth, pHeight, pChannels, STBI_rgb_alpha);
-                if(rawPixelData[i] == null) throw new RuntimeException("Failed to load texture image " + filename);
+        // blocks until the GPU has finished the batch, submitting it first if that hasn't happened yet
+        void await() {
+            if(!submitted) submit();
+            if(!done) {
+                vkWaitForFences(device, fence, true, UINT64_MAX);
+                finish();
+            }
+        }
 
-                if (pWidth.get(0)  > biggestWidth)  biggestWidth  = pWidth.get(0);
-                if (pHeight.get(0) > biggestHeight) biggestHeight = pHeight.get(0);
+        long elapsedNanos() {
+            return (done ? endTime : System.nanoTime()) - startTime;
+        }
 
-                widths [i] = pWidth.get(0);
-                heights[i] = pHeight.get(0);
+        private void finish() {
+            endTime = System.nanoTime();
+            done = true;
 
-                textureCatalogue.put(files[i].getName(), i);
-            }
+            stagingOffsets.forEach(stagingRing::release);
+            stagingOffsets.clear();
 
-            int imageSizeBytes = biggestWidth * biggestHeight * STBI_rgb_alpha;
-            textureWidth = biggestWidth;
-            textureHeight = biggestHeight;
+            vkDestroyFence(device, fence, null);
+            vkFreeCommandBuffers(device, commandPool, commandBuffer);
+        }
 
-            pixelData = new ByteBuffer[numTextures];
-            for (int i = 0; i < numTextures; ++i) {
-                pixelData[i] = BufferUtils.createByteBuffer(imageSizeBytes);
-                boolean ok = stbir_resize(rawPixelData[i], widths[i], heights[i],0, pixelData[i], biggestWidth, biggestHeight, 0,
-                        STBIR_TYPE_UINT8, STBI_rgb_alpha, 3, 0, STBIR_EDGE_CLAMP, STBIR_EDGE_CLAMP, STBIR_FILTER_DEFAULT, STBIR_FILTER_DEFAULT, STBIR_COLORSPACE_SRGB);
+        // copies size bytes from src into the ring and returns their offset, flushing once if there is no room
+        private long stage(long src, long size) {
+            flushTransitions();
 
-                stbi_image_free(rawPixelData[i]);
-                if (!ok) throw new RuntimeException("could not resize texture " + files[i].getName());
+            long offset = stagingRing.allocate(size);
+            if(offset < 0) {
+                flushRecorded();
+                offset = stagingRing.allocate(size);
+                if(offset < 0) throw new RuntimeException("Upload of " + size + " bytes does not fit the staging ring, raise -Dengine.stagingRingSize");
             }
+            MemoryUtil.memCopy(src, stagingRing.address(offset), size);
+            stagingOffsets.add(offset);
+            stagedBytes += size;
+            return offset;
+        }
 
-            return pixelData;
+        // submits what is recorded, waits for it and starts over in the same command buffer
+        private void flushRecorded() {
+            submitRecorded();
+            stagingRing.stalls++;
+            vkWaitForFences(device, fence, true, UINT64_MAX);
+            vkResetFences(device, fence);
+
+            stagingOffsets.forEach(stagingRing::release);
+            stagingOffsets.clear();
+
+            begin();
         }
-    }
 
-    private static void createTextureImage() {
-        try(MemoryStack stack = stackPush()) {
+        private void submitRecorded() {
 
-            ByteBuffer pixelData[];
-            try {
-                pixelData = loadAndNormalizeTextures();
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw new RuntimeException("could not load textures");
-            }
+            flushTransitions();
 
-            int singleImageSize = textureWidth * textureHeight * STBI_rgb_alpha;
-            long totalImageSize = singleImageSize * numTextures;
+            try(MemoryStack stack = stackPush()) {
 
-            LongBuffer pStagingBuffer = stack.mallocLong(1);
-            LongBuffer pStagingBufferMemory = stack.mallocLong(1);
-            createBuffer(totalImageSize,
-                    VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
-                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
-                    pStagingBuffer,
-                    pStagingBufferMemory);
+                if(buffersWritten) {
+                    // makes the buffer copies visible to whatever reads them in later submits
+                    VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.callocStack(1, stack);
+                    barrier.sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER);
+                    barrier.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT);
+                    barrier.dstAccessMask(VK_ACCESS_MEMORY_READ_BIT);
 
-            PointerBuffer data = stack.mallocPointer(1);
-            vkMapMemory(device, pStagingBufferMemory.get(0), 0, totalImageSize, 0, data);
-            for (int i = 0; i < pixelData.length; ++i) {
-                copyByteBuffer(wrapAddress(data.get(0) + (singleImageSize * i), singleImageSize), pixelData[i], singleImageSize);
-                stbi_image_free(pixelData[i]);
-            }
-            vkUnmapMemory(device, pStagingBufferMemory.get(0));
+                    vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT, 0, barrier, null, null);
+                    buffersWritten = false;
+                }
 
+                if(vkEndCommandBuffer(commandBuffer) != VK_SUCCESS) {
+                    throw new RuntimeException("Failed to record upload command buffer");
+                }
 
-            LongBuffer pTextureImage = stack.mallocLong(1);
-            LongBuffer pTextureImageMemory = stack.mallocLong(1);
+                VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack);
+                submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+                submitInfo.pCommandBuffers(stack.pointers(commandBuffer));
 
-            // creating the image
-            {
-                VkImageCreateInfo imageInfo = VkImageCreateInfo.callocStack(stack);
-                imageInfo.sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO);
-                imageInfo.imageType(VK_IMAGE_TYPE_2D);
-                imageInfo.extent().width(textureWidth);
-                imageInfo.extent().height(textureHeight);
-                imageInfo.extent().depth(1);
-                imageInfo.mipLevels(1);
-                imageInfo.arrayLayers(numTextures);
-                imageInfo.format(VK_FORMAT_R8G8B8A8_SRGB);
-                imageInfo.tiling(VK_IMAGE_TILING_OPTIMAL);
-                imageInfo.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
-                imageInfo.usage(VK_IMAGE_USAGE_TRANSFER_DST_BIT | VK_IMAGE_USAGE_SAMPLED_BIT);
-                imageInfo.samples(VK_SAMPLE_COUNT_1_BIT);
-                imageInfo.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+                if(vkQueueSubmit(graphicsQueue, submitInfo, fence) != VK_SUCCESS) {
+                    throw new RuntimeException("Failed to submit upload command buffer");
+                }
+                submits++;
+            }
+        }
 
-                if(vkCreateImage(device, imageInfo, null, pTextureImage) != VK_SUCCESS) throw new RuntimeException("Failed to create image");
+        // all pending transitions as one barrier, its stage masks are the union of theirs
+        private void flushTransitions() {
+            if(pendingTransitions.isEmpty()) return;
+
+            VkImageMemoryBarrier.Buffer barriers = VkImageMemoryBarrier.calloc(pendingTransitions.size());
+            int sourceStage = 0;
+            int destinationStage = 0;
+
+            for(int i = 0;i < pendingTransitions.size();i++) {
+                long[] transition = pendingTransitions.get(i);
+                int[] masks = transitionMasks((int) transition[1], (int) transition[2]);
+
+                VkImageMemoryBarrier barrier = barriers.get(i);
+                barrier.sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER);
+                barrier.oldLayout((int) transition[1]);
+                barrier.newLayout((int) transition[2]);
+                barrier.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+                barrier.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+                barrier.image(transition[0]);
+                barrier.subresourceRange().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
+                barrier.subresourceRange().baseMipLevel((int) transition[3]);
+                barrier.subresourceRange().levelCount((int) transition[4]);
+                barrier.subresourceRange().baseArrayLayer(0);
+                barrier.subresourceRange().layerCount((int) transition[5]);
+                barrier.srcAccessMask(masks[0]);
+                barrier.dstAccessMask(masks[1]);
+
+                sourceStage |= masks[2];
+                destinationStage |= masks[3];
+            }
 
-                VkMemoryRequirements memRequirements = VkMemoryRequirements.callocStack(stack);
-                vkGetImageMemoryRequirements(device, pTextureImage.get(0), memRequirements);
+            vkCmdPipelineBarrier(commandBuffer,
+                    sourceStage, destinationStage,
+                    0,
+                    null,
+                    null,
+                    barriers);
 
-                VkMemoryAllocateInfo allocInfo = VkMemoryAllocateInfo.callocStack(stack);
-                allocInfo.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO);
-                allocInfo.allocationSize(memRequirements.size());
-                allocInfo.memoryTypeIndex(findMemoryType(memRequirements.memoryTypeBits(), VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT));
+            barriers.free();
+            pendingTransitions.clear();
+            this.barriers++;
+        }
 
-                if(vkAllocateMemory(device, allocInfo, null, pTextureImageMemory) != VK_SUCCESS) throw new RuntimeException("Failed to allocate image memory");
+        // source access, destination access, source stage, destination stage
+        private static int[] transitionMasks(int oldLayout, int newLayout) {
 
-                vkBindImageMemory(device, pTextureImage.get(0), pTextureImageMemory.get(0), 0);
-            }
+            if(oldLayout == VK_IMAGE_LAYOUT_UNDEFINED && newLayout == VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL) {
 
-            textureImage       = pTextureImage.get(0);
-            textureImageMemory = pTextureImageMemory.get(0);
+                return new int[] { 0, VK_ACCESS_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT };
 
-            transitionImageLayout(textureImage,
-                    VK_FORMAT_R8G8B8A8_SRGB,
-                    VK_IMAGE_LAYOUT_UNDEFINED,
-                    VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL);
+            } else if(oldLayout == VK_IMAGE_LAYOUT_UNDEFINED && newLayout == VK_IMAGE_LAYOUT_GENERAL) {
 
-            {
-                VkCommandBuffer commandBuffer = beginSingleTimeCommands();
+                return new int[] { 0, VK_ACCESS_TRANSFER_WRITE_BIT | VK_ACCESS_SHADER_READ_BIT,
+                        VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT | VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT };
 
-                VkBufferImageCopy.Buffer region = VkBufferImageCopy.callocStack(1, stack);
-                region.bufferOffset(0);
-                region.bufferRowLength(0);   // Tightly packed
-                region.bufferImageHeight(0);  // Tightly packed
-                region.imageSubresource().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
-                region.imageSubresource().mipLevel(0);
-                region.imageSubresource().baseArrayLayer(0);
-                region.imageSubresource().layerCount(numTextures);
-                region.imageOffset().set(0, 0, 0);
-                region.imageExtent(VkExtent3D.callocStack(stack).set(textureWidth, textureHeight, 1));
+            } else if(oldLayout == VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL && newLayout == VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL) {
 
-                vkCmdCopyBufferToImage(commandBuffer, pStagingBuffer.get(0), textureImage, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, region);
+                return new int[] { VK_ACCESS_TRANSFER_WRITE_BIT, VK_ACCESS_SHADER_READ_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT };
 
-                endSingleTimeCommands(commandBuffer);
             }
 
-            transitionImageLayout(textureImage,
-                    VK_FORMAT_R8G8B8A8_SRGB,
-                    VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
-                    VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
-
-            vkDestroyBuffer(device, pStagingBuffer.get(0), null);
-            vkFreeMemory(device, pStagingBufferMemory.get(0), null);
+            throw new IllegalArgumentException("Unsupported layout transition");
         }
     }
 
-    private static void createTextureImageView() {
-        textureImageView = createImageView(textureImage, VK_FORMAT_R8G8B8A8_SRGB, VK_IMAGE_VIEW_TYPE_2D_ARRAY);
+    // the most staging memory ever in use at once, compare with -Dengine.stagingRingSize
+    public static long getStagingHighWaterMark() {
+        return stagingRing.highWaterMark;
     }
 
-    private static void createTextureSampler() {
+    // how often an upload found the ring full and waited on a fence for room, only startup uploads ever do
+    public static long getStagingStalls() {
+        return stagingRing.stalls;
+    }
+
+    // how often a frame or runtime texture upload found the ring full and was pushed to a later frame instead
+    public static long getStagingDeferrals() {
+        return stagingRing.deferrals;
+    }
+
+    // ===> RUNTIME TEXTURES <===
+
+    private static void createTransferCommandPool() {
 
         try(MemoryStack stack = stackPush()) {
 
-            VkSamplerCreateInfo samplerInfo = VkSamplerCreateInfo.callocStack(stack);
-            samplerInfo.sType(VK_STRUCTURE_TYPE_SAMPLER_CREATE_INFO);
-            samplerInfo.magFilter(VK_FILTER_LINEAR);
-            samplerInfo.minFilter(VK_FILTER_LINEAR);
-            samplerInfo.addressModeU(VK_SAMPLER_ADDRESS_MODE_REPEAT);
-            samplerInfo.addressModeV(VK_SAMPLER_ADDRESS_MODE_REPEAT);
-            samplerInfo.addressModeW(VK_SAMPLER_ADDRESS_MODE_CLAMP_TO_EDGE);
-            samplerInfo.anisotropyEnable(true);
-            samplerInfo.maxAnisotropy(16.0f);
-            samplerInfo.borderColor(VK_BORDER_COLOR_INT_OPAQUE_BLACK);
-            samplerInfo.unnormalizedCoordinates(false);
-            samplerInfo.compareEnable(false);
-            samplerInfo.compareOp(VK_COMPARE_OP_ALWAYS);
-            samplerInfo.mipmapMode(VK_SAMPLER_MIPMAP_MODE_LINEAR);
+            VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.callocStack(stack);
+            poolInfo.sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO);
+            poolInfo.queueFamilyIndex(transferQueueFamily);
+            // one short lived command buffer per upload
+            poolInfo.flags(VK_COMMAND_POOL_CREATE_TRANSIENT_BIT);
 
-            LongBuffer pTextureSampler = stack.mallocLong(1);
+            LongBuffer pCommandPool = stack.mallocLong(1);
 
-            if(vkCreateSampler(device, samplerInfo, null, pTextureSampler) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to create texture sampler");
+            if (vkCreateCommandPool(device, poolInfo, null, pCommandPool) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create transfer command pool");
             }
 
-            textureSampler = pTextureSampler.get(0);
+            transferCommandPool = pCommandPool.get(0);
         }
     }
 
-    private static long createImageView(long image, int format, int type) { // VK_IMAGE_VIEW_TYPE_2D or VK_IMAGE_VIEW_TYPE_2D_ARRAY
+    private static void createRuntimeTexturePage(UploadBatch uploads) {
 
         try(MemoryStack stack = stackPush()) {
 
-            VkImageViewCreateInfo viewInfo = VkImageViewCreateInfo.callocStack(stack);
-            viewInfo.sType(VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO);
-            viewInfo.image(image);
-            viewInfo.viewType(type);
-            viewInfo.format(format);
-            viewInfo.subresourceRange().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
-            viewInfo.subresourceRange().baseMipLevel(0);
-            viewInfo.subresourceRange().levelCount(1);
-            viewInfo.subresourceRange().baseArrayLayer(0);
-            viewInfo.subresourceRange().layerCount((type == VK_IMAGE_VIEW_TYPE_2D_ARRAY) ? numTextures : 1);
+            int layerSize = textureAtlas.layerSize();
+            runtimeTextures = new RuntimeTexturePage(layerSize, RUNTIME_TEXTURE_LAYERS, Math.min(RUNTIME_TEXTURE_MIP_LEVELS, mipLevelCount(layerSize)));
+
+            VkImageCreateInfo imageInfo = VkImageCreateInfo.callocStack(stack);
+            imageInfo.sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO);
+            imageInfo.imageType(VK_IMAGE_TYPE_2D);
+            imageInfo.extent().width(layerSize);
+            imageInfo.extent().height(layerSize);
+            imageInfo.extent().depth(1);
+            imageInfo.mipLevels(runtimeTextures.mipLevels);
+            imageInfo.arrayLayers(runtimeTextures.layerCount);
+            imageInfo.format(VK_FORMAT_R8G8B8A8_SRGB);
+            imageInfo.tiling(VK_IMAGE_TILING_OPTIMAL);
+            imageInfo.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+            imageInfo.usage(VK_IMAGE_USAGE_TRANSFER_DST_BIT | VK_IMAGE_USAGE_SAMPLED_BIT);
+            imageInfo.samples(VK_SAMPLE_COUNT_1_BIT);
+            if(transferQueueFamily != graphicsQueueFamily) {
+                // written by the transfer queue while the graphics queue samples it, no ownership transfers this way
+                imageInfo.sharingMode(VK_SHARING_MODE_CONCURRENT);
+                imageInfo.pQueueFamilyIndices(stack.ints(graphicsQueueFamily, transferQueueFamily));
+            } else {
+                imageInfo.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+            }
 
-            LongBuffer pImageView = stack.mallocLong(1);
+            LongBuffer pImage = stack.mallocLong(1);
+            if(vkCreateImage(device, imageInfo, null, pImage) != VK_SUCCESS) throw new RuntimeException("Failed to create runtime texture image");
 
-            if(vkCreateImageView(device, viewInfo, null, pImageView) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to create texture image view");
+            runtimeTextures.image  = pImage.get(0);
+            runtimeTextures.memory = allocateImageMemory(pImage.get(0), VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+
+            // it never leaves GENERAL, copies and sampling touch different parts of the same layers
+            uploads.transition(runtimeTextures.image,
+                    VK_IMAGE_LAYOUT_UNDEFINED,
+                    VK_IMAGE_LAYOUT_GENERAL,
+                    runtimeTextures.mipLevels,
+                    runtimeTextures.layerCount);
+
+            runtimeTextureLoader = Executors.newFixedThreadPool(TEXTURE_LOADER_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "texture-loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Finishes uploads whose fence has signalled and starts the ones decoded since the last frame, without ever
+    // waiting. Returns one semaphore per texture that became resident, this frame's submit waits on them so the
+    // transfer writes are visible to the graphics queue
+    private static List<Long> pollTextureUploads() {
+
+        List<TextureUpload> finished = new ArrayList<>();
+        Iterator<TextureUpload> submitted = submittedTextureUploads.iterator();
+        while(submitted.hasNext()) {
+            TextureUpload upload = submitted.next();
+            int status = vkGetFenceStatus(device, upload.fence);
+            if(status == VK_NOT_READY) continue;
+
+            submitted.remove();
+            vkDestroyFence(device, upload.fence, null);
+            vkFreeCommandBuffers(device, transferCommandPool, upload.commandBuffer);
+            stagingRing.release(upload.stagingOffset);
+
+            // a lost device never signals, the upload would stay pending forever
+            if(status != VK_SUCCESS) {
+                vkDestroySemaphore(device, upload.semaphore, null);
+                failTextureUpload(upload, new RuntimeException("Failed to upload texture " + upload.name + ", fence status " + status));
+                continue;
+            }
+            finished.add(upload);
+        }
+
+        TextureUpload upload;
+        while((upload = decodedTextureUploads.peek()) != null) {
+            if(upload.failure != null) {
+                decodedTextureUploads.poll();
+                failTextureUpload(upload, upload.failure);
+                continue;
             }
 
-            return pImageView.get(0);
+            long offset = stagingRing.allocate(upload.sizeInBytes());
+            if(offset < 0) {
+                if(upload.sizeInBytes() > STAGING_RING_SIZE) {
+                    decodedTextureUploads.poll();
+                    upload.free();
+                    failTextureUpload(upload, new RuntimeException("Texture " + upload.name + " does not fit the staging ring, raise -Dengine.stagingRingSize"));
+                    continue;
+                }
+                stagingRing.deferrals++;
+                break; // the ring is busy, the rest waits for the next frame
+            }
+            decodedTextureUploads.poll();
+
+            int slot = runtimeTextures.add(upload);
+            if(slot < 0) {
+                stagingRing.release(offset);
+                upload.free();
+                failTextureUpload(upload, new RuntimeException("Runtime texture page is full, raise -Dengine.runtimeTextureLayers"));
+                continue;
+            }
+
+            MemoryUtil.memCopy(MemoryUtil.memAddress(upload.pixels), stagingRing.address(offset), upload.sizeInBytes());
+            upload.free();
+            upload.stagingOffset = offset;
+            upload.slot = slot;
+
+            submitTextureUpload(upload);
+            submittedTextureUploads.add(upload);
         }
+
+        // completing last, callbacks find the texture registered and may hand it to entities right away
+        List<Long> semaphores = new ArrayList<>(finished.size());
+        for(TextureUpload done : finished) {
+            semaphores.add(done.semaphore);
+
+            int texId = numTextures++;
+            texturePages = Arrays.copyOf(texturePages, numTextures);
+            texturePageLayers = Arrays.copyOf(texturePageLayers, numTextures);
+            textureOpaque = Arrays.copyOf(textureOpaque, numTextures);
+            textureMeshes = Arrays.copyOf(textureMeshes, numTextures);
+            texturePages[texId] = RUNTIME_TEXTURE_PAGE;
+            texturePageLayers[texId] = done.slot;
+            textureOpaque[texId] = done.opaque;
+            textureMeshes[texId] = addSpriteMesh(done.outline);
+            textureCatalogue.put(done.name, texId);
+            loadingTextures.remove(done.name);
+
+            done.result.complete(texId);
+        }
+        return semaphores;
+    }
+
+    private static void failTextureUpload(TextureUpload upload, Throwable failure) {
+        // a later loadTexture of the same file tries again
+        loadingTextures.remove(upload.name);
+        upload.result.completeExceptionally(failure);
     }
 
-    private static void transitionImageLayout(long image, int format, int oldLayout, int newLayout) {
+    private static void submitTextureUpload(TextureUpload upload) {
 
         try(MemoryStack stack = stackPush()) {
 
-            VkImageMemoryBarrier.Buffer barrier = VkImageMemoryBarrier.callocStack(1, stack);
-            barrier.sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER);
-            barrier.oldLayout(oldLayout);
-            barrier.newLayout(newLayout);
-            barrier.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
-            barrier.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
-            barrier.image(image);
-            barrier.subresourceRange().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
-            barrier.subresourceRange().baseMipLevel(0);
-            barrier.subresourceRange().levelCount(1);
-            barrier.subresourceRange().baseArrayLayer(0);
-            barrier.subresourceRange().layerCount(numTextures);
+            VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.callocStack(stack);
+            allocInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
+            allocInfo.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY);
+            allocInfo.commandPool(transferCommandPool);
+            allocInfo.commandBufferCount(1);
 
-            int sourceStage;
-            int destinationStage;
+            PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+            if(vkAllocateCommandBuffers(device, allocInfo, pCommandBuffer) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to allocate upload command buffer");
+            }
+            upload.commandBuffer = new VkCommandBuffer(pCommandBuffer.get(0), device);
 
-            if(oldLayout == VK_IMAGE_LAYOUT_UNDEFINED && newLayout == VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL) {
+            VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
+            beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+            beginInfo.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
 
-                barrier.srcAccessMask(0);
-                barrier.dstAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT);
+            vkBeginCommandBuffer(upload.commandBuffer, beginInfo);
 
-                sourceStage = VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT;
-                destinationStage = VK_PIPELINE_STAGE_TRANSFER_BIT;
+            VkBufferImageCopy.Buffer regions = VkBufferImageCopy.callocStack(upload.mipLevels, stack);
+            long offset = upload.stagingOffset;
+            for(int level = 0; level < upload.mipLevels; level++) {
+                int width  = upload.slotWidth >> level;
+                int height = upload.slotHeight >> level;
 
-            } else if(oldLayout == VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL && newLayout == VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL) {
+                VkBufferImageCopy region = regions.get(level);
+                region.bufferOffset(offset);
+                region.bufferRowLength(0);   // Tightly packed
+                region.bufferImageHeight(0);  // Tightly packed
+                region.imageSubresource().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
+                region.imageSubresource().mipLevel(level);
+                region.imageSubresource().baseArrayLayer(runtimeTextures.layer(upload.slot));
+                region.imageSubresource().layerCount(1);
+                region.imageOffset().set(runtimeTextures.x(upload.slot) >> level, runtimeTextures.y(upload.slot) >> level, 0);
+                region.imageExtent().set(width, height, 1);
 
-                barrier.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT);
-                barrier.dstAccessMask(VK_ACCESS_SHADER_READ_BIT);
+                offset += (long) width * height * STBI_rgb_alpha;
+            }
+
+            vkCmdCopyBufferToImage(upload.commandBuffer, stagingRing.buffer, runtimeTextures.image, VK_IMAGE_LAYOUT_GENERAL, regions);
+
+            vkEndCommandBuffer(upload.commandBuffer);
+
+            VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.callocStack(stack);
+            fenceInfo.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+
+            VkSemaphoreCreateInfo semaphoreInfo = VkSemaphoreCreateInfo.callocStack(stack);
+            semaphoreInfo.sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
+
+            LongBuffer pFence = stack.mallocLong(1);
+            LongBuffer pSemaphore = stack.mallocLong(1);
+            if(vkCreateFence(device, fenceInfo, null, pFence) != VK_SUCCESS
+                    || vkCreateSemaphore(device, semaphoreInfo, null, pSemaphore) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create synchronization objects for a texture upload");
+            }
+            upload.fence = pFence.get(0);
+            upload.semaphore = pSemaphore.get(0);
+
+            VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack);
+            submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+            submitInfo.pCommandBuffers(stack.pointers(upload.commandBuffer));
+            submitInfo.pSignalSemaphores(pSemaphore);
+
+            if(vkQueueSubmit(transferQueue, submitInfo, upload.fence) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to submit texture upload");
+            }
+        }
+    }
+
+    private static void destroyRuntimeTextures() {
+        // the device is idle, whatever is still in flight is done
+        for(TextureUpload upload : submittedTextureUploads) {
+            vkDestroyFence(device, upload.fence, null);
+            vkDestroySemaphore(device, upload.semaphore, null);
+        }
+        submittedTextureUploads.clear();
+
+        runtimeTextureLoader.shutdownNow();
+        runtimeTextureLoader = null;
+        TextureUpload upload;
+        while((upload = decodedTextureUploads.poll()) != null) upload.free();
+        loadingTextures.clear();
+
+        runtimeTextures.free();
+        vkDestroyCommandPool(device, transferCommandPool, null);
+    }
+
+    // ===> PIPELINE CACHE <===
+    // The blob returned by vkGetPipelineCacheData starts with a header identifying the device and driver that
+    // produced it. Drivers are supposed to reject foreign data themselves, but not all of them do it gracefully,
+    // so we check the header ourselves and start cold whenever it does not match
+
+    private static final Path PIPELINE_CACHE_FILE = CACHE_DIR.resolve("pipeline.bin");
+    private static final int PIPELINE_CACHE_HEADER_SIZE = 16 + VK_UUID_SIZE;
+
+    private static void createPipelineCache() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            ByteBuffer initialData = loadPipelineCacheData();
+            pipelineCacheWarm = initialData != null;
+
+            VkPipelineCacheCreateInfo createInfo = VkPipelineCacheCreateInfo.callocStack(stack);
+            createInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_CACHE_CREATE_INFO);
+            createInfo.pInitialData(initialData);
+
+            LongBuffer pPipelineCache = stack.mallocLong(1);
+
+            if(vkCreatePipelineCache(device, createInfo, null, pPipelineCache) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create pipeline cache");
+            }
+
+            pipelineCache = pPipelineCache.get(0);
+        }
+    }
+
+    private static ByteBuffer loadPipelineCacheData() {
+
+        if(!Files.isRegularFile(PIPELINE_CACHE_FILE)) {
+            return null;
+        }
+
+        try(FileChannel channel = FileChannel.open(PIPELINE_CACHE_FILE, StandardOpenOption.READ);
+            MemoryStack stack = stackPush()) {
+
+            if(channel.size() < PIPELINE_CACHE_HEADER_SIZE) {
+                return null;
+            }
+
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+
+            VkPhysicalDeviceProperties properties = VkPhysicalDeviceProperties.callocStack(stack);
+            vkGetPhysicalDeviceProperties(physicalDevice, properties);
+
+            int headerSize = data.getInt(0);
+            int headerVersion = data.getInt(4);
+            int vendorID = data.getInt(8);
+            int deviceID = data.getInt(12);
+
+            boolean valid = headerSize >= PIPELINE_CACHE_HEADER_SIZE
+                    && headerVersion == VK_PIPELINE_CACHE_HEADER_VERSION_ONE
+                    && vendorID == properties.vendorID()
+                    && deviceID == properties.deviceID();
+
+            for(int i = 0;valid && i < VK_UUID_SIZE;i++) {
+                valid = data.get(16 + i) == properties.pipelineCacheUUID(i);
+            }
 
-                sourceStage = VK_PIPELINE_STAGE_TRANSFER_BIT;
-                destinationStage = VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT;
+            if(!valid) {
+                System.err.println("Discarding pipeline cache " + PIPELINE_CACHE_FILE + ", it was created by another device or driver");
+                return null;
+            }
+
+            return data;
+        } catch (IOException e) {
+            System.err.println("Could not read pipeline cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void savePipelineCache() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            PointerBuffer pDataSize = stack.mallocPointer(1);
+
+            if(vkGetPipelineCacheData(device, pipelineCache, pDataSize, null) != VK_SUCCESS || pDataSize.get(0) == 0) {
+                return;
+            }
+
+            ByteBuffer data = MemoryUtil.memAlloc((int) pDataSize.get(0));
+
+            try {
+                if(vkGetPipelineCacheData(device, pipelineCache, pDataSize, data) != VK_SUCCESS) {
+                    return;
+                }
+                data.limit((int) pDataSize.get(0));
+
+                Files.createDirectories(CACHE_DIR);
+
+                Path tmp = Files.createTempFile(CACHE_DIR, "pipeline", ".tmp");
+
+                try {
+                    try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                        while(data.hasRemaining()) {
+                            channel.write(data);
+                        }
+                    }
+
+                    moveAtomically(tmp, PIPELINE_CACHE_FILE);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException e) {
+                System.err.println("Could not write pipeline cache: " + e.getMessage());
+            } finally {
+                MemoryUtil.memFree(data);
+            }
+        }
+    }
+
+    private static void createSwapChain() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            SwapChainSupportDetails swapChainSupport = querySwapChainSupport(physicalDevice, stack);
+
+            VkSurfaceFormatKHR surfaceFormat = chooseSwapSurfaceFormat(swapChainSupport.formats);
+            int presentMode = chooseSwapPresentMode(swapChainSupport.presentModes);
+            VkExtent2D extent = chooseSwapExtent(swapChainSupport.capabilities);
+
+            IntBuffer imageCount = stack.ints(swapChainSupport.capabilities.minImageCount() + 1);
+
+            if(swapChainSupport.capabilities.maxImageCount() > 0 && imageCount.get(0) > swapChainSupport.capabilities.maxImageCount()) {
+                imageCount.put(0, swapChainSupport.capabilities.maxImageCount());
+            }
+
+            VkSwapchainCreateInfoKHR createInfo = VkSwapchainCreateInfoKHR.callocStack(stack);
+
+            createInfo.sType(VK_STRUCTURE_TYPE_SWAPCHAIN_CREATE_INFO_KHR);
+            createInfo.surface(surface);
+
+            // Image settings
+            createInfo.minImageCount(imageCount.get(0));
+            createInfo.imageFormat(surfaceFormat.format());
+            createInfo.imageColorSpace(surfaceFormat.colorSpace());
+            createInfo.imageExtent(extent);
+            createInfo.imageArrayLayers(1);
+            createInfo.imageUsage(VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT);
+
+            QueueFamilyIndices indices = findQueueFamilies(physicalDevice);
 
+            if(!indices.graphicsFamily.equals(indices.presentFamily)) {
+                createInfo.imageSharingMode(VK_SHARING_MODE_CONCURRENT);
+                createInfo.pQueueFamilyIndices(stack.ints(indices.graphicsFamily, indices.presentFamily));
             } else {
-                throw new IllegalArgumentException("Unsupported layout transition");
+                createInfo.imageSharingMode(VK_SHARING_MODE_EXCLUSIVE);
+            }
+
+            createInfo.preTransform(swapChainSupport.capabilities.currentTransform());
+            createInfo.compositeAlpha(VK_COMPOSITE_ALPHA_OPAQUE_BIT_KHR);
+            createInfo.presentMode(presentMode);
+            createInfo.clipped(true);
+
+            createInfo.oldSwapchain(VK_NULL_HANDLE);
+
+            LongBuffer pSwapChain = stack.longs(VK_NULL_HANDLE);
+
+            if(vkCreateSwapchainKHR(device, createInfo, null, pSwapChain) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create swap chain");
             }
 
-            VkCommandBuffer commandBuffer = beginSingleTimeCommands();
+            swapChain = pSwapChain.get(0);
 
-            vkCmdPipelineBarrier(commandBuffer,
-                    sourceStage, destinationStage,
-                    0,
-                    null,
-                    null,
-                    barrier);
+            vkGetSwapchainImagesKHR(device, swapChain, imageCount, null);
+
+            LongBuffer pSwapchainImages = stack.mallocLong(imageCount.get(0));
+
+            vkGetSwapchainImagesKHR(device, swapChain, imageCount, pSwapchainImages);
+
+            swapChainImages = new ArrayList<>(imageCount.get(0));
+
+            for(int i = 0;i < pSwapchainImages.capacity();i++) {
+                swapChainImages.add(pSwapchainImages.get(i));
+            }
+
+            swapChainImageFormat = surfaceFormat.format();
+            swapChainExtent = VkExtent2D.create().set(extent);
+            aspectRatio = ((float) swapChainExtent.width()) / ((float) swapChainExtent.height());
+        }
+    }
+
+    private static long readbackBuffer;
+    private static DeviceMemoryAllocator.Allocation readbackBufferMemory;
+
+    // stands in for createSwapChain when headless, plus a host visible buffer to copy finished frames into
+    private static void createOffscreenImages() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkImageCreateInfo imageInfo = VkImageCreateInfo.callocStack(stack);
+            imageInfo.sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO);
+            imageInfo.imageType(VK_IMAGE_TYPE_2D);
+            imageInfo.extent().width(offscreenWidth);
+            imageInfo.extent().height(offscreenHeight);
+            imageInfo.extent().depth(1);
+            imageInfo.mipLevels(1);
+            imageInfo.arrayLayers(1);
+            // RGBA in the byte order PNG files want, color attachment support is mandatory for it
+            imageInfo.format(VK_FORMAT_R8G8B8A8_SRGB);
+            imageInfo.tiling(VK_IMAGE_TILING_OPTIMAL);
+            imageInfo.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+            imageInfo.usage(VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT | VK_IMAGE_USAGE_TRANSFER_SRC_BIT);
+            imageInfo.samples(VK_SAMPLE_COUNT_1_BIT);
+            imageInfo.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+
+            swapChainImages = new ArrayList<>(OFFSCREEN_IMAGES);
+            offscreenImagesMemory = new ArrayList<>(OFFSCREEN_IMAGES);
+
+            LongBuffer pImage = stack.mallocLong(1);
+
+            for(int i = 0;i < OFFSCREEN_IMAGES;i++) {
+                if(vkCreateImage(device, imageInfo, null, pImage) != VK_SUCCESS) {
+                    throw new RuntimeException("Failed to create offscreen image");
+                }
+                swapChainImages.add(pImage.get(0));
+                offscreenImagesMemory.add(allocateImageMemory(pImage.get(0), VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT));
+            }
+
+            LongBuffer pBuffer = stack.mallocLong(1);
+            readbackBufferMemory = createBuffer((long) offscreenWidth * offscreenHeight * 4,
+                    VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                    pBuffer);
+            readbackBuffer = pBuffer.get(0);
+
+            swapChainImageFormat = VK_FORMAT_R8G8B8A8_SRGB;
+            swapChainExtent = VkExtent2D.create().set(offscreenWidth, offscreenHeight);
+            aspectRatio = ((float) offscreenWidth) / ((float) offscreenHeight);
+        }
+    }
+
+    /**
+     * Copies the last frame drawn in headless mode into pixels, width * height * 4 bytes of sRGB encoded RGBA with
+     * the top row first. Waits for that frame to finish rendering.
+     */
+    public static void readFrame(ByteBuffer pixels) {
+
+        if(!headless) throw new IllegalStateException("Frames can only be read back in headless mode");
+        if(lastRenderedImage < 0) throw new IllegalStateException("No frame has been drawn yet");
+
+        long size = (long) offscreenWidth * offscreenHeight * 4;
+        if(pixels.remaining() < size) throw new IllegalArgumentException("Frame needs " + size + " bytes");
+
+        try(MemoryStack stack = stackPush()) {
+
+            vkWaitForFences(device, imagesInFlight.get(lastRenderedImage).pFence(), true, UINT64_MAX);
+
+            VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.callocStack(stack);
+            allocInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
+            allocInfo.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY);
+            allocInfo.commandPool(commandPool);
+            allocInfo.commandBufferCount(1);
+
+            PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+            if(vkAllocateCommandBuffers(device, allocInfo, pCommandBuffer) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to allocate readback command buffer");
+            }
+            VkCommandBuffer commandBuffer = new VkCommandBuffer(pCommandBuffer.get(0), device);
+
+            VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
+            beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+            beginInfo.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+
+            vkBeginCommandBuffer(commandBuffer, beginInfo);
+
+            // the render pass left the image in TRANSFER_SRC_OPTIMAL, only the attachment writes need to land
+            VkImageMemoryBarrier.Buffer barrier = VkImageMemoryBarrier.callocStack(1, stack);
+            barrier.sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER);
+            barrier.oldLayout(VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL);
+            barrier.newLayout(VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL);
+            barrier.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+            barrier.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+            barrier.image(swapChainImages.get(lastRenderedImage));
+            barrier.subresourceRange().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
+            barrier.subresourceRange().levelCount(1);
+            barrier.subresourceRange().layerCount(1);
+            barrier.srcAccessMask(VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT);
+            barrier.dstAccessMask(VK_ACCESS_TRANSFER_READ_BIT);
+
+            vkCmdPipelineBarrier(commandBuffer,
+                    VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT,
+                    0,
+                    null,
+                    null,
+                    barrier);
+
+            VkBufferImageCopy.Buffer region = VkBufferImageCopy.callocStack(1, stack);
+            region.imageSubresource().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT);
+            region.imageSubresource().layerCount(1);
+            region.imageExtent().set(offscreenWidth, offscreenHeight, 1);
+
+            vkCmdCopyImageToBuffer(commandBuffer, swapChainImages.get(lastRenderedImage), VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL, readbackBuffer, region);
+
+            // and the copy has to be visible to the host
+            VkMemoryBarrier.Buffer hostBarrier = VkMemoryBarrier.callocStack(1, stack);
+            hostBarrier.sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER);
+            hostBarrier.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT);
+            hostBarrier.dstAccessMask(VK_ACCESS_HOST_READ_BIT);
+
+            vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_HOST_BIT, 0, hostBarrier, null, null);
+
+            vkEndCommandBuffer(commandBuffer);
+
+            VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.callocStack(stack);
+            fenceInfo.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+
+            LongBuffer pFence = stack.mallocLong(1);
+            if(vkCreateFence(device, fenceInfo, null, pFence) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create readback fence");
+            }
+
+            VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack);
+            submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+            submitInfo.pCommandBuffers(stack.pointers(commandBuffer));
+
+            if(vkQueueSubmit(graphicsQueue, submitInfo, pFence.get(0)) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to submit readback command buffer");
+            }
+
+            vkWaitForFences(device, pFence, true, UINT64_MAX);
+            vkDestroyFence(device, pFence.get(0), null);
+            vkFreeCommandBuffers(device, commandPool, commandBuffer);
+
+            MemoryUtil.memCopy(readbackBufferMemory.mapped(), MemoryUtil.memAddress(pixels), size);
+        }
+    }
+
+    // readFrame straight into a PNG file
+    public static void saveFrame(String path) {
+        ByteBuffer pixels = MemoryUtil.memAlloc(offscreenWidth * offscreenHeight * 4);
+        try {
+            readFrame(pixels);
+            if(!stbi_write_png(path, offscreenWidth, offscreenHeight, 4, pixels, offscreenWidth * 4)) {
+                throw new RuntimeException("Failed to write " + path);
+            }
+        } finally {
+            MemoryUtil.memFree(pixels);
+        }
+    }
+
+    public static int getFrameWidth() {
+        return swapChainExtent.width();
+    }
+
+    public static int getFrameHeight() {
+        return swapChainExtent.height();
+    }
+
+    private static void createImageViews() {
+
+        swapChainImageViews = new ArrayList<>(swapChainImages.size());
+
+        for(long swapChainImage : swapChainImages) {
+            swapChainImageViews.add(createImageView(swapChainImage, swapChainImageFormat, VK_IMAGE_VIEW_TYPE_2D, 1, 1));//VK_FORMAT_R8G8B8A8_SRGB));
+        }
+    }
+
+    // One depth buffer for every image, the render pass dependency keeps frames from using it at the same time
+    private static void createDepthResources() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            depthFormat = findDepthFormat();
+
+            VkImageCreateInfo imageInfo = VkImageCreateInfo.callocStack(stack);
+            imageInfo.sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO);
+            imageInfo.imageType(VK_IMAGE_TYPE_2D);
+            imageInfo.extent().width(swapChainExtent.width());
+            imageInfo.extent().height(swapChainExtent.height());
+            imageInfo.extent().depth(1);
+            imageInfo.mipLevels(1);
+            imageInfo.arrayLayers(1);
+            imageInfo.format(depthFormat);
+            imageInfo.tiling(VK_IMAGE_TILING_OPTIMAL);
+            imageInfo.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+            imageInfo.usage(VK_IMAGE_USAGE_DEPTH_STENCIL_ATTACHMENT_BIT);
+            imageInfo.samples(VK_SAMPLE_COUNT_1_BIT);
+            imageInfo.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+
+            LongBuffer pDepthImage = stack.mallocLong(1);
+
+            if(vkCreateImage(device, imageInfo, null, pDepthImage) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create depth image");
+            }
+
+            depthImage = pDepthImage.get(0);
+            depthImageMemory = allocateImageMemory(depthImage, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+
+            int aspectMask = VK_IMAGE_ASPECT_DEPTH_BIT | (depthFormat == VK_FORMAT_D32_SFLOAT ? 0 : VK_IMAGE_ASPECT_STENCIL_BIT);
+            depthImageView = createImageView(depthImage, depthFormat, VK_IMAGE_VIEW_TYPE_2D, 1, 1, aspectMask);
+        }
+    }
+
+    // the depth steps of shader.vert need 24 bits at least, every device has one of these
+    private static int findDepthFormat() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkFormatProperties formatProperties = VkFormatProperties.callocStack(stack);
+
+            for(int format : new int[] { VK_FORMAT_D32_SFLOAT, VK_FORMAT_D32_SFLOAT_S8_UINT, VK_FORMAT_D24_UNORM_S8_UINT }) {
+                vkGetPhysicalDeviceFormatProperties(physicalDevice, format, formatProperties);
+                if((formatProperties.optimalTilingFeatures() & VK_FORMAT_FEATURE_DEPTH_STENCIL_ATTACHMENT_BIT) != 0) {
+                    return format;
+                }
+            }
+        }
+
+        throw new RuntimeException("Failed to find a supported depth format");
+    }
+
+    private static void createRenderPass() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkAttachmentDescription.Buffer attachments = VkAttachmentDescription.callocStack(2, stack);
+
+            VkAttachmentDescription colorAttachment = attachments.get(0);
+            colorAttachment.format(swapChainImageFormat);
+            colorAttachment.samples(VK_SAMPLE_COUNT_1_BIT);
+            colorAttachment.loadOp(VK_ATTACHMENT_LOAD_OP_CLEAR);
+            colorAttachment.storeOp(VK_ATTACHMENT_STORE_OP_STORE);
+            colorAttachment.stencilLoadOp(VK_ATTACHMENT_LOAD_OP_DONT_CARE);
+            colorAttachment.stencilStoreOp(VK_ATTACHMENT_STORE_OP_DONT_CARE);
+            colorAttachment.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+            // offscreen images are only ever copied out after rendering
+            colorAttachment.finalLayout(headless ? VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL : VK_IMAGE_LAYOUT_PRESENT_SRC_KHR);
+
+            // only needed while drawing, never stored
+            VkAttachmentDescription depthAttachment = attachments.get(1);
+            depthAttachment.format(depthFormat);
+            depthAttachment.samples(VK_SAMPLE_COUNT_1_BIT);
+            depthAttachment.loadOp(VK_ATTACHMENT_LOAD_OP_CLEAR);
+            depthAttachment.storeOp(VK_ATTACHMENT_STORE_OP_DONT_CARE);
+            depthAttachment.stencilLoadOp(VK_ATTACHMENT_LOAD_OP_DONT_CARE);
+            depthAttachment.stencilStoreOp(VK_ATTACHMENT_STORE_OP_DONT_CARE);
+            depthAttachment.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+            depthAttachment.finalLayout(VK_IMAGE_LAYOUT_DEPTH_STENCIL_ATTACHMENT_OPTIMAL);
+
+            VkAttachmentReference.Buffer colorAttachmentRef = VkAttachmentReference.callocStack(1, stack);
+            colorAttachmentRef.attachment(0);
+            colorAttachmentRef.layout(VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL);
+
+            VkAttachmentReference depthAttachmentRef = VkAttachmentReference.callocStack(stack);
+            depthAttachmentRef.attachment(1);
+            depthAttachmentRef.layout(VK_IMAGE_LAYOUT_DEPTH_STENCIL_ATTACHMENT_OPTIMAL);
+
+            VkSubpassDescription.Buffer subpass = VkSubpassDescription.callocStack(1, stack);
+            subpass.pipelineBindPoint(VK_PIPELINE_BIND_POINT_GRAPHICS);
+            subpass.colorAttachmentCount(1);
+            subpass.pColorAttachments(colorAttachmentRef);
+            subpass.pDepthStencilAttachment(depthAttachmentRef);
+
+            // the depth buffer is shared, the previous frame has to be done writing it before this one clears it
+            VkSubpassDependency.Buffer dependency = VkSubpassDependency.callocStack(1, stack);
+            dependency.srcSubpass(VK_SUBPASS_EXTERNAL);
+            dependency.dstSubpass(0);
+            dependency.srcStageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT | VK_PIPELINE_STAGE_LATE_FRAGMENT_TESTS_BIT);
+            dependency.srcAccessMask(VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_WRITE_BIT);
+            dependency.dstStageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT | VK_PIPELINE_STAGE_EARLY_FRAGMENT_TESTS_BIT);
+            dependency.dstAccessMask(VK_ACCESS_COLOR_ATTACHMENT_READ_BIT | VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT
+                    | VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_READ_BIT | VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_WRITE_BIT);
+
+            VkRenderPassCreateInfo renderPassInfo = VkRenderPassCreateInfo.callocStack(stack);
+            renderPassInfo.sType(VK_STRUCTURE_TYPE_RENDER_PASS_CREATE_INFO);
+            renderPassInfo.pAttachments(attachments);
+            renderPassInfo.pSubpasses(subpass);
+            renderPassInfo.pDependencies(dependency);
+
+            LongBuffer pRenderPass = stack.mallocLong(1);
+
+            if(vkCreateRenderPass(device, renderPassInfo, null, pRenderPass) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create render pass");
+            }
+
+            renderPass = pRenderPass.get(0);
+        }
+    }
+
+    private static void createGraphicsPipeline() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            // Let's compile the GLSL shaders into SPIR-V at runtime using the shaderc library
+            // Check ShaderSPIRVUtils class to see how it can be done, compiled bytecode is cached on disk
+            int hitsBefore   = ShaderSPIRVUtils.cacheHits();
+            int missesBefore = ShaderSPIRVUtils.cacheMisses();
+
+            ShaderSPIRVUtils.SPIRV vertShaderSPIRV = ShaderSPIRVUtils.compileShaderFile("shaders/shader.vert", VERTEX_SHADER);
+            ShaderSPIRVUtils.SPIRV fragShaderSPIRV = ShaderSPIRVUtils.compileShaderFile("shaders/shader.frag", FRAGMENT_SHADER);
+
+            if(STATS) {
+                System.out.printf("SPIR-V cache: %d hits, %d misses%n",
+                        ShaderSPIRVUtils.cacheHits() - hitsBefore, ShaderSPIRVUtils.cacheMisses() - missesBefore);
+            }
+
+            long vertShaderModule = createShaderModule(vertShaderSPIRV.bytecode());
+            long fragShaderModule = createShaderModule(fragShaderSPIRV.bytecode());
+
+            ByteBuffer entryPoint = stack.UTF8("main");
+
+            // OPAQUE_PASS in the fragment shader, a VkBool32
+            VkSpecializationMapEntry.Buffer passEntry = VkSpecializationMapEntry.callocStack(1, stack);
+            passEntry.constantID(0);
+            passEntry.offset(0);
+            passEntry.size(Integer.BYTES);
+
+            VkPipelineShaderStageCreateInfo.Buffer[] shaderStages = new VkPipelineShaderStageCreateInfo.Buffer[DRAW_PASSES];
+
+            for(int pass = 0;pass < DRAW_PASSES;pass++) {
+                VkSpecializationInfo specializationInfo = VkSpecializationInfo.callocStack(stack);
+                specializationInfo.pMapEntries(passEntry);
+                specializationInfo.pData(stack.malloc(Integer.BYTES).putInt(0, pass == OPAQUE_PASS ? VK_TRUE : VK_FALSE));
+
+                shaderStages[pass] = VkPipelineShaderStageCreateInfo.callocStack(2, stack);
+
+                VkPipelineShaderStageCreateInfo vertShaderStageInfo = shaderStages[pass].get(0);
+
+                vertShaderStageInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO);
+                vertShaderStageInfo.stage(VK_SHADER_STAGE_VERTEX_BIT);
+                vertShaderStageInfo.module(vertShaderModule);
+                vertShaderStageInfo.pName(entryPoint);
+
+                VkPipelineShaderStageCreateInfo fragShaderStageInfo = shaderStages[pass].get(1);
+
+                fragShaderStageInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO);
+                fragShaderStageInfo.stage(VK_SHADER_STAGE_FRAGMENT_BIT);
+                fragShaderStageInfo.module(fragShaderModule);
+                fragShaderStageInfo.pName(entryPoint);
+                fragShaderStageInfo.pSpecializationInfo(specializationInfo);
+            }
+
+            // ===> VERTEX STAGE <===
+
+            VkPipelineVertexInputStateCreateInfo vertexInputInfo = VkPipelineVertexInputStateCreateInfo.callocStack(stack);
+            vertexInputInfo.pVertexBindingDescriptions(VkVertexInputBindingDescription.callocStack(1)
+                            .binding(0)
+                            .stride(Float.BYTES * 4)
+                            .inputRate(VK_VERTEX_INPUT_RATE_VERTEX)
+            );
+            vertexInputInfo.pVertexAttributeDescriptions(VkVertexInputAttributeDescription.callocStack(1)
+                    .binding(0)
+                    .location(0)
+                    .format(VK_FORMAT_R32G32B32A32_SFLOAT)
+                    .offset(0)
+
+            );
+            vertexInputInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO);
+
+            // ===> ASSEMBLY STAGE <===
+
+            VkPipelineInputAssemblyStateCreateInfo inputAssembly = VkPipelineInputAssemblyStateCreateInfo.callocStack(stack);
+            inputAssembly.sType(VK_STRUCTURE_TYPE_PIPELINE_INPUT_ASSEMBLY_STATE_CREATE_INFO);
+            inputAssembly.topology(VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST);
+            inputAssembly.primitiveRestartEnable(false);
+
+            // ===> VIEWPORT & SCISSOR
+
+            VkViewport.Buffer viewport = VkViewport.callocStack(1, stack);
+            viewport.x(0.0f);
+            viewport.y(0.0f);
+            viewport.width(swapChainExtent.width());
+            viewport.height(swapChainExtent.height());
+            viewport.minDepth(0.0f);
+            viewport.maxDepth(1.0f);
+
+            VkRect2D.Buffer scissor = VkRect2D.callocStack(1, stack);
+            scissor.offset(VkOffset2D.callocStack(stack).set(0, 0));
+            scissor.extent(swapChainExtent);
+
+            VkPipelineViewportStateCreateInfo viewportState = VkPipelineViewportStateCreateInfo.callocStack(stack);
+            viewportState.sType(VK_STRUCTURE_TYPE_PIPELINE_VIEWPORT_STATE_CREATE_INFO);
+            viewportState.pViewports(viewport);
+            viewportState.pScissors(scissor);
+
+            // ===> RASTERIZATION STAGE <===
+
+            VkPipelineRasterizationStateCreateInfo rasterizer = VkPipelineRasterizationStateCreateInfo.callocStack(stack);
+            rasterizer.sType(VK_STRUCTURE_TYPE_PIPELINE_RASTERIZATION_STATE_CREATE_INFO);
+            rasterizer.depthClampEnable(false);
+            rasterizer.rasterizerDiscardEnable(false);
+            rasterizer.polygonMode(VK_POLYGON_MODE_FILL);
+            rasterizer.lineWidth(1.0f);
+            rasterizer.cullMode(VK_CULL_MODE_BACK_BIT);
+            rasterizer.frontFace(VK_FRONT_FACE_CLOCKWISE);
+            rasterizer.depthBiasEnable(false);
+
+            // ===> MULTISAMPLING <===
+
+            VkPipelineMultisampleStateCreateInfo multisampling = VkPipelineMultisampleStateCreateInfo.callocStack(stack);
+            multisampling.sType(VK_STRUCTURE_TYPE_PIPELINE_MULTISAMPLE_STATE_CREATE_INFO);
+            multisampling.sampleShadingEnable(false);
+            multisampling.rasterizationSamples(VK_SAMPLE_COUNT_1_BIT);
+
+            // ===> DEPTH TEST <===
+
+            // both passes test and write, the alpha tested one only where it didn't discard
+            VkPipelineDepthStencilStateCreateInfo depthStencil = VkPipelineDepthStencilStateCreateInfo.callocStack(stack);
+            depthStencil.sType(VK_STRUCTURE_TYPE_PIPELINE_DEPTH_STENCIL_STATE_CREATE_INFO);
+            depthStencil.depthTestEnable(true);
+            depthStencil.depthWriteEnable(true);
+            depthStencil.depthCompareOp(VK_COMPARE_OP_LESS);
+            depthStencil.depthBoundsTestEnable(false);
+            depthStencil.stencilTestEnable(false);
+
+            // ===> COLOR BLENDING <===
+
+            // the opaque pass writes its colour as it is
+            VkPipelineColorBlendAttachmentState.Buffer opaqueBlendAttachment = VkPipelineColorBlendAttachmentState.callocStack(1, stack);
+            opaqueBlendAttachment.colorWriteMask(VK_COLOR_COMPONENT_R_BIT | VK_COLOR_COMPONENT_G_BIT | VK_COLOR_COMPONENT_B_BIT | VK_COLOR_COMPONENT_A_BIT);
+            opaqueBlendAttachment.blendEnable(false);
+
+            VkPipelineColorBlendStateCreateInfo opaqueColorBlending = VkPipelineColorBlendStateCreateInfo.callocStack(stack);
+            opaqueColorBlending.sType(VK_STRUCTURE_TYPE_PIPELINE_COLOR_BLEND_STATE_CREATE_INFO);
+            opaqueColorBlending.logicOpEnable(false);
+            opaqueColorBlending.logicOp(VK_LOGIC_OP_COPY);
+            VkPipelineColorBlendStateCreateInfo.nattachmentCount(opaqueColorBlending.address(), 1);
+            opaqueColorBlending.pAttachments(opaqueBlendAttachment);
+            opaqueColorBlending.blendConstants(stack.floats(0.0f, 0.0f, 0.0f, 0.0f));
+
+            VkPipelineColorBlendAttachmentState.Buffer colorBlendAttachment = VkPipelineColorBlendAttachmentState.callocStack(1, stack);
+            colorBlendAttachment.colorWriteMask(VK_COLOR_COMPONENT_R_BIT | VK_COLOR_COMPONENT_G_BIT | VK_COLOR_COMPONENT_B_BIT | VK_COLOR_COMPONENT_A_BIT);
+            colorBlendAttachment.blendEnable(true);
+            colorBlendAttachment.srcColorBlendFactor(VK_BLEND_FACTOR_SRC_ALPHA);
+            colorBlendAttachment.dstColorBlendFactor(VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA);
+            colorBlendAttachment.colorBlendOp(VK_BLEND_OP_ADD);
+            colorBlendAttachment.srcAlphaBlendFactor(VK_BLEND_FACTOR_SRC_ALPHA);
+            colorBlendAttachment.dstAlphaBlendFactor(VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA);
+            colorBlendAttachment.alphaBlendOp(VK_BLEND_OP_SUBTRACT);
+
+            VkPipelineColorBlendStateCreateInfo colorBlending = VkPipelineColorBlendStateCreateInfo.callocStack(stack);
+            colorBlending.sType(VK_STRUCTURE_TYPE_PIPELINE_COLOR_BLEND_STATE_CREATE_INFO);
+            colorBlending.logicOpEnable(false);
+            colorBlending.logicOp(VK_LOGIC_OP_COPY);
+            VkPipelineColorBlendStateCreateInfo.nattachmentCount(colorBlending.address(), 1); // this is very silly, but they forgot to write the wrapper!
+            colorBlending.pAttachments(colorBlendAttachment);
+            colorBlending.blendConstants(stack.floats(0.0f, 0.0f, 0.0f, 0.0f));
+
+            // ===> PIPELINE LAYOUT CREATION <===
+
+            VkPipelineLayoutCreateInfo pipelineLayoutInfo = VkPipelineLayoutCreateInfo.callocStack(stack);
+            pipelineLayoutInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO);
+            pipelineLayoutInfo.pSetLayouts(stack.longs(descriptorSetLayout));
+
+            if(gpuCulling) {
+                // the entity count and draw batches of cull.comp, the graphics pipeline ignores them
+                VkPushConstantRange.Buffer pushConstantRanges = VkPushConstantRange.callocStack(1, stack);
+                pushConstantRanges.stageFlags(VK_SHADER_STAGE_COMPUTE_BIT);
+                pushConstantRanges.offset(0);
+                pushConstantRanges.size(2 * Integer.BYTES);
+                pipelineLayoutInfo.pPushConstantRanges(pushConstantRanges);
+            }
+
+            LongBuffer pPipelineLayout = stack.longs(VK_NULL_HANDLE);
+
+            if(vkCreatePipelineLayout(device, pipelineLayoutInfo, null, pPipelineLayout) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create pipeline layout");
+            }
+
+            pipelineLayout = pPipelineLayout.get(0);
+
+            VkGraphicsPipelineCreateInfo.Buffer pipelineInfos = VkGraphicsPipelineCreateInfo.callocStack(DRAW_PASSES, stack);
+
+            for(int pass = 0;pass < DRAW_PASSES;pass++) {
+                VkGraphicsPipelineCreateInfo pipelineInfo = pipelineInfos.get(pass);
+                pipelineInfo.sType(VK_STRUCTURE_TYPE_GRAPHICS_PIPELINE_CREATE_INFO);
+                pipelineInfo.pStages(shaderStages[pass]);
+                pipelineInfo.pVertexInputState(vertexInputInfo);
+                pipelineInfo.pInputAssemblyState(inputAssembly);
+                pipelineInfo.pViewportState(viewportState);
+                pipelineInfo.pRasterizationState(rasterizer);
+                pipelineInfo.pMultisampleState(multisampling);
+                pipelineInfo.pDepthStencilState(depthStencil);
+                pipelineInfo.pColorBlendState(pass == OPAQUE_PASS ? opaqueColorBlending : colorBlending);
+                pipelineInfo.layout(pipelineLayout);
+                pipelineInfo.renderPass(renderPass);
+                pipelineInfo.subpass(0);
+                pipelineInfo.basePipelineHandle(VK_NULL_HANDLE);
+                pipelineInfo.basePipelineIndex(-1);
+            }
+
+            LongBuffer pGraphicsPipelines = stack.mallocLong(DRAW_PASSES);
+
+            long pipelineStart = System.nanoTime();
+
+            if(vkCreateGraphicsPipelines(device, pipelineCache, pipelineInfos, null, pGraphicsPipelines) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create graphics pipelines");
+            }
+
+            if(STATS) {
+                System.out.printf("Graphics pipelines built in %.2f ms%n", (System.nanoTime() - pipelineStart) / 1e6);
+            }
+
+            graphicsPipelines = new long[DRAW_PASSES];
+            pGraphicsPipelines.get(graphicsPipelines);
+
+            // ===> RELEASE RESOURCES <===
+
+            vkDestroyShaderModule(device, vertShaderModule, null);
+            vkDestroyShaderModule(device, fragShaderModule, null);
+
+            vertShaderSPIRV.free();
+            fragShaderSPIRV.free();
+        }
+    }
+
+    // one pipeline per pass of cull.comp, the pass is a specialization constant. They share the layout, and with it
+    // the descriptor sets, of the graphics pipeline
+    private static void createCullPipelines() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            ShaderSPIRVUtils.SPIRV cullShaderSPIRV = ShaderSPIRVUtils.compileShaderFile("shaders/cull.comp", COMPUTE_SHADER);
+            long cullShaderModule = createShaderModule(cullShaderSPIRV.bytecode());
+
+            ByteBuffer entryPoint = stack.UTF8("main");
+
+            VkSpecializationMapEntry.Buffer passEntry = VkSpecializationMapEntry.callocStack(1, stack);
+            passEntry.constantID(0);
+            passEntry.offset(0);
+            passEntry.size(Integer.BYTES);
+
+            VkComputePipelineCreateInfo.Buffer pipelineInfos = VkComputePipelineCreateInfo.callocStack(CULL_PASSES, stack);
+
+            for(int pass = 0;pass < CULL_PASSES;pass++) {
+                VkSpecializationInfo specializationInfo = VkSpecializationInfo.callocStack(stack);
+                specializationInfo.pMapEntries(passEntry);
+                specializationInfo.pData(stack.malloc(Integer.BYTES).putInt(0, pass));
+
+                VkComputePipelineCreateInfo pipelineInfo = pipelineInfos.get(pass);
+                pipelineInfo.sType(VK_STRUCTURE_TYPE_COMPUTE_PIPELINE_CREATE_INFO);
+                pipelineInfo.stage()
+                        .sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
+                        .stage(VK_SHADER_STAGE_COMPUTE_BIT)
+                        .module(cullShaderModule)
+                        .pName(entryPoint)
+                        .pSpecializationInfo(specializationInfo);
+                pipelineInfo.layout(pipelineLayout);
+                pipelineInfo.basePipelineHandle(VK_NULL_HANDLE);
+                pipelineInfo.basePipelineIndex(-1);
+            }
+
+            LongBuffer pPipelines = stack.mallocLong(CULL_PASSES);
+
+            if(vkCreateComputePipelines(device, pipelineCache, pipelineInfos, null, pPipelines) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create culling pipelines");
+            }
+
+            cullPipelines = new long[CULL_PASSES];
+            pPipelines.get(cullPipelines);
+
+            vkDestroyShaderModule(device, cullShaderModule, null);
+            cullShaderSPIRV.free();
+        }
+    }
+
+    private static void createFramebuffers() {
+
+        swapChainFramebuffers = new ArrayList<>(swapChainImageViews.size());
+
+        try(MemoryStack stack = stackPush()) {
+
+            LongBuffer attachments = stack.longs(VK_NULL_HANDLE, depthImageView);
+            LongBuffer pFramebuffer = stack.mallocLong(1);
+
+            // Let's allocate the create info struct once and just update the pAttachments field each iteration
+            VkFramebufferCreateInfo framebufferInfo = VkFramebufferCreateInfo.callocStack(stack);
+            framebufferInfo.sType(VK_STRUCTURE_TYPE_FRAMEBUFFER_CREATE_INFO);
+            framebufferInfo.renderPass(renderPass);
+            framebufferInfo.width(swapChainExtent.width());
+            framebufferInfo.height(swapChainExtent.height());
+            framebufferInfo.layers(1);
+
+            for(long imageView : swapChainImageViews) {
+
+                attachments.put(0, imageView);
+
+                framebufferInfo.pAttachments(attachments);
+
+                if(vkCreateFramebuffer(device, framebufferInfo, null, pFramebuffer) != VK_SUCCESS) {
+                    throw new RuntimeException("Failed to create framebuffer");
+                }
+
+                swapChainFramebuffers.add(pFramebuffer.get(0));
+            }
+        }
+    }
+
+    private static void createCommandPool() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            QueueFamilyIndices queueFamilyIndices = findQueueFamilies(physicalDevice);
+
+            VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.callocStack(stack);
+            poolInfo.sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO);
+            poolInfo.queueFamilyIndex(queueFamilyIndices.graphicsFamily);
+            // single command buffers get re-recorded when their instance buffer grows
+            poolInfo.flags(VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT);
+
+            LongBuffer pCommandPool = stack.mallocLong(1);
+
+            if (vkCreateCommandPool(device, poolInfo, null, pCommandPool) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create command pool");
+            }
+
+            commandPool = pCommandPool.get(0);
+        }
+    }
+
+    private static void createRecordingPools() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.callocStack(stack);
+            poolInfo.sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO);
+            poolInfo.queueFamilyIndex(graphicsQueueFamily);
+            poolInfo.flags(VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT);
+
+            LongBuffer pCommandPool = stack.mallocLong(1);
+
+            recordingPools = new long[RECORDING_THREADS];
+            for(int i = 0;i < RECORDING_THREADS;i++) {
+                if (vkCreateCommandPool(device, poolInfo, null, pCommandPool) != VK_SUCCESS) {
+                    throw new RuntimeException("Failed to create recording command pool");
+                }
+                recordingPools[i] = pCommandPool.get(0);
+            }
+        }
+
+        // with a single thread the render thread records everything itself
+        if(RECORDING_THREADS > 1) {
+            recordingExecutor = Executors.newFixedThreadPool(RECORDING_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "command-recorder");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private static TextureAtlas textureAtlas;
+    private static HashMap<String, Integer> textureCatalogue = new HashMap();
+
+    // must match TEXTURE_PAGES in shader.frag, page 0 is the atlas and the rest hold compressed textures
+    static final int TEXTURE_PAGES = 8;
+    private static List<CompressedPage> compressedPages = new ArrayList<>();
+    private static int texturePages[] = new int[0];      // page per texture id
+    private static int texturePageLayers[] = new int[0]; // layer inside a compressed page per texture id
+    private static boolean textureOpaque[] = new boolean[0]; // no texel with alpha below 1, drawn by the opaque pass
+    private static boolean textureCompressionBC;
+    private static boolean textureCompressionETC2;
+
+    // the page slot of textures added through loadTexture, compressed pages get the ones in between
+    static final int RUNTIME_TEXTURE_PAGE = TEXTURE_PAGES - 1;
+    // runtime slots sit on the same grid as the atlas ones, so they get as many levels
+    private static final int RUNTIME_TEXTURE_MIP_LEVELS = TextureAtlas.MIP_LEVELS;
+    private static final int RUNTIME_TEXTURE_LAYERS = Integer.getInteger("engine.runtimeTextureLayers", 1);
+    private static final long STAGING_RING_SIZE = Long.getLong("engine.stagingRingSize", 32L << 20);
+    private static RuntimeTexturePage runtimeTextures;
+    private static StagingRing stagingRing;
+    private static ExecutorService runtimeTextureLoader;
+    private static final Queue<TextureUpload> decodedTextureUploads = new ConcurrentLinkedQueue<>(); // filled by the loader threads
+    private static final List<TextureUpload> submittedTextureUploads = new ArrayList<>();
+    private static final Map<String, CompletableFuture<Integer>> loadingTextures = new HashMap<>(); // by canonical path, until resident or failed
+
+    // decoding is independent per file, so it runs on a bounded pool, -Dengine.textureThreads=1 restores the old behaviour
+    private static final int TEXTURE_LOADER_THREADS = Integer.getInteger("engine.textureThreads", Runtime.getRuntime().availableProcessors());
+
+    private static TextureAtlas loadAndNormalizeTextures() throws Exception {
+        File files[] = new File(getSystemClassLoader().getResource("textures").toURI()).listFiles();
+
+        try(MemoryStack stack = stackPush()) {
+            VkPhysicalDeviceProperties properties = VkPhysicalDeviceProperties.callocStack(stack);
+            vkGetPhysicalDeviceProperties(physicalDevice, properties);
+
+            return loadAndNormalizeTextures(files, TEXTURE_LOADER_THREADS, properties.limits().maxImageDimension2D(), Engine::supportsCompressedFormat);
+        }
+    }
+
+    private static boolean supportsCompressedFormat(int format) {
+        if (CompressedImage.isEtc2(format) ? !textureCompressionETC2 : !textureCompressionBC) return false;
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkFormatProperties formatProperties = VkFormatProperties.callocStack(stack);
+            vkGetPhysicalDeviceFormatProperties(physicalDevice, format, formatProperties);
+
+            int required = VK_FORMAT_FEATURE_SAMPLED_IMAGE_BIT | VK_FORMAT_FEATURE_SAMPLED_IMAGE_FILTER_LINEAR_BIT;
+            return (formatProperties.optimalTilingFeatures() & required) == required;
+        }
+    }
+
+    // every compressed texture gets decoded, for callers without a device
+    static TextureAtlas loadAndNormalizeTextures(File files[], int threads, int maxLayerSize) throws Exception {
+        return loadAndNormalizeTextures(files, threads, maxLayerSize, format -> false);
+    }
+
+    // places the sprites of createRenderEntity in atlas, for callers without a device. There is no mesh buffer
+    // either, so every texture is drawn as the quad
+    static void useTextureAtlas(TextureAtlas atlas) {
+        textureAtlas = atlas;
+        textureMeshes = new int[numTextures];
+    }
+
+    // Decodes every file and packs them at their native size into the layers of an atlas. Only images that
+    // don't fit into a layer of maxLayerSize are scaled down. KTX2/DDS files in a format the device samples
+    // (formatSupported) skip all of that and are grouped into compressedPages instead. Needs no device,
+    // the result is composed later
+    static TextureAtlas loadAndNormalizeTextures(File files[], int threads, int maxLayerSize, IntPredicate formatSupported) throws Exception {
+        long startTime = System.nanoTime();
+
+        // listFiles() has no defined order, sorting keeps the texture ids the same from run to run
+        files = files.clone();
+        Arrays.sort(files, Comparator.comparing(File::getName));
+
+        numTextures = files.length;
+        textureCatalogue.clear();
+        for (int i = 0; i < numTextures; ++i) {
+            textureCatalogue.put(files[i].getName(), i);
+        }
+
+        int poolSize = Math.max(1, Math.min(threads, numTextures));
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        DecodedImage images[] = new DecodedImage[numTextures];
+        CompressedImage compressed[] = new CompressedImage[numTextures];
+
+        try {
+            // mapping a container only reads its header, that stays here, decoding the unsupported ones goes to the pool
+            List<Future<DecodedImage>> decoded = new ArrayList<>(numTextures);
+            for (int i = 0; i < numTextures; ++i) {
+                File file = files[i];
+                if (CompressedImage.isContainer(file)) {
+                    CompressedImage image = CompressedImage.load(file);
+                    if (formatSupported.test(image.format)) {
+                        compressed[i] = image;
+                        decoded.add(CompletableFuture.completedFuture(null));
+                    } else if (!CompressedImage.canDecode(image.format)) {
+                        // before any decoding starts, there is no point in loading the rest
+                        throw new RuntimeException(CompressedImage.undecodableMessage(file.getName()));
+                    } else {
+                        decoded.add(pool.submit(() -> image.decode(file.getName())));
+                    }
+                } else {
+                    decoded.add(pool.submit(() -> DecodedImage.load(file.getAbsolutePath())));
+                }
+            }
+            awaitAll(decoded, images);
+
+            int layerSize = TextureAtlas.chooseLayerSize(images, maxLayerSize);
+            int maxContentSize = layerSize - 2 * TextureAtlas.PADDING;
+
+            List<Future<DecodedImage>> fitted = new ArrayList<>(numTextures);
+            for (int i = 0; i < numTextures; ++i) {
+                DecodedImage image = images[i];
+                String name = files[i].getName();
+                fitted.add(image == null ? CompletableFuture.completedFuture(null) : pool.submit(() -> image.fitInto(maxContentSize, maxContentSize, name)));
+            }
+            awaitAll(fitted, images);
+
+            // checked after fitting, the atlas gets the scaled texels
+            List<Future<Boolean>> opaque = new ArrayList<>(numTextures);
+            for (int i = 0; i < numTextures; ++i) {
+                DecodedImage image = images[i];
+                opaque.add(image == null ? CompletableFuture.completedFuture(compressed[i].opaque()) : pool.submit(image::opaque));
+            }
+            Boolean opaqueResults[] = new Boolean[numTextures];
+            awaitAll(opaque, opaqueResults);
+            textureOpaque = new boolean[numTextures];
+            for (int i = 0; i < numTextures; ++i) textureOpaque[i] = opaqueResults[i];
+
+            // the same for the outlines, compressed textures aren't decoded so they keep the quad
+            List<Future<float[]>> outlines = new ArrayList<>(numTextures);
+            for (int i = 0; i < numTextures; ++i) {
+                DecodedImage image = images[i];
+                outlines.add(image == null ? CompletableFuture.completedFuture(SpriteOutline.quad()) : pool.submit(image::outline));
+            }
+            textureOutlines = new float[numTextures][];
+            awaitAll(outlines, textureOutlines);
+
+            compressedPages = new ArrayList<>();
+            texturePages = new int[numTextures];
+            texturePageLayers = new int[numTextures];
+            for (int i = 0; i < numTextures; ++i) {
+                if (compressed[i] == null) continue;
+
+                int page = 0;
+                while (page < compressedPages.size() && !compressedPages.get(page).accepts(compressed[i])) page++;
+                if (page == compressedPages.size()) {
+                    if (page + 1 >= RUNTIME_TEXTURE_PAGE) throw new RuntimeException("Compressed textures need more than " + (RUNTIME_TEXTURE_PAGE - 1) + " pages, use fewer formats or sizes");
+                    compressedPages.add(new CompressedPage(compressed[i]));
+                }
+                texturePages[i] = page + 1;
+                texturePageLayers[i] = compressedPages.get(page).add(compressed[i]);
+            }
+
+            TextureAtlas atlas = new TextureAtlas(layerSize, images);
+            images = null; // owned by the atlas now
+
+            if(STATS) {
+                System.out.printf("Loaded %d textures in %.1f ms on %d threads (%d kept compressed in %d pages)%n",
+                        numTextures, (System.nanoTime() - startTime) / 1e6, poolSize,
+                        Arrays.stream(compressed).filter(Objects::nonNull).count(), compressedPages.size());
+            }
+
+            return atlas;
+        } finally {
+            pool.shutdown();
+            if (images != null) {
+                for (DecodedImage image : images) if (image != null) image.free();
+            }
+        }
+    }
+
+    // waits for every task, even after a failure, so nothing is still writing into results when we clean up
+    static <T> void awaitAll(List<Future<T>> futures, T results[]) throws Exception {
+        Exception failure = null;
+        for (int i = 0; i < futures.size(); ++i) {
+            try {
+                results[i] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                if (failure == null) failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private static void createTextureImage(UploadBatch uploads) {
+        try(MemoryStack stack = stackPush()) {
+
+            try {
+                textureAtlas = loadAndNormalizeTextures();
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException("could not load textures");
+            }
+
+            int layerSize = textureAtlas.layerSize();
+            int layerCount = textureAtlas.layerCount();
+            // no more levels than the slot grid allows, past that a texel would cover two textures
+            textureMipLevels = Math.min(TextureAtlas.MIP_LEVELS, mipLevelCount(layerSize));
+
+            // blitting needs linear filtering and both blit features on optimal tiling, otherwise the chain is built on the CPU
+            boolean blitMipmaps = supportsLinearBlit(VK_FORMAT_R8G8B8A8_SRGB);
+            long totalImageSize = blitMipmaps ? textureAtlas.sizeInBytes() : mipChainSizeInBytes(layerSize, layerCount, textureMipLevels);
+
+            if(STATS) {
+                System.out.printf("Texture atlas: %d textures on %d layers of %dx%d, %.1f MB (%.1f MB as one max-sized layer per texture)%n",
+                        textureAtlas.imageCount(), textureAtlas.layerCount(), layerSize, layerSize,
+                        textureAtlas.sizeInBytes() / (1024.0 * 1024.0), textureAtlas.unpackedSizeInBytes() / (1024.0 * 1024.0));
+                System.out.printf("Texture mipmaps: %d levels, generated on the %s%n", textureMipLevels, blitMipmaps ? "GPU" : "CPU");
+            }
+
+            // composed in host memory first, the ring takes it from there one layer and level at a time
+            long pixels = MemoryUtil.nmemAlloc(totalImageSize);
+            if(pixels == NULL) throw new RuntimeException("Failed to allocate " + totalImageSize + " bytes for the texture atlas");
+            // this also frees the decoded images
+            textureAtlas.compose(pixels);
+            if(!blitMipmaps) {
+                downsampleMipChain(pixels, layerSize, layerCount, textureMipLevels);
+            }
+
+            LongBuffer pTextureImage = stack.mallocLong(1);
+
+            // creating the image
+            {
+                VkImageCreateInfo imageInfo = VkImageCreateInfo.callocStack(stack);
+                imageInfo.sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO);
+                imageInfo.imageType(VK_IMAGE_TYPE_2D);
+                imageInfo.extent().width(layerSize);
+                imageInfo.extent().height(layerSize);
+                imageInfo.extent().depth(1);
+                imageInfo.mipLevels(textureMipLevels);
+                imageInfo.arrayLayers(layerCount);
+                imageInfo.format(VK_FORMAT_R8G8B8A8_SRGB);
+                imageInfo.tiling(VK_IMAGE_TILING_OPTIMAL);
+                imageInfo.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+                imageInfo.usage(VK_IMAGE_USAGE_TRANSFER_SRC_BIT | VK_IMAGE_USAGE_TRANSFER_DST_BIT | VK_IMAGE_USAGE_SAMPLED_BIT);
+                imageInfo.samples(VK_SAMPLE_COUNT_1_BIT);
+                imageInfo.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+
+                if(vkCreateImage(device, imageInfo, null, pTextureImage) != VK_SUCCESS) throw new RuntimeException("Failed to create image");
+            }
+
+            textureImage       = pTextureImage.get(0);
+            textureImageMemory = allocateImageMemory(textureImage, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+
+            uploads.transition(textureImage,
+                    VK_IMAGE_LAYOUT_UNDEFINED,
+                    VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
+                    textureMipLevels,
+                    layerCount);
+
+            // the blit path only uploads level 0, the CPU path has every level laid out one after the other
+            int uploadedLevels = blitMipmaps ? 1 : textureMipLevels;
+            long offset = 0;
+            for(int level = 0; level < uploadedLevels; level++) {
+                int levelSize = Math.max(1, layerSize >> level);
+                for(int layer = 0; layer < layerCount; layer++) {
+                    uploads.copyToImage(pixels + offset, textureImage, level, layer, levelSize, levelSize, 1, STBI_rgb_alpha);
+                    offset += (long) levelSize * levelSize * STBI_rgb_alpha;
+                }
+            }
+            // the pixels are in the ring by now
+            MemoryUtil.nmemFree(pixels);
+
+            if(blitMipmaps) {
+                uploads.generateMipmaps(textureImage, layerSize, layerCount, textureMipLevels);
+            } else {
+                uploads.transition(textureImage,
+                        VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
+                        VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL,
+                        textureMipLevels,
+                        layerCount);
+            }
+        }
+
+        for(CompressedPage page : compressedPages) {
+            createCompressedPageImage(page, uploads);
+        }
+    }
+
+    // the blocks go from the mapped files into the staging ring and from there into the image, nothing is decoded
+    private static void createCompressedPageImage(CompressedPage page, UploadBatch uploads) {
+
+        try(MemoryStack stack = stackPush()) {
+
+            long totalImageSize = page.sizeInBytes();
+
+            if(STATS) {
+                System.out.printf("Compressed texture page: format %d, %d layers of %dx%d with %d levels, %.1f MB%n",
+                        page.format, page.layerCount(), page.width, page.height, page.mipLevels, totalImageSize / (1024.0 * 1024.0));
+            }
+
+            LongBuffer pImage = stack.mallocLong(1);
+
+            VkImageCreateInfo imageInfo = VkImageCreateInfo.callocStack(stack);
+            imageInfo.sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO);
+            imageInfo.imageType(VK_IMAGE_TYPE_2D);
+            imageInfo.extent().width(page.width);
+            imageInfo.extent().height(page.height);
+            imageInfo.extent().depth(1);
+            imageInfo.mipLevels(page.mipLevels);
+            imageInfo.arrayLayers(page.layerCount());
+            imageInfo.format(page.format);
+            imageInfo.tiling(VK_IMAGE_TILING_OPTIMAL);
+            imageInfo.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+            imageInfo.usage(VK_IMAGE_USAGE_TRANSFER_DST_BIT | VK_IMAGE_USAGE_SAMPLED_BIT);
+            imageInfo.samples(VK_SAMPLE_COUNT_1_BIT);
+            imageInfo.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+
+            if(vkCreateImage(device, imageInfo, null, pImage) != VK_SUCCESS) throw new RuntimeException("Failed to create compressed image");
+
+            page.image  = pImage.get(0);
+            page.memory = allocateImageMemory(page.image, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+
+            uploads.transition(page.image,
+                    VK_IMAGE_LAYOUT_UNDEFINED,
+                    VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
+                    page.mipLevels,
+                    page.layerCount());
+
+            // straight from the mapped files into the ring, one layer and level at a time
+            for(int layer = 0; layer < page.layerCount(); layer++) {
+                CompressedImage image = page.images.get(layer);
+                for(int level = 0; level < page.mipLevels; level++) {
+                    uploads.copyToImage(image.levelAddress(level), page.image, level, layer,
+                            Math.max(1, page.width >> level), Math.max(1, page.height >> level), 4, CompressedImage.blockBytes(page.format));
+                }
+            }
+
+            uploads.transition(page.image,
+                    VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
+                    VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL,
+                    page.mipLevels,
+                    page.layerCount());
+        }
+    }
+
+    private static int mipLevelCount(int size) {
+        return 32 - Integer.numberOfLeadingZeros(size); // floor(log2(size)) + 1
+    }
+
+    private static boolean supportsLinearBlit(int format) {
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkFormatProperties formatProperties = VkFormatProperties.callocStack(stack);
+            vkGetPhysicalDeviceFormatProperties(physicalDevice, format, formatProperties);
+
+            int required = VK_FORMAT_FEATURE_BLIT_SRC_BIT | VK_FORMAT_FEATURE_BLIT_DST_BIT | VK_FORMAT_FEATURE_SAMPLED_IMAGE_FILTER_LINEAR_BIT;
+            return (formatProperties.optimalTilingFeatures() & required) == required;
+        }
+    }
+
+    // ===> CPU mipmap fallback <===
+
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+    private static final byte[] LINEAR_TO_SRGB = new byte[4096];
+
+    static {
+        for(int i = 0; i < SRGB_TO_LINEAR.length; i++) {
+            double c = i / 255.0;
+            SRGB_TO_LINEAR[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+        for(int i = 0; i < LINEAR_TO_SRGB.length; i++) {
+            double l = i / (double) (LINEAR_TO_SRGB.length - 1);
+            double c = l <= 0.0031308 ? l * 12.92 : 1.055 * Math.pow(l, 1.0 / 2.4) - 0.055;
+            LINEAR_TO_SRGB[i] = (byte) Math.round(c * 255.0);
+        }
+    }
+
+    /** Size of a square RGBA8 image array with every level stored one after the other, each level holding all layers. */
+    static long mipChainSizeInBytes(int size, int layers, int mipLevels) {
+        long total = 0;
+        for(int level = 0; level < mipLevels; level++) {
+            long levelSize = Math.max(1, size >> level);
+            total += levelSize * levelSize * 4 * layers;
+        }
+        return total;
+    }
+
+    /**
+     * Fills levels 1..mipLevels-1 behind level 0 at {@code address} with a 2x2 box filter.
+     * Colour is averaged in linear space like a blit of an sRGB image would, alpha as is.
+     */
+    static void downsampleMipChain(long address, int size, int layers, int mipLevels) {
+
+        long src = address;
+        int srcSize = size;
+
+        for(int level = 1; level < mipLevels; level++) {
+
+            int dstSize = Math.max(1, srcSize / 2);
+            long dst = src + (long) srcSize * srcSize * 4 * layers;
+            long srcLayerBytes = (long) srcSize * srcSize * 4;
+            long dstLayerBytes = (long) dstSize * dstSize * 4;
+
+            for(int layer = 0; layer < layers; layer++) {
+                downsample(src + layer * srcLayerBytes, srcSize, srcSize, dst + layer * dstLayerBytes);
+            }
+
+            src = dst;
+            srcSize = dstSize;
+        }
+    }
+
+    // one 2x2 box filter step from a srcWidth x srcHeight RGBA8 image at src to the half sized one at dst
+    static void downsample(long src, int srcWidth, int srcHeight, long dst) {
+
+        int dstWidth = Math.max(1, srcWidth / 2);
+        int dstHeight = Math.max(1, srcHeight / 2);
+
+        for(int y = 0; y < dstHeight; y++) {
+
+            long row0 = src + (long) Math.min(2 * y, srcHeight - 1) * srcWidth * 4;
+            long row1 = src + (long) Math.min(2 * y + 1, srcHeight - 1) * srcWidth * 4;
+            long out = dst + (long) y * dstWidth * 4;
+
+            for(int x = 0; x < dstWidth; x++) {
+
+                long x0 = (long) Math.min(2 * x, srcWidth - 1) * 4;
+                long x1 = (long) Math.min(2 * x + 1, srcWidth - 1) * 4;
+
+                for(int c = 0; c < 3; c++) {
+                    float sum = SRGB_TO_LINEAR[MemoryUtil.memGetByte(row0 + x0 + c) & 0xFF]
+                            + SRGB_TO_LINEAR[MemoryUtil.memGetByte(row0 + x1 + c) & 0xFF]
+                            + SRGB_TO_LINEAR[MemoryUtil.memGetByte(row1 + x0 + c) & 0xFF]
+                            + SRGB_TO_LINEAR[MemoryUtil.memGetByte(row1 + x1 + c) & 0xFF];
+                    MemoryUtil.memPutByte(out + x * 4L + c, LINEAR_TO_SRGB[Math.round(sum * 0.25f * (LINEAR_TO_SRGB.length - 1))]);
+                }
+
+                int alpha = (MemoryUtil.memGetByte(row0 + x0 + 3) & 0xFF)
+                        + (MemoryUtil.memGetByte(row0 + x1 + 3) & 0xFF)
+                        + (MemoryUtil.memGetByte(row1 + x0 + 3) & 0xFF)
+                        + (MemoryUtil.memGetByte(row1 + x1 + 3) & 0xFF);
+                MemoryUtil.memPutByte(out + x * 4L + 3, (byte) ((alpha + 2) / 4));
+            }
+        }
+    }
+
+    private static void createTextureImageView() {
+        textureImageView = createImageView(textureImage, VK_FORMAT_R8G8B8A8_SRGB, VK_IMAGE_VIEW_TYPE_2D_ARRAY, textureMipLevels, textureAtlas.layerCount());
+
+        for(CompressedPage page : compressedPages) {
+            page.view = createImageView(page.image, page.format, VK_IMAGE_VIEW_TYPE_2D_ARRAY, page.mipLevels, page.layerCount());
+        }
+
+        runtimeTextures.view = createImageView(runtimeTextures.image, VK_FORMAT_R8G8B8A8_SRGB, VK_IMAGE_VIEW_TYPE_2D_ARRAY, runtimeTextures.mipLevels, runtimeTextures.layerCount);
+    }
+
+    private static void createTextureSampler() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkSamplerCreateInfo samplerInfo = VkSamplerCreateInfo.callocStack(stack);
+            samplerInfo.sType(VK_STRUCTURE_TYPE_SAMPLER_CREATE_INFO);
+            samplerInfo.magFilter(VK_FILTER_LINEAR);
+            samplerInfo.minFilter(VK_FILTER_LINEAR);
+            // textures are sub-rectangles of the atlas layers, repeating would sample the neighbours
+            samplerInfo.addressModeU(VK_SAMPLER_ADDRESS_MODE_CLAMP_TO_EDGE);
+            samplerInfo.addressModeV(VK_SAMPLER_ADDRESS_MODE_CLAMP_TO_EDGE);
+            samplerInfo.addressModeW(VK_SAMPLER_ADDRESS_MODE_CLAMP_TO_EDGE);
+            samplerInfo.anisotropyEnable(true);
+            samplerInfo.maxAnisotropy(16.0f);
+            samplerInfo.borderColor(VK_BORDER_COLOR_INT_OPAQUE_BLACK);
+            samplerInfo.unnormalizedCoordinates(false);
+            samplerInfo.compareEnable(false);
+            samplerInfo.compareOp(VK_COMPARE_OP_ALWAYS);
+            samplerInfo.mipmapMode(VK_SAMPLER_MIPMAP_MODE_LINEAR);
+            samplerInfo.minLod(0.0f);
+            int maxMipLevels = textureMipLevels;
+            for(CompressedPage page : compressedPages) maxMipLevels = Math.max(maxMipLevels, page.mipLevels);
+            maxMipLevels = Math.max(maxMipLevels, runtimeTextures.mipLevels);
+            samplerInfo.maxLod((float) maxMipLevels);
+            samplerInfo.mipLodBias(0.0f);
+
+            LongBuffer pTextureSampler = stack.mallocLong(1);
+
+            if(vkCreateSampler(device, samplerInfo, null, pTextureSampler) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create texture sampler");
+            }
+
+            textureSampler = pTextureSampler.get(0);
+        }
+    }
+
+    private static long createImageView(long image, int format, int type, int mipLevels, int layerCount) { // VK_IMAGE_VIEW_TYPE_2D or VK_IMAGE_VIEW_TYPE_2D_ARRAY
+        return createImageView(image, format, type, mipLevels, layerCount, VK_IMAGE_ASPECT_COLOR_BIT);
+    }
+
+    private static long createImageView(long image, int format, int type, int mipLevels, int layerCount, int aspectMask) {
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkImageViewCreateInfo viewInfo = VkImageViewCreateInfo.callocStack(stack);
+            viewInfo.sType(VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO);
+            viewInfo.image(image);
+            viewInfo.viewType(type);
+            viewInfo.format(format);
+            viewInfo.subresourceRange().aspectMask(aspectMask);
+            viewInfo.subresourceRange().baseMipLevel(0);
+            viewInfo.subresourceRange().levelCount(mipLevels);
+            viewInfo.subresourceRange().baseArrayLayer(0);
+            viewInfo.subresourceRange().layerCount(layerCount);
+
+            LongBuffer pImageView = stack.mallocLong(1);
+
+            if(vkCreateImageView(device, viewInfo, null, pImageView) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create image view");
+            }
+
+            return pImageView.get(0);
+        }
+    }
+
+    // The draws of every swapchain image live in its secondary command buffers, recorded here and again when the
+    // image's instance buffer grows. The primary that runs them is recorded every frame, see recordFrameCommandBuffer
+    private static void createCommandBuffers() {
+
+        final int commandBuffersCount = swapChainFramebuffers.size();
+
+        secondaryCommandBuffers = new ArrayList<>(commandBuffersCount);
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkCommandBufferAllocateInfo secondaryAllocInfo = VkCommandBufferAllocateInfo.callocStack(stack);
+            secondaryAllocInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
+            secondaryAllocInfo.level(VK_COMMAND_BUFFER_LEVEL_SECONDARY);
+            secondaryAllocInfo.commandBufferCount(1);
+
+            PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+
+            for(int i = 0;i < commandBuffersCount;i++) {
+                VkCommandBuffer[] secondaries = new VkCommandBuffer[DRAW_PASSES * drawBatches];
+
+                for(int batch = 0;batch < secondaries.length;batch++) {
+                    secondaryAllocInfo.commandPool(recordingPools[batch % RECORDING_THREADS]);
+
+                    if(vkAllocateCommandBuffers(device, secondaryAllocInfo, pCommandBuffer) != VK_SUCCESS) {
+                        throw new RuntimeException("Failed to allocate secondary command buffers");
+                    }
+                    secondaries[batch] = new VkCommandBuffer(pCommandBuffer.get(0), device);
+                }
+
+                secondaryCommandBuffers.add(secondaries);
+            }
+        }
+
+        for(int i = 0; i < commandBuffersCount; ++i) {
+            recordCommandBuffer(i);
+        }
+    }
+
+    private static void recordCommandBuffer(int i) {
+        recordCommandBuffer(i, RECORDING_THREADS);
+    }
+
+    private static void recordCommandBuffer(int i, int threads) {
+        long startTime = System.nanoTime();
+        recordSecondaryCommandBuffers(i, threads);
+        lastRecordingNanos = System.nanoTime() - startTime;
+    }
+
+    // only a handful of commands, the draws are in the secondaries of the image
+    private static void recordFrameCommandBuffer(Frame frame, int imageIndex) {
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
+            beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+            beginInfo.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+
+            VkRenderPassBeginInfo renderPassInfo = VkRenderPassBeginInfo.callocStack(stack);
+            renderPassInfo.sType(VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO);
+
+            renderPassInfo.renderPass(renderPass);
+
+            VkRect2D renderArea = VkRect2D.callocStack(stack);
+            renderArea.offset(VkOffset2D.callocStack(stack).set(0, 0));
+            renderArea.extent(swapChainExtent);
+            renderPassInfo.renderArea(renderArea);
+
+            VkClearValue.Buffer clearValues = VkClearValue.callocStack(2, stack);
+            clearValues.get(0).color().float32(stack.floats(0.0f, 0.0f, 0.0f, 1.0f));
+            clearValues.get(1).depthStencil().set(1.0f, 0);
+            renderPassInfo.pClearValues(clearValues);
+
+            VkCommandBuffer commandBuffer = frame.commandBuffer;
+
+            // the pool is created with RESET_COMMAND_BUFFER, so beginning again implicitly resets it
+            if (vkBeginCommandBuffer(commandBuffer, beginInfo) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to begin recording command buffer");
+            }
+
+            beginGpuTiming(frame);
+            writeTimestamp(frame, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT);
+
+            if(gpuCulling) {
+                recordCulling(commandBuffer, imageIndex);
+            }
+
+            renderPassInfo.framebuffer(swapChainFramebuffers.get(imageIndex));
+
+            beginFragmentStatistics(frame);
+
+            // the draws themselves are all in the secondary command buffers, every opaque batch before the alpha ones
+            vkCmdBeginRenderPass(commandBuffer, renderPassInfo, VK_SUBPASS_CONTENTS_SECONDARY_COMMAND_BUFFERS);
+
+            VkCommandBuffer[] secondaries = secondaryCommandBuffers.get(imageIndex);
+            PointerBuffer pSecondaries = stack.mallocPointer(secondaries.length);
+            for(VkCommandBuffer secondary : secondaries) {
+                pSecondaries.put(secondary);
+            }
+            vkCmdExecuteCommands(commandBuffer, pSecondaries.flip());
+
+            vkCmdEndRenderPass(commandBuffer);
+
+            endFragmentStatistics(frame);
+
+            writeTimestamp(frame, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT);
+
+            if (vkEndCommandBuffer(commandBuffer) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to record command buffer");
+            }
+        }
+    }
+
+    // the passes of cull.comp, see the comment at its top. Each pass reads what the one before wrote, the draws
+    // read the visible list and the indirect commands, and the CPU reads the counts back next time around
+    private static void recordCulling(VkCommandBuffer commandBuffer, int image) {
+
+        try(MemoryStack stack = stackPush()) {
+
+            int count = nextRenderEntityId;
+            int groups = (count + CULL_GROUP_SIZE - 1) / CULL_GROUP_SIZE;
+
+            vkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, pipelineLayout, 0, stack.longs(descriptorSets.get(image)), null);
+            vkCmdPushConstants(commandBuffer, pipelineLayout, VK_SHADER_STAGE_COMPUTE_BIT, 0, stack.ints(count, drawBatches));
+
+            VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.callocStack(1, stack);
+            barrier.sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER);
+            barrier.srcAccessMask(VK_ACCESS_SHADER_WRITE_BIT);
+            barrier.dstAccessMask(VK_ACCESS_SHADER_READ_BIT | VK_ACCESS_SHADER_WRITE_BIT);
+
+            int passGroups[] = { groups, 1, groups }; // the scan is a single workgroup
+            for(int pass = 0;pass < CULL_PASSES;pass++) {
+                if(pass > 0) {
+                    vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, 0, barrier, null, null);
+                }
+                vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, cullPipelines[pass]);
+                vkCmdDispatch(commandBuffer, passGroups[pass], 1, 1);
+            }
+
+            barrier.dstAccessMask(VK_ACCESS_INDIRECT_COMMAND_READ_BIT | VK_ACCESS_SHADER_READ_BIT | VK_ACCESS_HOST_READ_BIT);
+            vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT,
+                    VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT | VK_PIPELINE_STAGE_VERTEX_SHADER_BIT | VK_PIPELINE_STAGE_HOST_BIT, 0, barrier, null, null);
+        }
+    }
+
+    // Every task records the secondaries of the pools it owns, pool p belongs to task p % threads, and the render
+    // thread waits for all of them. The render thread takes the first task itself instead of sitting idle
+    private static void recordSecondaryCommandBuffers(int image, int threads) {
+
+        int secondaries = DRAW_PASSES * drawBatches;
+        int tasks = recordingExecutor == null ? 1 : Math.min(Math.min(threads, RECORDING_THREADS), secondaries);
+
+        if(tasks <= 1) {
+            for(int secondary = 0;secondary < secondaries;secondary++) {
+                recordSecondaryCommandBuffer(image, secondary);
+            }
+            return;
+        }
+
+        List<Future<Void>> futures = new ArrayList<>(tasks - 1);
+        for(int task = 1;task < tasks;task++) {
+            final int owner = task;
+            futures.add(recordingExecutor.submit(() -> {
+                recordOwnedSecondaries(image, owner, tasks);
+                return null;
+            }));
+        }
+
+        try {
+            recordOwnedSecondaries(image, 0, tasks);
+            awaitAll(futures, new Void[futures.size()]);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to record secondary command buffers", e);
+        }
+    }
+
+    private static void recordOwnedSecondaries(int image, int task, int tasks) {
+        for(int secondary = 0;secondary < DRAW_PASSES * drawBatches;secondary++) {
+            if(secondary % RECORDING_THREADS % tasks == task) recordSecondaryCommandBuffer(image, secondary);
+        }
+    }
+
+    // secondary is pass * drawBatches + batch, and so is its indirect command
+    private static void recordSecondaryCommandBuffer(int image, int secondary) {
+
+        int pass = secondary / drawBatches;
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkCommandBufferInheritanceInfo inheritanceInfo = VkCommandBufferInheritanceInfo.callocStack(stack);
+            inheritanceInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_INFO);
+            inheritanceInfo.renderPass(renderPass);
+            inheritanceInfo.subpass(0);
+            inheritanceInfo.framebuffer(swapChainFramebuffers.get(image));
+            if(fragmentStatistics) {
+                inheritanceInfo.pipelineStatistics(PIPELINE_STATISTICS);
+            }
+
+            VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
+            beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+            beginInfo.flags(VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT);
+            beginInfo.pInheritanceInfo(inheritanceInfo);
+
+            VkCommandBuffer commandBuffer = secondaryCommandBuffers.get(image)[secondary];
+
+            if (vkBeginCommandBuffer(commandBuffer, beginInfo) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to begin recording secondary command buffer");
+            }
+
+            vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, graphicsPipelines[pass]);
+
+            LongBuffer vertexBuffers = stack.longs(vertexBuffer);
+            LongBuffer offsets = stack.longs(0);
+            vkCmdBindVertexBuffers(commandBuffer, 0, vertexBuffers, offsets);
+            vkCmdBindIndexBuffer(commandBuffer, meshBuffer, 0, VK_INDEX_TYPE_UINT16);
+
+            vkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS,  pipelineLayout, 0, stack.longs(descriptorSets.get(image)), null);
+
+            // first instance and instance count are read from the indirect buffer when the GPU executes this, so
+            // creating and destroying entities never requires re-recording
+            vkCmdDrawIndexedIndirect(commandBuffer, indirectBuffers.get(image), (long) secondary * VkDrawIndexedIndirectCommand.SIZEOF, 1, VkDrawIndexedIndirectCommand.SIZEOF);
+
+            if (vkEndCommandBuffer(commandBuffer) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to record secondary command buffer");
+            }
+        }
+    }
+
+    // wall time of the last recordCommandBuffer, all secondaries of one image
+    public static long getLastRecordingNanos() {
+        return lastRecordingNanos;
+    }
+
+    // the most threads recording can be spread over, -Dengine.recordingThreads
+    public static int getRecordingThreads() {
+        return RECORDING_THREADS;
+    }
+
+    // records the secondaries of every image again on up to threads threads and returns the mean wall time per
+    // image, for measuring how recording scales with the thread count
+    public static long rerecordCommandBuffers(int threads) {
+        vkDeviceWaitIdle(device);
+        long total = 0;
+        for(int i = 0;i < swapChainImages.size();i++) {
+            recordCommandBuffer(i, threads);
+            total += lastRecordingNanos;
+        }
+        return total / swapChainImages.size();
+    }
+
+    // what benchmarkUploads measured
+    static final class UploadTiming {
+        final long submits;
+        final long barriers;
+        final long nanos; // until the GPU was done
+
+        UploadTiming(long submits, long barriers, long nanos) {
+            this.submits = submits;
+            this.barriers = barriers;
+            this.nanos = nanos;
+        }
+    }
+
+    // Uploads count textures of size x size texels into images of their own, which are destroyed again afterwards.
+    // Batched, all of them go through one UploadBatch the way the startup uploads do, otherwise every texture gets
+    // its own batch, submitted and waited for before the next one starts, like a single time command buffer per
+    // texture. Only for HeadlessMain -Dengine.uploadBatch
+    static UploadTiming benchmarkUploads(int count, int size, boolean batched) {
+        long imageSize = (long) size * size * STBI_rgb_alpha;
+        long pixels = MemoryUtil.nmemCalloc(1, imageSize); // what they hold doesn't matter
+        long images[] = new long[count];
+        DeviceMemoryAllocator.Allocation memory[] = new DeviceMemoryAllocator.Allocation[count];
+
+        // created up front, only the uploads are timed
+        try(MemoryStack stack = stackPush()) {
+
+            VkImageCreateInfo imageInfo = VkImageCreateInfo.callocStack(stack);
+            imageInfo.sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO);
+            imageInfo.imageType(VK_IMAGE_TYPE_2D);
+            imageInfo.extent().set(size, size, 1);
+            imageInfo.mipLevels(1);
+            imageInfo.arrayLayers(1);
+            imageInfo.format(VK_FORMAT_R8G8B8A8_SRGB);
+            imageInfo.tiling(VK_IMAGE_TILING_OPTIMAL);
+            imageInfo.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+            imageInfo.usage(VK_IMAGE_USAGE_TRANSFER_DST_BIT | VK_IMAGE_USAGE_SAMPLED_BIT);
+            imageInfo.samples(VK_SAMPLE_COUNT_1_BIT);
+            imageInfo.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+
+            LongBuffer pImage = stack.mallocLong(1);
+            for(int i = 0;i < count;i++) {
+                if(vkCreateImage(device, imageInfo, null, pImage) != VK_SUCCESS) throw new RuntimeException("Failed to create image");
+                images[i] = pImage.get(0);
+                memory[i] = allocateImageMemory(images[i], VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+            }
+        }
+
+        long submits = 0, barriers = 0;
+        long startTime = System.nanoTime();
+
+        if(batched) {
+            // every transition of a kind goes out with the first copy or the submit, as one barrier
+            UploadBatch uploads = new UploadBatch();
+            for(long image : images) uploads.transition(image, VK_IMAGE_LAYOUT_UNDEFINED, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, 1, 1);
+            for(long image : images) uploads.copyToImage(pixels, image, 0, 0, size, size, 1, STBI_rgb_alpha);
+            for(long image : images) uploads.transition(image, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL, 1, 1);
+            uploads.await();
+            submits = uploads.submits;
+            barriers = uploads.barriers;
+        } else {
+            for(long image : images) {
+                UploadBatch uploads = new UploadBatch();
+                uploads.transition(image, VK_IMAGE_LAYOUT_UNDEFINED, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, 1, 1);
+                uploads.copyToImage(pixels, image, 0, 0, size, size, 1, STBI_rgb_alpha);
+                uploads.transition(image, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL, 1, 1);
+                uploads.await();
+                submits += uploads.submits;
+                barriers += uploads.barriers;
+            }
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+
+        for(int i = 0;i < count;i++) {
+            vkDestroyImage(device, images[i], null);
+            memoryAllocator.free(memory[i]);
+        }
+        MemoryUtil.nmemFree(pixels);
+
+        return new UploadTiming(submits, barriers, elapsed);
+    }
+
+    private static void createSyncObjects() {
+
+        inFlightFrames = new ArrayList<>(MAX_FRAMES_IN_FLIGHT);
+        imagesInFlight = new HashMap<>(swapChainImages.size());
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkSemaphoreCreateInfo semaphoreInfo = VkSemaphoreCreateInfo.callocStack(stack);
+            semaphoreInfo.sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
+
+            VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.callocStack(stack);
+            fenceInfo.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+            fenceInfo.flags(VK_FENCE_CREATE_SIGNALED_BIT);
+
+            LongBuffer pImageAvailableSemaphore = stack.mallocLong(1);
+            LongBuffer pRenderFinishedSemaphore = stack.mallocLong(1);
+            LongBuffer pFence = stack.mallocLong(1);
+
+            VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.callocStack(stack);
+            allocInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
+            allocInfo.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY);
+            allocInfo.commandPool(commandPool);
+            allocInfo.commandBufferCount(2);
+
+            PointerBuffer pCommandBuffer = stack.mallocPointer(2);
+
+            for(int i = 0;i < MAX_FRAMES_IN_FLIGHT;i++) {
+
+                if(vkCreateSemaphore(device, semaphoreInfo, null, pImageAvailableSemaphore) != VK_SUCCESS
+                        || vkCreateSemaphore(device, semaphoreInfo, null, pRenderFinishedSemaphore) != VK_SUCCESS
+                        || vkCreateFence(device, fenceInfo, null, pFence) != VK_SUCCESS) {
+                    throw new RuntimeException("Failed to create synchronization objects for the frame " + i);
+                }
+
+                if(vkAllocateCommandBuffers(device, allocInfo, pCommandBuffer) != VK_SUCCESS) {
+                    throw new RuntimeException("Failed to allocate command buffers for the frame " + i);
+                }
+
+                Frame frame = new Frame(pImageAvailableSemaphore.get(0), pRenderFinishedSemaphore.get(0), pFence.get(0));
+                frame.uploadCommandBuffer = new VkCommandBuffer(pCommandBuffer.get(0), device);
+                frame.commandBuffer = new VkCommandBuffer(pCommandBuffer.get(1), device);
+                frame.queryPool = createTimestampQueryPool();
+                frame.statisticsPool = createStatisticsQueryPool();
+                inFlightFrames.add(frame);
+            }
+
+        }
+    }
+
+    public static void drawFrame() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            Frame thisFrame = inFlightFrames.get(currentFrame);
+
+            vkWaitForFences(device, thisFrame.pFence(), true, UINT64_MAX);
+
+            thisFrame.uploadSemaphores.forEach(semaphore -> vkDestroySemaphore(device, semaphore, null));
+            thisFrame.uploadSemaphores.clear();
+
+            if(thisFrame.stagingOffset >= 0) {
+                stagingRing.release(thisFrame.stagingOffset);
+                thisFrame.stagingOffset = -1;
+            }
+
+            readGpuTiming(thisFrame);
+            readFragmentStatistics(thisFrame);
+
+            IntBuffer pImageIndex = stack.mallocInt(1);
+
+            if(headless) {
+                // the offscreen images are simply taken in turn
+                pImageIndex.put(0, (lastRenderedImage + 1) % swapChainImages.size());
+            } else {
+                int vkResult = vkAcquireNextImageKHR(device, swapChain, UINT64_MAX, thisFrame.imageAvailableSemaphore(), VK_NULL_HANDLE, pImageIndex);
+
+                if(vkResult == VK_ERROR_OUT_OF_DATE_KHR) {
+                    recreateSwapChain();
+                    return;
+                }
+            }
+
+            final int imageIndex = pImageIndex.get(0);
+
+            // wait for the last frame that used this image before touching its buffers
+            if(imagesInFlight.containsKey(imageIndex)) {
+                vkWaitForFences(device, imagesInFlight.get(imageIndex).fence(), true, UINT64_MAX);
+            }
+
+            // before the entity updates, callbacks of finished loads may already point entities at the new textures
+            List<Long> uploadSemaphores = pollTextureUploads();
+
+            updateUniformBuffer(imageIndex);
+            boolean instancesUploaded = updateInstanceBuffer(imageIndex, thisFrame);
+            // a no-op unless a key changed or entities came or went
+            drawOrder.sort(nextRenderEntityId);
+
+            if(gpuCulling) {
+                // cull.comp writes the visible list and the draws, it is recorded with the frame
+                readGpuCullingCounts(imageIndex);
+                updateOrderBuffer(imageIndex);
+            } else {
+                cullEntities(imageIndex);
+            }
+            recordFrameCommandBuffer(thisFrame, imageIndex);
+
+            imagesInFlight.put(imageIndex, thisFrame);
+
+            VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack);
+            submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+
+            // headless frames have no image to wait for and nobody to signal
+            int firstUpload = headless ? 0 : 1;
+            int waitCount = firstUpload + uploadSemaphores.size();
+            LongBuffer pWaitSemaphores = stack.mallocLong(waitCount);
+            IntBuffer pWaitDstStageMask = stack.mallocInt(waitCount);
+            if(!headless) {
+                pWaitSemaphores.put(0, thisFrame.imageAvailableSemaphore());
+                pWaitDstStageMask.put(0, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT);
+            }
+            for(int i = 0;i < uploadSemaphores.size();i++) {
+                pWaitSemaphores.put(firstUpload + i, uploadSemaphores.get(i));
+                pWaitDstStageMask.put(firstUpload + i, VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT);
+            }
+
+            submitInfo.waitSemaphoreCount(waitCount);
+            if(waitCount > 0) {
+                submitInfo.pWaitSemaphores(pWaitSemaphores);
+                submitInfo.pWaitDstStageMask(pWaitDstStageMask);
+            }
+
+            if(!headless) submitInfo.pSignalSemaphores(thisFrame.pRenderFinishedSemaphore());
+
+            if(instancesUploaded) {
+                submitInfo.pCommandBuffers(stack.pointers(thisFrame.uploadCommandBuffer, thisFrame.commandBuffer));
+            } else {
+                submitInfo.pCommandBuffers(stack.pointers(thisFrame.commandBuffer));
+            }
+
+            vkResetFences(device, thisFrame.pFence());
+
+            if(vkQueueSubmit(graphicsQueue, submitInfo, thisFrame.fence()) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to submit draw command buffer");
+            }
+            thisFrame.uploadSemaphores.addAll(uploadSemaphores);
+            lastRenderedImage = imageIndex;
+
+            if(headless) {
+                currentFrame = (currentFrame + 1) % MAX_FRAMES_IN_FLIGHT;
+                return;
+            }
+
+            VkPresentInfoKHR presentInfo = VkPresentInfoKHR.callocStack(stack);
+            presentInfo.sType(VK_STRUCTURE_TYPE_PRESENT_INFO_KHR);
+
+            presentInfo.pWaitSemaphores(thisFrame.pRenderFinishedSemaphore());
+
+            presentInfo.swapchainCount(1);
+            presentInfo.pSwapchains(stack.longs(swapChain));
+
+            presentInfo.pImageIndices(pImageIndex);
+
+            int vkResult = vkQueuePresentKHR(presentQueue, presentInfo);
+
+            if(vkResult == VK_ERROR_OUT_OF_DATE_KHR || vkResult == VK_SUBOPTIMAL_KHR || framebufferResize) {
+                framebufferResize = false;
+                recreateSwapChain();
+            } else if(vkResult != VK_SUCCESS) {
+                throw new RuntimeException("Failed to present swap chain image");
+            }
+
+            currentFrame = (currentFrame + 1) % MAX_FRAMES_IN_FLIGHT;
+        }
+    }
+
+    private static void updateUniformBuffer(int currentImage) {
+        // the camera is tiny, it is simply rewritten every frame in place, no staging, see STAGED UPLOADS
+        packUniformBuffer(ubo, aspectRatio, uniformBuffersMapped.get(currentImage));
+
+        uploadedBytesLastFrame = UniformBufferObject.SIZEOF;
+    }
+
+    // writes the camera in the std140 layout of shader.vert to address, no Vulkan involved
+    static void packUniformBuffer(UniformBufferObject ubo, float aspectRatio, long address) {
+        ubo.projectionMatrix.identity().ortho2D(-aspectRatio, aspectRatio, -1.0f, 1.0f);
+        ubo.viewMatrix.identity();
+
+        ubo.viewMatrix.getToAddress(address + UniformBufferObject.VIEW_OFFSET);
+        ubo.projectionMatrix.getToAddress(address + UniformBufferObject.PROJECTION_OFFSET);
+    }
+
+    // records this frame's upload command buffer, returns false when there is nothing to upload
+    private static boolean updateInstanceBuffer(int currentImage, Frame frame) {
+
+        InstanceBuffer instanceBuffer = instanceBuffers.get(currentImage);
+
+        if(instanceBuffer.capacity < nextRenderEntityId) {
+            // The previous frame that used this image has finished (drawFrame waited for it), so nothing on the GPU
+            // references the old buffer anymore. Updating the descriptor set invalidates the command buffer that
+            // binds it, which is cheap to record again. No other image is affected.
+            instanceBuffer.free();
+            instanceBuffer.allocate(nextRenderEntityId);
+            writeInstanceDescriptors(currentImage);
+            recordCommandBuffer(currentImage);
+        }
+
+        BitSet dirty[] = instanceBuffer.dirty;
+        long wanted = 0;
+        int dirtyEntities = 0;
+        for(int stream = 0;stream < EntityStore.STREAM_COUNT;stream++) {
+            dirty[stream].clear(nextRenderEntityId, Math.max(nextRenderEntityId, dirty[stream].length())); // past the instance count nobody looks
+            int cardinality = dirty[stream].cardinality();
+            wanted += (long) cardinality * EntityStore.STREAM_STRIDES[stream];
+            dirtyEntities += cardinality;
+        }
+
+        if(wanted == 0 && instanceBuffer.cleared) return false;
+
+        // one staging range per frame, given back once this frame's fence has signalled. When the ring can't hold
+        // everything the rest stays dirty for the next frame instead of waiting
+        long budget = Math.min(wanted, stagingRing.largestFree());
+        if(budget < wanted) stagingRing.deferrals++;
+        long staging = budget > 0 ? stagingRing.allocate(budget) : -1;
+        frame.stagingOffset = staging;
+
+        VkCommandBuffer commandBuffer = frame.uploadCommandBuffer;
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
+            beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+            beginInfo.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+
+            vkBeginCommandBuffer(commandBuffer, beginInfo);
+
+            VkBufferMemoryBarrier.Buffer barrier = VkBufferMemoryBarrier.callocStack(1, stack);
+            barrier.sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER);
+            barrier.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+            barrier.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+            barrier.buffer(instanceBuffer.buffer);
+            barrier.offset(0);
+            barrier.size(VK_WHOLE_SIZE);
+
+            if(!instanceBuffer.cleared) {
+                // a zero matrix draws nothing, so whatever doesn't fit into the ring this frame stays invisible
+                vkCmdFillBuffer(commandBuffer, instanceBuffer.buffer, 0, VK_WHOLE_SIZE, 0);
+                instanceBuffer.cleared = true;
+
+                barrier.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT);
+                barrier.dstAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT);
+                vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, null, barrier, null);
+            }
+
+            // every run of dirty entities needs at most one region
+            instanceCopyRegions = ensureCapacity(instanceCopyRegions, dirtyEntities);
+
+            long uploaded = 0;
+            if(staging >= 0) {
+                uploaded = packInstanceData(entities, dirty, budget, staging, stagingRing.address(staging),
+                        instanceBuffer.capacity, instanceCopyRegions);
+
+                if(instanceCopyRegions.limit() > 0) {
+                    vkCmdCopyBuffer(commandBuffer, stagingRing.buffer, instanceBuffer.buffer, instanceCopyRegions);
+                }
+                instanceCopyRegions.clear();
+            }
+
+            barrier.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT);
+            barrier.dstAccessMask(VK_ACCESS_SHADER_READ_BIT);
+            vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT,
+                    VK_PIPELINE_STAGE_VERTEX_SHADER_BIT | (gpuCulling ? VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT : 0), 0, null, barrier, null);
+
+            vkEndCommandBuffer(commandBuffer);
+
+            uploadedBytesLastFrame += uploaded;
+        }
+        return true;
+    }
+
+    // Copies up to budget bytes of the dirty entity data to stagingAddress, which is at stagingOffset in the staging
+    // buffer, and clears the bits of what went out. Every stream has its own dirty bits and is walked run by run:
+    // the store has the exact std430 layout of an instance buffer of the given capacity, so each run is one memCopy
+    // and one copy region no matter how many entities it covers. The regions are left in regions up to its limit,
+    // the bytes are returned. No Vulkan calls, the caller records the copy
+    static long packInstanceData(EntityStore store, BitSet dirty[], long budget, long stagingOffset, long stagingAddress,
+                                 int capacity, VkBufferCopy.Buffer regions) {
+        long uploaded = 0;
+        int regionCount = 0;
+        long dstOffset = 0;
+
+        for(int stream = 0;stream < EntityStore.STREAM_COUNT;stream++) {
+            int stride = EntityStore.STREAM_STRIDES[stream];
+            BitSet streamDirty = dirty[stream];
+
+            for(int first = streamDirty.nextSetBit(0);first >= 0 && uploaded < budget;first = streamDirty.nextSetBit(first)) {
+                int last = (int) Math.min(streamDirty.nextClearBit(first), first + (budget - uploaded) / stride);
+                if(last == first) break;
+
+                long bytes = (long) (last - first) * stride;
+
+                MemoryUtil.memCopy(store.streamAddress(stream, first), stagingAddress + uploaded, bytes);
+
+                // straight into the struct, get() would allocate a wrapper per region
+                long region = regions.address() + (long) regionCount++ * VkBufferCopy.SIZEOF;
+                VkBufferCopy.nsrcOffset(region, stagingOffset + uploaded);
+                VkBufferCopy.ndstOffset(region, dstOffset + (long) first * stride);
+                VkBufferCopy.nsize(region, bytes);
+                uploaded += bytes;
+
+                streamDirty.clear(first, last);
+                first = last;
+            }
+
+            dstOffset += (long) capacity * stride;
+        }
+
+        regions.limit(regionCount);
+        return uploaded;
+    }
+
+    // grows a heap allocated struct buffer, it is reused from frame to frame and freed in end()
+    private static VkBufferCopy.Buffer ensureCapacity(VkBufferCopy.Buffer regions, int capacity) {
+        if(regions != null && regions.capacity() >= capacity) return regions;
+
+        VkBufferCopy.Buffer grown = VkBufferCopy.calloc(Math.max(64, capacity * 2));
+        if(regions != null) {
+            MemoryUtil.memCopy(regions.address(), grown.address(), (long) regions.capacity() * VkBufferCopy.SIZEOF);
+            regions.free();
+        }
+        return grown;
+    }
+
+    // writes the entities on screen into the image's visible list, see SpriteCuller.cull, and the draws for them
+    private static void cullEntities(int currentImage) {
+        InstanceBuffer instanceBuffer = instanceBuffers.get(currentImage);
+        int count = nextRenderEntityId;
+        int visibleCount;
+        int opaqueCount;
+
+        if(cpuCulling) {
+            // what the camera of updateUniformBuffer sees of the z = 0 plane
+            cullMatrix.set(ubo.projectionMatrix).mul(ubo.viewMatrix).frustumAabb(cullMin, cullMax);
+
+            try {
+                visibleCount = culler.cull(entities, count, cullMin.x, cullMin.y, cullMax.x, cullMax.y, instanceBuffer.visibleAddress,
+                        drawOrder.drawList(), drawOrder.rank());
+                opaqueCount = culler.lastOpaqueCount();
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to cull entities", e);
+            }
+        } else {
+            int drawList[] = drawOrder.drawList();
+            opaqueCount = 0;
+            for(int i = 0;i < count;i++) {
+                if((drawList[i] & DrawOrder.OPAQUE_ENTRY) != 0) opaqueCount++;
+            }
+
+            int opaqueNext = 0, otherNext = opaqueCount;
+            for(int i = 0;i < count;i++) {
+                int entry = drawList[count - 1 - i];
+                int position = (entry & DrawOrder.OPAQUE_ENTRY) != 0 ? opaqueNext++ : otherNext++;
+                SpriteCuller.putEntry(instanceBuffer.visibleAddress, position, entry & ~DrawOrder.OPAQUE_ENTRY, i);
+            }
+            visibleCount = count;
+        }
+
+        visibleEntitiesLastFrame = visibleCount;
+        culledEntitiesLastFrame = count - visibleCount;
+        updateIndirectBuffer(currentImage, visibleCount, opaqueCount);
+    }
+
+    // what cull.comp found the last time this image was drawn, the fence of that frame has signalled
+    private static void readGpuCullingCounts(int currentImage) {
+        InstanceBuffer instanceBuffer = instanceBuffers.get(currentImage);
+        int visibleCount = gpuVisibleCount(currentImage);
+
+        visibleEntitiesLastFrame = visibleCount;
+        culledEntitiesLastFrame = instanceBuffer.gpuCullCount - visibleCount;
+        instanceBuffer.gpuCullCount = nextRenderEntityId;
+    }
+
+    // the instances of all the draws cull.comp wrote for this image
+    private static int gpuVisibleCount(int currentImage) {
+        long commands = indirectBuffersMapped.get(currentImage);
+
+        int visibleCount = 0;
+        for(int draw = 0;draw < DRAW_PASSES * drawBatches;draw++) {
+            visibleCount += VkDrawIndexedIndirectCommand.ninstanceCount(commands + (long) draw * VkDrawIndexedIndirectCommand.SIZEOF);
+        }
+        return visibleCount;
+    }
+
+    // what checkGpuCulling found
+    static final class CullingCheck {
+        final int gpuVisible;
+        final int cpuVisible;
+        final int mismatches; // positions in the two visible lists that hold different entities, or only exist in one
+        final int firstMismatch; // -1 when the lists are the same
+
+        CullingCheck(int gpuVisible, int cpuVisible, int mismatches, int firstMismatch) {
+            this.gpuVisible = gpuVisible;
+            this.cpuVisible = cpuVisible;
+            this.mismatches = mismatches;
+            this.firstMismatch = firstMismatch;
+        }
+    }
+
+    // Reads back the visible list cull.comp wrote for the last frame and culls the same entities with SpriteCuller
+    // to compare. Only with GPU culling, and only exact when no entity or the camera changed since the last
+    // drawFrame. Waits for the device to go idle. Only for HeadlessMain -Dengine.checkCulling
+    static CullingCheck checkGpuCulling() {
+        if(!gpuCulling) throw new IllegalStateException("The GPU cull can only be checked with -Dengine.culling=gpu");
+        if(lastRenderedImage < 0) throw new IllegalStateException("No frame has been drawn yet");
+
+        vkDeviceWaitIdle(device);
+
+        InstanceBuffer instanceBuffer = instanceBuffers.get(lastRenderedImage);
+        int count = instanceBuffer.gpuCullCount;
+        int gpuVisible = gpuVisibleCount(lastRenderedImage);
+        long size = (long) Math.max(count, 1) * SpriteCuller.ENTRY_BYTES;
+
+        try(MemoryStack stack = stackPush()) {
+            LongBuffer pBuffer = stack.mallocLong(1);
+            DeviceMemoryAllocator.Allocation readbackMemory = createBuffer(size,
+                    VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                    pBuffer);
+            long readback = pBuffer.get(0);
+            long cpuList = MemoryUtil.nmemAlloc(size);
+
+            try {
+                copyVisibleList(instanceBuffer.visibleBuffer, readback, size);
+
+                // the camera of the last frame is still in ubo
+                cullMatrix.set(ubo.projectionMatrix).mul(ubo.viewMatrix).frustumAabb(cullMin, cullMax);
+                int cpuVisible = culler.cull(entities, count, cullMin.x, cullMin.y, cullMax.x, cullMax.y, cpuList,
+                        drawOrder.drawList(), drawOrder.rank());
+
+                long gpuList = readbackMemory.mapped();
+                int mismatches = 0;
+                int firstMismatch = -1;
+                for(int i = 0;i < Math.max(gpuVisible, cpuVisible);i++) {
+                    long offset = (long) i * SpriteCuller.ENTRY_BYTES;
+                    if(i < gpuVisible && i < cpuVisible
+                            && MemoryUtil.memGetLong(gpuList + offset) == MemoryUtil.memGetLong(cpuList + offset)) continue;
+                    if(firstMismatch < 0) firstMismatch = i;
+                    mismatches++;
+                }
+                return new CullingCheck(gpuVisible, cpuVisible, mismatches, firstMismatch);
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to check the GPU cull", e);
+            } finally {
+                MemoryUtil.nmemFree(cpuList);
+                vkDestroyBuffer(device, readback, null);
+                memoryAllocator.free(readbackMemory);
+            }
+        }
+    }
+
+    // the visible buffer is device local with GPU culling, so it goes through a host visible copy
+    private static void copyVisibleList(long visibleBuffer, long readback, long size) {
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.callocStack(stack);
+            allocInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
+            allocInfo.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY);
+            allocInfo.commandPool(commandPool);
+            allocInfo.commandBufferCount(1);
+
+            PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+            if(vkAllocateCommandBuffers(device, allocInfo, pCommandBuffer) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to allocate readback command buffer");
+            }
+            VkCommandBuffer commandBuffer = new VkCommandBuffer(pCommandBuffer.get(0), device);
+
+            VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
+            beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+            beginInfo.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+
+            vkBeginCommandBuffer(commandBuffer, beginInfo);
+
+            // cull.comp wrote the list in the last frame
+            VkMemoryBarrier.Buffer shaderBarrier = VkMemoryBarrier.callocStack(1, stack);
+            shaderBarrier.sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER);
+            shaderBarrier.srcAccessMask(VK_ACCESS_SHADER_WRITE_BIT);
+            shaderBarrier.dstAccessMask(VK_ACCESS_TRANSFER_READ_BIT);
+
+            vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, shaderBarrier, null, null);
+
+            VkBufferCopy.Buffer region = VkBufferCopy.callocStack(1, stack);
+            region.size(size);
+            vkCmdCopyBuffer(commandBuffer, visibleBuffer, readback, region);
+
+            VkMemoryBarrier.Buffer hostBarrier = VkMemoryBarrier.callocStack(1, stack);
+            hostBarrier.sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER);
+            hostBarrier.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT);
+            hostBarrier.dstAccessMask(VK_ACCESS_HOST_READ_BIT);
+
+            vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_HOST_BIT, 0, hostBarrier, null, null);
+
+            vkEndCommandBuffer(commandBuffer);
+
+            VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack);
+            submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+            submitInfo.pCommandBuffers(stack.pointers(commandBuffer));
+
+            if(vkQueueSubmit(graphicsQueue, submitInfo, VK_NULL_HANDLE) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to submit readback command buffer");
+            }
+
+            vkQueueWaitIdle(graphicsQueue);
+            vkFreeCommandBuffers(device, commandPool, commandBuffer);
+        }
+    }
+
+    // cull.comp walks the draw list backwards, every image has its own copy of it
+    private static void updateOrderBuffer(int currentImage) {
+        InstanceBuffer instanceBuffer = instanceBuffers.get(currentImage);
+        if(instanceBuffer.orderVersion == drawOrder.version()) return;
+
+        int drawList[] = drawOrder.drawList();
+        for(int i = 0;i < nextRenderEntityId;i++) {
+            MemoryUtil.memPutInt(instanceBuffer.orderAddress + (long) i * Integer.BYTES, drawList[i]);
+        }
+        instanceBuffer.orderVersion = drawOrder.version();
+    }
+
+    private static String cullingMode(String value) {
+        if(value.equals("true")) return "cpu";
+        if(value.equals("false")) return "off";
+        return value;
+    }
+
+    private static ExecutorService cullingExecutor() {
+        // daemon threads that only start with the first large cull
+        cullingExecutor = Executors.newFixedThreadPool(CULLING_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "sprite-culler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return cullingExecutor;
+    }
+
+    private static void updateIndirectBuffer(int currentImage, int instanceCount, int opaqueCount) {
+        long commands = indirectBuffersMapped.get(currentImage);
+
+        // the range of every pass is split evenly over its batches, trailing batches may draw nothing
+        for(int pass = 0;pass < DRAW_PASSES;pass++) {
+            int rangeStart = pass == OPAQUE_PASS ? 0 : opaqueCount;
+            int rangeCount = pass == OPAQUE_PASS ? opaqueCount : instanceCount - opaqueCount;
+            int batchSize = (rangeCount + drawBatches - 1) / drawBatches;
+
+            for(int batch = 0;batch < drawBatches;batch++) {
+                long command = commands + (long) (pass * drawBatches + batch) * VkDrawIndexedIndirectCommand.SIZEOF;
+                int first = Math.min(batch * batchSize, rangeCount);
+
+                VkDrawIndexedIndirectCommand.nfirstInstance(command, rangeStart + first);
+                VkDrawIndexedIndirectCommand.ninstanceCount(command, Math.min(batchSize, rangeCount - first));
+            }
+        }
+    }
+
+    private static long createShaderModule(ByteBuffer spirvCode) {
+
+        try(MemoryStack stack = stackPush()) {
+
+            VkShaderModuleCreateInfo createInfo = VkShaderModuleCreateInfo.callocStack(stack);
+
+            createInfo.sType(VK_STRUCTURE_TYPE_SHADER_MODULE_CREATE_INFO);
+            createInfo.pCode(spirvCode);
+
+            LongBuffer pShaderModule = stack.mallocLong(1);
+
+            if(vkCreateShaderModule(device, createInfo, null, pShaderModule) != VK_SUCCESS) {
+                throw new RuntimeException("Failed to create shader module");
+            }
+
+            return pShaderModule.get(0);
+        }
+    }
+
+    private static VkSurfaceFormatKHR chooseSwapSurfaceFormat(VkSurfaceFormatKHR.Buffer availableFormats) {
+        return availableFormats.stream()
+                .filter(availableFormat -> availableFormat.format() == VK_FORMAT_R8G8B8A8_SRGB)
+                .filter(availableFormat -> availableFormat.colorSpace() == VK_COLOR_SPACE_SRGB_NONLINEAR_KHR)
+                .findAny()
+                .orElse(availableFormats.get(0));
+    }
+
+    private static int chooseSwapPresentMode(IntBuffer availablePresentModes) {
+
+        for(int i = 0;i < availablePresentModes.capacity();i++) {
+            if(availablePresentModes.get(i) == VK_PRESENT_MODE_MAILBOX_KHR) {
+                return availablePresentModes.get(i);
+            }
+        }
+
+        return VK_PRESENT_MODE_FIFO_KHR;
+    }
+
+    private static VkExtent2D chooseSwapExtent(VkSurfaceCapabilitiesKHR capabilities) {
+
+        if(capabilities.currentExtent().width() != UINT32_MAX) {
+            return capabilities.currentExtent();
+        }
+
+        IntBuffer width = stackGet().ints(0);
+        IntBuffer height = stackGet().ints(0);
+
+        glfwGetFramebufferSize(window, width, height);
+
+        VkExtent2D actualExtent = VkExtent2D.callocStack().set(width.get(0), height.get(0));
+
+        VkExtent2D minExtent = capabilities.minImageExtent();
+        VkExtent2D maxExtent = capabilities.maxImageExtent();
+
+        actualExtent.width(clamp(minExtent.width(), maxExtent.width(), actualExtent.width()));
+        actualExtent.height(clamp(minExtent.height(), maxExtent.height(), actualExtent.height()));
+
+        return actualExtent;
+    }
+
+    private static int clamp(int min, int max, int value) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static boolean isDeviceSuitable(VkPhysicalDevice device) {
+
+        QueueFamilyIndices indices = findQueueFamilies(device);
+
+        boolean extensionsSupported = checkDeviceExtensionSupport(device);
+        boolean swapChainAdequate = false;
+        boolean anisotropySupported = false;
+
+        if(extensionsSupported) {
+            try(MemoryStack stack = stackPush()) {
+                if(headless) {
+                    swapChainAdequate = true;
+                } else {
+                    SwapChainSupportDetails swapChainSupport = querySwapChainSupport(device, stack);
+                    swapChainAdequate = swapChainSupport.formats.hasRemaining() && swapChainSupport.presentModes.hasRemaining();
+                }
+                VkPhysicalDeviceFeatures supportedFeatures = VkPhysicalDeviceFeatures.callocStack(stack);
+                vkGetPhysicalDeviceFeatures(device, supportedFeatures);
+                anisotropySupported = supportedFeatures.samplerAnisotropy();
+            }
+        }
+
+        return indices.isComplete() && extensionsSupported && swapChainAdequate && anisotropySupported;
+    }
+
+    private static Set<String> deviceExtensions() {
+        return headless ? Collections.emptySet() : DEVICE_EXTENSIONS;
+    }
+
+    private static boolean checkDeviceExtensionSupport(VkPhysicalDevice device) {
+
+        try(MemoryStack stack = stackPush()) {
+
+            IntBuffer extensionCount = stack.ints(0);
+
+            vkEnumerateDeviceExtensionProperties(device, (String)null, extensionCount, null);
+
+            VkExtensionProperties.Buffer availableExtensions = VkExtensionProperties.callocStack(extensionCount.get(0), stack);
+
+            vkEnumerateDeviceExtensionProperties(device, (String)null, extensionCount, availableExtensions);
+
+            return availableExtensions.stream()
+                    .map(VkExtensionProperties::extensionNameString)
+                    .collect(toSet())
+                    .containsAll(deviceExtensions());
+        }
+    }
+
+    private static SwapChainSupportDetails querySwapChainSupport(VkPhysicalDevice device, MemoryStack stack) {
+
+        SwapChainSupportDetails details = new SwapChainSupportDetails();
+
+        details.capabilities = VkSurfaceCapabilitiesKHR.callocStack(stack);
+        vkGetPhysicalDeviceSurfaceCapabilitiesKHR(device, surface, details.capabilities);
+
+        IntBuffer count = stack.ints(0);
+
+        vkGetPhysicalDeviceSurfaceFormatsKHR(device, surface, count, null);
+
+        if(count.get(0) != 0) {
+            details.formats = VkSurfaceFormatKHR.callocStack(count.get(0), stack);
+            vkGetPhysicalDeviceSurfaceFormatsKHR(device, surface, count, details.formats);
+        }
+
+        vkGetPhysicalDeviceSurfacePresentModesKHR(device,surface, count, null);
+
+        if(count.get(0) != 0) {
+            details.presentModes = stack.mallocInt(count.get(0));
+            vkGetPhysicalDeviceSurfacePresentModesKHR(device, surface, count, details.presentModes);
+        }
+
+        return details;
+    }
+
+    private static QueueFamilyIndices findQueueFamilies(VkPhysicalDevice device) {
+
+        QueueFamilyIndices indices = new QueueFamilyIndices();
+
+        try(MemoryStack stack = stackPush()) {
+
+            IntBuffer queueFamilyCount = stack.ints(0);
+
+            vkGetPhysicalDeviceQueueFamilyProperties(device, queueFamilyCount, null);
+
+            VkQueueFamilyProperties.Buffer queueFamilies = VkQueueFamilyProperties.callocStack(queueFamilyCount.get(0), stack);
+
+            vkGetPhysicalDeviceQueueFamilyProperties(device, queueFamilyCount, queueFamilies);
+
+            IntBuffer presentSupport = stack.ints(VK_FALSE);
+
+            for(int i = 0;i < queueFamilies.capacity() || !indices.isComplete();i++) {
+
+                if((queueFamilies.get(i).queueFlags() & VK_QUEUE_GRAPHICS_BIT) != 0) {
+                    indices.graphicsFamily = i;
+                    indices.graphicsCompute = (queueFamilies.get(i).queueFlags() & VK_QUEUE_COMPUTE_BIT) != 0;
+                }
+
+                if(headless) {
+                    // nothing is presented, the graphics queue stands in so the rest doesn't need to care
+                    indices.presentFamily = indices.graphicsFamily;
+                    continue;
+                }
+
+                vkGetPhysicalDeviceSurfaceSupportKHR(device, i, surface, presentSupport);
+
+                if(presentSupport.get(0) == VK_TRUE) {
+                    indices.presentFamily = i;
+                }
+            }
+
+            // a transfer-only family is usually a DMA engine that copies without taking time from rendering. The runtime
+            // texture page copies rectangles at any position, so it has to accept texel granular copies
+            indices.transferFamily = indices.graphicsFamily;
+            for(int i = 0;i < queueFamilies.capacity();i++) {
+                VkQueueFamilyProperties family = queueFamilies.get(i);
+                VkExtent3D granularity = family.minImageTransferGranularity();
+
+                if((family.queueFlags() & VK_QUEUE_TRANSFER_BIT) != 0
+                        && (family.queueFlags() & VK_QUEUE_GRAPHICS_BIT) == 0
+                        && granularity.width() == 1 && granularity.height() == 1 && granularity.depth() == 1) {
+                    indices.transferFamily = i;
+                    break;
+                }
+            }
+
+            return indices;
+        }
+    }
+
+    static final Field address, capacity;
+    static {
+        try {
+            address = Buffer.class.getDeclaredField("address");
+            address.setAccessible(true);
+            capacity = Buffer.class.getDeclaredField("capacity");
+            capacity.setAccessible(true);
+
+        } catch (NoSuchFieldException e) {
+            throw new AssertionError(e);
+        }
+    }
+    private static ByteBuffer wrapAddress(long addr, int length) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(0).order(ByteOrder.nativeOrder());
+        try {
+            address.setLong(bb, addr);
+            capacity.setInt(bb, length);
+            bb.clear();
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+        return bb;
+    }
+    private static void copyByteBuffer(ByteBuffer dst, ByteBuffer src, long size) {
+        src.limit((int)size);
+        dst.put(src);
+        src.limit(src.capacity()).rewind();
+    }
+
+    // readers see the old file or the new one, never a half written one
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static PointerBuffer asPointerBuffer(Collection<String> collection) {
+
+        MemoryStack stack = stackGet();
+
+        PointerBuffer buffer = stack.mallocPointer(collection.size());
+
+        collection.stream()
+                .map(stack::UTF8)
+                .forEach(buffer::put);
+
+        return buffer.rewind();
+    }
+
+    private static PointerBuffer asPointerBuffer(List<? extends Pointer> list) {
+
+        MemoryStack stack = stackGet();
+
+        PointerBuffer buffer = stack.mallocPointer(list.size());
+
+        list.forEach(buffer::put);
+
+        return buffer.rewind();
+    }
+
+    private static PointerBuffer getRequiredExtensions() {
+
+        if(headless) {
+            // no surface extensions, there is nothing to present to
+            return ENABLE_VALIDATION_LAYERS ? stackGet().pointers(stackGet().UTF8(VK_EXT_DEBUG_UTILS_EXTENSION_NAME)) : null;
+        }
+
+        PointerBuffer glfwExtensions = glfwGetRequiredInstanceExtensions();
+
+        if(ENABLE_VALIDATION_LAYERS) {
+
+            MemoryStack stack = stackGet();
+
+            PointerBuffer extensions = stack.mallocPointer(glfwExtensions.capacity() + 1);
+
+            extensions.put(glfwExtensions);
+            extensions.put(stack.UTF8(VK_EXT_DEBUG_UTILS_EXTENSION_NAME));
+
+            // Rewind the buffer before returning it to reset its position back to 0
+            return extensions.rewind();
+        }
+
+        return glfwExtensions;
+    }
+
+    private static boolean checkValidationLayerSupport() {
+
+        try(MemoryStack stack = stackPush()) {
+
+            IntBuffer layerCount = stack.ints(0);
+
+            vkEnumerateInstanceLayerProperties(layerCount, null);
+
+            VkLayerProperties.Buffer availableLayers = VkLayerProperties.callocStack(layerCount.get(0), stack);
+
+            vkEnumerateInstanceLayerProperties(layerCount, availableLayers);
+
+            Set<String> availableLayerNames = availableLayers.stream()
+                    .map(VkLayerProperties::layerNameString)
+                    .collect(toSet());
 
-            endSingleTimeCommands(commandBuffer);
+            return availableLayerNames.containsAll(VALIDATION_LAYERS);
         }
     }
 
-    private static void createCommandBuffers() {
-
-        final int commandBuffersCount = swapChainFramebuffers.size();
-
-        commandBuffers = new ArrayList<>(commandBuffersCount);
+    // INLINED CLASSES
+    private static class DecodedImage {
 
-        try(MemoryStack stack = stackPush()) {
+        private final ByteBuffer pixels; // RGBA8, owned by stb
+        private final int width;
+        private final int height;
 
-            VkCommandBufferAllocateInfo allocInfo = VkCommandBufferAllocateInfo.callocStack(stack);
-            allocInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
-            allocInfo.commandPool(commandPool);
-            allocInfo.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY);
-            allocInfo.commandBufferCount(commandBuffersCount);
+        private DecodedImage(ByteBuffer pixels, int width, int height) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
 
-            PointerBuffer pCommandBuffers = stack.mallocPointer(commandBuffersCount);
+        // safe to call from any thread, every thread gets its own MemoryStack
+        static DecodedImage load(String filename) {
+            try(MemoryStack stack = stackPush()) {
+                IntBuffer pWidth    = stack.mallocInt(1);
+                IntBuffer pHeight   = stack.mallocInt(1);
+                IntBuffer pChannels = stack.mallocInt(1);
 
-            if(vkAllocateCommandBuffers(device, allocInfo, pCommandBuffers) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to allocate command buffers");
-            }
+                ByteBuffer pixels = stbi_load(filename, pWidth, pHeight, pChannels, STBI_rgb_alpha);
+                if(pixels == null) throw new RuntimeException("Failed to load texture image " + filename);
 
-            for(int i = 0;i < commandBuffersCount;i++) {
-                commandBuffers.add(new VkCommandBuffer(pCommandBuffers.get(i), device));
+                return new DecodedImage(pixels, pWidth.get(0), pHeight.get(0));
             }
+        }
 
+        // returns an image no larger than maxWidth x maxHeight, keeping the aspect ratio, this image is freed if it had to shrink
+        DecodedImage fitInto(int maxWidth, int maxHeight, String name) {
+            if (width <= maxWidth && height <= maxHeight) return this;
 
-            for(int i = 0; i < commandBuffersCount; ++i) {
-                VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
-                beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
-
-                VkRenderPassBeginInfo renderPassInfo = VkRenderPassBeginInfo.callocStack(stack);
-                renderPassInfo.sType(VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO);
-
-                renderPassInfo.renderPass(renderPass);
+            float scale = Math.min((float) maxWidth / width, (float) maxHeight / height);
+            int newWidth  = Math.max(1, Math.min(maxWidth,  (int) (width  * scale)));
+            int newHeight = Math.max(1, Math.min(maxHeight, (int) (height * scale)));
 
-                VkRect2D renderArea = VkRect2D.callocStack(stack);
-                renderArea.offset(VkOffset2D.callocStack(stack).set(0, 0));
-                renderArea.extent(swapChainExtent);
-                renderPassInfo.renderArea(renderArea);
+            // stb frees with the same allocator LWJGL uses for memAlloc, so the result can be released like a decoded image
+            ByteBuffer resized = MemoryUtil.memAlloc(newWidth * newHeight * STBI_rgb_alpha);
+            boolean ok = stbir_resize(pixels, width, height, 0, resized, newWidth, newHeight, 0,
+                    STBIR_TYPE_UINT8, STBI_rgb_alpha, 3, 0, STBIR_EDGE_CLAMP, STBIR_EDGE_CLAMP, STBIR_FILTER_DEFAULT, STBIR_FILTER_DEFAULT, STBIR_COLORSPACE_SRGB);
 
-                VkClearValue.Buffer clearValues = VkClearValue.callocStack(1, stack);
-                clearValues.color().float32(stack.floats(0.0f, 0.0f, 0.0f, 1.0f));
-                renderPassInfo.pClearValues(clearValues);
+            free();
+            if (!ok) {
+                MemoryUtil.memFree(resized);
+                throw new RuntimeException("could not resize texture " + name);
+            }
+            return new DecodedImage(resized, newWidth, newHeight);
+        }
 
-                VkCommandBuffer commandBuffer = commandBuffers.get(i);
+        // every alpha byte is 255
+        boolean opaque() {
+            long address = MemoryUtil.memAddress(pixels);
+            long end = address + (long) width * height * STBI_rgb_alpha;
+            for (long texel = address; texel < end; texel += STBI_rgb_alpha) {
+                if (MemoryUtil.memGetInt(texel) >>> 24 != 0xFF) return false;
+            }
+            return true;
+        }
 
-                if (vkBeginCommandBuffer(commandBuffer, beginInfo) != VK_SUCCESS) {
-                    throw new RuntimeException("Failed to begin recording command buffer");
-                }
+        float[] outline() {
+            return SpriteOutline.outline(MemoryUtil.memAddress(pixels), width, height);
+        }
 
-                renderPassInfo.framebuffer(swapChainFramebuffers.get(i));
+        void free() {
+            stbi_image_free(pixels);
+        }
+    }
 
-                vkCmdBeginRenderPass(commandBuffer, renderPassInfo, VK_SUBPASS_CONTENTS_INLINE);
-                vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, graphicsPipeline);
+    // A block-compressed texture straight out of a KTX2 or DDS container. The file is memory-mapped and the blocks
+    // are only ever copied out of the mapping, the GPU samples them as they are. decode() is the fallback for
+    // devices without the format
+    private static class CompressedImage {
+
+        private static final byte KTX2_IDENTIFIER[] = { (byte) 0xAB, 'K', 'T', 'X', ' ', '2', '0', (byte) 0xBB, '\r', '\n', 0x1A, '\n' };
+        private static final int DDS_MAGIC = 0x20534444; // "DDS "
+        private static final int DDS_HEADER_SIZE = 4 + 124;
+        private static final int DDS_DX10_HEADER_SIZE = 20;
+
+        private final ByteBuffer data; // the whole mapped file, little endian
+        private final int format;
+        private final int width;
+        private final int height;
+        private final int mipLevels;
+        private final int levelOffsets[];
+
+        private CompressedImage(ByteBuffer data, int format, int width, int height, int mipLevels, int levelOffsets[]) {
+            this.data = data;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.mipLevels = mipLevels;
+            this.levelOffsets = levelOffsets;
+        }
 
-                LongBuffer vertexBuffers = stack.longs(vertexBuffer);
-                LongBuffer offsets = stack.longs(0);
-                vkCmdBindVertexBuffers(commandBuffer, 0, vertexBuffers, offsets);
+        static boolean isContainer(File file) {
+            String name = file.getName().toLowerCase(Locale.ROOT);
+            return name.endsWith(".ktx2") || name.endsWith(".dds");
+        }
 
-                vkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS,  pipelineLayout, 0, stack.longs(descriptorSets.get(i)), null);
+        // only maps and parses the header, safe to call from any thread
+        static CompressedImage load(File file) {
+            ByteBuffer data;
+            try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                // the mapping outlives the channel, it goes away with the buffer
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to map texture " + file, e);
+            }
 
-                vkCmdDraw(commandBuffer, 6, nextRenderEntityId, 0, 0);
-                vkCmdEndRenderPass(commandBuffer);
+            CompressedImage image = file.getName().toLowerCase(Locale.ROOT).endsWith(".dds") ? parseDds(data, file.getName()) : parseKtx2(data, file.getName());
 
-                if (vkEndCommandBuffer(commandBuffer) != VK_SUCCESS) {
-                    throw new RuntimeException("Failed to record command buffer");
+            for (int level = 0; level < image.mipLevels; ++level) {
+                if ((long) image.levelOffsets[level] + image.levelSize(level) > data.capacity()) {
+                    throw new RuntimeException("Texture " + file.getName() + " is truncated at mip level " + level);
                 }
             }
-
+            return image;
         }
-    }
-
-    private static void createSyncObjects() {
 
-        inFlightFrames = new ArrayList<>(MAX_FRAMES_IN_FLIGHT);
-        imagesInFlight = new HashMap<>(swapChainImages.size());
+        private static CompressedImage parseKtx2(ByteBuffer data, String name) {
+            for (int i = 0; i < KTX2_IDENTIFIER.length; ++i) {
+                if (data.capacity() < 80 || data.get(i) != KTX2_IDENTIFIER[i]) throw new RuntimeException(name + " is not a KTX2 file");
+            }
 
-        try(MemoryStack stack = stackPush()) {
+            int format     = data.getInt(12);
+            int width      = data.getInt(20);
+            int height     = data.getInt(24);
+            int depth      = data.getInt(28);
+            int layerCount = data.getInt(32);
+            int faceCount  = data.getInt(36);
+            int levelCount = Math.max(1, data.getInt(40));
+            int supercompressionScheme = data.getInt(44);
+
+            if (blockBytes(format) == 0) throw new RuntimeException(name + " uses unsupported VkFormat " + format);
+            if (supercompressionScheme != 0) throw new RuntimeException(name + " is supercompressed, only plain block-compressed KTX2 is supported");
+            if (depth > 1 || layerCount > 1 || faceCount != 1) throw new RuntimeException(name + " is not a single 2D texture");
+
+            // the level index follows the 80 byte header, byteOffset, byteLength, uncompressedByteLength per level
+            int levelOffsets[] = new int[levelCount];
+            for (int level = 0; level < levelCount; ++level) {
+                levelOffsets[level] = Math.toIntExact(data.getLong(80 + level * 24));
+            }
 
-            VkSemaphoreCreateInfo semaphoreInfo = VkSemaphoreCreateInfo.callocStack(stack);
-            semaphoreInfo.sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
+            return new CompressedImage(data, format, width, height, levelCount, levelOffsets);
+        }
 
-            VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.callocStack(stack);
-            fenceInfo.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
-            fenceInfo.flags(VK_FENCE_CREATE_SIGNALED_BIT);
+        private static CompressedImage parseDds(ByteBuffer data, String name) {
+            if (data.capacity() < DDS_HEADER_SIZE || data.getInt(0) != DDS_MAGIC) throw new RuntimeException(name + " is not a DDS file");
+
+            int height     = data.getInt(12);
+            int width      = data.getInt(16);
+            int levelCount = Math.max(1, data.getInt(28));
+            int fourCC     = data.getInt(84);
+
+            int format;
+            int dataOffset = DDS_HEADER_SIZE;
+            if (fourCC == fourCC("DX10")) {
+                format = dxgiToVkFormat(data.getInt(DDS_HEADER_SIZE));
+                if (data.getInt(DDS_HEADER_SIZE + 12) > 1) throw new RuntimeException(name + " is a texture array, only single textures are supported");
+                dataOffset += DDS_DX10_HEADER_SIZE;
+            } else if (fourCC == fourCC("DXT1")) {
+                // legacy headers say nothing about colour space, sprites are sRGB like the atlas
+                format = VK_FORMAT_BC1_RGBA_SRGB_BLOCK;
+            } else if (fourCC == fourCC("DXT3")) {
+                format = VK_FORMAT_BC2_SRGB_BLOCK;
+            } else if (fourCC == fourCC("DXT5")) {
+                format = VK_FORMAT_BC3_SRGB_BLOCK;
+            } else {
+                format = VK_FORMAT_UNDEFINED;
+            }
+            if (format == VK_FORMAT_UNDEFINED) throw new RuntimeException(name + " uses an unsupported DDS pixel format");
+
+            // levels follow each other, largest first
+            CompressedImage image = new CompressedImage(data, format, width, height, levelCount, new int[levelCount]);
+            int offset = dataOffset;
+            for (int level = 0; level < levelCount; ++level) {
+                image.levelOffsets[level] = offset;
+                offset += image.levelSize(level);
+            }
+            return image;
+        }
 
-            LongBuffer pImageAvailableSemaphore = stack.mallocLong(1);
-            LongBuffer pRenderFinishedSemaphore = stack.mallocLong(1);
-            LongBuffer pFence = stack.mallocLong(1);
+        private static int fourCC(String code) {
+            return code.charAt(0) | code.charAt(1) << 8 | code.charAt(2) << 16 | code.charAt(3) << 24;
+        }
 
-            for(int i = 0;i < MAX_FRAMES_IN_FLIGHT;i++) {
+        private static int dxgiToVkFormat(int dxgiFormat) {
+            switch (dxgiFormat) {
+                case 71: return VK_FORMAT_BC1_RGBA_UNORM_BLOCK;
+                case 72: return VK_FORMAT_BC1_RGBA_SRGB_BLOCK;
+                case 74: return VK_FORMAT_BC2_UNORM_BLOCK;
+                case 75: return VK_FORMAT_BC2_SRGB_BLOCK;
+                case 77: return VK_FORMAT_BC3_UNORM_BLOCK;
+                case 78: return VK_FORMAT_BC3_SRGB_BLOCK;
+                case 98: return VK_FORMAT_BC7_UNORM_BLOCK;
+                case 99: return VK_FORMAT_BC7_SRGB_BLOCK;
+                default: return VK_FORMAT_UNDEFINED;
+            }
+        }
 
-                if(vkCreateSemaphore(device, semaphoreInfo, null, pImageAvailableSemaphore) != VK_SUCCESS
-                        || vkCreateSemaphore(device, semaphoreInfo, null, pRenderFinishedSemaphore) != VK_SUCCESS
-                        || vkCreateFence(device, fenceInfo, null, pFence) != VK_SUCCESS) {
-                    throw new RuntimeException("Failed to create synchronization objects for the frame " + i);
-                }
+        // bytes per 4x4 block, 0 for formats we can't handle
+        static int blockBytes(int format) {
+            switch (format) {
+                case VK_FORMAT_BC1_RGB_UNORM_BLOCK:
+                case VK_FORMAT_BC1_RGB_SRGB_BLOCK:
+                case VK_FORMAT_BC1_RGBA_UNORM_BLOCK:
+                case VK_FORMAT_BC1_RGBA_SRGB_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK:
+                    return 8;
+                case VK_FORMAT_BC2_UNORM_BLOCK:
+                case VK_FORMAT_BC2_SRGB_BLOCK:
+                case VK_FORMAT_BC3_UNORM_BLOCK:
+                case VK_FORMAT_BC3_SRGB_BLOCK:
+                case VK_FORMAT_BC7_UNORM_BLOCK:
+                case VK_FORMAT_BC7_SRGB_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8A8_SRGB_BLOCK:
+                    return 16;
+                default:
+                    return 0;
+            }
+        }
 
-                inFlightFrames.add(new Frame(pImageAvailableSemaphore.get(0), pRenderFinishedSemaphore.get(0), pFence.get(0)));
+        // the blocks aren't decoded for this, only formats without alpha count as opaque
+        boolean opaque() {
+            switch (format) {
+                case VK_FORMAT_BC1_RGB_UNORM_BLOCK:
+                case VK_FORMAT_BC1_RGB_SRGB_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK:
+                    return true;
+                default:
+                    return false;
             }
+        }
 
+        static boolean isEtc2(int format) {
+            return format >= VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK && format <= VK_FORMAT_ETC2_R8G8B8A8_SRGB_BLOCK;
         }
-    }
 
-    public static void drawFrame() {
+        // BC7 is the one format without a CPU decoder, those files need a device that samples them
+        static boolean canDecode(int format) {
+            return format != VK_FORMAT_BC7_UNORM_BLOCK && format != VK_FORMAT_BC7_SRGB_BLOCK;
+        }
 
-        try(MemoryStack stack = stackPush()) {
+        static String undecodableMessage(String name) {
+            return "Device does not support BC7 and there is no CPU decoder for it, re-encode " + name + " as BC3";
+        }
 
-            Frame thisFrame = inFlightFrames.get(currentFrame);
+        static boolean isSrgb(int format) {
+            switch (format) {
+                case VK_FORMAT_BC1_RGB_SRGB_BLOCK:
+                case VK_FORMAT_BC1_RGBA_SRGB_BLOCK:
+                case VK_FORMAT_BC2_SRGB_BLOCK:
+                case VK_FORMAT_BC3_SRGB_BLOCK:
+                case VK_FORMAT_BC7_SRGB_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8A8_SRGB_BLOCK:
+                    return true;
+                default:
+                    return false;
+            }
+        }
 
-            vkWaitForFences(device, thisFrame.pFence(), true, UINT64_MAX);
+        int levelSize(int level) {
+            int levelWidth  = Math.max(1, width  >> level);
+            int levelHeight = Math.max(1, height >> level);
+            return ((levelWidth + 3) / 4) * ((levelHeight + 3) / 4) * blockBytes(format);
+        }
 
-            IntBuffer pImageIndex = stack.mallocInt(1);
+        long sizeInBytes() {
+            long size = 0;
+            for (int level = 0; level < mipLevels; ++level) size += levelSize(level);
+            return size;
+        }
 
-            int vkResult = vkAcquireNextImageKHR(device, swapChain, UINT64_MAX, thisFrame.imageAvailableSemaphore(), VK_NULL_HANDLE, pImageIndex);
+        // the blocks of one level as they are in the file, copying them is all the work a supported format costs
+        long levelAddress(int level) {
+            return MemoryUtil.memAddress(data) + levelOffsets[level];
+        }
 
-            if(vkResult == VK_ERROR_OUT_OF_DATE_KHR) {
-                recreateSwapChain();
-                return;
-            }
+        // ===> CPU DECODING <===
 
-            final int imageIndex = pImageIndex.get(0);
+        // linear 8 bit values to sRGB encoded ones, rounded
+        private static final byte LINEAR_TO_SRGB[] = new byte[256];
+        static {
+            for (int i = 0; i < 256; ++i) {
+                double linear = i / 255.0;
+                double srgb = linear <= 0.0031308 ? linear * 12.92 : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+                LINEAR_TO_SRGB[i] = (byte) Math.round(srgb * 255.0);
+            }
+        }
 
-            updateUniformBuffer(imageIndex);
+        // decodes level 0 into RGBA8 for the atlas, the result is memAlloc'd and freed like any DecodedImage.
+        // The atlas is sRGB, UNORM colours are encoded on the way so they sample the same as on their own page
+        DecodedImage decode(String name) {
+            if (!canDecode(format)) {
+                throw new RuntimeException(undecodableMessage(name));
+            }
 
-            if(imagesInFlight.containsKey(imageIndex)) {
-                vkWaitForFences(device, imagesInFlight.get(imageIndex).fence(), true, UINT64_MAX);
+            ByteBuffer pixels = MemoryUtil.memAlloc(width * height * STBI_rgb_alpha).order(ByteOrder.LITTLE_ENDIAN);
+            int blocksX = (width + 3) / 4;
+            int blocksY = (height + 3) / 4;
+            int blockBytes = blockBytes(format);
+            int texels[] = new int[16]; // RGBA, R in the low byte, row major
+
+            for (int by = 0; by < blocksY; ++by) {
+                for (int bx = 0; bx < blocksX; ++bx) {
+                    int block = levelOffsets[0] + (by * blocksX + bx) * blockBytes;
+
+                    switch (format) {
+                        case VK_FORMAT_BC1_RGB_UNORM_BLOCK:
+                        case VK_FORMAT_BC1_RGB_SRGB_BLOCK:
+                            decodeBc1(data, block, texels, false, false);
+                            break;
+                        case VK_FORMAT_BC1_RGBA_UNORM_BLOCK:
+                        case VK_FORMAT_BC1_RGBA_SRGB_BLOCK:
+                            decodeBc1(data, block, texels, false, true);
+                            break;
+                        case VK_FORMAT_BC2_UNORM_BLOCK:
+                        case VK_FORMAT_BC2_SRGB_BLOCK:
+                            decodeBc1(data, block + 8, texels, true, false);
+                            decodeBc2Alpha(data, block, texels);
+                            break;
+                        case VK_FORMAT_BC3_UNORM_BLOCK:
+                        case VK_FORMAT_BC3_SRGB_BLOCK:
+                            decodeBc1(data, block + 8, texels, true, false);
+                            decodeBc3Alpha(data, block, texels);
+                            break;
+                        case VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK:
+                        case VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK:
+                            decodeEtc2(data, block, texels);
+                            break;
+                        default: // ETC2 RGBA8, EAC alpha block first
+                            decodeEtc2(data, block + 8, texels);
+                            decodeEacAlpha(data, block, texels);
+                            break;
+                    }
+                    if (!isSrgb(format)) {
+                        for (int i = 0; i < 16; ++i) texels[i] = toSrgb(texels[i]);
+                    }
+
+                    for (int y = 0; y < 4 && by * 4 + y < height; ++y) {
+                        for (int x = 0; x < 4 && bx * 4 + x < width; ++x) {
+                            pixels.putInt(((by * 4 + y) * width + bx * 4 + x) * STBI_rgb_alpha, texels[y * 4 + x]);
+                        }
+                    }
+                }
             }
 
-            imagesInFlight.put(imageIndex, thisFrame);
+            return new DecodedImage(pixels, width, height);
+        }
 
-            VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack);
-            submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+        private static int rgba(int r, int g, int b, int a) {
+            return r | g << 8 | b << 16 | a << 24;
+        }
 
-            submitInfo.waitSemaphoreCount(1);
-            submitInfo.pWaitSemaphores(thisFrame.pImageAvailableSemaphore());
-            submitInfo.pWaitDstStageMask(stack.ints(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT));
+        // alpha stays linear
+        private static int toSrgb(int color) {
+            return rgba(LINEAR_TO_SRGB[color & 0xFF] & 0xFF, LINEAR_TO_SRGB[color >> 8 & 0xFF] & 0xFF, LINEAR_TO_SRGB[color >> 16 & 0xFF] & 0xFF, color >>> 24);
+        }
 
-            submitInfo.pSignalSemaphores(thisFrame.pRenderFinishedSemaphore());
+        private static int clampByte(int value) {
+            return value < 0 ? 0 : (value > 255 ? 255 : value);
+        }
 
-            submitInfo.pCommandBuffers(stack.pointers(commandBuffers.get(imageIndex)));
+        // weighted per channel mix of two RGBA colours, alpha comes out opaque
+        private static int mix(int c0, int c1, int w0, int w1) {
+            int sum = w0 + w1;
+            int r = ((c0 & 0xFF) * w0 + (c1 & 0xFF) * w1) / sum;
+            int g = ((c0 >> 8 & 0xFF) * w0 + (c1 >> 8 & 0xFF) * w1) / sum;
+            int b = ((c0 >> 16 & 0xFF) * w0 + (c1 >> 16 & 0xFF) * w1) / sum;
+            return rgba(r, g, b, 255);
+        }
 
-            vkResetFences(device, thisFrame.pFence());
+        private static int rgb565(int c) {
+            int r = c >> 11 & 0x1F, g = c >> 5 & 0x3F, b = c & 0x1F;
+            return rgba(r << 3 | r >> 2, g << 2 | g >> 4, b << 3 | b >> 2, 255);
+        }
 
-            if(vkQueueSubmit(graphicsQueue, submitInfo, thisFrame.fence()) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to submit draw command buffer");
+        // colour block shared by BC1, BC2 and BC3. BC2/3 always use four colours, BC1 switches to three colours
+        // plus black (transparent for RGBA) when c0 <= c1
+        private static void decodeBc1(ByteBuffer data, int block, int texels[], boolean alwaysFourColors, boolean punchThrough) {
+            int c0 = data.getShort(block) & 0xFFFF;
+            int c1 = data.getShort(block + 2) & 0xFFFF;
+            int indices = data.getInt(block + 4);
+
+            int palette[] = new int[4];
+            palette[0] = rgb565(c0);
+            palette[1] = rgb565(c1);
+            if (alwaysFourColors || c0 > c1) {
+                palette[2] = mix(palette[0], palette[1], 2, 1);
+                palette[3] = mix(palette[0], palette[1], 1, 2);
+            } else {
+                palette[2] = mix(palette[0], palette[1], 1, 1);
+                palette[3] = punchThrough ? 0 : rgba(0, 0, 0, 255);
             }
 
-            VkPresentInfoKHR presentInfo = VkPresentInfoKHR.callocStack(stack);
-            presentInfo.sType(VK_STRUCTURE_TYPE_PRESENT_INFO_KHR);
-
-            presentInfo.pWaitSemaphores(thisFrame.pRenderFinishedSemaphore());
-
-            presentInfo.swapchainCount(1);
-            presentInfo.pSwapchains(stack.longs(swapChain));
+            for (int i = 0; i < 16; ++i) {
+                texels[i] = palette[indices >>> (2 * i) & 3];
+            }
+        }
 
-            presentInfo.pImageIndices(pImageIndex);
+        private static void decodeBc2Alpha(ByteBuffer data, int block, int texels[]) {
+            long alphas = data.getLong(block);
+            for (int i = 0; i < 16; ++i) {
+                int a = (int) (alphas >>> (4 * i) & 0xF);
+                texels[i] = texels[i] & 0xFFFFFF | (a << 4 | a) << 24;
+            }
+        }
 
-            vkResult = vkQueuePresentKHR(presentQueue, presentInfo);
+        private static void decodeBc3Alpha(ByteBuffer data, int block, int texels[]) {
+            int a0 = data.get(block) & 0xFF;
+            int a1 = data.get(block + 1) & 0xFF;
+            long indices = data.getLong(block) >>> 16;
 
-            if(vkResult == VK_ERROR_OUT_OF_DATE_KHR || vkResult == VK_SUBOPTIMAL_KHR || framebufferResize) {
-                framebufferResize = false;
-                recreateSwapChain();
-            } else if(vkResult != VK_SUCCESS) {
-                throw new RuntimeException("Failed to present swap chain image");
+            int palette[] = new int[8];
+            palette[0] = a0;
+            palette[1] = a1;
+            if (a0 > a1) {
+                for (int i = 2; i < 8; ++i) palette[i] = ((8 - i) * a0 + (i - 1) * a1) / 7;
+            } else {
+                for (int i = 2; i < 6; ++i) palette[i] = ((6 - i) * a0 + (i - 1) * a1) / 5;
+                palette[6] = 0;
+                palette[7] = 255;
             }
 
-            currentFrame = (currentFrame + 1) % MAX_FRAMES_IN_FLIGHT;
+            for (int i = 0; i < 16; ++i) {
+                texels[i] = texels[i] & 0xFFFFFF | palette[(int) (indices >>> (3 * i) & 7)] << 24;
+            }
         }
-    }
 
-    private static void updateUniformBuffer(int currentImage) {
-        try(MemoryStack stack = stackPush()) {
-            ubo.projectionMatrix.identity().ortho2D(-Engine.aspectRatio, Engine.aspectRatio, -1.0f, 1.0f);
-            ubo.viewMatrix.identity();
+        private static final int ETC_MODIFIERS[][] = {
+                { 2, 8 }, { 5, 17 }, { 9, 29 }, { 13, 42 }, { 18, 60 }, { 24, 80 }, { 33, 106 }, { 47, 183 }
+        };
+        private static final int ETC_DISTANCES[] = { 3, 6, 11, 16, 23, 32, 41, 64 };
+        private static final int EAC_MODIFIERS[][] = {
+                { -3, -6,  -9, -15, 2, 5, 8, 14 }, { -3, -7, -10, -13, 2, 6, 9, 12 },
+                { -2, -5,  -8, -13, 1, 4, 7, 12 }, { -2, -4,  -6, -13, 1, 3, 5, 12 },
+                { -3, -6,  -8, -12, 2, 5, 7, 11 }, { -3, -7,  -9, -11, 2, 6, 8, 10 },
+                { -4, -7,  -8, -11, 3, 6, 7, 10 }, { -3, -5,  -8, -11, 2, 4, 7, 10 },
+                { -2, -6,  -8, -10, 1, 5, 7,  9 }, { -2, -5,  -8, -10, 1, 4, 7,  9 },
+                { -2, -4,  -8, -10, 1, 3, 7,  9 }, { -2, -5,  -7, -10, 1, 4, 6,  9 },
+                { -3, -4,  -7, -10, 2, 3, 6,  9 }, { -1, -2,  -3, -10, 0, 1, 2,  9 },
+                { -4, -6,  -8,  -9, 3, 5, 7,  8 }, { -3, -5,  -7,  -9, 2, 4, 6,  8 }
+        };
 
-            PointerBuffer data = stack.mallocPointer(1);
-            vkMapMemory(device, uniformBuffersMemory.get(currentImage), 0, UniformBufferObject.SIZEOF, 0, data);
+        private static int bits(long value, int lowest, int count) {
+            return (int) (value >>> lowest & ((1L << count) - 1));
+        }
 
-            int position = 0;
-            ubo.viewMatrix.get(MemoryUtil.memByteBuffer(data.get(0) + position, ubo.MAT_SIZE));
-            position += ubo.MAT_SIZE;
-            ubo.projectionMatrix.get(MemoryUtil.memByteBuffer(data.get(0) + position, ubo.MAT_SIZE));
-            position += ubo.MAT_SIZE;
+        private static int extend4(int v) { return v << 4 | v; }
+        private static int extend5(int v) { return v << 3 | v >> 2; }
+        private static int extend6(int v) { return v << 2 | v >> 4; }
+        private static int extend7(int v) { return v << 1 | v >> 6; }
 
-            for (Matrix4f model : ubo.modelMatrices) {
-                model.get(MemoryUtil.memByteBuffer(data.get(0) + position, ubo.MAT_SIZE));
-                position += ubo.MAT_SIZE;
-            }
+        private static int offset(int color, int delta) {
+            return rgba(clampByte((color & 0xFF) + delta), clampByte((color >> 8 & 0xFF) + delta), clampByte((color >> 16 & 0xFF) + delta), 255);
+        }
 
-            for (Vector4f userData : ubo.userData) {
-                userData.get(MemoryUtil.memByteBuffer(data.get(0) + position, Float.BYTES * 4));
-                position += Float.BYTES * 4;
+        // ETC2 RGB8: ETC1 individual/differential blocks plus the T, H and planar modes hidden in differential overflows
+        private static void decodeEtc2(ByteBuffer data, int block, int texels[]) {
+            long b = Long.reverseBytes(data.getLong(block)); // ETC blocks are big endian
+            int indices = (int) b;
+
+            if (bits(b, 33, 1) == 0 || !etc2Overflows(b)) {
+                int base0, base1;
+                if (bits(b, 33, 1) == 0) {
+                    base0 = rgba(extend4(bits(b, 60, 4)), extend4(bits(b, 52, 4)), extend4(bits(b, 44, 4)), 255);
+                    base1 = rgba(extend4(bits(b, 56, 4)), extend4(bits(b, 48, 4)), extend4(bits(b, 40, 4)), 255);
+                } else {
+                    int r = bits(b, 59, 5), g = bits(b, 51, 5), bl = bits(b, 43, 5);
+                    base0 = rgba(extend5(r), extend5(g), extend5(bl), 255);
+                    base1 = rgba(extend5(r + signed3(bits(b, 56, 3))), extend5(g + signed3(bits(b, 48, 3))), extend5(bl + signed3(bits(b, 40, 3))), 255);
+                }
+                int table0[] = ETC_MODIFIERS[bits(b, 37, 3)];
+                int table1[] = ETC_MODIFIERS[bits(b, 34, 3)];
+                boolean flip = bits(b, 32, 1) == 1;
+
+                for (int x = 0; x < 4; ++x) {
+                    for (int y = 0; y < 4; ++y) {
+                        boolean second = flip ? y >= 2 : x >= 2;
+                        int table[] = second ? table1 : table0;
+                        int modifier = etcIndex(indices, x, y);
+                        int delta = (modifier & 1) == 0 ? table[0] : table[1];
+                        texels[y * 4 + x] = offset(second ? base1 : base0, modifier >= 2 ? -delta : delta);
+                    }
+                }
+                return;
             }
 
-            //ubo.modelMatrices[0].get(MemoryUtil.memByteBuffer(data.get(0) + (2 * MAT_SIZE), MAT_SIZE));
-            //ubo.model.invert().scale(0.5f).translate(0.5f, 0f, 0f).get(MemoryUtil.memByteBuffer(data.get(0) + (3 * MAT_SIZE), MAT_SIZE));
+            int paint[] = new int[4];
+            if (!inRange5(bits(b, 59, 5) + signed3(bits(b, 56, 3)))) {
+                // T mode
+                int c0 = rgba(extend4(bits(b, 59, 2) << 2 | bits(b, 56, 2)), extend4(bits(b, 52, 4)), extend4(bits(b, 48, 4)), 255);
+                int c1 = rgba(extend4(bits(b, 44, 4)), extend4(bits(b, 40, 4)), extend4(bits(b, 36, 4)), 255);
+                int d = ETC_DISTANCES[bits(b, 34, 2) << 1 | bits(b, 32, 1)];
+                paint[0] = c0;
+                paint[1] = offset(c1, d);
+                paint[2] = c1;
+                paint[3] = offset(c1, -d);
+            } else if (!inRange5(bits(b, 51, 5) + signed3(bits(b, 48, 3)))) {
+                // H mode
+                int r0 = bits(b, 59, 4), g0 = bits(b, 56, 3) << 1 | bits(b, 52, 1), b0 = bits(b, 51, 1) << 3 | bits(b, 47, 3);
+                int r1 = bits(b, 43, 4), g1 = bits(b, 39, 4), b1 = bits(b, 35, 4);
+                int c0 = rgba(extend4(r0), extend4(g0), extend4(b0), 255);
+                int c1 = rgba(extend4(r1), extend4(g1), extend4(b1), 255);
+                int order = (r0 << 8 | g0 << 4 | b0) >= (r1 << 8 | g1 << 4 | b1) ? 1 : 0;
+                int d = ETC_DISTANCES[bits(b, 34, 1) << 2 | bits(b, 32, 1) << 1 | order];
+                paint[0] = offset(c0, d);
+                paint[1] = offset(c0, -d);
+                paint[2] = offset(c1, d);
+                paint[3] = offset(c1, -d);
+            } else {
+                // planar mode, no indices at all, the block is a colour gradient
+                int ro = extend6(bits(b, 57, 6));
+                int go = extend7(bits(b, 56, 1) << 6 | bits(b, 49, 6));
+                int bo = extend6(bits(b, 48, 1) << 5 | bits(b, 43, 2) << 3 | bits(b, 39, 3));
+                int rh = extend6(bits(b, 34, 5) << 1 | bits(b, 32, 1));
+                int gh = extend7(bits(b, 25, 7));
+                int bh = extend6(bits(b, 19, 6));
+                int rv = extend6(bits(b, 13, 6));
+                int gv = extend7(bits(b, 6, 7));
+                int bv = extend6(bits(b, 0, 6));
+
+                for (int y = 0; y < 4; ++y) {
+                    for (int x = 0; x < 4; ++x) {
+                        texels[y * 4 + x] = rgba(
+                                clampByte((x * (rh - ro) + y * (rv - ro) + 4 * ro + 2) >> 2),
+                                clampByte((x * (gh - go) + y * (gv - go) + 4 * go + 2) >> 2),
+                                clampByte((x * (bh - bo) + y * (bv - bo) + 4 * bo + 2) >> 2),
+                                255);
+                    }
+                }
+                return;
+            }
 
-            vkUnmapMemory(device, uniformBuffersMemory.get(currentImage));
+            for (int x = 0; x < 4; ++x) {
+                for (int y = 0; y < 4; ++y) {
+                    texels[y * 4 + x] = paint[etcIndex(indices, x, y)];
+                }
+            }
         }
-    }
 
-    private static long createShaderModule(ByteBuffer spirvCode) {
+        private static boolean etc2Overflows(long b) {
+            return !inRange5(bits(b, 59, 5) + signed3(bits(b, 56, 3)))
+                    || !inRange5(bits(b, 51, 5) + signed3(bits(b, 48, 3)))
+                    || !inRange5(bits(b, 43, 5) + signed3(bits(b, 40, 3)));
+        }
 
-        try(MemoryStack stack = stackPush()) {
+        private static boolean inRange5(int value) {
+            return value >= 0 && value <= 31;
+        }
 
-            VkShaderModuleCreateInfo createInfo = VkShaderModuleCreateInfo.callocStack(stack);
+        private static int signed3(int value) {
+            return value >= 4 ? value - 8 : value;
+        }
 
-            createInfo.sType(VK_STRUCTURE_TYPE_SHADER_MODULE_CREATE_INFO);
-            createInfo.pCode(spirvCode);
+        // ETC pixel indices are column major, the msb plane in the upper 16 bits
+        private static int etcIndex(int indices, int x, int y) {
+            int i = x * 4 + y;
+            return (indices >>> (16 + i) & 1) << 1 | (indices >>> i & 1);
+        }
 
-            LongBuffer pShaderModule = stack.mallocLong(1);
+        private static void decodeEacAlpha(ByteBuffer data, int block, int texels[]) {
+            long b = Long.reverseBytes(data.getLong(block));
+            int base = bits(b, 56, 8);
+            int multiplier = bits(b, 52, 4);
+            int table[] = EAC_MODIFIERS[bits(b, 48, 4)];
 
-            if(vkCreateShaderModule(device, createInfo, null, pShaderModule) != VK_SUCCESS) {
-                throw new RuntimeException("Failed to create shader module");
+            for (int x = 0; x < 4; ++x) {
+                for (int y = 0; y < 4; ++y) {
+                    int a = clampByte(base + table[bits(b, 45 - 3 * (x * 4 + y), 3)] * multiplier);
+                    texels[y * 4 + x] = texels[y * 4 + x] & 0xFFFFFF | a << 24;
+                }
             }
-
-            return pShaderModule.get(0);
         }
     }
 
-    private static VkSurfaceFormatKHR chooseSwapSurfaceFormat(VkSurfaceFormatKHR.Buffer availableFormats) {
-        return availableFormats.stream()
-                .filter(availableFormat -> availableFormat.format() == VK_FORMAT_R8G8B8A8_SRGB)
-                .filter(availableFormat -> availableFormat.colorSpace() == VK_COLOR_SPACE_SRGB_NONLINEAR_KHR)
-                .findAny()
-                .orElse(availableFormats.get(0));
-    }
+    // Skyline bottom-left packer over square layers. Good enough for sprites and cheap to keep around,
+    // a later packer can keep adding rectangles to the layers that already exist
+    private static class SkylinePacker {
 
-    private static int chooseSwapPresentMode(IntBuffer availablePresentModes) {
+        private static class Node {
+            int x, y, width;
 
-        for(int i = 0;i < availablePresentModes.capacity();i++) {
-            if(availablePresentModes.get(i) == VK_PRESENT_MODE_MAILBOX_KHR) {
-                return availablePresentModes.get(i);
+            Node(int x, int y, int width) {
+                this.x = x;
+                this.y = y;
+                this.width = width;
             }
         }
 
-        return VK_PRESENT_MODE_FIFO_KHR;
-    }
+        private final int size;
+        private final List<List<Node>> layers = new ArrayList<>();
 
-    private static VkExtent2D chooseSwapExtent(VkSurfaceCapabilitiesKHR capabilities) {
+        SkylinePacker(int size) {
+            this.size = size;
+        }
 
-        if(capabilities.currentExtent().width() != UINT32_MAX) {
-            return capabilities.currentExtent();
+        int layerCount() {
+            return layers.size();
         }
 
-        IntBuffer width = stackGet().ints(0);
-        IntBuffer height = stackGet().ints(0);
+        // returns {layer, x, y}, opening a new layer when no existing one has room
+        int[] pack(int width, int height) {
+            return pack(width, height, Integer.MAX_VALUE);
+        }
 
-        glfwGetFramebufferSize(window, width, height);
+        // the same, but null instead of opening more than maxLayers layers, nothing is left behind then
+        int[] pack(int width, int height, int maxLayers) {
+            if (width > size || height > size) throw new IllegalArgumentException(width + "x" + height + " does not fit a layer of " + size);
 
-        VkExtent2D actualExtent = VkExtent2D.callocStack().set(width.get(0), height.get(0));
+            for (int layer = 0; layer < layers.size(); ++layer) {
+                int position[] = packInto(layers.get(layer), width, height);
+                if (position != null) return new int[] { layer, position[0], position[1] };
+            }
+            if (layers.size() >= maxLayers) return null;
 
-        VkExtent2D minExtent = capabilities.minImageExtent();
-        VkExtent2D maxExtent = capabilities.maxImageExtent();
+            List<Node> skyline = new ArrayList<>();
+            skyline.add(new Node(0, 0, size));
+            layers.add(skyline);
 
-        actualExtent.width(clamp(minExtent.width(), maxExtent.width(), actualExtent.width()));
-        actualExtent.height(clamp(minExtent.height(), maxExtent.height(), actualExtent.height()));
+            int position[] = packInto(skyline, width, height);
+            return new int[] { layers.size() - 1, position[0], position[1] };
+        }
 
-        return actualExtent;
-    }
+        private int[] packInto(List<Node> skyline, int width, int height) {
+            int bestIndex = -1, bestX = 0, bestY = Integer.MAX_VALUE, bestWidth = Integer.MAX_VALUE;
 
-    private static int clamp(int min, int max, int value) {
-        return Math.max(min, Math.min(max, value));
-    }
+            for (int i = 0; i < skyline.size(); ++i) {
+                int y = fit(skyline, i, width, height);
+                if (y < 0) continue;
 
-    private static boolean isDeviceSuitable(VkPhysicalDevice device) {
+                Node node = skyline.get(i);
+                if (y + height < bestY || (y + height == bestY && node.width < bestWidth)) {
+                    bestIndex = i;
+                    bestX = node.x;
+                    bestY = y + height;
+                    bestWidth = node.width;
+                }
+            }
 
-        QueueFamilyIndices indices = findQueueFamilies(device);
+            if (bestIndex < 0) return null;
 
-        boolean extensionsSupported = checkDeviceExtensionSupport(device);
-        boolean swapChainAdequate = false;
-        boolean anisotropySupported = false;
+            addLevel(skyline, bestIndex, bestX, bestY, width);
+            return new int[] { bestX, bestY - height };
+        }
 
-        if(extensionsSupported) {
-            try(MemoryStack stack = stackPush()) {
-                SwapChainSupportDetails swapChainSupport = querySwapChainSupport(device, stack);
-                swapChainAdequate = swapChainSupport.formats.hasRemaining() && swapChainSupport.presentModes.hasRemaining();
-                VkPhysicalDeviceFeatures supportedFeatures = VkPhysicalDeviceFeatures.callocStack(stack);
-                vkGetPhysicalDeviceFeatures(device, supportedFeatures);
-                anisotropySupported = supportedFeatures.samplerAnisotropy();
+        // lowest y at which a width x height rectangle can sit starting at node i, -1 if it does not fit
+        private int fit(List<Node> skyline, int i, int width, int height) {
+            int x = skyline.get(i).x;
+            if (x + width > size) return -1;
+
+            int y = 0;
+            int widthLeft = width;
+            for (int j = i; widthLeft > 0; ++j) {
+                Node node = skyline.get(j);
+                y = Math.max(y, node.y);
+                if (y + height > size) return -1;
+                widthLeft -= node.width;
             }
+            return y;
         }
 
-        return indices.isComplete() && extensionsSupported && swapChainAdequate && anisotropySupported;
+        private void addLevel(List<Node> skyline, int index, int x, int top, int width) {
+            skyline.add(index, new Node(x, top, width));
+
+            // the new node shadows (parts of) the ones to its right
+            for (int i = index + 1; i < skyline.size(); ++i) {
+                Node previous = skyline.get(i - 1);
+                Node node = skyline.get(i);
+                int overlap = previous.x + previous.width - node.x;
+                if (overlap <= 0) break;
+
+                node.x += overlap;
+                node.width -= overlap;
+                if (node.width > 0) break;
+
+                skyline.remove(i--);
+            }
+
+            for (int i = 0; i < skyline.size() - 1; ++i) {
+                Node node = skyline.get(i);
+                Node next = skyline.get(i + 1);
+                if (node.y == next.y) {
+                    node.width += next.width;
+                    skyline.remove(i-- + 1);
+                }
+            }
+        }
     }
 
-    private static boolean checkDeviceExtensionSupport(VkPhysicalDevice device) {
+    // All textures packed at native size into a few square RGBA8 layers. Every texture id maps to a layer and a
+    // uv rectangle inside it, both end up in the instance data so the shader samples only that sub-rectangle.
+    // Ids without an image (null, compressed textures living in their own page) get no slot
+    static class TextureAtlas {
+
+        // Slots start and end on a SLOT_ALIGNMENT grid, so every texel down to the last of MIP_LEVELS belongs to one
+        // slot only. Border pixels are repeated PADDING around every image and out to the slot edges, half a texel of
+        // the last level, so linear filtering on any level never picks up a neighbour
+        static final int MIP_LEVELS = 5;
+        static final int SLOT_ALIGNMENT = 1 << (MIP_LEVELS - 1);
+        static final int PADDING = SLOT_ALIGNMENT / 2;
+        static final int MIN_LAYER_SIZE = 256;
+
+        private final int layerSize;
+        private final int layerCount;
+        private final int layers[];
+        private final int positions[]; // x, y per texture in pixels
+        private final int sizes[];     // width, height per texture in pixels
+        private DecodedImage images[];
+        private int imageCount;
+        private final long unpackedSize;
+
+        // picks the smallest power of two layer that holds the biggest image and, roughly, all of them
+        static int chooseLayerSize(DecodedImage images[], int maxLayerSize) {
+            int biggestSide = 0;
+            long area = 0;
+            for (DecodedImage image : images) {
+                if (image == null) continue;
+                biggestSide = Math.max(biggestSide, slotSize(Math.max(image.width, image.height)));
+                area += (long) slotSize(image.width) * slotSize(image.height);
+            }
 
-        try(MemoryStack stack = stackPush()) {
+            int wanted = Math.max(biggestSide, (int) Math.ceil(Math.sqrt(area)));
+            int size = MIN_LAYER_SIZE;
+            while (size < wanted && size < maxLayerSize) size <<= 1;
+            return Math.min(size, maxLayerSize);
+        }
 
-            IntBuffer extensionCount = stack.ints(0);
+        // the padded side rounded up to the slot grid
+        static int slotSize(int contentSize) {
+            return (contentSize + 2 * PADDING + SLOT_ALIGNMENT - 1) / SLOT_ALIGNMENT * SLOT_ALIGNMENT;
+        }
 
-            vkEnumerateDeviceExtensionProperties(device, (String)null, extensionCount, null);
+        TextureAtlas(int layerSize, DecodedImage images[]) {
+            this.layerSize = layerSize;
+            this.images = images;
+            this.layers = new int[images.length];
+            this.positions = new int[images.length * 2];
+            this.sizes = new int[images.length * 2];
+
+            int biggestWidth = 0, biggestHeight = 0;
+            imageCount = 0;
+            for (DecodedImage image : images) {
+                if (image == null) continue;
+                biggestWidth  = Math.max(biggestWidth,  image.width);
+                biggestHeight = Math.max(biggestHeight, image.height);
+                imageCount++;
+            }
+            unpackedSize = (long) imageCount * biggestWidth * biggestHeight * STBI_rgb_alpha;
+
+            // tallest first packs a lot better, ids stay whatever the caller gave us
+            Integer order[] = new Integer[imageCount];
+            for (int i = 0, n = 0; i < images.length; ++i) if (images[i] != null) order[n++] = i;
+            Arrays.sort(order, (a, b) -> images[b].height != images[a].height ? images[b].height - images[a].height : images[b].width - images[a].width);
+
+            SkylinePacker packer = new SkylinePacker(layerSize);
+            for (int id : order) {
+                int slot[] = packer.pack(slotSize(images[id].width), slotSize(images[id].height));
+                layers[id] = slot[0];
+                positions[id * 2]     = slot[1] + PADDING;
+                positions[id * 2 + 1] = slot[2] + PADDING;
+                sizes[id * 2]     = images[id].width;
+                sizes[id * 2 + 1] = images[id].height;
+            }
+            // an empty atlas still gets a layer, page 0 always needs an image behind it
+            layerCount = Math.max(1, packer.layerCount());
+        }
 
-            VkExtensionProperties.Buffer availableExtensions = VkExtensionProperties.callocStack(extensionCount.get(0), stack);
+        int layerSize() {
+            return layerSize;
+        }
 
-            vkEnumerateDeviceExtensionProperties(device, (String)null, extensionCount, availableExtensions);
+        int layerCount() {
+            return layerCount;
+        }
 
-            return availableExtensions.stream()
-                    .map(VkExtensionProperties::extensionNameString)
-                    .collect(toSet())
-                    .containsAll(DEVICE_EXTENSIONS);
+        int imageCount() {
+            return imageCount;
         }
-    }
 
-    private static SwapChainSupportDetails querySwapChainSupport(VkPhysicalDevice device, MemoryStack stack) {
+        long sizeInBytes() {
+            return (long) layerCount * layerSize * layerSize * STBI_rgb_alpha;
+        }
 
-        SwapChainSupportDetails details = new SwapChainSupportDetails();
+        // what the old one-texture-per-layer scheme (everything scaled to the biggest image) would have used
+        long unpackedSizeInBytes() {
+            return unpackedSize;
+        }
 
-        details.capabilities = VkSurfaceCapabilitiesKHR.callocStack(stack);
-        vkGetPhysicalDeviceSurfaceCapabilitiesKHR(device, surface, details.capabilities);
+        int layer(int textureId) {
+            return layers[textureId];
+        }
 
-        IntBuffer count = stack.ints(0);
+        float u0(int textureId) { return (float) positions[textureId * 2] / layerSize; }
+        float v0(int textureId) { return (float) positions[textureId * 2 + 1] / layerSize; }
+        float u1(int textureId) { return (float) (positions[textureId * 2] + sizes[textureId * 2]) / layerSize; }
+        float v1(int textureId) { return (float) (positions[textureId * 2 + 1] + sizes[textureId * 2 + 1]) / layerSize; }
+
+        // writes all layers, tightly packed one after the other, to address and releases the decoded images
+        void compose(long address) {
+            MemoryUtil.memSet(address, 0, sizeInBytes());
+
+            for (int id = 0; id < images.length; ++id) {
+                DecodedImage image = images[id];
+                if (image == null) continue;
+                long layerAddress = address + (long) layers[id] * layerSize * layerSize * STBI_rgb_alpha;
+                int x = positions[id * 2];
+                int y = positions[id * 2 + 1];
+                long srcAddress = MemoryUtil.memAddress(image.pixels);
+                int rowBytes = image.width * STBI_rgb_alpha;
+                int slotRight  = slotSize(image.width) - PADDING;  // past the image, up to the slot edge
+                int slotBottom = slotSize(image.height) - PADDING;
+
+                for (int row = -PADDING; row < slotBottom; ++row) {
+                    long src = srcAddress + (long) clamp(0, image.height - 1, row) * rowBytes;
+                    long dst = layerAddress + ((long) (y + row) * layerSize + x) * STBI_rgb_alpha;
+
+                    MemoryUtil.memCopy(src, dst, rowBytes);
+
+                    int first = MemoryUtil.memGetInt(src);
+                    int last  = MemoryUtil.memGetInt(src + rowBytes - STBI_rgb_alpha);
+                    for (int p = 1; p <= PADDING; ++p) MemoryUtil.memPutInt(dst - (long) p * STBI_rgb_alpha, first);
+                    for (int p = image.width; p < slotRight; ++p) MemoryUtil.memPutInt(dst + (long) p * STBI_rgb_alpha, last);
+                }
 
-        vkGetPhysicalDeviceSurfaceFormatsKHR(device, surface, count, null);
+                image.free();
+            }
+            images = null;
+        }
+    }
 
-        if(count.get(0) != 0) {
-            details.formats = VkSurfaceFormatKHR.callocStack(count.get(0), stack);
-            vkGetPhysicalDeviceSurfaceFormatsKHR(device, surface, count, details.formats);
+    // Compressed textures can't live in the RGBA8 atlas, every (format, size, mip count) combination gets its own
+    // array image instead with one texture per layer. Page 0 is the atlas, the shaders pick the page per instance
+    private static class CompressedPage {
+
+        private final int format;
+        private final int width;
+        private final int height;
+        private final int mipLevels;
+        private final List<CompressedImage> images = new ArrayList<>();
+
+        private long image;
+        private DeviceMemoryAllocator.Allocation memory;
+        private long view;
+
+        CompressedPage(CompressedImage first) {
+            this.format = first.format;
+            this.width = first.width;
+            this.height = first.height;
+            this.mipLevels = first.mipLevels;
         }
 
-        vkGetPhysicalDeviceSurfacePresentModesKHR(device,surface, count, null);
+        boolean accepts(CompressedImage image) {
+            return image.format == format && image.width == width && image.height == height && image.mipLevels == mipLevels;
+        }
 
-        if(count.get(0) != 0) {
-            details.presentModes = stack.mallocInt(count.get(0));
-            vkGetPhysicalDeviceSurfacePresentModesKHR(device, surface, count, details.presentModes);
+        // returns the layer the image ends up on
+        int add(CompressedImage image) {
+            images.add(image);
+            return images.size() - 1;
+        }
+
+        int layerCount() {
+            return images.size();
+        }
+
+        long sizeInBytes() {
+            return images.size() * images.get(0).sizeInBytes();
         }
 
-        return details;
+        void free() {
+            vkDestroyImageView(device, view, null);
+            vkDestroyImage(device, image, null);
+            memoryAllocator.free(memory);
+        }
     }
 
-    private static QueueFamilyIndices findQueueFamilies(VkPhysicalDevice device) {
-
-        QueueFamilyIndices indices = new QueueFamilyIndices();
+    // One persistently mapped host-visible buffer handed out front to back and reused once the GPU is done with a
+    // range. Allocation never blocks, when there is no room it fails and the caller tries again next frame
+    private static class StagingRing {
 
-        try(MemoryStack stack = stackPush()) {
+        private static class Range {
+            final long start, end;
+            boolean released;
 
-            IntBuffer queueFamilyCount = stack.ints(0);
+            Range(long start, long end) {
+                this.start = start;
+                this.end = end;
+            }
+        }
 
-            vkGetPhysicalDeviceQueueFamilyProperties(device, queueFamilyCount, null);
+        private final long buffer;
+        private final DeviceMemoryAllocator.Allocation memory;
+        private final long address;
+        private final long capacity;
+        private final long alignment;
+        private final ArrayDeque<Range> live = new ArrayDeque<>(); // oldest first
+        private long head;
+        private long inUse;
 
-            VkQueueFamilyProperties.Buffer queueFamilies = VkQueueFamilyProperties.callocStack(queueFamilyCount.get(0), stack);
+        long highWaterMark;
+        // counted by the callers, only they know what they did about a failed allocation
+        long stalls;    // waited on a fence for room
+        long deferrals; // pushed the upload to a later frame
 
-            vkGetPhysicalDeviceQueueFamilyProperties(device, queueFamilyCount, queueFamilies);
+        StagingRing(long capacity, long alignment) {
+            this.capacity = capacity;
+            this.alignment = alignment;
 
-            IntBuffer presentSupport = stack.ints(VK_FALSE);
+            try(MemoryStack stack = stackPush()) {
+                LongBuffer pBuffer = stack.mallocLong(1);
+                memory = createBuffer(capacity,
+                        VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
+                        VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                        pBuffer);
 
-            for(int i = 0;i < queueFamilies.capacity() || !indices.isComplete();i++) {
+                buffer  = pBuffer.get(0);
+                address = memory.mapped();
+            }
+        }
 
-                if((queueFamilies.get(i).queueFlags() & VK_QUEUE_GRAPHICS_BIT) != 0) {
-                    indices.graphicsFamily = i;
-                }
+        // returns the offset of size free bytes, or -1 if the ring has no room for them right now
+        long allocate(long size) {
+            if (live.isEmpty()) head = 0;
 
-                vkGetPhysicalDeviceSurfaceSupportKHR(device, i, surface, presentSupport);
+            long tail = live.isEmpty() ? capacity : live.peekFirst().start;
+            long start = (head + alignment - 1) / alignment * alignment;
 
-                if(presentSupport.get(0) == VK_TRUE) {
-                    indices.presentFamily = i;
+            if (live.isEmpty() || tail < head) {
+                // free space is [head, capacity) followed by [0, tail)
+                if (start + size > capacity) {
+                    start = 0;
+                    if (size > (live.isEmpty() ? capacity : tail)) return -1;
                 }
+            } else if (start + size > tail) {
+                // free space is [head, tail)
+                return -1;
             }
 
-            return indices;
+            live.addLast(new Range(start, start + size));
+            head = start + size;
+            inUse += size;
+            highWaterMark = Math.max(highWaterMark, inUse);
+            return start;
         }
-    }
-
-    static final Field address, capacity;
-    static {
-        try {
-            address = Buffer.class.getDeclaredField("address");
-            address.setAccessible(true);
-            capacity = Buffer.class.getDeclaredField("capacity");
-            capacity.setAccessible(true);
 
-        } catch (NoSuchFieldException e) {
-            throw new AssertionError(e);
-        }
-    }
-    private static ByteBuffer wrapAddress(long addr, int length) {
-        ByteBuffer bb = ByteBuffer.allocateDirect(0).order(ByteOrder.nativeOrder());
-        try {
-            address.setLong(bb, addr);
-            capacity.setInt(bb, length);
-            bb.clear();
-        } catch (IllegalAccessException e) {
-            throw new AssertionError(e);
-        }
-        return bb;
-    }
-    private static void copyByteBuffer(ByteBuffer dst, ByteBuffer src, long size) {
-        src.limit((int)size);
-        dst.put(src);
-        src.limit(src.capacity()).rewind();
-    }
+        // the biggest size allocate would succeed with right now
+        long largestFree() {
+            if (live.isEmpty()) return capacity;
 
-    private static PointerBuffer asPointerBuffer(Collection<String> collection) {
+            long tail = live.peekFirst().start;
+            long start = (head + alignment - 1) / alignment * alignment;
 
-        MemoryStack stack = stackGet();
+            if (tail < head) return Math.max(Math.max(0, capacity - start), tail);
+            return Math.max(0, tail - start);
+        }
 
-        PointerBuffer buffer = stack.mallocPointer(collection.size());
+        // ranges can be released in any order, the space is reused once everything older is released too
+        void release(long offset) {
+            for (Range range : live) {
+                if (range.start == offset && !range.released) {
+                    range.released = true;
+                    break;
+                }
+            }
+            while (!live.isEmpty() && live.peekFirst().released) {
+                Range range = live.pollFirst();
+                inUse -= range.end - range.start;
+            }
+        }
 
-        collection.stream()
-                .map(stack::UTF8)
-                .forEach(buffer::put);
+        long address(long offset) {
+            return address + offset;
+        }
 
-        return buffer.rewind();
+        void free() {
+            vkDestroyBuffer(device, buffer, null);
+            memoryAllocator.free(memory);
+        }
     }
 
-    private static PointerBuffer asPointerBuffer(List<? extends Pointer> list) {
-
-        MemoryStack stack = stackGet();
-
-        PointerBuffer buffer = stack.mallocPointer(list.size());
-
-        list.forEach(buffer::put);
-
-        return buffer.rewind();
-    }
+    // Textures added while running. Square RGBA8 layers like the atlas, but allocated once at a fixed size, kept in
+    // GENERAL layout and shared with the transfer queue, so new textures are copied into free space while the rest
+    // of the page is sampled. Slots sit on a 2^(mipLevels-1) grid, that keeps every mip level of a slot exact
+    private static class RuntimeTexturePage {
+
+        private final int layerSize;
+        private final int layerCount;
+        private final int mipLevels;
+        private final SkylinePacker packer;
+        private final List<int[]> slots = new ArrayList<>(); // layer, x, y, width, height of the content in pixels
+
+        private long image;
+        private DeviceMemoryAllocator.Allocation memory;
+        private long view;
+
+        RuntimeTexturePage(int layerSize, int layerCount, int mipLevels) {
+            this.layerSize = layerSize;
+            this.layerCount = layerCount;
+            this.mipLevels = mipLevels;
+            this.packer = new SkylinePacker(layerSize);
+        }
 
-    private static PointerBuffer getRequiredExtensions() {
+        int slotAlignment() {
+            return 1 << (mipLevels - 1);
+        }
 
-        PointerBuffer glfwExtensions = glfwGetRequiredInstanceExtensions();
+        int maxContentSize() {
+            return layerSize - 2 * TextureAtlas.PADDING;
+        }
 
-        if(ENABLE_VALIDATION_LAYERS) {
+        // returns the slot for an upload, -1 when every layer is full
+        int add(TextureUpload upload) {
+            int position[] = packer.pack(upload.slotWidth, upload.slotHeight, layerCount);
+            if (position == null) return -1;
 
-            MemoryStack stack = stackGet();
+            slots.add(new int[] { position[0], position[1], position[2], upload.contentWidth, upload.contentHeight });
+            return slots.size() - 1;
+        }
 
-            PointerBuffer extensions = stack.mallocPointer(glfwExtensions.capacity() + 1);
+        int layer(int slot) { return slots.get(slot)[0]; }
+        int x(int slot)     { return slots.get(slot)[1]; }
+        int y(int slot)     { return slots.get(slot)[2]; }
 
-            extensions.put(glfwExtensions);
-            extensions.put(stack.UTF8(VK_EXT_DEBUG_UTILS_EXTENSION_NAME));
+        float u0(int slot) { return (float) (slots.get(slot)[1] + TextureAtlas.PADDING) / layerSize; }
+        float v0(int slot) { return (float) (slots.get(slot)[2] + TextureAtlas.PADDING) / layerSize; }
+        float u1(int slot) { return (float) (slots.get(slot)[1] + TextureAtlas.PADDING + slots.get(slot)[3]) / layerSize; }
+        float v1(int slot) { return (float) (slots.get(slot)[2] + TextureAtlas.PADDING + slots.get(slot)[4]) / layerSize; }
 
-            // Rewind the buffer before returning it to reset its position back to 0
-            return extensions.rewind();
+        void free() {
+            vkDestroyImageView(device, view, null);
+            vkDestroyImage(device, image, null);
+            memoryAllocator.free(memory);
         }
-
-        return glfwExtensions;
     }
 
-    private static boolean checkValidationLayerSupport() {
+    // A texture on its way into the runtime page. Decoded, padded and mipmapped on a loader thread, then staged
+    // and copied by the transfer queue. The loader thread owns it until it is queued, the render thread after that
+    private static class TextureUpload {
+
+        private final String name;
+        private final CompletableFuture<Integer> result;
+        private ByteBuffer pixels; // every level of the padded slot, largest first
+        private final int slotWidth;
+        private final int slotHeight;
+        private final int contentWidth;
+        private final int contentHeight;
+        private final int mipLevels;
+        private final boolean opaque;
+        private final float outline[];
+
+        private Throwable failure; // decoding failed, nothing else is set
+
+        // set once submitted
+        private long stagingOffset;
+        private int slot;
+        private VkCommandBuffer commandBuffer;
+        private long fence;
+        private long semaphore;
+
+        private TextureUpload(String name, CompletableFuture<Integer> result, ByteBuffer pixels,
+                              int slotWidth, int slotHeight, int contentWidth, int contentHeight, int mipLevels, boolean opaque,
+                              float outline[]) {
+            this.name = name;
+            this.result = result;
+            this.pixels = pixels;
+            this.slotWidth = slotWidth;
+            this.slotHeight = slotHeight;
+            this.contentWidth = contentWidth;
+            this.contentHeight = contentHeight;
+            this.mipLevels = mipLevels;
+            this.opaque = opaque;
+            this.outline = outline;
+        }
 
-        try(MemoryStack stack = stackPush()) {
+        static TextureUpload failed(String name, CompletableFuture<Integer> result, Throwable failure) {
+            TextureUpload upload = new TextureUpload(name, result, null, 0, 0, 0, 0, 0, false, null);
+            upload.failure = failure;
+            return upload;
+        }
 
-            IntBuffer layerCount = stack.ints(0);
+        static TextureUpload decode(File file, String name, CompletableFuture<Integer> result, RuntimeTexturePage page) {
+            DecodedImage image = CompressedImage.isContainer(file)
+                    ? CompressedImage.load(file).decode(name)
+                    : DecodedImage.load(file.getAbsolutePath());
+            image = image.fitInto(page.maxContentSize(), page.maxContentSize(), name);
 
-            vkEnumerateInstanceLayerProperties(layerCount, null);
+            try {
+                int alignment = page.slotAlignment();
+                int slotWidth  = (image.width  + 2 * TextureAtlas.PADDING + alignment - 1) / alignment * alignment;
+                int slotHeight = (image.height + 2 * TextureAtlas.PADDING + alignment - 1) / alignment * alignment;
 
-            VkLayerProperties.Buffer availableLayers = VkLayerProperties.callocStack(layerCount.get(0), stack);
+                long size = 0;
+                for (int level = 0; level < page.mipLevels; ++level) {
+                    size += (long) (slotWidth >> level) * (slotHeight >> level) * STBI_rgb_alpha;
+                }
+                ByteBuffer pixels = MemoryUtil.memAlloc(Math.toIntExact(size));
+                long address = MemoryUtil.memAddress(pixels);
+                long srcAddress = MemoryUtil.memAddress(image.pixels);
+                int rowBytes = image.width * STBI_rgb_alpha;
+
+                // level 0 is the image with its border pixels repeated out to the slot edges
+                for (int row = 0; row < slotHeight; ++row) {
+                    long src = srcAddress + (long) clamp(0, image.height - 1, row - TextureAtlas.PADDING) * rowBytes;
+                    long dst = address + (long) row * slotWidth * STBI_rgb_alpha;
+
+                    MemoryUtil.memCopy(src, dst + (long) TextureAtlas.PADDING * STBI_rgb_alpha, rowBytes);
+
+                    int first = MemoryUtil.memGetInt(src);
+                    int last  = MemoryUtil.memGetInt(src + rowBytes - STBI_rgb_alpha);
+                    for (int x = 0; x < TextureAtlas.PADDING; ++x) MemoryUtil.memPutInt(dst + (long) x * STBI_rgb_alpha, first);
+                    for (int x = TextureAtlas.PADDING + image.width; x < slotWidth; ++x) MemoryUtil.memPutInt(dst + (long) x * STBI_rgb_alpha, last);
+                }
 
-            vkEnumerateInstanceLayerProperties(layerCount, availableLayers);
+                long level = address;
+                for (int i = 1; i < page.mipLevels; ++i) {
+                    long next = level + (long) (slotWidth >> (i - 1)) * (slotHeight >> (i - 1)) * STBI_rgb_alpha;
+                    downsample(level, slotWidth >> (i - 1), slotHeight >> (i - 1), next);
+                    level = next;
+                }
 
-            Set<String> availableLayerNames = availableLayers.stream()
-                    .map(VkLayerProperties::layerNameString)
-                    .collect(toSet());
+                return new TextureUpload(name, result, pixels, slotWidth, slotHeight, image.width, image.height, page.mipLevels, image.opaque(), image.outline());
+            } finally {
+                image.free();
+            }
+        }
 
-            return availableLayerNames.containsAll(VALIDATION_LAYERS);
+        long sizeInBytes() {
+            return pixels.capacity();
+        }
+
+        void free() {
+            if (pixels != null) MemoryUtil.memFree(pixels);
+            pixels = null;
         }
     }
 
-    // INLINED CLASSES
     private static class Frame {
 
         private final long imageAvailableSemaphore;
         private final long renderFinishedSemaphore;
         private final long fence;
+        // semaphores of texture uploads the last submit of this frame waited on, gone once its fence has signalled
+        private final List<Long> uploadSemaphores = new ArrayList<>();
+        // instance data copies recorded by updateInstanceBuffer, submitted in front of the draw
+        private VkCommandBuffer uploadCommandBuffer;
+        // recorded every frame, runs the secondaries of the acquired image
+        private VkCommandBuffer commandBuffer;
+        // timestamps written by the last submit of this frame, read back once its fence has signalled
+        private long queryPool = VK_NULL_HANDLE;
+        private int timestampCount;
+        // fragment shader invocations of the last submit, statisticsPending until they are read
+        private long statisticsPool = VK_NULL_HANDLE;
+        private boolean statisticsPending;
+        // staging ring range read by those copies, released once the fence has signalled
+        private long stagingOffset = -1;
 
         public Frame(long imageAvailableSemaphore, long renderFinishedSemaphore, long fence) {
             this.imageAvailableSemaphore = imageAvailableSemaphore;
@@ -1928,8 +6109,45 @@ public class Engine {
             return null;
         }
 
+        // ===> SPIR-V CACHE <===
+        // The cache is content addressed: the file name is a hash of the source, the shader kind and the
+        // compiler options, so an edited shader or a different shaderc simply misses and never needs invalidation
+
+        private static final Path SPIRV_CACHE_DIR = CACHE_DIR.resolve("spirv");
+        private static final int SPIRV_MAGIC = 0x07230203;
+
+        private static int cacheHits;
+        private static int cacheMisses;
+
+        public static int cacheHits() {
+            return cacheHits;
+        }
+
+        public static int cacheMisses() {
+            return cacheMisses;
+        }
+
         public static SPIRV compileShader(String filename, String source, ShaderKind shaderKind) {
 
+            String key = cacheKey(source, shaderKind);
+
+            SPIRV cached = loadCachedSPIRV(key);
+
+            if(cached != null) {
+                cacheHits++;
+                return cached;
+            }
+
+            cacheMisses++;
+
+            SPIRV spirv = compileShaderUncached(filename, source, shaderKind);
+            storeCachedSPIRV(key, spirv.bytecode());
+
+            return spirv;
+        }
+
+        public static SPIRV compileShaderUncached(String filename, String source, ShaderKind shaderKind) {
+
             long compiler = shaderc_compiler_initialize();
 
             if(compiler == NULL) {
@@ -1951,11 +6169,94 @@ public class Engine {
             return new SPIRV(result, shaderc_result_get_bytes(result));
         }
 
+        private static String compilerOptions() {
+            // The shaderc binary ships with LWJGL, so its version pins the compiler. We deliberately don't ask
+            // shaderc itself: a cache hit must not even load the native library
+            // keep this in sync with whatever compileShaderUncached passes to shaderc
+            return "lwjgl=" + org.lwjgl.Version.getVersion() + ";entry=main;options=default";
+        }
+
+        private static String cacheKey(String source, ShaderKind shaderKind) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(source.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(shaderKind.name().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(compilerOptions().getBytes(StandardCharsets.UTF_8));
+
+                StringBuilder key = new StringBuilder();
+                for(byte b : digest.digest()) {
+                    key.append(String.format("%02x", b));
+                }
+                return key.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private static SPIRV loadCachedSPIRV(String key) {
+
+            Path file = SPIRV_CACHE_DIR.resolve(key + ".spv");
+
+            if(!Files.isRegularFile(file)) {
+                return null;
+            }
+
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+                long size = channel.size();
+
+                if(size == 0 || size % Integer.BYTES != 0) {
+                    return null;
+                }
+
+                // The mapping stays valid after the channel is closed, and a MappedByteBuffer is direct,
+                // so it can be handed to vkCreateShaderModule as is
+                ByteBuffer bytecode = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.nativeOrder());
+
+                if(bytecode.getInt(0) != SPIRV_MAGIC) {
+                    return null;
+                }
+
+                return new SPIRV(NULL, bytecode);
+            } catch (IOException e) {
+                // a broken cache entry is not fatal, we just compile again
+                return null;
+            }
+        }
+
+        private static void storeCachedSPIRV(String key, ByteBuffer bytecode) {
+            try {
+                Files.createDirectories(SPIRV_CACHE_DIR);
+
+                // write to a temporary file first so a crash never leaves a truncated entry behind
+                Path tmp = Files.createTempFile(SPIRV_CACHE_DIR, key, ".tmp");
+
+                try {
+                    try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                        ByteBuffer src = bytecode.duplicate();
+                        while(src.hasRemaining()) {
+                            channel.write(src);
+                        }
+                    }
+
+                    moveAtomically(tmp, SPIRV_CACHE_DIR.resolve(key + ".spv"));
+                } finally {
+                    // gone already after a successful move, otherwise it would pile up in the cache directory
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException e) {
+                System.err.println("Could not write SPIR-V cache entry " + key + ": " + e.getMessage());
+            }
+        }
+
         public enum ShaderKind {
 
             VERTEX_SHADER(shaderc_glsl_vertex_shader),
             GEOMETRY_SHADER(shaderc_glsl_geometry_shader),
-            FRAGMENT_SHADER(shaderc_glsl_fragment_shader);
+            FRAGMENT_SHADER(shaderc_glsl_fragment_shader),
+            COMPUTE_SHADER(shaderc_glsl_compute_shader);
 
             private final int kind;
 
@@ -1980,38 +6281,376 @@ public class Engine {
 
             @Override
             public void free() {
-                shaderc_result_release(handle);
+                // cached bytecode is a file mapping without a shaderc result behind it
+                if(handle != NULL) {
+                    shaderc_result_release(handle);
+                }
                 bytecode = null; // Help the GC
             }
         }
 
     }
 
+    // Storage buffer with every EntityStore stream back to back, stream n is bound to FIRST_BINDING + n. Next to it
+    // the visible list, the entity ids to draw, which shader.vert looks up with gl_InstanceIndex, and with GPU culling
+    // the scratch memory of cull.comp. The capacity is always a power of two
+    private static class InstanceBuffer {
+
+        static final int MIN_CAPACITY = 128;
+        static final int FIRST_BINDING = SPRITE_MESH_BINDING + 1;
+        static final int VISIBLE_BINDING = FIRST_BINDING + EntityStore.STREAM_COUNT;
+        // only with GPU culling, the indirect buffer is per image and bound right after the scratch memory
+        static final int CULL_SCRATCH_BINDING = VISIBLE_BINDING + 1;
+        static final int INDIRECT_BINDING = VISIBLE_BINDING + 2;
+        static final int ORDER_BINDING = VISIBLE_BINDING + 3;
+
+        private long buffer;
+        private DeviceMemoryAllocator.Allocation memory;
+        private long visibleBuffer;
+        private DeviceMemoryAllocator.Allocation visibleMemory;
+        private long visibleAddress; // NULL with GPU culling
+        private long cullScratchBuffer;
+        private DeviceMemoryAllocator.Allocation cullScratchMemory;
+        private int gpuCullCount; // entities the last GPU cull of this image went through
+        private long orderBuffer; // DrawOrder.drawList() for cull.comp
+        private DeviceMemoryAllocator.Allocation orderMemory;
+        private long orderAddress;
+        private int orderVersion;
+        private int capacity;
+        private boolean cleared; // false until the first upload has zeroed the fresh memory
+        private final BitSet dirty[] = new BitSet[EntityStore.STREAM_COUNT]; // per stream, entities whose data is stale in this buffer
+
+        InstanceBuffer() {
+            for(int stream = 0;stream < EntityStore.STREAM_COUNT;stream++) {
+                dirty[stream] = new BitSet();
+            }
+        }
+
+        void allocate(int minCapacity) {
+            capacity = Integer.highestOneBit(Math.max(minCapacity, MIN_CAPACITY) - 1) << 1;
+
+            try(MemoryStack stack = stackPush()) {
+                LongBuffer pBuffer = stack.mallocLong(1);
+
+                // device local, the data comes through the staging ring with a copy in front of the draw
+                memory = createBuffer(streamOffset(EntityStore.STREAM_COUNT),
+                        VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+                        VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT,
+                        pBuffer);
+
+                buffer = pBuffer.get(0);
+
+                // rewritten completely every frame, so the CPU writes it in place. cull.comp writes it on the GPU
+                visibleMemory = createBuffer((long) capacity * SpriteCuller.ENTRY_BYTES,
+                        VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_SRC_BIT, // checkGpuCulling reads it back
+                        gpuCulling ? VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT : VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                        pBuffer);
+
+                visibleBuffer = pBuffer.get(0);
+                visibleAddress = gpuCulling ? NULL : visibleMemory.mapped();
+
+                if(gpuCulling) {
+                    // the opaque total, two counts per workgroup of cull.comp, then a slot per entity
+                    cullScratchMemory = createBuffer((1 + 2 * ((long) capacity / CULL_GROUP_SIZE + 1) + capacity) * Integer.BYTES,
+                            VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
+                            VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT,
+                            pBuffer);
+
+                    cullScratchBuffer = pBuffer.get(0);
+
+                    // only rewritten when the order changes, the CPU writes it in place
+                    orderMemory = createBuffer((long) capacity * Integer.BYTES,
+                            VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
+                            VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                            pBuffer);
+
+                    orderBuffer = pBuffer.get(0);
+                    orderAddress = orderMemory.mapped();
+                    orderVersion = -1;
+                }
+            }
+
+            // fresh memory, so everything has to be written once
+            cleared = false;
+            for(BitSet streamDirty : dirty) {
+                streamDirty.set(0, capacity);
+            }
+        }
+
+        void free() {
+            vkDestroyBuffer(device, buffer, null);
+            memoryAllocator.free(memory);
+            vkDestroyBuffer(device, visibleBuffer, null);
+            memoryAllocator.free(visibleMemory);
+            if(cullScratchMemory != null) {
+                vkDestroyBuffer(device, cullScratchBuffer, null);
+                memoryAllocator.free(cullScratchMemory);
+                cullScratchMemory = null;
+                vkDestroyBuffer(device, orderBuffer, null);
+                memoryAllocator.free(orderMemory);
+            }
+        }
+
+        // Strides are multiples of 4 and capacity a power of two >= 128, so every offset is a multiple of 512
+        // and satisfies any minStorageBufferOffsetAlignment (the spec caps it at 256)
+        long streamOffset(int stream) {
+            long offset = 0;
+            for(int i = 0;i < stream;i++) {
+                offset += streamSize(i);
+            }
+            return offset;
+        }
+
+        long streamSize(int stream) {
+            return (long) capacity * EntityStore.STREAM_STRIDES[stream];
+        }
+    }
+
     protected static class UniformBufferObject {
 
-        public static final int MAX_INSTANCES = 128;
-        public static final int NUM_FLOATS    = (2 + MAX_INSTANCES) * 16;
         public static final int MAT_SIZE      = 16 * Float.BYTES;
-        public static final int SIZEOF = (NUM_FLOATS * Float.BYTES) + (MAX_INSTANCES * Integer.BYTES);
+
+        // std140 offsets of the members of the UniformBufferObject block in shader.vert
+        public static final int VIEW_OFFSET       = 0;
+        public static final int PROJECTION_OFFSET = VIEW_OFFSET + MAT_SIZE;
+        public static final int SIZEOF            = PROJECTION_OFFSET + MAT_SIZE;
 
 
         public Matrix4f viewMatrix;
         public Matrix4f projectionMatrix;
-        public Matrix4f modelMatrices[];
-
-        public Vector4f userData[]; // w is ALWAYS the textureId
 
         public UniformBufferObject() {
             viewMatrix       = new Matrix4f();
             projectionMatrix = new Matrix4f();
-            modelMatrices    = new Matrix4f[MAX_INSTANCES];
-            userData         = new Vector4f[MAX_INSTANCES];
+        }
+    }
+
+    // Off-heap entity state split into streams. Every stream has the exact std430 layout of its array in
+    // shader.vert, so uploading a range of entities is a plain memCopy, and the accessors only ever touch primitives
+    protected static class EntityStore {
+
+        public static final int MODELS        = 0; // mat4, column major
+        public static final int INSTANCE_DATA = 1; // vec4, xyz is user data, w is ALWAYS page * TEXTURE_PAGE_STRIDE + texture array layer
+        public static final int UV_RECTS      = 2; // vec4, u0 v0 u1 v1 of the texture inside its layer
+        public static final int TRANSFORMS    = 3; // uvec4, the compact 2D transform, see setTransform
+        public static final int MESHES        = 4; // uint, the sprite mesh of the texture, 0 is the quad
+        public static final int STREAM_COUNT  = 5;
+
+        public static final int STREAM_STRIDES[] = { 16 * Float.BYTES, 4 * Float.BYTES, 4 * Float.BYTES, 4 * Integer.BYTES, Integer.BYTES };
+        public static final int ENTITY_BYTES = Arrays.stream(STREAM_STRIDES).sum();
+
+        // same constant in shader.vert, well above any layer count and still exact in a float for every page
+        public static final int TEXTURE_PAGE_STRIDE = 4096;
+
+        private final long streams[] = new long[STREAM_COUNT];
+        private final BitSet transformed = new BitSet(); // entities placed by setTransform
+        private final BitSet settled = new BitSet(); // shown at rest by Simulation.apply, reset with the entity
+        private int capacity;
+
+        public EntityStore(int capacity) {
+            ensureCapacity(capacity);
+        }
+
+        public int capacity() {
+            return capacity;
+        }
+
+        public void ensureCapacity(int minCapacity) {
+            if (minCapacity <= capacity) return;
 
-            for (int i = 0; i < MAX_INSTANCES; ++i) {
-                modelMatrices[i] = new Matrix4f();
-                userData     [i] = new Vector4f();
-                userData[i].w = -1;
+            int oldCapacity = capacity;
+            capacity = Math.max(minCapacity, oldCapacity * 2);
+
+            for (int stream = 0; stream < STREAM_COUNT; ++stream) {
+                streams[stream] = MemoryUtil.nmemRealloc(streams[stream], (long) capacity * STREAM_STRIDES[stream]);
+                if (streams[stream] == NULL) throw new OutOfMemoryError("Could not grow the entity store to " + capacity);
+            }
+
+            for (int i = oldCapacity; i < capacity; ++i) {
+                setModelIdentity(i);
+                setInstanceData(i, 0f, 0f, 0f, -1f);
+                setUvRect(i, 0f, 0f, 1f, 1f);
+                clearTransform(i);
+                setMesh(i, 0);
+            }
+        }
+
+        public void free() {
+            for (int stream = 0; stream < STREAM_COUNT; ++stream) {
+                MemoryUtil.nmemFree(streams[stream]);
+                streams[stream] = NULL;
+            }
+            capacity = 0;
+        }
+
+        public long streamAddress(int stream, int id) {
+            return streams[stream] + (long) id * STREAM_STRIDES[stream];
+        }
+
+        public long modelAddress(int id) {
+            return streamAddress(MODELS, id);
+        }
+
+        public long instanceDataAddress(int id) {
+            return streamAddress(INSTANCE_DATA, id);
+        }
+
+        // ===> MODEL MATRIX <===
+
+        public float modelElement(int id, int column, int row) {
+            return MemoryUtil.memGetFloat(modelAddress(id) + ((column << 2) + row) * Float.BYTES);
+        }
+
+        public void setModelElement(int id, int column, int row, float value) {
+            MemoryUtil.memPutFloat(modelAddress(id) + ((column << 2) + row) * Float.BYTES, value);
+        }
+
+        public void setModel(int id, Matrix4fc m) {
+            m.getToAddress(modelAddress(id));
+        }
+
+        public Matrix4f getModel(int id, Matrix4f dst) {
+            return dst.setFromAddress(modelAddress(id));
+        }
+
+        public void setModelIdentity(int id) {
+            settled.clear(id);
+            long address = modelAddress(id);
+            MemoryUtil.memSet(address, 0, STREAM_STRIDES[MODELS]);
+            MemoryUtil.memPutFloat(address,                      1f);
+            MemoryUtil.memPutFloat(address + 5  * Float.BYTES,   1f);
+            MemoryUtil.memPutFloat(address + 10 * Float.BYTES,   1f);
+            MemoryUtil.memPutFloat(address + 15 * Float.BYTES,   1f);
+        }
+
+        public void setModelZero(int id) {
+            MemoryUtil.memSet(modelAddress(id), 0, STREAM_STRIDES[MODELS]);
+        }
+
+        // ===> INSTANCE DATA <===
+
+        public void setInstanceData(int id, float x, float y, float z, float textureLayer) {
+            long address = instanceDataAddress(id);
+            MemoryUtil.memPutFloat(address,                  x);
+            MemoryUtil.memPutFloat(address + Float.BYTES,    y);
+            MemoryUtil.memPutFloat(address + 2 * Float.BYTES, z);
+            MemoryUtil.memPutFloat(address + 3 * Float.BYTES, textureLayer);
+        }
+
+        public void setUserData(int id, float x, float y, float z) {
+            long address = instanceDataAddress(id);
+            MemoryUtil.memPutFloat(address,                  x);
+            MemoryUtil.memPutFloat(address + Float.BYTES,    y);
+            MemoryUtil.memPutFloat(address + 2 * Float.BYTES, z);
+        }
+
+        public float userData(int id, int component) {
+            return MemoryUtil.memGetFloat(instanceDataAddress(id) + component * Float.BYTES);
+        }
+
+        public void setTextureLayer(int id, float textureLayer) {
+            MemoryUtil.memPutFloat(instanceDataAddress(id) + 3 * Float.BYTES, textureLayer);
+        }
+
+        // page and layer share w, the vertex shader splits them again with TEXTURE_PAGE_STRIDE
+        public void setTextureLayer(int id, int page, int layer) {
+            setTextureLayer(id, (float) (page * TEXTURE_PAGE_STRIDE + layer));
+        }
+
+        public float textureLayer(int id) {
+            return MemoryUtil.memGetFloat(instanceDataAddress(id) + 3 * Float.BYTES);
+        }
+
+        // ===> TRANSFORM <===
+        // x and y as float bits, z the rotation as snorm16 of rotation / PI in the low half, the layer above it and
+        // TRANSFORM_BIT on top, w both scales as half floats. Same unpacking in shader.vert. Entities without
+        // TRANSFORM_BIT use their model matrix
+
+        public static final int TRANSFORM_BIT = 0x80000000;
+        public static final int MAX_LAYER = 0x7fff;
+
+        public void setTransform(int id, float x, float y, float rotation, float scaleX, float scaleY, int layer) {
+            long address = streamAddress(TRANSFORMS, id);
+            // into -PI..PI first, snorm16 covers that with steps of 0.0001 radians
+            float turns = rotation * (float) (0.5 / Math.PI);
+            int angle = Math.round((turns - Math.round(turns)) * 2f * 32767f);
+            MemoryUtil.memPutFloat(address,                    x);
+            MemoryUtil.memPutFloat(address + Float.BYTES,      y);
+            MemoryUtil.memPutInt(address + 2 * Integer.BYTES,  TRANSFORM_BIT | layer << 16 | angle & 0xffff);
+            MemoryUtil.memPutInt(address + 3 * Integer.BYTES,  halfBits(scaleY) << 16 | halfBits(scaleX));
+            transformed.set(id);
+        }
+
+        // the same as TRANSFORM_BIT, without touching the stream
+        public boolean hasTransform(int id) {
+            return transformed.get(id);
+        }
+
+        public void clearTransform(int id) {
+            MemoryUtil.memSet(streamAddress(TRANSFORMS, id), 0, STREAM_STRIDES[TRANSFORMS]);
+            transformed.clear(id);
+            settled.clear(id);
+        }
+
+        // the entity shows where the simulation left it, Simulation.apply skips it until it moves again
+        public boolean isSettled(int id) {
+            return settled.get(id);
+        }
+
+        public void setSettled(int id, boolean value) {
+            settled.set(id, value);
+        }
+
+        // float to IEEE half with round to nearest, what packHalf2x16 undoes on the GPU
+        static int halfBits(float value) {
+            int bits = Float.floatToIntBits(value);
+            int sign = bits >>> 16 & 0x8000;
+            int rounded = (bits & 0x7fffffff) + 0x1000;
+
+            if (rounded >= 0x47800000) {
+                if ((bits & 0x7fffffff) >= 0x47800000) {
+                    // out of range turns into infinity, NaN stays NaN
+                    if (rounded < 0x7f800000) return sign | 0x7c00;
+                    return sign | 0x7c00 | (bits & 0x007fffff) >>> 13;
+                }
+                return sign | 0x7bff; // only rounding took it past the largest half, keep that one
             }
+            if (rounded >= 0x38800000) return sign | rounded - 0x38000000 >>> 13;
+            if (rounded < 0x33000000) return sign; // too small even for a denormal
+
+            int exponent = (bits & 0x7fffffff) >>> 23;
+            return sign | ((bits & 0x7fffff | 0x800000) + (0x800000 >>> exponent - 102) >>> 126 - exponent);
+        }
+
+        // the other way round, unpackHalf2x16 on the CPU
+        static float halfToFloat(int half) {
+            int sign = (half & 0x8000) << 16;
+            int exponent = half >>> 10 & 0x1f;
+            int mantissa = half & 0x3ff;
+
+            if (exponent == 0x1f) return Float.intBitsToFloat(sign | 0x7f800000 | mantissa << 13);
+            if (exponent == 0) return Math.copySign(mantissa * 0x1p-24f, sign == 0 ? 1f : -1f);
+            return Float.intBitsToFloat(sign | exponent + 112 << 23 | mantissa << 13);
+        }
+
+        // ===> UV RECT <===
+
+        public void setUvRect(int id, float u0, float v0, float u1, float v1) {
+            long address = streamAddress(UV_RECTS, id);
+            MemoryUtil.memPutFloat(address,                  u0);
+            MemoryUtil.memPutFloat(address + Float.BYTES,    v0);
+            MemoryUtil.memPutFloat(address + 2 * Float.BYTES, u1);
+            MemoryUtil.memPutFloat(address + 3 * Float.BYTES, v1);
+        }
+
+        // ===> MESH <===
+
+        public void setMesh(int id, int mesh) {
+            MemoryUtil.memPutInt(streamAddress(MESHES, id), mesh);
+        }
+
+        public int mesh(int id) {
+            return MemoryUtil.memGetInt(streamAddress(MESHES, id));
         }
     }
 
@@ -0,0 +1,220 @@
+package javavulkantutorial;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.lwjgl.stb.STBImageWrite.stbi_write_png;
+
+/**
+ * Renders a fixed scene without a window and reports how fast it went, so changes can be compared on machines
+ * without a display, CI included.
+ *
+ * Arguments: frames width height [output.png]
+ *
+ * -Dengine.entities=N       entities in the scene besides the three of Main, default 0
+ * -Dengine.moveEntities=1   moves every entity every frame, which makes each frame go through the staging ring
+ * -Dengine.spread=N         spreads the entities over N times the screen in each direction, most of them off screen
+ * -Dengine.culling=gpu      culls with a compute shader instead of on the CPU, or not at all with off
+ * -Dengine.checkCulling=1   with culling=gpu, compares what the compute shader found in the last frame with what
+ *                           SpriteCuller finds and exits with 1 when they differ
+ * -Dengine.opaquePass=0     draws every texture alpha tested, compare the shader invocations with and without
+ * -Dengine.spriteMeshes=0   draws every texture as the whole quad instead of its trimmed outline, the same comparison
+ * -Dengine.loadTextures=N   writes N different engine.loadTextureSize (64) textures, loads them at runtime and
+ *                           times until all of them are resident
+ * -Dengine.uploadBatch=N    uploads N 64x64 textures through one UploadBatch and then with a submit each, try 500
+ * -Dengine.rerecord=N       re-records the draw commands N times on 1, 2, ... engine.recordingThreads threads
+ */
+public class HeadlessMain {
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int width  = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int height = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        String output = args.length > 3 ? args[3] : null;
+
+        int extraEntities = Integer.getInteger("engine.entities", 0);
+        boolean moveEntities = Integer.getInteger("engine.moveEntities", 0) != 0;
+        int spread = Math.max(1, Integer.getInteger("engine.spread", 1));
+        int loadTextures = Integer.getInteger("engine.loadTextures", 0);
+        int uploadBatch = Integer.getInteger("engine.uploadBatch", 0);
+        int rerecord = Integer.getInteger("engine.rerecord", 0);
+        boolean checkCulling = Integer.getInteger("engine.checkCulling", 0) != 0;
+
+        Engine.startHeadless(width, height);
+
+        // the same three entities as Main, in a fixed pose so the output image is always the same
+        int bgId     = Engine.createRenderEntity("IEEE.png");
+        int playerId = Engine.createRenderEntity("vulkan.png");
+        int otherId  = Engine.createRenderEntity("minerva.png");
+
+        Engine.setEntityUserData(playerId, 1f, 0f, 0f);
+        Engine.setEntityLayer(playerId, 1, 0f);
+        Engine.setEntityLayer(otherId, 1, 0f);
+        Engine.setEntityModel(playerId, (m) -> m.identity().scale(Main.PLAYER_SCALE).translate(1f, 0.5f, 0f).rotate(0.5f, 0f, 0f, 1f));
+        Engine.setEntityModel(otherId, (m) -> m.identity().scale(Main.PLAYER_SCALE).translate(-1f, -0.5f, 0f));
+        Engine.setEntityModel(bgId, (m) -> m.identity());
+
+        int[] ids = new int[extraEntities];
+        for(int i = 0;i < extraEntities;i++) {
+            ids[i] = Engine.createRenderEntity(i % 2 == 0 ? "guy.jpg" : "vulkan.png");
+            placeEntity(ids[i], i, 0, spread);
+        }
+
+        if(loadTextures > 0) {
+            benchmarkTextureLoads(loadTextures);
+        }
+
+        if(uploadBatch > 0) {
+            benchmarkUploads(uploadBatch);
+        }
+
+        if(rerecord > 0) {
+            benchmarkRecording(rerecord);
+        }
+
+        long uploaded = 0;
+        long culled = 0;
+        long cullingNanos = 0;
+        long startTime = System.nanoTime();
+
+        for(int frame = 0;frame < frames;frame++) {
+            if(moveEntities) {
+                for(int i = 0;i < extraEntities;i++) {
+                    placeEntity(ids[i], i, frame, spread);
+                }
+            }
+            Engine.drawFrame();
+            uploaded += Engine.getUploadedBytesLastFrame();
+            culled += Engine.getCulledEntitiesLastFrame();
+            cullingNanos += Engine.getCullingNanosLastFrame();
+        }
+
+        // the last frame has to be done too, or the time only says how fast frames can be queued
+        if(output != null) {
+            Engine.saveFrame(output);
+        } else if(frames > 0) {
+            ByteBuffer pixels = MemoryUtil.memAlloc(width * height * 4);
+            Engine.readFrame(pixels);
+            MemoryUtil.memFree(pixels);
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+
+        System.out.printf("%d frames at %dx%d in %.1f ms, %.1f fps%n",
+                frames, width, height, elapsed / 1e6, frames / (elapsed / 1e9));
+        System.out.printf("Uploaded %.1f MB, %.1f KB per frame, staging high water mark %d KB, %d stalls, %d deferred uploads%n",
+                uploaded / (1024.0 * 1024.0), frames == 0 ? 0 : uploaded / 1024.0 / frames,
+                Engine.getStagingHighWaterMark() / 1024, Engine.getStagingStalls(), Engine.getStagingDeferrals());
+        System.out.printf("Culled %.0f of %d entities per frame in %.3f ms%n",
+                frames == 0 ? 0 : culled / (double) frames, extraEntities + 3, frames == 0 ? 0 : cullingNanos / 1e6 / frames);
+        if(Engine.getFragmentInvocationsLastFrame() >= 0) {
+            System.out.printf("Shader invocations: %d vertex, %d fragment in the last frame%n",
+                    Engine.getVertexInvocationsLastFrame(), Engine.getFragmentInvocationsLastFrame());
+        }
+        if(output != null) {
+            System.out.println("Last frame written to " + output);
+        }
+
+        boolean cullingDiffers = checkCulling && frames > 0 && !checkCulling();
+
+        Engine.end();
+
+        if(cullingDiffers) {
+            System.exit(1);
+        }
+    }
+
+    // a grid across the screen, or spread times as wide and high, shifted a little every frame when moving. Above
+    // the three entities of Main.
+    private static void placeEntity(int id, int i, int frame, int spread) {
+        int columns = 64 * spread;
+        float x = ((i % columns) / 32f - spread) + frame * 0.001f;
+        float y = (i / columns % columns) / 32f - spread;
+        Engine.setEntityTransform(id, x, y, frame * 0.01f, 0.05f, 0.05f, 2);
+    }
+
+    // the entities have not moved since the last frame, so SpriteCuller has to come to the same visible list
+    private static boolean checkCulling() {
+        Engine.CullingCheck check = Engine.checkGpuCulling();
+        System.out.printf("GPU culling check: %d visible on the GPU, %d with SpriteCuller, %d entries differ%n",
+                check.gpuVisible, check.cpuVisible, check.mismatches);
+        if(check.mismatches > 0) {
+            System.out.println("The visible lists differ first at entry " + check.firstMismatch);
+        }
+        return check.mismatches == 0;
+    }
+
+    private static void benchmarkRecording(int count) {
+        for(int threads = 1;threads <= Engine.getRecordingThreads();threads++) {
+            Engine.rerecordCommandBuffers(threads); // warm up
+            long total = 0;
+            for(int i = 0;i < count;i++) {
+                total += Engine.rerecordCommandBuffers(threads);
+            }
+            System.out.printf("Recording on %d threads: %.3f ms per image, mean of %d%n", threads, total / (double) count / 1e6, count);
+        }
+    }
+
+    private static void benchmarkUploads(int count) {
+        for(boolean batched : new boolean[] { true, false }) {
+            Engine.UploadTiming timing = Engine.benchmarkUploads(count, 64, batched);
+            System.out.printf("Uploaded %d textures %s: %d submits, %d barriers, %.1f ms until the GPU was done%n",
+                    count, batched ? "in one batch" : "one by one", timing.submits, timing.barriers, timing.nanos / 1e6);
+        }
+    }
+
+    // Every texture is a file of its own with different pixels, the engine would hand out the id of a texture it
+    // already has instead of uploading it again
+    private static void benchmarkTextureLoads(int count) throws IOException {
+        int size = Integer.getInteger("engine.loadTextureSize", 64);
+        Path directory = Files.createTempDirectory("engine-textures");
+        List<Path> files = new ArrayList<>(count);
+
+        ByteBuffer pixels = MemoryUtil.memAlloc(size * size * 4);
+        try {
+            for(int i = 0;i < count;i++) {
+                for(int texel = 0;texel < size * size;texel++) {
+                    pixels.putInt(texel * 4, (i * 2654435761L + texel) % 7 == 0 ? 0 : 0xFF000000 | i * 0x010203 + texel);
+                }
+                Path file = directory.resolve("texture" + i + ".png");
+                if(!stbi_write_png(file.toString(), size, size, 4, pixels, size * 4)) {
+                    throw new IOException("Could not write " + file);
+                }
+                files.add(file);
+            }
+        } finally {
+            MemoryUtil.memFree(pixels);
+        }
+
+        int texturesBefore = Engine.numTextures;
+        List<CompletableFuture<Integer>> futures = new ArrayList<>(count);
+        long startTime = System.nanoTime();
+
+        for(Path file : files) {
+            futures.add(Engine.loadTexture(file.toString()));
+        }
+
+        // futures complete on the drawing thread, so frames have to keep coming until all of them are through
+        int frames = 0;
+        while(!futures.stream().allMatch(CompletableFuture::isDone)) {
+            Engine.drawFrame();
+            frames++;
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        long failed = futures.stream().filter(CompletableFuture::isCompletedExceptionally).count();
+        long uploaded = futures.stream().filter(future -> !future.isCompletedExceptionally() && future.join() >= texturesBefore).count();
+        System.out.printf("Loaded %d of %d %dx%d textures in %.1f ms over %d frames, %d uploaded, %d failed%n",
+                count - failed, count, size, size, elapsed / 1e6, frames, uploaded, failed);
+
+        for(Path file : files) Files.delete(file);
+        Files.delete(directory);
+    }
+}
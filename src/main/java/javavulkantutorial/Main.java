@@ -11,11 +11,13 @@ public class Main {
     static final float PLAYER_SCALE = .5f;
     static final float FUNNY_SPIN_CONSTANT = 10f;
     static boolean gameRunning = true;
-    static float dt = 0f;
+    static int bgId, playerId, otherId;
+    static Simulation simulation;
+
+    // simulation thread only, input reaches it through simulation.post
     static float playerRotation = 0f;
     static Vector2f playerPos = new Vector2f();
     static Vector2f playerVel = new Vector2f();
-    static int bgId, playerId, otherId;
 
     public static void main(String[] args) {
         Engine.start(1000, 1000, "test", keyCallback);
@@ -25,46 +27,42 @@ public class Main {
         otherId   = Engine.createRenderEntity("minerva.png");
 
         Engine.setEntityUserData(playerId, 1f, 0f, 0f);
+        // the background stays on layer 0, underneath both
+        Engine.setEntityLayer(playerId, 1, 0f);
+        Engine.setEntityLayer(otherId, 1, 0f);
 
-        // initialize timing stuff
-        float oldTime = (float) glfwGetTime();
-        float newTime;
+        // game goes here, at a fixed rate no matter how fast frames are drawn
+        simulation = new Simulation(Main::tick);
+        simulation.start();
 
         while(gameRunning) {
             if (!Engine.processInput()) break;
 
-            // timing stuff
-            newTime = (float) glfwGetTime();
-            dt      = newTime - oldTime;
-            oldTime = newTime;
-
-            // game goes here
-            playerPos.add(new Vector2f(playerVel).mul(dt));
-            playerRotation += ((playerVel.x) + Math.copySign(playerVel.y, playerVel.x))/2f * dt * FUNNY_SPIN_CONSTANT;
-            playerVel.mul(1.0f - PLAYER_DRAG);
-
-            // rendering consists of updating the uniform buffers and calling drawFrame
-            Engine.setEntityModel(playerId, (m) -> m
-                    .identity()
-                    .scale(PLAYER_SCALE)
-                    .translate(playerPos.x, playerPos.y, 0.0f)
-                    .rotate(playerRotation, 0.0f, 0.0f, 1.0f));
-
-            Engine.setEntityModel(otherId, (m) -> m
-                    .identity()
-                    .scale(PLAYER_SCALE)
-                    .translate((float) Math.sin((double) -playerPos.y) * 1.5f, (float) Math.cos((double) playerPos.x) * 1.5f, 0f)
-                    .rotate(-playerRotation, 0.0f, 0.0f, 1.0f));
-
-            Engine.setEntityModel(bgId, (m) -> m
-                    .identity()
-                    .rotate(playerRotation * 0.25f, 0.0f, 0.0f, 1.0f));
-
+            // rendering consists of moving the entities to where the simulation has them and calling drawFrame
+            simulation.apply();
             Engine.drawFrame();
         }
 
+        simulation.stop();
         Engine.end();
     }
+
+    static void tick(float dt) {
+        playerPos.add(new Vector2f(playerVel).mul(dt));
+        playerRotation += ((playerVel.x) + Math.copySign(playerVel.y, playerVel.x))/2f * dt * FUNNY_SPIN_CONSTANT;
+        playerVel.mul((float) Math.pow(1.0f - PLAYER_DRAG, dt * 60f)); // PLAYER_DRAG is per 1/60 s
+
+        // scaling first and then translating moves by the scaled position
+        simulation.setTransform(playerId,
+                playerPos.x * PLAYER_SCALE, playerPos.y * PLAYER_SCALE,
+                playerRotation, PLAYER_SCALE, PLAYER_SCALE, 2);
+
+        simulation.setTransform(otherId,
+                (float) Math.sin((double) -playerPos.y) * 1.5f * PLAYER_SCALE, (float) Math.cos((double) playerPos.x) * 1.5f * PLAYER_SCALE,
+                -playerRotation, PLAYER_SCALE, PLAYER_SCALE, 1);
+
+        simulation.setTransform(bgId, 0f, 0f, playerRotation * 0.25f, 1f, 1f, 0);
+    }
     static GLFWKeyCallbackI keyCallback = (window, key, scanCode, action, mods) -> {
         if (action == GLFW_PRESS) {
             switch (key) {
@@ -77,16 +75,16 @@ public class Main {
                     break;
 
                 case GLFW_KEY_LEFT:
-                    playerVel.x -= PLAYER_JOLT_SPEED;
+                    simulation.post(() -> playerVel.x -= PLAYER_JOLT_SPEED);
                     break;
                 case GLFW_KEY_RIGHT:
-                    playerVel.x += PLAYER_JOLT_SPEED;
+                    simulation.post(() -> playerVel.x += PLAYER_JOLT_SPEED);
                     break;
                 case GLFW_KEY_UP:
-                    playerVel.y -= PLAYER_JOLT_SPEED;
+                    simulation.post(() -> playerVel.y -= PLAYER_JOLT_SPEED);
                     break;
                 case GLFW_KEY_DOWN:
-                    playerVel.y += PLAYER_JOLT_SPEED;
+                    simulation.post(() -> playerVel.y += PLAYER_JOLT_SPEED);
                     break;
             }
         }
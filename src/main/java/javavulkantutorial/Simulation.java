@@ -0,0 +1,240 @@
+package javavulkantutorial;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs game logic at a fixed tick rate on its own thread, so physics doesn't depend on the frame rate and a slow
+ * present doesn't hold up the simulation.
+ *
+ * The tick callback places entities with {@link #setTransform}. After every tick the transforms are published as a
+ * snapshot, and {@link #apply()} on the render thread interpolates between the last two snapshots and hands the
+ * result to the engine. Everything else of the engine, creating entities included, stays on the render thread; use
+ * {@link #post(Runnable)} to get input over to the simulation.
+ */
+public class Simulation {
+
+    public interface TickI { void tick(float dt); }
+
+    public static final int TICK_RATE = Integer.getInteger("engine.tickRate", 60);
+
+    // further behind than this and the simulation drops time instead of trying to catch up
+    private static final int MAX_CATCH_UP_TICKS = 5;
+
+    // x, y, rotation, scaleX, scaleY, layer per entity, x is NaN for entities that were never placed
+    private static final int STRIDE = 6;
+
+    private static final class Snapshot {
+        float transforms[] = new float[0];
+        int count; // entities, the array may be longer
+        long tick;
+        long timeNanos;
+    }
+
+    private final TickI tick;
+    private final long tickNanos;
+    private final Queue<Runnable> posted = new ConcurrentLinkedQueue<>();
+    private Thread thread;
+    private volatile boolean running;
+    private volatile Throwable failure;
+
+    // simulation thread only
+    private float state[] = new float[0];
+    private int stateCount;
+
+    // guarded by this, the render thread holds on to readPrevious and readLatest while it interpolates them
+    private final ArrayDeque<Snapshot> pool = new ArrayDeque<>();
+    private Snapshot previous;
+    private Snapshot latest;
+    private Snapshot readPrevious;
+    private Snapshot readLatest;
+
+    public Simulation(TickI tick) {
+        this(tick, TICK_RATE);
+    }
+
+    public Simulation(TickI tick, int tickRate) {
+        this.tick = tick;
+        this.tickNanos = 1_000_000_000L / tickRate;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // runs on the simulation thread before the next tick
+    public void post(Runnable runnable) {
+        posted.add(runnable);
+    }
+
+    // places an entity like Engine.setEntityTransform, only from the tick callback
+    public void setTransform(int entityId, float x, float y, float rotation, float scaleX, float scaleY, int layer) {
+        if(entityId >= stateCount) {
+            int count = entityId + 1;
+            if(count * STRIDE > state.length) {
+                int oldLength = state.length;
+                state = Arrays.copyOf(state, Math.max(count, 2 * stateCount) * STRIDE);
+                for(int i = oldLength;i < state.length;i += STRIDE) state[i] = Float.NaN;
+            }
+            stateCount = count;
+        }
+
+        int i = entityId * STRIDE;
+        state[i]     = x;
+        state[i + 1] = y;
+        state[i + 2] = rotation;
+        state[i + 3] = scaleX;
+        state[i + 4] = scaleY;
+        state[i + 5] = layer;
+    }
+
+    // stops placing the entity, call it from the tick callback before the entity is destroyed
+    public void removeTransform(int entityId) {
+        if(entityId < stateCount) state[entityId * STRIDE] = Float.NaN;
+    }
+
+    public long ticks() {
+        Snapshot snapshot;
+        synchronized(this) {
+            snapshot = latest;
+        }
+        return snapshot == null ? 0 : snapshot.tick;
+    }
+
+    /**
+     * Moves every placed entity to where it was between the last two ticks, by how far the current time is past the
+     * latest one. Call it on the render thread before drawFrame.
+     */
+    public void apply() {
+        if(failure != null) throw new RuntimeException("Simulation tick failed", failure);
+
+        synchronized(this) {
+            if(readPrevious != null && readPrevious != previous && readPrevious != latest) pool.add(readPrevious);
+            if(readLatest != null && readLatest != previous && readLatest != latest) pool.add(readLatest);
+            readPrevious = previous;
+            readLatest = latest;
+        }
+
+        if(readLatest == null) return;
+        Snapshot from = readPrevious != null ? readPrevious : readLatest;
+        Snapshot to = readLatest;
+
+        float alpha = Math.max(0f, Math.min(1f, (float) (System.nanoTime() - to.timeNanos) / tickNanos));
+
+        float a[] = from.transforms;
+        float b[] = to.transforms;
+
+        for(int id = 0;id < to.count;id++) {
+            int i = id * STRIDE;
+            if(Float.isNaN(b[i])) {
+                Engine.entities.setSettled(id, false);
+                continue;
+            }
+
+            // an entity placed only in the latest tick starts there
+            boolean placedBefore = id < from.count && !Float.isNaN(a[i]);
+            boolean resting = !placedBefore
+                    || (a[i] == b[i] && a[i + 1] == b[i + 1] && a[i + 2] == b[i + 2] && a[i + 3] == b[i + 3] && a[i + 4] == b[i + 4] && a[i + 5] == b[i + 5]);
+
+            if(resting) {
+                // nothing to interpolate, once it is shown at rest the buffers keep it there. The engine forgets the
+                // settled state when the id is destroyed or handed to a new entity, which then gets placed again
+                if(Engine.entities.isSettled(id)) continue;
+                Engine.setEntityTransform(id, b[i], b[i + 1], b[i + 2], b[i + 3], b[i + 4], (int) b[i + 5]);
+                Engine.entities.setSettled(id, true);
+                continue;
+            }
+            Engine.entities.setSettled(id, false);
+
+            // the layer can't be halfway, it changes with the tick that changed it
+            Engine.setEntityTransform(id,
+                    lerp(a[i], b[i], alpha),
+                    lerp(a[i + 1], b[i + 1], alpha),
+                    lerpAngle(a[i + 2], b[i + 2], alpha),
+                    lerp(a[i + 3], b[i + 3], alpha),
+                    lerp(a[i + 4], b[i + 4], alpha),
+                    (int) b[i + 5]);
+        }
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        long tickCount = 0;
+        float dt = tickNanos / 1e9f;
+
+        try {
+            while(running) {
+                long due = start + (tickCount + 1) * tickNanos;
+                long now = System.nanoTime();
+
+                if(now < due) {
+                    LockSupport.parkNanos(due - now);
+                    continue;
+                }
+                if(now - due > MAX_CATCH_UP_TICKS * tickNanos) {
+                    // a long stall, e.g. a debugger, the lost time is simply skipped
+                    start += now - due;
+                    due = now;
+                }
+
+                for(Runnable runnable;(runnable = posted.poll()) != null;) {
+                    runnable.run();
+                }
+                tick.tick(dt);
+                tickCount++;
+
+                publish(tickCount, due);
+            }
+        } catch (Throwable t) {
+            failure = t;
+        }
+    }
+
+    private void publish(long tickCount, long timeNanos) {
+        Snapshot snapshot;
+        synchronized(this) {
+            snapshot = pool.poll();
+        }
+        if(snapshot == null) snapshot = new Snapshot();
+
+        // copied outside the lock, nobody but us knows the snapshot yet
+        if(snapshot.transforms.length < stateCount * STRIDE) snapshot.transforms = new float[state.length];
+        System.arraycopy(state, 0, snapshot.transforms, 0, stateCount * STRIDE);
+        snapshot.count = stateCount;
+        snapshot.tick = tickCount;
+        snapshot.timeNanos = timeNanos;
+
+        synchronized(this) {
+            Snapshot dropped = previous;
+            previous = latest;
+            latest = snapshot;
+            if(dropped != null && dropped != readPrevious && dropped != readLatest) pool.add(dropped);
+        }
+    }
+
+    private static float lerp(float a, float b, float t) {
+        return a + (b - a) * t;
+    }
+
+    // the short way round, so going from 359 to 1 degrees doesn't spin back through 180
+    private static float lerpAngle(float a, float b, float t) {
+        float delta = (float) Math.IEEEremainder(b - a, 2 * Math.PI);
+        return a + delta * t;
+    }
+}
@@ -0,0 +1,293 @@
+package javavulkantutorial;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the entities whose bounds touch the camera rectangle and writes their ids as the visible list the vertex
+ * shader draws from, front to back, which is the drawing order reversed. The opaque entities come first and the
+ * rest after them, so each pass draws a range of its own.
+ *
+ * Bounds are axis aligned boxes around the transformed unit quad. They live in a hashed uniform grid, keyed by the
+ * cell of their center, and are only recomputed for entities that moved since the last cull. A query visits the
+ * cells around the camera, grown by half a cell so everything that can reach in is seen, and tests the boxes found
+ * there. Entities bigger than half a cell go to an extra bucket that every query tests. The visible entities are
+ * collected by their position in the DrawOrder, so the list comes out sorted without sorting it again.
+ *
+ * Nothing in here talks to Vulkan, the visible list goes to whatever address the caller passes.
+ */
+class SpriteCuller {
+
+    // below this many candidates the work isn't worth handing to other threads
+    private static final int PARALLEL_THRESHOLD = 16384;
+
+    // an entry of the visible list: the entity id and its position front to back among all visible entities, which
+    // the vertex shader turns into its depth
+    static final int ENTRY_BYTES = 2 * Integer.BYTES;
+
+    private final float cellSize;
+    private final int bucketMask;
+    private final int oversized; // index of the extra bucket
+    private final ExecutorService executor;
+    private final int threads;
+
+    private int buckets[][];
+    private final int bucketSizes[];
+    private final int bucketVisits[]; // query stamp of the last visit, so hash collisions don't visit a bucket twice
+    private int query;
+
+    // per entity: bucket and slot in it (-1 while not in the grid), minX minY maxX maxY
+    private int entityBuckets[] = new int[0];
+    private int entitySlots[] = new int[0];
+    private float bounds[] = new float[0];
+    private final BitSet moved = new BitSet();
+
+    private final BitSet visible[];
+    private int candidateBuckets[] = new int[64];
+
+    private long lastNanos;
+    private int lastOpaqueCount;
+
+    /**
+     * @param bucketCount a power of two, cells of the grid share buckets beyond that
+     * @param threads     how many tasks a large cull is split into, 1 to stay on the calling thread
+     */
+    SpriteCuller(float cellSize, int bucketCount, ExecutorService executor, int threads) {
+        this.cellSize = cellSize;
+        this.bucketMask = bucketCount - 1;
+        this.oversized = bucketCount;
+        this.executor = executor;
+        this.threads = executor == null ? 1 : Math.max(1, threads);
+
+        buckets = new int[bucketCount + 1][];
+        for(int i = 0;i < buckets.length;i++) buckets[i] = new int[4];
+        bucketSizes = new int[bucketCount + 1];
+        bucketVisits = new int[bucketCount + 1];
+
+        visible = new BitSet[this.threads];
+        for(int i = 0;i < visible.length;i++) visible[i] = new BitSet();
+    }
+
+    // the entity's model or transform changed, its bounds are recomputed on the next cull
+    void moved(int entityId) {
+        moved.set(entityId);
+    }
+
+    /**
+     * Writes the visible entities below count to visibleAddress as ENTRY_BYTES entries and returns how many there
+     * are. Those with OPAQUE_ENTRY in order come first, then the others, both front to back. The camera rectangle
+     * is in world space. rank is the drawing position of every entity and order what to write for each position,
+     * both from a DrawOrder sorted for count entities, or both null for ascending ids.
+     */
+    int cull(Engine.EntityStore store, int count, float minX, float minY, float maxX, float maxY, long visibleAddress,
+             int order[], int rank[]) throws Exception {
+        long startTime = System.nanoTime();
+
+        ensureCapacity(count);
+        updateMovedBounds(store, count);
+
+        // every cell whose center cell can hold something reaching into the camera
+        int cellX0 = cell(minX - cellSize * 0.5f);
+        int cellY0 = cell(minY - cellSize * 0.5f);
+        int cellX1 = cell(maxX + cellSize * 0.5f);
+        int cellY1 = cell(maxY + cellSize * 0.5f);
+
+        query++;
+        int candidateCount = 0;
+        int candidates = 0;
+
+        if((long) (cellX1 - cellX0 + 1) * (cellY1 - cellY0 + 1) > bucketMask + 1) {
+            // the camera spans more cells than there are buckets, every bucket it is
+            for(int bucket = 0;bucket <= bucketMask;bucket++) {
+                candidateCount = addCandidate(candidateCount, bucket);
+                candidates += bucketSizes[bucket];
+            }
+        } else {
+            for(int cellY = cellY0;cellY <= cellY1;cellY++) {
+                for(int cellX = cellX0;cellX <= cellX1;cellX++) {
+                    int bucket = bucket(cellX, cellY);
+                    if(bucketVisits[bucket] == query || bucketSizes[bucket] == 0) continue;
+                    bucketVisits[bucket] = query;
+                    candidateCount = addCandidate(candidateCount, bucket);
+                    candidates += bucketSizes[bucket];
+                }
+            }
+        }
+        candidateCount = addCandidate(candidateCount, oversized);
+        candidates += bucketSizes[oversized];
+
+        int tasks = candidates < PARALLEL_THRESHOLD ? 1 : threads;
+
+        if(tasks == 1) {
+            test(0, candidateCount, 1, count, minX, minY, maxX, maxY, rank, visible[0]);
+        } else {
+            // buckets are dealt out round robin, neighbouring cells are about as full as each other
+            List<Future<Void>> futures = new ArrayList<>(tasks);
+            for(int task = 0;task < tasks;task++) {
+                final int first = task;
+                final int candidateEnd = candidateCount;
+                final BitSet taskVisible = visible[task];
+                futures.add(executor.submit(() -> {
+                    test(first, candidateEnd, tasks, count, minX, minY, maxX, maxY, rank, taskVisible);
+                    return null;
+                }));
+            }
+            Engine.awaitAll(futures, new Void[tasks]);
+
+            for(int task = 1;task < tasks;task++) {
+                visible[0].or(visible[task]);
+                visible[task].clear();
+            }
+        }
+
+        int opaqueCount = 0;
+        if(order != null) {
+            for(int i = visible[0].nextSetBit(0);i >= 0;i = visible[0].nextSetBit(i + 1)) {
+                if((order[i] & DrawOrder.OPAQUE_ENTRY) != 0) opaqueCount++;
+            }
+        }
+
+        int visibleCount = 0;
+        int opaqueNext = 0, otherNext = opaqueCount;
+        for(int i = visible[0].previousSetBit(count - 1);i >= 0;i = visible[0].previousSetBit(i - 1)) {
+            int entry = order == null ? i : order[i];
+            int position = (entry & DrawOrder.OPAQUE_ENTRY) != 0 ? opaqueNext++ : otherNext++;
+            putEntry(visibleAddress, position, entry & ~DrawOrder.OPAQUE_ENTRY, visibleCount++);
+        }
+        visible[0].clear();
+
+        lastOpaqueCount = opaqueCount;
+        lastNanos = System.nanoTime() - startTime;
+        return visibleCount;
+    }
+
+    static void putEntry(long visibleAddress, int position, int entityId, int frontToBack) {
+        long address = visibleAddress + (long) position * ENTRY_BYTES;
+        MemoryUtil.memPutInt(address, entityId);
+        MemoryUtil.memPutInt(address + Integer.BYTES, frontToBack);
+    }
+
+    long lastNanos() {
+        return lastNanos;
+    }
+
+    // how many of the entries the last cull wrote are opaque, they are the first ones
+    int lastOpaqueCount() {
+        return lastOpaqueCount;
+    }
+
+    private int addCandidate(int candidateCount, int bucket) {
+        if(candidateCount == candidateBuckets.length) candidateBuckets = Arrays.copyOf(candidateBuckets, candidateCount * 2);
+        candidateBuckets[candidateCount] = bucket;
+        return candidateCount + 1;
+    }
+
+    private void test(int first, int end, int step, int count, float minX, float minY, float maxX, float maxY, int rank[], BitSet result) {
+        for(int i = first;i < end;i += step) {
+            int bucket = candidateBuckets[i];
+            int entities[] = buckets[bucket];
+            for(int slot = 0, size = bucketSizes[bucket];slot < size;slot++) {
+                int id = entities[slot];
+                int b = id * 4;
+                if(id < count && bounds[b] <= maxX && bounds[b + 2] >= minX && bounds[b + 1] <= maxY && bounds[b + 3] >= minY) {
+                    result.set(rank == null ? id : rank[id]);
+                }
+            }
+        }
+    }
+
+    private void updateMovedBounds(Engine.EntityStore store, int count) {
+        for(int id = moved.nextSetBit(0);id >= 0 && id < count;id = moved.nextSetBit(id + 1)) {
+            int b = id * 4;
+            float centerX, centerY, extentX, extentY;
+
+            if(store.hasTransform(id)) {
+                long address = store.streamAddress(Engine.EntityStore.TRANSFORMS, id);
+                int packed = MemoryUtil.memGetInt(address + 2 * Integer.BYTES);
+                int scales = MemoryUtil.memGetInt(address + 3 * Integer.BYTES);
+                float rotation = (float) (Math.max(-1f, (short) packed / 32767f) * Math.PI);
+                float c = Math.abs((float) Math.cos(rotation));
+                float s = Math.abs((float) Math.sin(rotation));
+                float scaleX = Math.abs(Engine.EntityStore.halfToFloat(scales & 0xffff));
+                float scaleY = Math.abs(Engine.EntityStore.halfToFloat(scales >>> 16));
+
+                centerX = MemoryUtil.memGetFloat(address);
+                centerY = MemoryUtil.memGetFloat(address + Float.BYTES);
+                extentX = 0.5f * (c * scaleX + s * scaleY);
+                extentY = 0.5f * (s * scaleX + c * scaleY);
+            } else {
+                // the columns of the matrix are where the quad's x and y axes end up
+                centerX = store.modelElement(id, 3, 0);
+                centerY = store.modelElement(id, 3, 1);
+                extentX = 0.5f * (Math.abs(store.modelElement(id, 0, 0)) + Math.abs(store.modelElement(id, 1, 0)));
+                extentY = 0.5f * (Math.abs(store.modelElement(id, 0, 1)) + Math.abs(store.modelElement(id, 1, 1)));
+            }
+
+            bounds[b]     = centerX - extentX;
+            bounds[b + 1] = centerY - extentY;
+            bounds[b + 2] = centerX + extentX;
+            bounds[b + 3] = centerY + extentY;
+
+            int bucket;
+            if(extentX == 0f && extentY == 0f) {
+                bucket = -1; // zero matrix, a destroyed entity, never drawn
+            } else if(Math.max(extentX, extentY) > cellSize * 0.5f || !Float.isFinite(centerX + centerY)) {
+                bucket = oversized;
+            } else {
+                bucket = bucket(cell(centerX), cell(centerY));
+            }
+
+            if(bucket != entityBuckets[id]) {
+                remove(id);
+                if(bucket >= 0) insert(id, bucket);
+            }
+        }
+        moved.clear(0, count);
+    }
+
+    private void insert(int id, int bucket) {
+        int size = bucketSizes[bucket];
+        if(size == buckets[bucket].length) buckets[bucket] = Arrays.copyOf(buckets[bucket], size * 2);
+        buckets[bucket][size] = id;
+        bucketSizes[bucket] = size + 1;
+        entityBuckets[id] = bucket;
+        entitySlots[id] = size;
+    }
+
+    // swaps the last entity of the bucket into the hole
+    private void remove(int id) {
+        int bucket = entityBuckets[id];
+        if(bucket < 0) return;
+
+        int last = --bucketSizes[bucket];
+        int lastId = buckets[bucket][last];
+        buckets[bucket][entitySlots[id]] = lastId;
+        entitySlots[lastId] = entitySlots[id];
+        entityBuckets[id] = -1;
+    }
+
+    private void ensureCapacity(int count) {
+        if(count <= entityBuckets.length) return;
+
+        int oldCapacity = entityBuckets.length;
+        int capacity = Math.max(count, oldCapacity * 2);
+        entityBuckets = Arrays.copyOf(entityBuckets, capacity);
+        entitySlots = Arrays.copyOf(entitySlots, capacity);
+        bounds = Arrays.copyOf(bounds, capacity * 4);
+        Arrays.fill(entityBuckets, oldCapacity, capacity, -1);
+    }
+
+    private int cell(float coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private int bucket(int cellX, int cellY) {
+        return (cellX * 73856093 ^ cellY * 19349663) & bucketMask;
+    }
+}
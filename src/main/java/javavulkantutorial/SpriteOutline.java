@@ -0,0 +1,187 @@
+package javavulkantutorial;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.util.Arrays;
+
+/**
+ * The convex outline a texture's sprites are drawn with instead of the whole quad, so the fully transparent texels
+ * around the picture are never rasterized. An outline is VERTICES u v pairs inside the texture's own 0..1 rectangle,
+ * in the winding the quad had. Fewer corners are padded with copies of the last one, which only adds empty triangles.
+ *
+ * The outline is the convex hull of every texel that isn't fully transparent, grown by half a texel so bilinear
+ * filtering never reaches past it. Coarser mip levels blur further out, but only into alpha below 1 that shader.frag
+ * discards anyway, the atlas pads every slot so far that no level blurs in a neighbour. Hulls with more corners lose them one at a time, always the edge whose neighbours can be extended
+ * over it with the least area added, until VERTICES are left. Outlines that can't get there inside the rectangle
+ * fall back to the quad.
+ *
+ * Nothing in here talks to Vulkan, Engine copies the outlines into the sprite mesh buffer.
+ */
+class SpriteOutline {
+
+    // must match MESH_VERTICES in shader.vert
+    static final int VERTICES = 8;
+
+    private static final int RGBA = 4;
+    private static final double EPSILON = 1e-9;
+
+    // the unit quad in the order shader.vert draws its corners
+    static float[] quad() {
+        float outline[] = Arrays.copyOf(new float[] { 1f, 0f,  0f, 0f,  0f, 1f,  1f, 1f }, 2 * VERTICES);
+        pad(outline, 4);
+        return outline;
+    }
+
+    /**
+     * The outline of an RGBA8 image of width x height texels at rgbaAddress. Images without a single visible texel get
+     * an outline of one point, which draws nothing.
+     */
+    static float[] outline(long rgbaAddress, int width, int height) {
+        // corners of the grown texel rows in half texels, x in the high half so sorting orders by x, then y
+        long points[] = new long[4 * height];
+        int pointCount = 0;
+
+        for(int y = 0;y < height;y++) {
+            long row = rgbaAddress + (long) y * width * RGBA;
+            int first = 0;
+            while(first < width && MemoryUtil.memGetByte(row + (long) first * RGBA + 3) == 0) first++;
+            if(first == width) continue;
+            int last = width - 1;
+            while(MemoryUtil.memGetByte(row + (long) last * RGBA + 3) == 0) last--;
+
+            int left   = Math.max(0, 2 * first - 1);
+            int right  = Math.min(2 * width, 2 * last + 3);
+            int top    = Math.max(0, 2 * y - 1);
+            int bottom = Math.min(2 * height, 2 * y + 3);
+            points[pointCount++] = (long) left  << 32 | top;
+            points[pointCount++] = (long) left  << 32 | bottom;
+            points[pointCount++] = (long) right << 32 | top;
+            points[pointCount++] = (long) right << 32 | bottom;
+        }
+
+        if(pointCount == 0) return new float[2 * VERTICES];
+
+        double hull[] = convexHull(points, pointCount);
+        int corners = hull.length / 2;
+        while(corners > VERTICES) {
+            corners = removeCheapestEdge(hull, corners, 2 * width, 2 * height);
+            if(corners < 0) return quad();
+        }
+
+        float outline[] = new float[2 * VERTICES];
+        for(int i = 0;i < corners;i++) {
+            outline[2 * i]     = (float) Math.min(1.0, Math.max(0.0, hull[2 * i] / (2 * width)));
+            outline[2 * i + 1] = (float) Math.min(1.0, Math.max(0.0, hull[2 * i + 1] / (2 * height)));
+        }
+        // the quad goes round with a negative area in u v, the outlines have to do the same or they get culled
+        if(signedArea(outline, corners) > 0f) reverse(outline, corners);
+        pad(outline, corners);
+        return outline;
+    }
+
+    // the share of the quad the outline covers, 1 for the quad itself
+    static float area(float outline[]) {
+        return Math.abs(signedArea(outline, VERTICES));
+    }
+
+    // Andrew's monotone chain, counter-clockwise in x right y up terms, without collinear points
+    private static double[] convexHull(long points[], int count) {
+        Arrays.sort(points, 0, count);
+        int unique = 0;
+        for(int i = 0;i < count;i++) {
+            if(unique == 0 || points[i] != points[unique - 1]) points[unique++] = points[i];
+        }
+        count = unique;
+
+        long hull[] = new long[2 * count];
+        int size = 0;
+        for(int i = 0;i < count;i++) {
+            while(size >= 2 && cross(hull[size - 2], hull[size - 1], points[i]) <= 0) size--;
+            hull[size++] = points[i];
+        }
+        for(int i = count - 2, lower = size + 1;i >= 0;i--) {
+            while(size >= lower && cross(hull[size - 2], hull[size - 1], points[i]) <= 0) size--;
+            hull[size++] = points[i];
+        }
+        size = Math.max(1, size - 1); // the last point is the first one again
+
+        double corners[] = new double[2 * size];
+        for(int i = 0;i < size;i++) {
+            corners[2 * i]     = hull[i] >>> 32;
+            corners[2 * i + 1] = (int) hull[i];
+        }
+        return corners;
+    }
+
+    private static long cross(long o, long a, long b) {
+        long ox = o >>> 32, oy = (int) o;
+        return ((a >>> 32) - ox) * ((int) b - oy) - ((int) a - oy) * ((b >>> 32) - ox);
+    }
+
+    // Extends the edges before and after one edge until they meet and drops that edge, the one adding the least area
+    // without leaving 0..maxX, 0..maxY. Returns the corners left, -1 when no edge can go
+    private static int removeCheapestEdge(double corners[], int count, double maxX, double maxY) {
+        int best = -1;
+        double bestArea = Double.POSITIVE_INFINITY, bestX = 0, bestY = 0;
+
+        for(int b = 0;b < count;b++) {
+            int a = (b + count - 1) % count, c = (b + 1) % count, d = (b + 2) % count;
+            double ax = corners[2 * a], ay = corners[2 * a + 1];
+            double bx = corners[2 * b], by = corners[2 * b + 1];
+            double cx = corners[2 * c], cy = corners[2 * c + 1];
+            double dx = corners[2 * d], dy = corners[2 * d + 1];
+
+            // b + t (b - a) = c + s (c - d), both have to go forward or the edges never meet outside the polygon
+            double abX = bx - ax, abY = by - ay, dcX = cx - dx, dcY = cy - dy;
+            double denominator = abX * dcY - abY * dcX;
+            if(Math.abs(denominator) < EPSILON) continue;
+            double t = ((cx - bx) * dcY - (cy - by) * dcX) / denominator;
+            double s = ((cx - bx) * abY - (cy - by) * abX) / denominator;
+            if(t <= 0 || s <= 0) continue;
+
+            double x = bx + t * abX, y = by + t * abY;
+            if(x < -EPSILON || y < -EPSILON || x > maxX + EPSILON || y > maxY + EPSILON) continue;
+
+            double area = Math.abs((x - bx) * (cy - by) - (y - by) * (cx - bx));
+            if(area < bestArea) {
+                best = b;
+                bestArea = area;
+                bestX = x;
+                bestY = y;
+            }
+        }
+        if(best < 0) return -1;
+
+        corners[2 * best] = bestX;
+        corners[2 * best + 1] = bestY;
+        int removed = (best + 1) % count;
+        System.arraycopy(corners, 2 * removed + 2, corners, 2 * removed, 2 * (count - removed - 1));
+        return count - 1;
+    }
+
+    private static float signedArea(float outline[], int corners) {
+        float sum = 0f;
+        for(int i = 0;i < corners;i++) {
+            int next = (i + 1) % corners;
+            sum += outline[2 * i] * outline[2 * next + 1] - outline[2 * next] * outline[2 * i + 1];
+        }
+        return sum * 0.5f;
+    }
+
+    private static void reverse(float outline[], int corners) {
+        for(int i = 0, j = corners - 1;i < j;i++, j--) {
+            float u = outline[2 * i], v = outline[2 * i + 1];
+            outline[2 * i] = outline[2 * j];
+            outline[2 * i + 1] = outline[2 * j + 1];
+            outline[2 * j] = u;
+            outline[2 * j + 1] = v;
+        }
+    }
+
+    private static void pad(float outline[], int corners) {
+        for(int i = corners;i < VERTICES;i++) {
+            outline[2 * i]     = outline[2 * corners - 2];
+            outline[2 * i + 1] = outline[2 * corners - 1];
+        }
+    }
+}
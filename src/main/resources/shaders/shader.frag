@@ -1,14 +1,39 @@
 #version 450
 #extension GL_ARB_separate_shader_objects : enable
 
-layout(set = 0, binding = 1) uniform sampler2DArray texSampler;
+// must match Engine.TEXTURE_PAGES, page 0 is the RGBA8 atlas, the others hold block-compressed textures
+const int TEXTURE_PAGES = 8;
+
+// the opaque pass only draws textures without transparent texels, so nothing is discarded and depth is tested early
+layout(constant_id = 0) const bool OPAQUE_PASS = false;
+
+layout(set = 0, binding = 1) uniform sampler2DArray texSamplers[TEXTURE_PAGES];
 layout(location = 0)         in      vec4 fragColor;
 layout(location = 1)         in      vec3 fragTexCoord;
 layout(location = 2)         in      vec3 userData;
+layout(location = 3) flat    in      int  texturePage;
 layout(location = 0)         out     vec4 outColor;
 
+// constant indices only, indexing the array with a per-instance value would need non-uniform indexing support
+vec4 samplePage(int page, vec3 coord, vec2 dx, vec2 dy) {
+    switch (page) {
+        case 1:  return textureGrad(texSamplers[1], coord, dx, dy);
+        case 2:  return textureGrad(texSamplers[2], coord, dx, dy);
+        case 3:  return textureGrad(texSamplers[3], coord, dx, dy);
+        case 4:  return textureGrad(texSamplers[4], coord, dx, dy);
+        case 5:  return textureGrad(texSamplers[5], coord, dx, dy);
+        case 6:  return textureGrad(texSamplers[6], coord, dx, dy);
+        case 7:  return textureGrad(texSamplers[7], coord, dx, dy);
+        default: return textureGrad(texSamplers[0], coord, dx, dy);
+    }
+}
+
 void main() {
-    vec4 texColor = texture(texSampler, fragTexCoord);
-    if (texColor.w < 1.0) discard;
+    // derivatives are taken before branching, neighbouring sprites in a quad can sit on different pages
+    vec2 dx = dFdx(fragTexCoord.xy);
+    vec2 dy = dFdy(fragTexCoord.xy);
+
+    vec4 texColor = samplePage(texturePage, fragTexCoord, dx, dy);
+    if (!OPAQUE_PASS && texColor.w < 1.0) discard;
     outColor = texColor + fragColor;
-}
\ No newline at end of file
+}
@@ -1,48 +1,94 @@
 #version 450
 #extension GL_ARB_separate_shader_objects : enable
 
+// must match EntityStore.TEXTURE_PAGE_STRIDE, instanceData.w is page * TEXTURE_PAGE_STRIDE + layer
+const int TEXTURE_PAGE_STRIDE = 4096;
+
+// must match SpriteOutline.VERTICES, the corners of every sprite mesh
+const uint MESH_VERTICES = 8;
+
 layout(set = 0, binding = 0) uniform UniformBufferObject {
     mat4 view;
     mat4 proj;
-    mat4 models[128];
-    vec4 instanceData[128];
 } ubo;
 
+// the corners of every sprite mesh as u v inside the texture, MESH_VERTICES per mesh. The index buffer is a fan
+// over them, so gl_VertexIndex is the corner. Mesh 0 is the whole quad
+layout(std430, set = 0, binding = 2) readonly buffer MeshBuffer {
+    vec2 meshCorners[];
+};
+
+// per entity data, indexed by the entity id and as large as the engine needs
+layout(std430, set = 0, binding = 3) readonly buffer ModelBuffer {
+    mat4 models[];
+};
+
+layout(std430, set = 0, binding = 4) readonly buffer InstanceDataBuffer {
+    vec4 instanceData[]; // xyz user data, w texture page and array layer
+};
+
+layout(std430, set = 0, binding = 5) readonly buffer UvRectBuffer {
+    vec4 uvRects[]; // where the texture lives inside its atlas layer: u0 v0 u1 v1
+};
+
+// compact 2D transforms, see EntityStore.setTransform. Instances without TRANSFORM_BIT use their model matrix
+layout(std430, set = 0, binding = 6) readonly buffer TransformBuffer {
+    uvec4 transforms[]; // x y as float bits, z rotation snorm16 | layer << 16 | TRANSFORM_BIT, w scale x y as halfs
+};
+
+layout(std430, set = 0, binding = 7) readonly buffer MeshIndexBuffer {
+    uint meshes[]; // the mesh of the entity's texture
+};
+
+// the entities to draw, gl_InstanceIndex picks the entry from here. The opaque ones come first for the opaque pass,
+// the others after them, both front to back. Entries are the entity id and its position front to back among all of
+// them, see SpriteCuller.ENTRY_BYTES
+layout(std430, set = 0, binding = 8) readonly buffer VisibleBuffer {
+    uvec2 visible[];
+};
+
+const uint TRANSFORM_BIT = 0x80000000u;
+const float PI = 3.14159265358979;
+// the depth between neighbouring entries, exact in D32 and D24 for the first 2^23 entries
+const float DEPTH_STEP = 1.0 / 16777216.0;
+
 layout(location = 0) in  vec4 inColor;
 layout(location = 0) out vec4 fragColor;
 layout(location = 1) out vec3 fragTexCoord;
 layout(location = 2) out vec3 userData;
-
-vec2 positions[4] = vec2[]
-  (
-   vec2(-0.5, -0.5),
-   vec2( 0.5, -0.5),
-   vec2( 0.5,  0.5),
-   vec2(-0.5,  0.5)
-  );
-
-vec2 uvs[4] = vec2[]
-  (
-    vec2(1.0, 0.0),
-    vec2(0.0, 0.0),
-    vec2(0.0, 1.0),
-    vec2(1.0, 1.0)
-  );
-
-
-uint indices[6] = uint[]
-  (
-    0, 1, 2,
-    0, 2, 3
-  );
+layout(location = 3) flat out int texturePage;
 
 void main() {
     fragColor    = inColor;
 
-    uint index   = indices[gl_VertexIndex];
-    gl_Position  = ubo.proj * ubo.view * ubo.models[gl_InstanceIndex] * vec4(positions[index], 0.0, 1.0);
+    uvec2 entry  = visible[gl_InstanceIndex];
+    uint id      = entry.x;
+    uvec4 transform = transforms[id];
+
+    // u runs against x on the unit quad, v along y
+    vec2 uv       = meshCorners[meshes[id] * MESH_VERTICES + uint(gl_VertexIndex)];
+    vec2 position = vec2(0.5 - uv.x, uv.y - 0.5);
+
+    if ((transform.z & TRANSFORM_BIT) != 0u) {
+        float rotation = unpackSnorm2x16(transform.z).x * PI;
+        vec2  scale    = unpackHalf2x16(transform.w);
+
+        float c = cos(rotation);
+        float s = sin(rotation);
+        vec2 local = position * scale;
+        vec2 world = vec2(c * local.x - s * local.y, s * local.x + c * local.y) + uintBitsToFloat(transform.xy);
+
+        gl_Position   = ubo.proj * ubo.view * vec4(world, 0.0, 1.0);
+    } else {
+        gl_Position  = ubo.proj * ubo.view * models[id] * vec4(position, 0.0, 1.0);
+    }
+
+    // the list is front to back, so what is drawn later in DrawOrder ends up closer, layers included
+    gl_Position.z = min(float(entry.y + 1u) * DEPTH_STEP, 1.0 - DEPTH_STEP) * gl_Position.w;
 
-    vec4 inst = ubo.instanceData[gl_InstanceIndex];
-    fragTexCoord = vec3(uvs[index], inst.w);
+    vec4 inst = instanceData[id];
+    vec4 rect = uvRects[id];
+    texturePage  = int(inst.w) / TEXTURE_PAGE_STRIDE;
+    fragTexCoord = vec3(mix(rect.xy, rect.zw, uv), inst.w - float(texturePage * TEXTURE_PAGE_STRIDE));
     userData     = inst.xyz;
 }
@@ -0,0 +1,154 @@
+package javavulkantutorial;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * The allocator against a Backing that only counts memory objects, no device needed.
+ */
+public class DeviceMemoryAllocatorTest {
+
+    private static final long BLOCK_SIZE = 1 << 20;
+    private static final long GRANULARITY = 4096;
+
+    private final Set<Long> liveMemory = new HashSet<>();
+    private long nextMemory = 1;
+    private DeviceMemoryAllocator allocator;
+
+    @Before
+    public void setUp() {
+        DeviceMemoryAllocator.Backing backing = new DeviceMemoryAllocator.Backing() {
+            @Override
+            public long allocate(int memoryType, long size) {
+                liveMemory.add(nextMemory);
+                return nextMemory++;
+            }
+
+            @Override
+            public void free(long memory) {
+                assertTrue("memory " + memory + " freed twice", liveMemory.remove(memory));
+            }
+
+            @Override
+            public long map(int memoryType, long memory, long size) {
+                return 0;
+            }
+        };
+        allocator = new DeviceMemoryAllocator(backing, 2, BLOCK_SIZE, GRANULARITY, 100);
+    }
+
+    @Test
+    public void linearAndOptimalNeighboursGetPagesOfTheirOwn() {
+        DeviceMemoryAllocator.Allocation buffer = allocator.allocate(0, 100, 16, true);
+        DeviceMemoryAllocator.Allocation image = allocator.allocate(0, 100, 16, false);
+        DeviceMemoryAllocator.Allocation secondBuffer = allocator.allocate(0, 100, 16, true);
+        DeviceMemoryAllocator.Allocation secondImage = allocator.allocate(0, 100, 16, false);
+
+        assertEquals(buffer.memory(), image.memory());
+        assertFalse(sharePage(buffer, image));
+        assertFalse(sharePage(secondBuffer, image));
+        assertFalse(sharePage(buffer, secondImage));
+        assertFalse(sharePage(secondBuffer, secondImage));
+
+        // the same kind packs tightly, the rest of a page isn't wasted on it
+        assertTrue(sharePage(buffer, secondBuffer));
+        assertTrue(sharePage(image, secondImage));
+    }
+
+    @Test
+    public void randomAllocationsNeverOverlapOrShareMixedPages() {
+        Random random = new Random(42);
+        List<DeviceMemoryAllocator.Allocation> live = new ArrayList<>();
+        List<Boolean> linear = new ArrayList<>();
+
+        for(int i = 0;i < 5000;i++) {
+            if(live.isEmpty() || (live.size() < 200 && random.nextBoolean())) {
+                long size = 1 + random.nextInt(random.nextBoolean() ? 5000 : 200000);
+                long alignment = 1L << random.nextInt(9);
+                boolean isLinear = random.nextBoolean();
+                DeviceMemoryAllocator.Allocation allocation = allocator.allocate(random.nextInt(2), size, alignment, isLinear);
+
+                assertEquals(0, allocation.offset() % alignment);
+                for(int j = 0;j < live.size();j++) {
+                    DeviceMemoryAllocator.Allocation other = live.get(j);
+                    if(other.memory() != allocation.memory()) continue;
+
+                    assertFalse("allocations overlap", overlap(allocation, other));
+                    if(linear.get(j) != isLinear) assertFalse("linear and optimal share a page", sharePage(allocation, other));
+                }
+                live.add(allocation);
+                linear.add(isLinear);
+            } else {
+                int victim = random.nextInt(live.size());
+                allocator.free(live.remove(victim));
+                linear.remove(victim);
+            }
+        }
+
+        live.forEach(allocator::free);
+        assertEquals(0, allocator.stats(0).allocations);
+        assertEquals(0, allocator.stats(1).allocations);
+    }
+
+    @Test
+    public void freedNeighboursMergeIntoOneRange() {
+        DeviceMemoryAllocator.Allocation first = allocator.allocate(0, 1000, 16, true);
+        DeviceMemoryAllocator.Allocation middle = allocator.allocate(0, 1000, 16, true);
+        DeviceMemoryAllocator.Allocation last = allocator.allocate(0, 1000, 16, true);
+        DeviceMemoryAllocator.Allocation keep = allocator.allocate(0, 1000, 16, true); // keeps the block alive
+
+        allocator.free(first);
+        allocator.free(last);
+        assertEquals(3, allocator.stats(0).freeRanges);
+
+        // merges with the free range before and the one after
+        allocator.free(middle);
+        DeviceMemoryAllocator.Stats stats = allocator.stats(0);
+        assertEquals(2, stats.freeRanges);
+
+        // best fit puts an allocation of exactly that size where the three were, it only fits there merged
+        DeviceMemoryAllocator.Allocation merged = allocator.allocate(0, keep.offset(), 16, true);
+        assertEquals(first.offset(), merged.offset());
+
+        allocator.free(merged);
+        allocator.free(keep);
+        stats = allocator.stats(0);
+        assertEquals(1, stats.freeRanges);
+        assertEquals(BLOCK_SIZE, stats.largestFreeRange);
+        assertEquals(0.0, stats.fragmentation(), 0.0);
+    }
+
+    @Test
+    public void emptyBlocksGoBackToTheBacking() {
+        DeviceMemoryAllocator.Allocation dedicated = allocator.allocate(0, BLOCK_SIZE, 16, false);
+        DeviceMemoryAllocator.Allocation shared = allocator.allocate(0, 100, 16, true);
+        assertEquals(2, liveMemory.size());
+
+        allocator.free(dedicated);
+        allocator.free(shared);
+        // one empty shared block is kept for the next allocation
+        assertEquals(1, liveMemory.size());
+
+        allocator.destroy();
+        assertTrue(liveMemory.isEmpty());
+    }
+
+    private static boolean overlap(DeviceMemoryAllocator.Allocation a, DeviceMemoryAllocator.Allocation b) {
+        return a.offset() < b.offset() + b.size() && b.offset() < a.offset() + a.size();
+    }
+
+    // whether any bufferImageGranularity page holds a byte of both
+    private static boolean sharePage(DeviceMemoryAllocator.Allocation a, DeviceMemoryAllocator.Allocation b) {
+        long aFirst = a.offset() / GRANULARITY, aLast = (a.offset() + a.size() - 1) / GRANULARITY;
+        long bFirst = b.offset() / GRANULARITY, bLast = (b.offset() + b.size() - 1) / GRANULARITY;
+        return a.memory() == b.memory() && aFirst <= bLast && bFirst <= aLast;
+    }
+}